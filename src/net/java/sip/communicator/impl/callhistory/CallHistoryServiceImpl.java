@@ -51,6 +51,53 @@ public class CallHistoryServiceImpl
 
     private static final String DELIM = ",";
 
+    /**
+     * The SQL to insert a call record.
+     */
+    private static final String INSERT_CALL_SQL = "INSERT INTO " +
+        CallHistoryTable.NAME + "(" +
+        CallHistoryTable.COL_ACCOUNT_UID + "," +
+        CallHistoryTable.COL_CALL_START + "," +
+        CallHistoryTable.COL_CALL_END + "," +
+        CallHistoryTable.COL_CALL_DIR + "," +
+        CallHistoryTable.COL_CALL_PARTICIPANT_IDS + "," +
+        CallHistoryTable.COL_CALL_PARTICIPANT_START + "," +
+        CallHistoryTable.COL_CALL_PARTICIPANT_END + "," +
+        CallHistoryTable.COL_CALL_PARTICIPANT_STATES + "," +
+        CallHistoryTable.COL_CALL_END_REASON + "," +
+        CallHistoryTable.COL_CALL_PARTICIPANT_NAMES + "," +
+        CallHistoryTable.COL_CALL_PEER_UID + "," +
+        CallHistoryTable.COL_CALL_RECORD_UID + "," +
+        CallHistoryTable.COL_CALL_RECORD_ATTENTION + "," +
+        CallHistoryTable.COL_CALL_ADDED_TO_DB +
+        ") VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?)";
+
+    /**
+     * The statements to write a call record and add it to the search index.
+     */
+    private static final List<String> WRITE_CALL_STATEMENTS = List.of(
+        INSERT_CALL_SQL,
+        DatabaseUtils.getAddToSearchIndexSql());
+
+    /**
+     * The statements to remove a call record from the search index and
+     * delete it.
+     */
+    private static final List<String> REMOVE_CALL_STATEMENTS = List.of(
+        DatabaseUtils.getRemoveFromSearchIndexSql(CallHistoryTable.NAME,
+                                                  CallHistoryTable.COL_ID,
+                                                  CallHistoryTable.COL_CALL_RECORD_UID),
+        "DELETE FROM " + CallHistoryTable.NAME + " WHERE " +
+            CallHistoryTable.COL_CALL_RECORD_UID + " = ?");
+
+    /**
+     * The most writes that are queued (when not dispatching an event for
+     * each record) before they are written to the database, and the longest
+     * time in ms that they are queued for.
+     */
+    private static final int MAX_QUEUED_WRITES = 200;
+    private static final long MAX_QUEUED_WRITE_DELAY_MS = 1000;
+
     /**
      * The BundleContext that we got from the OSGI bus.
      */
@@ -83,9 +130,31 @@ public class CallHistoryServiceImpl
      */
     private NetworkCallHistoryDataHandler mNetworkCallHistoryHandler;
 
+    /**
+     * Queues the writes made while processing a burst of network call history,
+     * so that they are written in one transaction rather than one each.
+     */
+    private final DatabaseBatchWriter mBatchWriter;
+
     public CallHistoryServiceImpl(DatabaseService databaseService)
     {
         mDatabaseService = databaseService;
+        mBatchWriter = databaseService.createBatchWriter(
+            "CallHistory", MAX_QUEUED_WRITES, MAX_QUEUED_WRITE_DELAY_MS, null);
+    }
+
+    /**
+     * Connect to the database, first writing any queued writes so that they
+     * are visible to the caller.
+     *
+     * @return The connection.
+     * @throws SQLException on SQL error.
+     */
+    private DatabaseConnection connect()
+        throws SQLException
+    {
+        mBatchWriter.flush();
+        return mDatabaseService.connect();
     }
 
     /**
@@ -121,7 +190,7 @@ public class CallHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
             rs = connection.findAfterDate(CallHistoryTable.NAME,
                                             CallHistoryTable.COL_CALL_END,
                                           CallHistoryTable.COL_CALL_ADDED_TO_DB,
@@ -182,7 +251,7 @@ public class CallHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
             // Searching on COL_CALL_START may seem odd, but we want to include
             // calls that ended after the end date, but started before it!
             rs = connection.findBeforeDate(CallHistoryTable.NAME,
@@ -247,7 +316,7 @@ public class CallHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
             rs = connection.findByPeriod(CallHistoryTable.NAME,
                                          CallHistoryTable.COL_CALL_END,
                                          CallHistoryTable.COL_CALL_END,
@@ -296,6 +365,16 @@ public class CallHistoryServiceImpl
         ResultSet rs = null;
         List<CallRecord> result = new ArrayList<>(1);
 
+        // This is called for every call that we write, so only write the
+        // queued writes first if one of them might be the call we are looking
+        // for - otherwise we'd never write more than one call in a batch.
+        if (mBatchWriter.hasPendingWrite(write ->
+                write instanceof CallRecordWrite &&
+                ((CallRecordWrite) write).matchesCallAt(startDate, callPeerIds)))
+        {
+            mBatchWriter.flush();
+        }
+
         try
         {
             connection = mDatabaseService.connect();
@@ -354,7 +433,7 @@ public class CallHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
             rs = connection.findLast(CallHistoryTable.NAME,
                                      CallHistoryTable.COL_CALL_END,
                                      count);
@@ -401,9 +480,10 @@ public class CallHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
-            rs = connection.findByKeyword(
+            connection = connect();
+            rs = connection.findByIndexedKeyword(
                 CallHistoryTable.NAME,
+                CallHistoryTable.COL_ID,
                 CallHistoryTable.COL_CALL_END,
                 address,
                 new String []{
@@ -450,7 +530,7 @@ public class CallHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
             rs = connection.findByKeyword(
                 CallHistoryTable.NAME,
                 CallHistoryTable.COL_CALL_END,
@@ -497,7 +577,7 @@ public class CallHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
 
             preparedStatement = connection.prepare("UPDATE " +
                 CallHistoryTable.NAME + " SET " +
@@ -808,6 +888,7 @@ public class CallHistoryServiceImpl
         }
 
         mNetworkCallHistoryHandler.stop();
+        mBatchWriter.stop();
     }
 
     /**
@@ -860,89 +941,95 @@ public class CallHistoryServiceImpl
             callPeerStates.append(item.getState().getStateString());
         }
 
-        String accountID = null;
-        if (callRecord.getSourceCall() != null)
-        {
-            accountID = callRecord.getSourceCall().getProtocolProvider()
-                                  .getAccountID().getAccountUniqueID();
-        }
+        String accountID = (callRecord.getSourceCall() == null) ? null :
+            callRecord.getSourceCall().getProtocolProvider()
+                      .getAccountID().getAccountUniqueID();
 
         if (callRecord.getUid() == null)
         {
             callRecord.setUid(UUID.randomUUID().toString());
         }
 
-        DatabaseConnection connection = null;
-        PreparedStatement preparedStatement = null;
-
         CallHistoryTable.DIRECTION callDirection =
                 CallRecord.OUT.equals(callRecord.getDirection()) ?
                 CallHistoryTable.DIRECTION.OUT : CallHistoryTable.DIRECTION.IN;
-        try
-        {
-            // A workaround for the CFS taking a while to update the Duration
-            // field. It first sends us a call event with 0 duration, and then
-            // after the call finishes it returns a new one with proper
-            // duration, so here we remove the duplicate one with 0 duration.
-            findZeroLengthCallAtTimeForParticipant(callRecord.getStartTime(), callPeerIDs.toString())
-                    .forEach(record -> removeRecord(record, shouldDispatchEvent));
 
-            connection = mDatabaseService.connect();
+        // A workaround for the CFS taking a while to update the Duration
+        // field. It first sends us a call event with 0 duration, and then
+        // after the call finishes it returns a new one with proper
+        // duration, so here we remove the duplicate one with 0 duration.
+        findZeroLengthCallAtTimeForParticipant(callRecord.getStartTime(), callPeerIDs.toString())
+                .forEach(record -> removeRecord(record, shouldDispatchEvent));
 
-            preparedStatement = connection.prepare("INSERT INTO " +
-                CallHistoryTable.NAME + "(" +
-                CallHistoryTable.COL_ACCOUNT_UID + "," +
-                CallHistoryTable.COL_CALL_START + "," +
-                CallHistoryTable.COL_CALL_END + "," +
-                CallHistoryTable.COL_CALL_DIR + "," +
-                CallHistoryTable.COL_CALL_PARTICIPANT_IDS + "," +
-                CallHistoryTable.COL_CALL_PARTICIPANT_START + "," +
-                CallHistoryTable.COL_CALL_PARTICIPANT_END + "," +
-                CallHistoryTable.COL_CALL_PARTICIPANT_STATES + "," +
-                CallHistoryTable.COL_CALL_END_REASON + "," +
-                CallHistoryTable.COL_CALL_PARTICIPANT_NAMES + "," +
-                CallHistoryTable.COL_CALL_PEER_UID + "," +
-                CallHistoryTable.COL_CALL_RECORD_UID + "," +
-                CallHistoryTable.COL_CALL_RECORD_ATTENTION + "," +
-                CallHistoryTable.COL_CALL_ADDED_TO_DB +
-                ") VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?)");
-
-            preparedStatement.setString(1, accountID);
-            preparedStatement.setLong(2, callRecord.getStartTime().getTime());
-            preparedStatement.setLong(3, callRecord.getEndTime().getTime());
-            preparedStatement.setInt(4, callDirection.ordinal());
-            preparedStatement.setString(5, callPeerIDs.toString());
-            preparedStatement.setString(6, callPeerStartTime.toString());
-            preparedStatement.setString(7, callPeerEndTime.toString());
-            preparedStatement.setString(8, callPeerStates.toString());
-            preparedStatement.setInt(9, callRecord.getEndReason());
-            preparedStatement.setString(10, callPeerNames.toString());
-            preparedStatement.setString(11, peerContactUID);
-            preparedStatement.setString(12, callRecord.getUid());
-            preparedStatement.setBoolean(13, callRecord.getAttention());
-            preparedStatement.setLong(14, Instant.now().toEpochMilli());
+        DatabaseWrite write = new CallRecordWrite(WRITE_CALL_STATEMENTS,
+                                                   callRecord,
+                                                   callPeerIDs.toString())
+        {
+            /**
+             * The row ID of the call record, once it has been inserted.
+             */
+            private long mRowId;
 
-            connection.execute(preparedStatement);
+            @Override
+            public int getGeneratedKeyStatementIndex()
+            {
+                return 0;
+            }
 
-            // Fire event or add to transactions to be fired in a later event
-            if (shouldDispatchEvent)
+            @Override
+            public void setGeneratedKey(long key)
             {
-                sLog.debug("Send event for add transaction");
-                fireCallHistoryChangeEvent(callRecord, true);
+                mRowId = key;
             }
-            else
+
+            @Override
+            public void addToBatch(int statementIndex,
+                                   PreparedStatement preparedStatement)
+                throws SQLException
             {
-                sLog.debug("Store add transaction");
-                mDatabaseTransactions.put(callRecord, true);
+                if (statementIndex == 0)
+                {
+                    preparedStatement.setString(1, accountID);
+                    preparedStatement.setLong(2, callRecord.getStartTime().getTime());
+                    preparedStatement.setLong(3, callRecord.getEndTime().getTime());
+                    preparedStatement.setInt(4, callDirection.ordinal());
+                    preparedStatement.setString(5, callPeerIDs.toString());
+                    preparedStatement.setString(6, callPeerStartTime.toString());
+                    preparedStatement.setString(7, callPeerEndTime.toString());
+                    preparedStatement.setString(8, callPeerStates.toString());
+                    preparedStatement.setInt(9, callRecord.getEndReason());
+                    preparedStatement.setString(10, callPeerNames.toString());
+                    preparedStatement.setString(11, peerContactUID);
+                    preparedStatement.setString(12, callRecord.getUid());
+                    preparedStatement.setBoolean(13, callRecord.getAttention());
+                    preparedStatement.setLong(14, mAddedToDb);
+                    preparedStatement.addBatch();
+                }
+                else
+                {
+                    addToSearchIndexBatch(preparedStatement,
+                                          mRowId,
+                                          callPeerIDs.toString(),
+                                          callPeerNames.toString());
+                }
             }
-        }
-        catch (SQLException e)
+        };
+
+        if (shouldDispatchEvent)
         {
-            sLog.error("Failed to add Call History entry: ", e);
+            if (writeNow(write, "Failed to add Call History entry: "))
+            {
+                sLog.debug("Send event for add transaction");
+                fireCallHistoryChangeEvent(callRecord, true);
+            }
         }
-        finally
+        else
         {
-            DatabaseUtils.safeClose(connection);
+            // Queue the write, and add to transactions to be fired in a later
+            // event, which will write the queued writes first.
+            sLog.debug("Store add transaction");
+            mBatchWriter.enqueue(write);
+            mDatabaseTransactions.put(callRecord, true);
         }
     }
 
@@ -964,35 +1051,67 @@ public class CallHistoryServiceImpl
      */
     public void removeRecord(CallRecord record, Boolean shouldDispatchEvent)
     {
-        DatabaseConnection connection = null;
-        PreparedStatement preparedStatement = null;
-
-        try
+        DatabaseWrite write = new CallRecordWrite(REMOVE_CALL_STATEMENTS, record, null)
         {
-            connection = mDatabaseService.connect();
-
-            preparedStatement = connection.prepare("DELETE FROM " +
-                CallHistoryTable.NAME + " WHERE " +
-                CallHistoryTable.COL_CALL_RECORD_UID + " = ?");
+            @Override
+            public void addToBatch(int statementIndex,
+                                   PreparedStatement preparedStatement)
+                throws SQLException
+            {
+                if (statementIndex == 0)
+                {
+                    preparedStatement.setString(1, CallHistoryTable.NAME);
+                    preparedStatement.setString(2, record.getUid());
+                }
+                else
+                {
+                    preparedStatement.setString(1, record.getUid());
+                }
 
-            preparedStatement.setString(1, record.getUid());
-            connection.execute(preparedStatement);
+                preparedStatement.addBatch();
+            }
+        };
 
-            // Fire event or add to transactions to be fired in a later event
-            if (shouldDispatchEvent)
+        if (shouldDispatchEvent)
+        {
+            if (writeNow(write, "Failed to delete Call History entry: "))
             {
                 sLog.debug("Send event for remove transaction");
                 fireCallHistoryChangeEvent(record, false);
             }
-            else
-            {
-                sLog.debug("Store remove transaction");
-                mDatabaseTransactions.put(record, false);
-            }
+        }
+        else
+        {
+            sLog.debug("Store remove transaction");
+            mBatchWriter.enqueue(write);
+            mDatabaseTransactions.put(record, false);
+        }
+    }
+
+    /**
+     * Write the given write to the database straight away, after any queued
+     * writes.
+     *
+     * @param write The write.
+     * @param errorLog The log to write if the write fails.
+     * @return true if the write succeeded.
+     */
+    private boolean writeNow(DatabaseWrite write, String errorLog)
+    {
+        DatabaseConnection connection = null;
+
+        try
+        {
+            connection = connect();
+            connection.startTransaction();
+            connection.executeBatch(Collections.singletonList(write));
+            connection.commitTransaction();
+            return true;
         }
         catch (SQLException e)
         {
-            sLog.error("Failed to delete Call History entry: ", e);
+            sLog.error(errorLog, e);
+            return false;
         }
         finally
         {
@@ -1000,6 +1119,81 @@ public class CallHistoryServiceImpl
         }
     }
 
+    /**
+     * Add a batch entry to the given search index insert statement (see
+     * DatabaseUtils.getAddToSearchIndexSql()) for each token of the given
+     * texts of a call record.
+     *
+     * @param preparedStatement The statement.
+     * @param rowId The row ID of the call record.
+     * @param texts The text to index.
+     * @throws SQLException on SQL error.
+     */
+    private static void addToSearchIndexBatch(PreparedStatement preparedStatement,
+                                              long rowId,
+                                              String... texts)
+        throws SQLException
+    {
+        Set<String> tokens = new HashSet<>();
+        for (String text : texts)
+        {
+            tokens.addAll(DatabaseUtils.getSearchIndexTokens(text));
+        }
+
+        for (String token : tokens)
+        {
+            preparedStatement.setString(1, CallHistoryTable.NAME);
+            preparedStatement.setString(2, token);
+            preparedStatement.setLong(3, rowId);
+            preparedStatement.addBatch();
+        }
+    }
+
+    /**
+     * A write of (or deletion of) a call record.
+     */
+    private abstract static class CallRecordWrite implements DatabaseWrite
+    {
+        private final List<String> mStatements;
+        private final CallRecord mRecord;
+
+        /**
+         * The peer IDs of the call, if this write adds a call record.
+         */
+        private final String mCallPeerIds;
+
+        /**
+         * The time that the write was created, which is stored as the time
+         * the record was added to the DB.
+         */
+        protected final long mAddedToDb = Instant.now().toEpochMilli();
+
+        CallRecordWrite(List<String> statements,
+                        CallRecord record,
+                        String callPeerIds)
+        {
+            mStatements = statements;
+            mRecord = record;
+            mCallPeerIds = callPeerIds;
+        }
+
+        @Override
+        public List<String> getStatements()
+        {
+            return mStatements;
+        }
+
+        /**
+         * @return true if this writes a call record that started at the given
+         * time with the given peers.
+         */
+        boolean matchesCallAt(Date startDate, String callPeerIds)
+        {
+            return callPeerIds.equals(mCallPeerIds) &&
+                   mRecord.getStartTime().getTime() == startDate.getTime();
+        }
+    }
+
     /**
      * When new protocol provider is registered we check
      * does it supports BasicTelephony and if so add a listener to it
@@ -1474,6 +1668,10 @@ public class CallHistoryServiceImpl
      */
     public void fireCallHistoryChangeEvent()
     {
+        // Make sure that the changes are in the database before telling
+        // anyone about them.
+        mBatchWriter.flush();
+
         if (mDatabaseTransactions.size() != 0)
         {
             fireCallHistoryChangeEvent(mDatabaseTransactions);
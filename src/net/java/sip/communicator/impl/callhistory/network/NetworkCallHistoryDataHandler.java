@@ -1076,7 +1076,7 @@ public class NetworkCallHistoryDataHandler implements CPDataGetterCallback, CPCo
             if (removeRecord)
             {
                 sLog.debug("Remove local record " + localCallRecordImpl);
-                mCallHistoryService.removeRecord(localCallRecordImpl);
+                mCallHistoryService.removeRecord(localCallRecordImpl, false);
                 historyChanged = true;
             }
         }
@@ -1185,7 +1185,9 @@ public class NetworkCallHistoryDataHandler implements CPDataGetterCallback, CPCo
             }
 
             // And write it.
-            mCallHistoryService.writeCall(recordToWrite, peerAddress);
+            // Don't send an event for each record - the writes are queued
+            // and a single event is sent for them all below.
+            mCallHistoryService.writeCall(recordToWrite, peerAddress, false);
         }
 
         if (historyChanged)
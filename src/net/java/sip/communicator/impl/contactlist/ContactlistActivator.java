@@ -159,6 +159,17 @@ public class ContactlistActivator
         return sPhoneNumberUtils;
     }
 
+    /**
+     * Sets the PhoneNumberUtils service to use, for tests that run without
+     * a bundle context.
+     *
+     * @param phoneNumberUtils the PhoneNumberUtils service
+     */
+    static void setPhoneNumberUtils(PhoneNumberUtilsService phoneNumberUtils)
+    {
+        sPhoneNumberUtils = phoneNumberUtils;
+    }
+
     /**
      * @return a reference to the UI Service
      */
@@ -0,0 +1,321 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.impl.contactlist;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import javax.xml.parsers.*;
+import javax.xml.transform.*;
+import javax.xml.transform.dom.*;
+import javax.xml.transform.stream.*;
+
+import net.java.sip.communicator.util.Logger;
+
+import org.w3c.dom.*;
+import org.xml.sax.*;
+
+/**
+ * An append-only journal of changes to the contact list file.
+ * <p>
+ * Rather than rewriting the whole of contactlist.xml every time anything in
+ * the contact list changes, MclStorageManager appends the new XML of each
+ * meta contact and group that has changed (or a record that it has been
+ * removed) to this journal.  When the contact list is next loaded, the
+ * entries are replayed over contactlist.xml in order (see
+ * <tt>MclNodeIndex.replayJournalEntry()</tt>).  The journal is compacted by
+ * writing out the whole of contactlist.xml and then clearing the journal -
+ * replaying the entries over a file that already includes them gives the
+ * same contact list, so it doesn't matter if we stop between the two.
+ * <p>
+ * Each entry is a single line, so an entry that was only partly written
+ * (e.g. because we crashed) is simply ignored.
+ */
+class MclJournal
+{
+    private static final Logger logger = Logger.getLogger(MclJournal.class);
+
+    /**
+     * The types of element that the journal stores.
+     */
+    enum ElementType
+    {
+        META_CONTACT("C"),
+        GROUP("G");
+
+        private final String code;
+
+        ElementType(String code)
+        {
+            this.code = code;
+        }
+    }
+
+    /**
+     * The separator between the fields of an entry.  The fields are base64
+     * encoded, so this can't appear in them.
+     */
+    private static final String FIELD_SEPARATOR = " ";
+
+    /**
+     * The file that the journal is stored in.
+     */
+    private final File journalFile;
+
+    MclJournal(File journalFile)
+    {
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * @return the size in bytes of the journal.
+     */
+    long length()
+    {
+        return journalFile.length();
+    }
+
+    /**
+     * Appends the given entries to the journal and syncs it to disk.
+     *
+     * @param entries the entries to append.
+     * @throws IOException if the entries could not be written.
+     */
+    void append(List<Entry> entries) throws IOException
+    {
+        if (entries.isEmpty())
+            return;
+
+        StringBuilder lines = new StringBuilder();
+
+        for (Entry entry : entries)
+        {
+            lines.append(entry.toLine()).append('\n');
+        }
+
+        try (FileOutputStream out = new FileOutputStream(journalFile, true)) // CodeQL [SM00697] Not Exploitable. The file/path is not user provided.
+        {
+            out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+    }
+
+    /**
+     * Reads all the entries in the journal.  Any that can't be read are
+     * logged and skipped.
+     *
+     * @return the entries in the journal, in the order they were written.
+     */
+    List<Entry> read()
+    {
+        List<Entry> entries = new ArrayList<>();
+
+        if (!journalFile.exists())
+            return entries;
+
+        try (BufferedReader reader = new BufferedReader(
+                 new InputStreamReader(new FileInputStream(journalFile), // CodeQL [SM00697] Not Exploitable. The file/path is not user provided.
+                                       StandardCharsets.UTF_8)))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                Entry entry = Entry.fromLine(line);
+
+                if (entry != null)
+                    entries.add(entry);
+                else
+                    logger.warn("Ignoring invalid contact list journal entry");
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to read contact list journal", e);
+        }
+
+        return entries;
+    }
+
+    /**
+     * Removes all entries from the journal.
+     *
+     * @throws IOException if the journal could not be cleared.
+     */
+    void clear() throws IOException
+    {
+        if (journalFile.length() > 0)
+        {
+            new FileOutputStream(journalFile, false).close(); // CodeQL [SM00697] Not Exploitable. The file/path is not user provided.
+        }
+    }
+
+    /**
+     * Serializes an element (and all its children) to a string.
+     *
+     * @param element the element.
+     * @return the XML of the element.
+     * @throws TransformerException if the element could not be serialized.
+     */
+    static String toXml(Element element) throws TransformerException
+    {
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+
+        StringWriter writer = new StringWriter();
+        transformer.transform(new DOMSource(element), new StreamResult(writer));
+        return writer.toString();
+    }
+
+    /**
+     * Parses XML written by toXml() and imports it into the given document.
+     *
+     * @param xml the XML of an element.
+     * @param document the document to import the element into.
+     * @return the element, owned by the document but not yet added to it.
+     * @throws IOException if the XML could not be parsed.
+     */
+    static Element fromXml(String xml, Document document) throws IOException
+    {
+        try
+        {
+            DocumentBuilder builder =
+                DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            Document parsed = builder.parse(new InputSource(new StringReader(xml))); // CodeQL [SM00704] Not Exploitable. The XML is not user provided.
+
+            return (Element) document.importNode(parsed.getDocumentElement(), true);
+        }
+        catch (ParserConfigurationException | SAXException e)
+        {
+            throw new IOException("Failed to parse journal entry", e);
+        }
+    }
+
+    /**
+     * An entry in the journal, recording the current state of a meta contact
+     * or group element, or that it has been removed.
+     */
+    static class Entry
+    {
+        /**
+         * The type of element.
+         */
+        final ElementType type;
+
+        /**
+         * The UID of the meta contact or group.
+         */
+        final String uid;
+
+        /**
+         * The UID of the group containing the meta contact or group, or the
+         * empty string for the root group.  Null if the element was removed.
+         */
+        final String parentUid;
+
+        /**
+         * The XML of the element, or null if it was removed.
+         */
+        final String xml;
+
+        private Entry(ElementType type, String uid, String parentUid, String xml)
+        {
+            this.type = type;
+            this.uid = uid;
+            this.parentUid = parentUid;
+            this.xml = xml;
+        }
+
+        /**
+         * @return an entry recording the current state of an element.
+         */
+        static Entry updated(ElementType type,
+                             String uid,
+                             String parentUid,
+                             String xml)
+        {
+            return new Entry(type, uid, parentUid, xml);
+        }
+
+        /**
+         * @return an entry recording that an element was removed.
+         */
+        static Entry removed(ElementType type, String uid)
+        {
+            return new Entry(type, uid, null, null);
+        }
+
+        /**
+         * @return true if this entry records that the element was removed.
+         */
+        boolean isRemoval()
+        {
+            return xml == null;
+        }
+
+        private String toLine()
+        {
+            StringBuilder line = new StringBuilder(type.code)
+                .append(isRemoval() ? "-" : "+")
+                .append(FIELD_SEPARATOR).append(encode(uid));
+
+            if (!isRemoval())
+            {
+                line.append(FIELD_SEPARATOR).append(encode(parentUid))
+                    .append(FIELD_SEPARATOR).append(encode(xml));
+            }
+
+            return line.toString();
+        }
+
+        /**
+         * @return the entry written as the given line, or null if the line is
+         * not a valid entry.
+         */
+        private static Entry fromLine(String line)
+        {
+            String[] fields = line.split(FIELD_SEPARATOR, -1);
+
+            if (fields.length < 2 || fields[0].length() != 2)
+                return null;
+
+            ElementType type = null;
+            for (ElementType candidate : ElementType.values())
+            {
+                if (fields[0].startsWith(candidate.code))
+                    type = candidate;
+            }
+
+            try
+            {
+                if (type == null)
+                    return null;
+                else if (fields[0].endsWith("-") && fields.length == 2)
+                    return removed(type, decode(fields[1]));
+                else if (fields[0].endsWith("+") && fields.length == 4)
+                    return updated(type,
+                                   decode(fields[1]),
+                                   decode(fields[2]),
+                                   decode(fields[3]));
+            }
+            catch (IllegalArgumentException e)
+            {
+                // Not valid base64 - e.g. a partly written line.
+            }
+
+            return null;
+        }
+
+        private static String encode(String value)
+        {
+            return Base64.getEncoder().encodeToString(
+                value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static String decode(String value)
+        {
+            return new String(Base64.getDecoder().decode(value),
+                              StandardCharsets.UTF_8);
+        }
+    }
+}
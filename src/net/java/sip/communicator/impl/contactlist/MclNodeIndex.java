@@ -0,0 +1,280 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.impl.contactlist;
+
+import static net.java.sip.communicator.impl.contactlist.MclStorageManager.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.util.Logger;
+
+import org.jitsi.util.xml.*;
+import org.w3c.dom.*;
+
+/**
+ * The meta contact and group nodes in the contact list document, indexed by
+ * UID, so that handling a change to the contact list doesn't need to search
+ * the whole document.  The index must be updated whenever nodes are added to
+ * or removed from the document.
+ * <p>
+ * This also replays <tt>MclJournal</tt> entries over the document, as that
+ * has to keep the document and the index in step.
+ */
+class MclNodeIndex
+{
+    private static final Logger logger = Logger.getLogger(MclNodeIndex.class);
+
+    private final Map<String, Element> metaContactNodes = new ConcurrentHashMap<>();
+    private final Map<String, Element> groupNodes = new ConcurrentHashMap<>();
+
+    /**
+     * @param uid the UID of a meta contact.
+     * @return the node of the meta contact, or null if there is none.
+     */
+    Element getMetaContactNode(String uid)
+    {
+        return (uid == null) ? null : metaContactNodes.get(uid);
+    }
+
+    /**
+     * @param uid the UID of a meta contact group.
+     * @return the node of the group, or null if there is none.
+     */
+    Element getGroupNode(String uid)
+    {
+        return (uid == null) ? null : groupNodes.get(uid);
+    }
+
+    /**
+     * Indexes a meta contact node, replacing any node already indexed with
+     * the same UID.
+     *
+     * @param uid the UID of the meta contact.
+     * @param node the node of the meta contact.
+     */
+    void putMetaContactNode(String uid, Element node)
+    {
+        metaContactNodes.put(uid, node);
+    }
+
+    /**
+     * Rebuilds the index from the whole contact list document.
+     *
+     * @param document the contact list document.
+     */
+    void rebuild(Document document)
+    {
+        metaContactNodes.clear();
+        groupNodes.clear();
+
+        Element root = (Element) document.getFirstChild();
+        if (root != null)
+            indexNodes(root, false);
+    }
+
+    /**
+     * Adds the given node and all the meta contact and group nodes within it
+     * to the index.  If there are several nodes with the same UID, the first
+     * to be indexed is kept, as that is the first in the document when the
+     * index is rebuilt, which is the one we used to find by searching the
+     * document.
+     *
+     * @param node the node to index.
+     */
+    void add(Element node)
+    {
+        indexNodes(node, false);
+    }
+
+    /**
+     * Removes a node from the contact list document and from the index.
+     *
+     * @param node the node to remove.
+     */
+    void removeNode(Node node)
+    {
+        node.getParentNode().removeChild(node);
+
+        if (node.getNodeType() == Node.ELEMENT_NODE)
+            unindexNodes((Element) node);
+    }
+
+    /**
+     * Applies a journal entry to the contact list document.
+     * <p>
+     * A group entry holds the whole group, including its subgroups and meta
+     * contacts, so any of those may already be in the document elsewhere -
+     * e.g. if a meta contact was moved into a group that was created since
+     * the file was written.  All the existing nodes with the UIDs in the
+     * entry are removed before adding it, so each meta contact and group
+     * only ever appears once, and the last entry that includes it wins.
+     * Applying an entry to a document that already includes it therefore
+     * leaves the document as it was.
+     *
+     * @param entry the entry.
+     * @param document the contact list document.
+     * @throws IOException if the entry's XML could not be parsed.
+     */
+    void replayJournalEntry(MclJournal.Entry entry, Document document)
+        throws IOException
+    {
+        boolean isGroup = (entry.type == MclJournal.ElementType.GROUP);
+
+        if (entry.isRemoval())
+        {
+            Element oldNode = isGroup ?
+                getGroupNode(entry.uid) : getMetaContactNode(entry.uid);
+
+            if (oldNode != null)
+                removeNode(oldNode);
+
+            return;
+        }
+
+        Element newNode = MclJournal.fromXml(entry.xml, document);
+        Element container;
+
+        if (entry.parentUid.length() == 0)
+        {
+            // This is the root group, which is the document root's child.
+            container = (Element) document.getFirstChild();
+        }
+        else
+        {
+            Element parentNode = getGroupNode(entry.parentUid);
+
+            if (parentNode == null)
+            {
+                logger.warn("Parent group not found when replaying change to " +
+                            entry.type + " " + entry.uid);
+                return;
+            }
+
+            container = XMLUtils.findChild(parentNode,
+                isGroup ? SUBGROUPS_NODE_NAME : CHILD_CONTACTS_NODE_NAME);
+        }
+
+        removeNodesWithUIDsIn(newNode);
+        container.appendChild(newNode);
+        indexNodes(newNode, true);
+    }
+
+    /**
+     * Adds the given node and all the meta contact and group nodes within it
+     * to the index.
+     *
+     * @param node the node to index.
+     * @param replace whether to replace nodes already indexed with the same
+     * UIDs, rather than keeping them.
+     */
+    private void indexNodes(Element node, boolean replace)
+    {
+        String nodeName = node.getNodeName();
+
+        if (META_CONTACT_NODE_NAME.equals(nodeName))
+        {
+            putIfHasUID(metaContactNodes, node, replace);
+
+            // Meta contact nodes don't contain any other indexed nodes.
+            return;
+        }
+        else if (GROUP_NODE_NAME.equals(nodeName))
+        {
+            putIfHasUID(groupNodes, node, replace);
+        }
+
+        NodeList children = node.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++)
+        {
+            Node child = children.item(i);
+
+            if (child.getNodeType() == Node.ELEMENT_NODE)
+                indexNodes((Element) child, replace);
+        }
+    }
+
+    private static void putIfHasUID(Map<String, Element> index,
+                                    Element node,
+                                    boolean replace)
+    {
+        String uid = node.getAttribute(UID_ATTR_NAME);
+
+        if (uid == null || uid.length() == 0)
+            return;
+
+        if (replace)
+            index.put(uid, node);
+        else
+            index.putIfAbsent(uid, node);
+    }
+
+    /**
+     * Removes the given node and all the meta contact and group nodes within
+     * it from the index.
+     *
+     * @param node the node to remove from the index.
+     */
+    private void unindexNodes(Element node)
+    {
+        String nodeName = node.getNodeName();
+        String uid = node.getAttribute(UID_ATTR_NAME);
+
+        if (META_CONTACT_NODE_NAME.equals(nodeName))
+        {
+            metaContactNodes.remove(uid, node);
+            return;
+        }
+        else if (GROUP_NODE_NAME.equals(nodeName))
+        {
+            groupNodes.remove(uid, node);
+        }
+
+        NodeList children = node.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++)
+        {
+            Node child = children.item(i);
+
+            if (child.getNodeType() == Node.ELEMENT_NODE)
+                unindexNodes((Element) child);
+        }
+    }
+
+    /**
+     * Removes the indexed nodes with the same UIDs as the given node and the
+     * meta contact and group nodes within it from the document.
+     *
+     * @param node a node that isn't in the document.
+     */
+    private void removeNodesWithUIDsIn(Element node)
+    {
+        String nodeName = node.getNodeName();
+        Element existingNode = null;
+
+        if (META_CONTACT_NODE_NAME.equals(nodeName))
+        {
+            existingNode = getMetaContactNode(node.getAttribute(UID_ATTR_NAME));
+        }
+        else if (GROUP_NODE_NAME.equals(nodeName))
+        {
+            existingNode = getGroupNode(node.getAttribute(UID_ATTR_NAME));
+        }
+
+        // An existing group may already have been removed along with an
+        // existing ancestor, in which case it has also been unindexed.
+        if (existingNode != null)
+            removeNode(existingNode);
+
+        if (META_CONTACT_NODE_NAME.equals(nodeName))
+            return;
+
+        NodeList children = node.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++)
+        {
+            Node child = children.item(i);
+
+            if (child.getNodeType() == Node.ELEMENT_NODE)
+                removeNodesWithUIDsIn((Element) child);
+        }
+    }
+}
@@ -13,8 +13,10 @@ import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.*;
 
 import javax.xml.parsers.*;
+import javax.xml.transform.*;
 
 import net.java.sip.communicator.service.contactlist.*;
 import net.java.sip.communicator.service.contactlist.event.*;
@@ -42,6 +44,13 @@ import org.w3c.dom.*;
  * belonging to this new provider. Unresolved proto groups and contacts will be
  * created for every one of them.
  * <p>
+ * Meta contact and group nodes are indexed by UID, so that handling a change
+ * to the contact list doesn't need to search the whole document.  Rather than
+ * rewriting the whole file after each change, the changed nodes are appended
+ * to a journal (see <tt>MclJournal</tt>) which is replayed over the file when
+ * it is loaded, and the whole file is only rewritten when the journal gets
+ * too big.
+ * <p>
  *
  * @author Emil Ivov
  */
@@ -66,6 +75,31 @@ public class MclStorageManager
      */
     private boolean isModified = false;
 
+    /**
+     * Whether the whole contact list file needs to be rewritten, rather than
+     * just journalling the changed nodes.
+     */
+    private boolean isFullStoreNeeded = false;
+
+    /**
+     * The UIDs of the meta contacts and groups that have changed since we
+     * last stored the contact list.
+     */
+    private final Set<String> modifiedMetaContactUIDs = new HashSet<>();
+    private final Set<String> modifiedGroupUIDs = new HashSet<>();
+
+    /**
+     * The meta contact and group nodes in the contact list document, indexed
+     * by UID.
+     */
+    private final MclNodeIndex nodeIndex = new MclNodeIndex();
+
+    /**
+     * The journal of changes to the contact list file, or null if we always
+     * rewrite the whole file.
+     */
+    private MclJournal journal = null;
+
     /**
      * A currently valid reference to the OSGI bundle context,
      */
@@ -98,6 +132,25 @@ public class MclStorageManager
      */
     private static final String DEFAULT_FILE_NAME = "contactlist.xml";
 
+    /**
+     * The name of the file containing the journal of changes to the contact
+     * list file.
+     */
+    private static final String JOURNAL_FILE_NAME = "contactlist.journal";
+
+    /**
+     * The name of the property that determines whether changes to the
+     * contact list are journalled, rather than rewriting the whole file.
+     */
+    private static final String PROPERTY_USE_JOURNAL =
+        "net.java.sip.communicator.impl.contactlist.USE_JOURNAL";
+
+    /**
+     * The size in bytes that the journal may grow to before we rewrite the
+     * whole contact list file and clear the journal.
+     */
+    private static final long MAX_JOURNAL_SIZE = 1024 * 1024;
+
     /**
      * The name of the node that represents the contact list root.
      */
@@ -106,13 +159,13 @@ public class MclStorageManager
     /**
      * The name of the XML node corresponding to a meta contact group.
      */
-    private static final String GROUP_NODE_NAME = "group";
+    static final String GROUP_NODE_NAME = "group";
 
     /**
      * The name of the XML node corresponding to a collection of meta contact
      * subgroups.
      */
-    private static final String SUBGROUPS_NODE_NAME = "subgroups";
+    static final String SUBGROUPS_NODE_NAME = "subgroups";
 
     /**
      * The name of the XML attribute that contains group names.
@@ -139,7 +192,7 @@ public class MclStorageManager
     /**
      * The name of the XML attribute that contains unique identifiers
      */
-    private static final String UID_ATTR_NAME = "uid";
+    static final String UID_ATTR_NAME = "uid";
 
     /**
      * The name of the XML attribute that contains unique identifiers for parent
@@ -157,7 +210,7 @@ public class MclStorageManager
     /**
      * The name of the XML node that contains meta contact details.
      */
-    private static final String META_CONTACT_NODE_NAME = "meta-contact";
+    static final String META_CONTACT_NODE_NAME = "meta-contact";
 
     /**
      * The name of the XML node that contains meta contact display names.
@@ -213,7 +266,7 @@ public class MclStorageManager
      * The name of the XML node that contains all meta contact nodes inside a
      * group
      */
-    private static final String CHILD_CONTACTS_NODE_NAME = "child-contacts";
+    static final String CHILD_CONTACTS_NODE_NAME = "child-contacts";
 
     /**
      * A lock that we use when storing the contact list to avoid being exited
@@ -293,6 +346,12 @@ public class MclStorageManager
 
         contactlistTrans = new TransactionBasedFile(contactlistFile);
 
+        if (configurationService.user().getBoolean(PROPERTY_USE_JOURNAL, true))
+        {
+            journal = new MclJournal(new File(contactlistFile.getParentFile(),
+                                              JOURNAL_FILE_NAME));
+        }
+
         try
         {
             // load the contact list
@@ -305,6 +364,10 @@ public class MclStorageManager
                 logger.error("Creating new contact list object " + DEFAULT_FILE_NAME);
                 contactListDocument = builder.newDocument();
                 initVirginDocument(mclServImpl, contactListDocument);
+                rebuildNodeIndex();
+                clearJournal();
+                isModified = true;
+                isFullStoreNeeded = true;
 
                 // write the contact list so that it is there for the parser
                 storeContactList0();
@@ -321,6 +384,8 @@ public class MclStorageManager
                     // whitespace
                     XMLUtils.cleanupWhitespace(rawParsedDocument);
                     contactListDocument = rawParsedDocument;
+                    rebuildNodeIndex();
+                    replayJournal();
                 }
                 catch (Throwable ex)
                 {
@@ -333,6 +398,10 @@ public class MclStorageManager
                     contactlistFile.createNewFile(); // CodeQL [SM00698] Not Exploitable. The file/path is not user provided. // CodeQL [SM00697] Not Exploitable. The file/path is not user provided.
                     contactListDocument = builder.newDocument();
                     initVirginDocument(mclServImpl, contactListDocument);
+                    rebuildNodeIndex();
+                    clearJournal();
+                    isModified = true;
+                    isFullStoreNeeded = true;
 
                     // write the contact list so that it is there for the parser
                     storeContactList0();
@@ -353,8 +422,7 @@ public class MclStorageManager
     }
 
     /**
-     * Stores the contact list in its current state.
-     *
+     * Schedules the whole contact list to be stored in its current state.
      */
     private void scheduleContactListStorage()
     {
@@ -364,7 +432,106 @@ public class MclStorageManager
                 return;
 
             this.isModified = true;
+            this.isFullStoreNeeded = true;
+        }
+    }
+
+    /**
+     * Schedules the node of the meta contact with the given UID to be stored
+     * in its current state (or removed, if it is no longer in the document).
+     *
+     * @param metaContactUID the UID of the meta contact.
+     */
+    private void scheduleMetaContactStorage(String metaContactUID)
+    {
+        synchronized (contactListRWLock)
+        {
+            if (!isStarted())
+                return;
+
+            this.isModified = true;
+            modifiedMetaContactUIDs.add(metaContactUID);
+        }
+    }
+
+    /**
+     * Schedules the node of the group with the given UID to be stored in its
+     * current state (or removed, if it is no longer in the document).
+     *
+     * @param groupUID the UID of the group.
+     */
+    private void scheduleGroupStorage(String groupUID)
+    {
+        synchronized (contactListRWLock)
+        {
+            if (!isStarted())
+                return;
+
+            this.isModified = true;
+            modifiedGroupUIDs.add(groupUID);
+        }
+    }
+
+    /**
+     * Stores the changes to the contact list since it was last stored, either
+     * by appending the changed nodes to the journal or, if there is no
+     * journal or it has grown too big, by rewriting the whole file.
+     *
+     * @throws IOException in case writing fails.
+     */
+    private void storeContactListChanges() throws IOException
+    {
+        if (journal == null ||
+            isFullStoreNeeded ||
+            journal.length() > MAX_JOURNAL_SIZE)
+        {
+            storeContactList0();
+            return;
+        }
+
+        List<MclJournal.Entry> entries = new ArrayList<>();
+
+        try
+        {
+            // Write groups before their descendants, as replacing a group
+            // replaces all its descendants.
+            List<String> groupUIDs = new ArrayList<>(modifiedGroupUIDs);
+            groupUIDs.sort(Comparator.comparingInt(
+                uid -> getDepth(nodeIndex.getGroupNode(uid))));
+
+            for (String uid : groupUIDs)
+            {
+                Element node = nodeIndex.getGroupNode(uid);
+                entries.add((node == null) ?
+                    MclJournal.Entry.removed(MclJournal.ElementType.GROUP, uid) :
+                    MclJournal.Entry.updated(MclJournal.ElementType.GROUP,
+                                             uid,
+                                             getParentGroupUID(node),
+                                             MclJournal.toXml(node)));
+            }
+
+            for (String uid : modifiedMetaContactUIDs)
+            {
+                Element node = nodeIndex.getMetaContactNode(uid);
+                entries.add((node == null) ?
+                    MclJournal.Entry.removed(MclJournal.ElementType.META_CONTACT, uid) :
+                    MclJournal.Entry.updated(MclJournal.ElementType.META_CONTACT,
+                                             uid,
+                                             getParentGroupUID(node),
+                                             MclJournal.toXml(node)));
+            }
         }
+        catch (TransformerException e)
+        {
+            logger.error("Failed to serialize contact list changes, " +
+                         "storing whole contact list", e);
+            storeContactList0();
+            return;
+        }
+
+        journal.append(entries);
+        modifiedGroupUIDs.clear();
+        modifiedMetaContactUIDs.clear();
     }
 
     /**
@@ -407,6 +574,15 @@ public class MclStorageManager
                     logger.error("the contactlist file is not edited", e);
                 }
             }
+
+            // Everything in the journal is now in the file.
+            synchronized (contactListRWLock)
+            {
+                clearJournal();
+                isFullStoreNeeded = false;
+                modifiedGroupUIDs.clear();
+                modifiedMetaContactUIDs.clear();
+            }
         }
     }
 
@@ -430,7 +606,7 @@ public class MclStorageManager
                             contactListRWLock.wait(5000);
                             if (isModified)
                             {
-                                storeContactList0();
+                                storeContactListChanges();
                                 isModified = false;
                             }
                         }
@@ -592,6 +768,7 @@ public class MclStorageManager
                 contactListDocument = builder.newDocument();
 
                 initVirginDocument(mclServiceImpl, contactListDocument);
+                rebuildNodeIndex();
 
                 // write the contact list so that it is there for the parser
                 storeContactList0();
@@ -604,7 +781,9 @@ public class MclStorageManager
                 processGroupXmlNode(
                                mclServiceImpl, accountID, root, null, null);
 
-                // now save the contact list in case it has changed
+                // now save the contact list in case it has changed, e.g.
+                // because parsing resolved protocol groups or removed nodes
+                // that couldn't be parsed
                 scheduleContactListStorage();
             }
         }
@@ -859,8 +1038,8 @@ public class MclStorageManager
                 {
                     try
                     {
-                        currentMetaContactNode.getParentNode().removeChild(
-                            currentMetaContactNode);
+                        nodeIndex.removeNode(currentMetaContactNode);
+                        scheduleContactListStorage();
                     }
                     catch (Throwable throwable)
                     {
@@ -909,8 +1088,8 @@ public class MclStorageManager
                 {
                     try
                     {
-                        currentGroupNode.getParentNode().removeChild(
-                            currentGroupNode);
+                        nodeIndex.removeNode(currentGroupNode);
+                        scheduleContactListStorage();
                     }
                     catch (Throwable thr)
                     {
@@ -1009,6 +1188,9 @@ public class MclStorageManager
             contactLogger.note("Removing duplicate " + node);
             metaContactNode.removeChild(node);
         }
+
+        if (!duplicates.isEmpty())
+            scheduleMetaContactStorage(uid);
         return protoContacts;
     }
 
@@ -1306,8 +1488,9 @@ public class MclStorageManager
             createMetaContactNode(evt.getSourceMetaContact());
 
         parentGroupNode.appendChild(metaContactElement);
+        nodeIndex.add(metaContactElement);
 
-        scheduleContactListStorage();
+        scheduleMetaContactStorage(evt.getSourceMetaContact().getMetaUID());
     }
 
     /**
@@ -1347,8 +1530,9 @@ public class MclStorageManager
             XMLUtils.findChild(parentGroupNode, SUBGROUPS_NODE_NAME);
 
         subgroupsNode.appendChild(newGroupElement);
+        nodeIndex.add(newGroupElement);
 
-        scheduleContactListStorage();
+        scheduleGroupStorage(evt.getSourceMetaContactGroup().getMetaUID());
     }
 
     /**
@@ -1372,9 +1556,9 @@ public class MclStorageManager
         }
 
         // remove the meta contact node.
-        metaContactGroupNode.getParentNode().removeChild(metaContactGroupNode);
+        nodeIndex.removeNode(metaContactGroupNode);
 
-        scheduleContactListStorage();
+        scheduleGroupStorage(evt.getSourceMetaContactGroup().getMetaUID());
     }
 
     /**
@@ -1406,6 +1590,8 @@ public class MclStorageManager
         {
             // create new node
             metaContactNode = createMetaContactNode(evt.getSourceMetaContact());
+            nodeIndex.putMetaContactNode(
+                evt.getSourceMetaContact().getMetaUID(), metaContactNode);
         }
         else
         {
@@ -1419,7 +1605,7 @@ public class MclStorageManager
 
         childContacts.appendChild(metaContactNode);
 
-        scheduleContactListStorage();
+        scheduleMetaContactStorage(evt.getSourceMetaContact().getMetaUID());
     }
 
     /**
@@ -1493,9 +1679,9 @@ public class MclStorageManager
         }
 
         // remove the meta contact node.
-        metaContactNode.getParentNode().removeChild(metaContactNode);
+        nodeIndex.removeNode(metaContactNode);
 
-        scheduleContactListStorage();
+        scheduleMetaContactStorage(evt.getSourceMetaContact().getMetaUID());
     }
 
     /**
@@ -1541,7 +1727,7 @@ public class MclStorageManager
 
         updatePersistentDataForMetaContact(evt.getSourceMetaContact());
 
-        scheduleContactListStorage();
+        scheduleMetaContactStorage(evt.getSourceMetaContact().getMetaUID());
     }
 
     /**
@@ -1571,7 +1757,7 @@ public class MclStorageManager
         // i don't think we could do anything else in addition to updating the
         // persistent data.
 
-        scheduleContactListStorage();
+        scheduleMetaContactStorage(evt.getParent().getMetaUID());
     }
 
     /**
@@ -1639,7 +1825,7 @@ public class MclStorageManager
         if (!isChanged)
             return;
 
-        scheduleContactListStorage();
+        scheduleMetaContactStorage(sourceMetaContact.getMetaUID());
     }
 
     /**
@@ -1688,7 +1874,7 @@ public class MclStorageManager
                       oldMcNode + " because the protoNode could not be found");
         }
 
-        scheduleContactListStorage();
+        scheduleMetaContactStorage(evt.getOldParent().getMetaUID());
     }
 
     /**
@@ -1736,13 +1922,12 @@ public class MclStorageManager
             // group node and re-create it according to its current state.
             Node parentNode = mcGroupNode.getParentNode();
 
-            parentNode.removeChild(mcGroupNode);
+            nodeIndex.removeNode(mcGroupNode);
 
             Element newGroupElement = createMetaContactGroupNode(mcGroup);
 
             parentNode.appendChild(newGroupElement);
-
-            scheduleContactListStorage();
+            nodeIndex.add(newGroupElement);
             break;
         case MetaContactGroupEvent.META_CONTACT_GROUP_RENAMED:
             XMLUtils.setAttribute(mcGroupNode,
@@ -1751,7 +1936,7 @@ public class MclStorageManager
             break;
         }
 
-        scheduleContactListStorage();
+        scheduleGroupStorage(mcGroup.getMetaUID());
     }
 
     /**
@@ -1780,7 +1965,7 @@ public class MclStorageManager
 
         mcNode.appendChild(protoNode);
 
-        scheduleContactListStorage();
+        scheduleMetaContactStorage(evt.getParent().getMetaUID());
     }
 
     /**
@@ -1852,7 +2037,8 @@ public class MclStorageManager
 
             newMcNode.appendChild(protoNode);
 
-            scheduleContactListStorage();
+            scheduleMetaContactStorage(oldParent.getMetaUID());
+            scheduleMetaContactStorage(newParent.getMetaUID());
         }
     }
 
@@ -1868,10 +2054,8 @@ public class MclStorageManager
      */
     private Element findMetaContactNode(String metaContactUID)
     {
-        Element root = (Element) contactListDocument.getFirstChild();
-
-        return XMLUtils.locateElement(root, META_CONTACT_NODE_NAME,
-            UID_ATTR_NAME, metaContactUID);
+        return (metaContactUID == null) ?
+            null : nodeIndex.getMetaContactNode(metaContactUID);
     }
 
     /**
@@ -1886,10 +2070,102 @@ public class MclStorageManager
      */
     private Element findMetaContactGroupNode(String metaContactGroupUID)
     {
-        Element root = (Element) contactListDocument.getFirstChild();
+        return (metaContactGroupUID == null) ?
+            null : nodeIndex.getGroupNode(metaContactGroupUID);
+    }
+
+    /**
+     * Rebuilds the indexes of meta contact and group nodes from the whole
+     * contact list document.
+     */
+    private void rebuildNodeIndex()
+    {
+        nodeIndex.rebuild(contactListDocument);
+    }
+
+    /**
+     * @param node a meta contact or group node.
+     * @return the UID of the group node containing the given node, or the
+     * empty string if there is none (i.e. the node is the root group).
+     */
+    private static String getParentGroupUID(Element node)
+    {
+        // Meta contacts and groups are in the child-contacts or subgroups
+        // node of their parent group.
+        Node container = node.getParentNode();
+        Node parentGroup = (container == null) ? null : container.getParentNode();
+
+        return (parentGroup instanceof Element &&
+                GROUP_NODE_NAME.equals(parentGroup.getNodeName())) ?
+            ((Element) parentGroup).getAttribute(UID_ATTR_NAME) : "";
+    }
+
+    /**
+     * @return the number of ancestors of the given node, or 0 if it is null.
+     */
+    private static int getDepth(Node node)
+    {
+        int depth = 0;
 
-        return XMLUtils.locateElement(root, GROUP_NODE_NAME, UID_ATTR_NAME,
-            metaContactGroupUID);
+        while (node != null && (node = node.getParentNode()) != null)
+            depth++;
+
+        return depth;
+    }
+
+    /**
+     * Applies the changes recorded in the journal to the contact list
+     * document that has just been loaded from the file.  If there were any,
+     * the whole file is rewritten at the next store so the journal can be
+     * cleared.
+     */
+    private void replayJournal()
+    {
+        if (journal == null)
+            return;
+
+        List<MclJournal.Entry> entries = journal.read();
+
+        if (entries.isEmpty())
+            return;
+
+        logger.info("Replaying " + entries.size() + " contact list changes");
+
+        for (MclJournal.Entry entry : entries)
+        {
+            try
+            {
+                nodeIndex.replayJournalEntry(entry, contactListDocument);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                logger.error("Failed to replay contact list change for " +
+                             entry.type + " " + entry.uid, e);
+            }
+        }
+
+        isModified = true;
+        isFullStoreNeeded = true;
+    }
+
+    /**
+     * Removes all entries from the journal, if there is one.
+     */
+    private void clearJournal()
+    {
+        if (journal == null)
+            return;
+
+        try
+        {
+            journal.clear();
+        }
+        catch (IOException e)
+        {
+            // The journal would be replayed over a file that already has its
+            // changes, which does no harm.
+            logger.error("Failed to clear contact list journal", e);
+        }
     }
 
     /**
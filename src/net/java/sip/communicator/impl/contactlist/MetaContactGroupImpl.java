@@ -47,10 +47,11 @@ public class MetaContactGroupImpl
                                         = new HashSet<>();
 
     /**
-     * A list containing all child contacts.
+     * The ordered list of all child contacts.  Its iterators are over a
+     * snapshot of the list, so we can return them without copying the list.
      */
-    private final Set<MetaContactImpl> childContacts
-                                            = new HashSet<>();
+    private final MetaContactOrderedList childContacts
+                                            = new MetaContactOrderedList();
 
     /**
      * A list of the contact groups encapsulated by this MetaContactGroup
@@ -67,14 +68,6 @@ public class MetaContactGroupImpl
      */
     private String groupName = null;
 
-    /**
-     * We use this copy for returning iterators and searching over the list
-     * in order to avoid creating it upon each query. The copy is updated upon
-     * each modification
-     */
-    private List<MetaContact> childContactsOrderedCopy
-                                            = new ArrayList<>();
-
     /**
      * We use this copy for returning iterators and searching over the list
      * in order to avoid creating it upon each query. The copy is updated upon
@@ -258,15 +251,15 @@ public class MetaContactGroupImpl
      * contained in this <tt>MetaContactGroup</tt>.
      * <p>
      * In order to prevent problems with concurrency, the <tt>Iterator</tt>
-     * returned by this method is not over the actual list of groups but over a
-     * copy of that list.
+     * returned by this method is over a snapshot of the list of contacts,
+     * which later changes to the group don't affect.
      * <p>
      *
      * @return a <tt>java.util.Iterator</tt> over an empty contacts list.
      */
     public Iterator<MetaContact> getChildContacts()
     {
-        return childContactsOrderedCopy.iterator();
+        return childContacts.iterator();
     }
 
     /**
@@ -304,23 +297,7 @@ public class MetaContactGroupImpl
      */
     public int indexOf(MetaContact metaContact)
     {
-        int i = 0;
-
-        Iterator<MetaContact> childrenIter = getChildContacts();
-
-        while (childrenIter.hasNext())
-        {
-            MetaContact current = childrenIter.next();
-
-            if (current == metaContact)
-            {
-                return i;
-            }
-            i++;
-        }
-
-        //if we got here then metaContact is not in this list
-        return -1;
+        return childContacts.indexOf(metaContact);
     }
 
     /**
@@ -790,7 +767,7 @@ public class MetaContactGroupImpl
     public MetaContact getMetaContact(int index) throws
         IndexOutOfBoundsException
     {
-        return this.childContactsOrderedCopy.get(index);
+        return this.childContacts.get(index);
     }
 
     /**
@@ -804,6 +781,10 @@ public class MetaContactGroupImpl
         metaContact.setParentGroup(this);
 
         lightAddMetaContact(metaContact);
+
+        MetaContactIndex index = mclServiceImpl.getMetaContactIndex();
+        if (index != null)
+            index.addMetaContact(metaContact);
     }
 
     /**
@@ -818,14 +799,7 @@ public class MetaContactGroupImpl
      */
     int lightAddMetaContact(MetaContactImpl metaContact)
     {
-        synchronized(childContacts)
-        {
-            this.childContacts.add(metaContact);
-            //no need to synch it's not a disaster if s.o. else reads the old copy.
-            childContactsOrderedCopy
-                = new ArrayList<>(childContacts);
-            return childContactsOrderedCopy.indexOf(metaContact);
-        }
+        return this.childContacts.add(metaContact);
     }
 
     /**
@@ -833,22 +807,14 @@ public class MetaContactGroupImpl
       * contacts without unsetting its parent contact and without any
       * synchronization. This method is meant for use _PRIMARILY_ by the
       * <tt>MetaContact</tt> itself upon change in its encapsulated protocol
-      * specific contacts. The method would also regenerate the ordered copy
-      * used for generating iterators and performing search operations over
-      * the group.
+      * specific contacts.
       *
       * @param metaContact the <tt>MetaContact</tt> to remove from the local
       * vector.
       */
     void lightRemoveMetaContact(MetaContactImpl metaContact)
     {
-        synchronized(childContacts)
-        {
-            this.childContacts.remove(metaContact);
-            //no need to synch it's not a disaster if s.o. else reads the old copy.
-            childContactsOrderedCopy
-                            = new ArrayList<>(childContacts);
-        }
+        this.childContacts.remove(metaContact);
     }
 
     /**
@@ -862,6 +828,12 @@ public class MetaContactGroupImpl
         MetaContactImpl metaContactImpl = ((MetaContactImpl) metaContact);
         metaContactImpl.unsetParentGroup(this);
         lightRemoveMetaContact(metaContactImpl);
+
+        // Only remove the contact from the index if it hasn't already been
+        // added to another group (i.e. it isn't being moved).
+        MetaContactIndex index = mclServiceImpl.getMetaContactIndex();
+        if (index != null && metaContactImpl.getParentGroup() == null)
+            index.removeMetaContact(metaContactImpl);
     }
 
     /**
@@ -919,10 +891,7 @@ public class MetaContactGroupImpl
      */
     public boolean contains(MetaContact contact)
     {
-        synchronized (childContacts)
-        {
-            return this.childContacts.contains(contact);
-        }
+        return this.childContacts.contains(contact);
     }
 
     /**
@@ -349,15 +349,31 @@ public class MetaContactImpl
 
     public List<Contact> getContactByPhoneNumber(String phoneNumber)
     {
+        ArrayList<Class<? extends GenericDetail>> detailClasses =
+                new ArrayList<>();
+        detailClasses.add(PhoneNumberDetail.class);
+
+        return getContactByValues(detailClasses,
+                                  getPhoneNumberSearchValues(phoneNumber)
+                                      .toArray(new String[0]));
+    }
+
+    /**
+     * Returns the values to compare with the (E164 formatted) phone number
+     * details of contacts when searching for the given phone number.
+     *
+     * @param phoneNumber The phone number to search for, in any format
+     * @return The values to search on
+     */
+    static List<String> getPhoneNumberSearchValues(String phoneNumber)
+    {
+        PhoneNumberUtilsService utils = ContactlistActivator.getPhoneNumberUtils();
+
         // Convert the input number into E164 format - that way we can compare
         // two strings and say they represent the same number even if one is in
         // a different format to the other.
         String phoneNumberE164 = utils.formatNumberToE164(phoneNumber);
 
-        ArrayList<Class<? extends GenericDetail>> detailClasses =
-                new ArrayList<>();
-        detailClasses.add(PhoneNumberDetail.class);
-
         if (utils.getEASRegion().equals("IT"))
         {
             // This is a workaround for Italian numbers which are saved without
@@ -369,10 +385,10 @@ public class MetaContactImpl
             String numberWithoutElc = utils.stripELC(phoneNumber);
             numberWithoutElc = utils.formatNumberToE164(numberWithoutElc);
             logger.info("Searching with ELC stripped: " + logHasher(numberWithoutElc));
-            return getContactByValues(detailClasses, phoneNumberE164, numberWithoutElc);
+            return Arrays.asList(phoneNumberE164, numberWithoutElc);
         }
 
-        return getContactByValues(detailClasses, phoneNumberE164);
+        return Collections.singletonList(phoneNumberE164);
     }
 
     @Override
@@ -386,6 +402,71 @@ public class MetaContactImpl
         return getContactByValues(detailClasses, emailAddress);
     }
 
+    /**
+     * Returns the lower case values of the phone number details, or of the
+     * email and IM address details, of all the contacts in this MetaContact,
+     * formatted as they are when searching by phone number or email address.
+     *
+     * @param phoneNumbers True to return phone numbers, false to return
+     * email and IM addresses
+     * @return The detail values
+     */
+    Set<String> getSearchableDetailValues(boolean phoneNumbers)
+    {
+        List<Class<? extends GenericDetail>> detailClasses = phoneNumbers ?
+            Collections.singletonList(PhoneNumberDetail.class) :
+            Arrays.asList(EmailAddressDetail.class,
+                          PersonalContactDetails.IMDetail.class);
+
+        Set<String> detailValues = new HashSet<>();
+
+        for (Iterator<Contact> contacts = getContacts(); contacts.hasNext();)
+        {
+            Contact contact = contacts.next();
+
+            try
+            {
+                OperationSetServerStoredContactInfo contactInfoOpSet =
+                    contact.getProtocolProvider().getOperationSet(
+                        OperationSetServerStoredContactInfo.class);
+                if (contactInfoOpSet == null)
+                {
+                    continue;
+                }
+
+                Iterator<GenericDetail> contactInfo =
+                         contactInfoOpSet.getAllDetailsForContact(contact);
+
+                while (contactInfo.hasNext())
+                {
+                    GenericDetail detail = contactInfo.next();
+
+                    for (Class<? extends GenericDetail> detailClass : detailClasses)
+                    {
+                        if (detailClass.isAssignableFrom(detail.getClass()))
+                        {
+                            String value =
+                                utils.formatNumberToE164(detail.toString());
+
+                            if (value != null)
+                            {
+                                detailValues.add(value.toLowerCase());
+                            }
+                            break;
+                        }
+                    }
+                }
+            }
+            catch(Exception e)
+            {
+                logger.warn("Could not get server stored details for" +
+                                     "contact" + logHasher(contact.getDisplayName()), e);
+            }
+        }
+
+        return detailValues;
+    }
+
     /**
      * Return the contacts that match the input values
      *
@@ -1183,6 +1264,10 @@ public class MetaContactImpl
                     capOpSet.getSupportedOperationSets(contact));
             }
         }
+
+        MetaContactIndex index = getIndex();
+        if (index != null)
+            index.addProtoContact(this, contact);
     }
 
     /**
@@ -1345,6 +1430,10 @@ public class MetaContactImpl
             // If we've removed a contact, then we may need to update the name
             maybeUpdateDisplayName();
         }
+
+        MetaContactIndex index = getIndex();
+        if (index != null)
+            index.removeProtoContact(this, contact);
     }
 
     /**
@@ -1420,6 +1509,17 @@ public class MetaContactImpl
         return getParentGroup();
     }
 
+    /**
+     * Returns the index of the contact list that this meta contact is in.
+     *
+     * @return the index, or null if this meta contact is not in a group.
+     */
+    private MetaContactIndex getIndex()
+    {
+        MetaContactGroupImpl group = parentGroup;
+        return (group == null) ? null : group.getMclServiceImpl().getMetaContactIndex();
+    }
+
     /**
      * Adds a custom detail to this contact.
      * @param name name of the detail.
@@ -1690,6 +1790,11 @@ public class MetaContactImpl
         {
             maybeUpdateDisplayName();
         }
+
+        // The contact's phone numbers or email addresses may have changed.
+        MetaContactIndex index = getIndex();
+        if (index != null)
+            index.updateDetails(this);
     }
 
     @Override
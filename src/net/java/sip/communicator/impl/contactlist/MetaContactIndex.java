@@ -0,0 +1,463 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.protocol.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Hash indexes over the MetaContacts in the contact list, so that the
+ * MetaContactListService find methods don't have to search the whole tree.
+ * These are called very often - e.g. for every presence update - so searching
+ * a list of thousands of contacts each time is expensive.
+ *
+ * The index is kept up to date as MetaContacts are added to and removed from
+ * groups (MetaContactGroupImpl) and as proto contacts are added to and removed
+ * from MetaContacts (MetaContactImpl).  The number and email index is also
+ * updated when a proto contact is modified, as that is when its details
+ * change - so protocol providers must fire a ContactPropertyChangeEvent
+ * (e.g. PROPERTY_DISPLAY_DETAILS) whenever they change a contact's details.
+ *
+ * Every MetaContact that the index returns is checked to make sure that it is
+ * still in the contact list and still matches, as whole groups can be removed
+ * from the list without removing each of their MetaContacts.  A MetaContact
+ * that is in the contact list is always in the index, so if the index has no
+ * matches then there are none.
+ */
+class MetaContactIndex
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger = Logger.getLogger(MetaContactIndex.class);
+
+    /**
+     * Prefixes for the keys of the detail index.
+     */
+    private static final String NUMBER_KEY_PREFIX = "n:";
+    private static final String EMAIL_KEY_PREFIX = "e:";
+
+    /**
+     * The root group of the contact list.
+     */
+    private final MetaContactGroupImpl rootGroup;
+
+    /**
+     * MetaContacts keyed by the address and account ID of each of their proto
+     * contacts (see getContactKey()).
+     */
+    private final Map<String, Set<MetaContactImpl>> contactsByContactKey =
+        new ConcurrentHashMap<>();
+
+    /**
+     * MetaContacts keyed by their meta UID.
+     */
+    private final Map<String, MetaContactImpl> contactsByMetaUID =
+        new ConcurrentHashMap<>();
+
+    /**
+     * MetaContacts keyed by their normalized phone numbers and email
+     * addresses, prefixed by NUMBER_KEY_PREFIX or EMAIL_KEY_PREFIX.
+     */
+    private final Map<String, Set<MetaContactImpl>> contactsByDetailKey =
+        new ConcurrentHashMap<>();
+
+    /**
+     * The detail keys that each MetaContact is currently indexed under, so
+     * that they can be removed when its details change.
+     */
+    private final Map<MetaContactImpl, Set<String>> detailKeysByContact =
+        new ConcurrentHashMap<>();
+
+    MetaContactIndex(MetaContactGroupImpl rootGroup)
+    {
+        this.rootGroup = rootGroup;
+    }
+
+    /**
+     * Index a MetaContact that has been added to a group, together with all
+     * of its proto contacts and details.
+     *
+     * @param metaContact the MetaContact.
+     */
+    void addMetaContact(MetaContactImpl metaContact)
+    {
+        contactsByMetaUID.put(metaContact.getMetaUID(), metaContact);
+
+        Iterator<Contact> contacts = metaContact.getContacts();
+        while (contacts.hasNext())
+        {
+            addToSet(contactsByContactKey,
+                     getContactKey(contacts.next()),
+                     metaContact);
+        }
+
+        updateDetails(metaContact);
+    }
+
+    /**
+     * Remove a MetaContact that has been removed from its group from the
+     * index.
+     *
+     * @param metaContact the MetaContact.
+     */
+    void removeMetaContact(MetaContactImpl metaContact)
+    {
+        contactsByMetaUID.remove(metaContact.getMetaUID(), metaContact);
+
+        Iterator<Contact> contacts = metaContact.getContacts();
+        while (contacts.hasNext())
+        {
+            removeFromSet(contactsByContactKey,
+                          getContactKey(contacts.next()),
+                          metaContact);
+        }
+
+        Set<String> detailKeys = detailKeysByContact.remove(metaContact);
+        if (detailKeys != null)
+        {
+            for (String key : detailKeys)
+            {
+                removeFromSet(contactsByDetailKey, key, metaContact);
+            }
+        }
+    }
+
+    /**
+     * Index a proto contact that has been added to a MetaContact.
+     *
+     * @param metaContact the MetaContact.
+     * @param contact the proto contact.
+     */
+    void addProtoContact(MetaContactImpl metaContact, Contact contact)
+    {
+        addToSet(contactsByContactKey, getContactKey(contact), metaContact);
+        updateDetails(metaContact);
+    }
+
+    /**
+     * Remove a proto contact that has been removed from a MetaContact from the
+     * index.
+     *
+     * @param metaContact the MetaContact.
+     * @param contact the proto contact.
+     */
+    void removeProtoContact(MetaContactImpl metaContact, Contact contact)
+    {
+        removeFromSet(contactsByContactKey, getContactKey(contact), metaContact);
+        updateDetails(metaContact);
+    }
+
+    /**
+     * Re-index the phone numbers and email addresses of a MetaContact, e.g.
+     * after one of its proto contacts has been modified.
+     *
+     * @param metaContact the MetaContact.
+     */
+    void updateDetails(MetaContactImpl metaContact)
+    {
+        Set<String> newKeys = getDetailKeys(metaContact);
+        Set<String> oldKeys = detailKeysByContact.put(metaContact, newKeys);
+
+        if (oldKeys != null)
+        {
+            for (String key : oldKeys)
+            {
+                if (!newKeys.contains(key))
+                {
+                    removeFromSet(contactsByDetailKey, key, metaContact);
+                }
+            }
+        }
+
+        for (String key : newKeys)
+        {
+            addToSet(contactsByDetailKey, key, metaContact);
+        }
+    }
+
+    /**
+     * @param contact the proto contact to look for.
+     * @return the MetaContact in the contact list containing the contact, or
+     * null if there is none.
+     */
+    MetaContact findMetaContactByContact(Contact contact)
+    {
+        for (MetaContactImpl metaContact :
+             get(contactsByContactKey, getContactKey(contact)))
+        {
+            if (metaContact.getContact(contact.getAddress(),
+                                       contact.getProtocolProvider()) != null &&
+                isInContactList(metaContact))
+            {
+                return metaContact;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param contactAddress the address of the proto contact to look for.
+     * @param accountID the account ID of the proto contact to look for.
+     * @return the MetaContact in the contact list containing the contact, or
+     * null if there is none.
+     */
+    MetaContact findMetaContactByContact(String contactAddress, String accountID)
+    {
+        for (MetaContactImpl metaContact :
+             get(contactsByContactKey, getContactKey(contactAddress, accountID)))
+        {
+            if (metaContact.getContact(contactAddress, accountID) != null &&
+                isInContactList(metaContact))
+            {
+                return metaContact;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param metaUID a meta UID.
+     * @return the MetaContact in the contact list with that meta UID, or null
+     * if there is none.
+     */
+    MetaContact findMetaContactByMetaUID(String metaUID)
+    {
+        MetaContactImpl metaContact = contactsByMetaUID.get(metaUID);
+
+        return (metaContact != null && isInContactList(metaContact)) ?
+            metaContact : null;
+    }
+
+    /**
+     * @param phoneNumber a phone number in any format.
+     * @return the MetaContacts in the contact list with that phone number.
+     */
+    List<MetaContact> findMetaContactByNumber(String phoneNumber)
+    {
+        List<MetaContact> result = new ArrayList<>();
+        Set<MetaContactImpl> candidates = new LinkedHashSet<>();
+
+        for (String value : MetaContactImpl.getPhoneNumberSearchValues(phoneNumber))
+        {
+            if (value != null)
+            {
+                candidates.addAll(get(contactsByDetailKey,
+                                      NUMBER_KEY_PREFIX + value.toLowerCase()));
+            }
+        }
+
+        for (MetaContactImpl metaContact : candidates)
+        {
+            if (isInContactList(metaContact) &&
+                !metaContact.getContactByPhoneNumber(phoneNumber).isEmpty())
+            {
+                result.add(metaContact);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @param emailAddress an email address.
+     * @return the MetaContacts in the contact list with that email address.
+     */
+    List<MetaContact> findMetaContactByEmail(String emailAddress)
+    {
+        List<MetaContact> result = new ArrayList<>();
+
+        for (MetaContactImpl metaContact :
+             get(contactsByDetailKey, EMAIL_KEY_PREFIX + emailAddress.toLowerCase()))
+        {
+            if (isInContactList(metaContact) &&
+                !metaContact.getContactByEmail(emailAddress).isEmpty())
+            {
+                result.add(metaContact);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Check that the index matches the contact list, for diagnostics.
+     *
+     * @return a description of any differences between the index and the
+     * contact list.
+     */
+    String checkConsistency()
+    {
+        Set<MetaContactImpl> inList = new HashSet<>();
+        collectMetaContacts(rootGroup, inList);
+
+        int missingUIDs = 0;
+        int missingContacts = 0;
+        int missingDetails = 0;
+
+        for (MetaContactImpl metaContact : inList)
+        {
+            if (contactsByMetaUID.get(metaContact.getMetaUID()) != metaContact)
+            {
+                missingUIDs++;
+            }
+
+            Iterator<Contact> contacts = metaContact.getContacts();
+            while (contacts.hasNext())
+            {
+                if (!get(contactsByContactKey, getContactKey(contacts.next()))
+                        .contains(metaContact))
+                {
+                    missingContacts++;
+                }
+            }
+
+            for (String key : getDetailKeys(metaContact))
+            {
+                if (!get(contactsByDetailKey, key).contains(metaContact))
+                {
+                    missingDetails++;
+                }
+            }
+        }
+
+        int staleUIDs = 0;
+        for (MetaContactImpl metaContact : contactsByMetaUID.values())
+        {
+            if (!inList.contains(metaContact))
+            {
+                staleUIDs++;
+            }
+        }
+
+        String result = "MetaContact index: " + inList.size() +
+            " MetaContacts in list, " + contactsByMetaUID.size() +
+            " indexed by UID, " + contactsByContactKey.size() +
+            " contact keys, " + contactsByDetailKey.size() + " detail keys" +
+            "\nMissing from index: " + missingUIDs + " UIDs, " +
+            missingContacts + " contacts, " + missingDetails + " details" +
+            "\nIndexed but no longer in list: " + staleUIDs;
+
+        if (missingUIDs + missingContacts + missingDetails > 0)
+        {
+            logger.error("MetaContact index is inconsistent: " + result);
+        }
+
+        return result;
+    }
+
+    /**
+     * @return true if the MetaContact is in a group that is in the contact
+     * list.
+     */
+    private boolean isInContactList(MetaContactImpl metaContact)
+    {
+        MetaContactGroup group = metaContact.getParentMetaContactGroup();
+
+        while (group != null && group != rootGroup)
+        {
+            group = group.getParentMetaContactGroup();
+        }
+
+        return group == rootGroup;
+    }
+
+    /**
+     * Add all the MetaContacts in the given group and its subgroups to the
+     * given set.
+     */
+    private static void collectMetaContacts(MetaContactGroup group,
+                                            Set<MetaContactImpl> metaContacts)
+    {
+        Iterator<MetaContact> contacts = group.getChildContacts();
+        while (contacts.hasNext())
+        {
+            metaContacts.add((MetaContactImpl) contacts.next());
+        }
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+        {
+            collectMetaContacts(subgroups.next(), metaContacts);
+        }
+    }
+
+    /**
+     * @return the keys to index the given MetaContact's phone numbers and
+     * email addresses under.
+     */
+    private static Set<String> getDetailKeys(MetaContactImpl metaContact)
+    {
+        Set<String> keys = new HashSet<>();
+
+        for (String number : metaContact.getSearchableDetailValues(true))
+        {
+            keys.add(NUMBER_KEY_PREFIX + number);
+        }
+
+        for (String email : metaContact.getSearchableDetailValues(false))
+        {
+            keys.add(EMAIL_KEY_PREFIX + email);
+        }
+
+        return keys;
+    }
+
+    /**
+     * @return the key to index the given proto contact under.
+     */
+    private static String getContactKey(Contact contact)
+    {
+        return getContactKey(
+            contact.getAddress(),
+            contact.getProtocolProvider().getAccountID().getAccountUniqueID());
+    }
+
+    /**
+     * @return the key to index a proto contact with the given address and
+     * account under.  Both are matched case-insensitively.
+     */
+    private static String getContactKey(String contactAddress, String accountID)
+    {
+        return accountID.toLowerCase() + " " + contactAddress.toLowerCase();
+    }
+
+    private static Set<MetaContactImpl> get(Map<String, Set<MetaContactImpl>> map,
+                                            String key)
+    {
+        Set<MetaContactImpl> set = map.get(key);
+        return (set == null) ? Collections.emptySet() : set;
+    }
+
+    private static void addToSet(Map<String, Set<MetaContactImpl>> map,
+                                 String key,
+                                 MetaContactImpl metaContact)
+    {
+        map.compute(key, (k, set) ->
+        {
+            if (set == null)
+            {
+                set = ConcurrentHashMap.newKeySet();
+            }
+
+            set.add(metaContact);
+            return set;
+        });
+    }
+
+    private static void removeFromSet(Map<String, Set<MetaContactImpl>> map,
+                                      String key,
+                                      MetaContactImpl metaContact)
+    {
+        map.computeIfPresent(key, (k, set) ->
+        {
+            set.remove(metaContact);
+            return set.isEmpty() ? null : set;
+        });
+    }
+}
@@ -76,6 +76,13 @@ public class MetaContactListServiceImpl
      */
     final MetaContactGroupImpl rootMetaGroup;
 
+    /**
+     * Indexes the MetaContacts in the contact list by proto contact, meta UID,
+     * phone number and email address, so we don't have to search the whole
+     * list for each lookup.
+     */
+    private final MetaContactIndex metaContactIndex;
+
     /**
      * The event handler that will be handling our subscription events.
      */
@@ -130,6 +137,12 @@ public class MetaContactListServiceImpl
      */
     private final MclStorageManager storageManager = new MclStorageManager();
 
+    /**
+     * The batch of presence changes being run by the current thread, if any.
+     * @see #runPresenceBatch(Runnable)
+     */
+    private final ThreadLocal<PresenceBatch> presenceBatch = new ThreadLocal<>();
+
     /**
      * Creates an instance of this class.
      */
@@ -140,6 +153,18 @@ public class MetaContactListServiceImpl
                     this,
                     "RootMetaContactGroup",
                     "RootMetaContactGroup");
+        metaContactIndex = new MetaContactIndex(rootMetaGroup);
+    }
+
+    /**
+     * Returns the index of the MetaContacts in this contact list.  This is
+     * null while the root group is being created.
+     *
+     * @return the index of the MetaContacts in this contact list.
+     */
+    MetaContactIndex getMetaContactIndex()
+    {
+        return metaContactIndex;
     }
 
     /**
@@ -1698,22 +1723,22 @@ public class MetaContactListServiceImpl
     @Override
     public MetaContact findMetaContactByContact(Contact contact)
     {
-        return rootMetaGroup.findMetaContactByContact(contact);
+        return metaContactIndex.findMetaContactByContact(contact);
     }
 
     @Override
     public MetaContact findMetaContactByContact(String contactAddress,
                                                 String accountID)
     {
-        return rootMetaGroup.findMetaContactByContact(contactAddress,
-                                                      accountID);
+        return metaContactIndex.findMetaContactByContact(contactAddress,
+                                                         accountID);
     }
 
     @Override
     @NotNull
     public List<MetaContact> findMetaContactByNumber(String phoneNumber)
     {
-        return rootMetaGroup.findMetaContactByNumber(phoneNumber);
+        return metaContactIndex.findMetaContactByNumber(phoneNumber);
     }
 
     @Override
@@ -1725,7 +1750,7 @@ public class MetaContactListServiceImpl
     @Override
     public List<MetaContact> findMetaContactByEmail(String emailAddress)
     {
-        return rootMetaGroup.findMetaContactByEmail(emailAddress);
+        return metaContactIndex.findMetaContactByEmail(emailAddress);
     }
 
     /**
@@ -1739,7 +1764,7 @@ public class MetaContactListServiceImpl
     @Override
     public MetaContact findMetaContactByMetaUID(String metaContactID)
     {
-        return rootMetaGroup.findMetaContactByMetaUID(metaContactID);
+        return metaContactIndex.findMetaContactByMetaUID(metaContactID);
     }
 
     /**
@@ -3358,6 +3383,92 @@ public class MetaContactListServiceImpl
         if (metaContactImpl == null)
             return;
 
+        PresenceBatch batch = presenceBatch.get();
+
+        if (batch == null)
+            notifyWISPAOfPresence(metaContactImpl);
+        else
+            batch.changedContacts.add(metaContactImpl);
+
+        int oldContactIndex = metaContactImpl.getParentGroup()
+            .indexOf(metaContactImpl);
+
+        int newContactIndex = metaContactImpl.reevalContact();
+
+        if (oldContactIndex != newContactIndex)
+        {
+            MetaContactGroup parentGroup =
+                findParentMetaContactGroup(metaContactImpl);
+
+            if (batch == null)
+            {
+                fireMetaContactGroupEvent(
+                    parentGroup
+                    , evt.getSourceProvider()
+                    , null
+                    , MetaContactGroupEvent.CHILD_CONTACTS_REORDERED
+                    , null);
+            }
+            else
+            {
+                batch.reorderedGroups.putIfAbsent(parentGroup,
+                                                  evt.getSourceProvider());
+            }
+        }
+    }
+
+    @Override
+    public void runPresenceBatch(Runnable batch)
+    {
+        if (presenceBatch.get() != null)
+        {
+            // Already in a batch - this one becomes part of it.
+            batch.run();
+            return;
+        }
+
+        PresenceBatch currentBatch = new PresenceBatch();
+        presenceBatch.set(currentBatch);
+
+        try
+        {
+            batch.run();
+        }
+        finally
+        {
+            presenceBatch.remove();
+
+            logger.debug("Presence batch changed " +
+                         currentBatch.changedContacts.size() +
+                         " meta contacts in " +
+                         currentBatch.reorderedGroups.size() +
+                         " reordered groups");
+
+            for (MetaContactImpl metaContact : currentBatch.changedContacts)
+            {
+                notifyWISPAOfPresence(metaContact);
+            }
+
+            for (Map.Entry<MetaContactGroup, ProtocolProviderService> group :
+                     currentBatch.reorderedGroups.entrySet())
+            {
+                fireMetaContactGroupEvent(
+                    group.getKey()
+                    , group.getValue()
+                    , null
+                    , MetaContactGroupEvent.CHILD_CONTACTS_REORDERED
+                    , null);
+            }
+        }
+    }
+
+    /**
+     * Tells WISPA about the new presence of a meta contact.
+     *
+     * @param metaContact the meta contact whose presence has changed.
+     */
+    private void notifyWISPAOfPresence(MetaContactImpl metaContact)
+    {
         WISPAService wispaService = ContactlistActivator.getWISPAService();
         if (wispaService != null)
         {
@@ -3365,27 +3476,31 @@ public class MetaContactListServiceImpl
             logger.debug("Notifying WISPA of new contact presence");
             wispaService.notify(WISPANamespace.CONTACTS,
                 WISPAAction.DATA,
-                metaContactImpl);
+                metaContact);
         }
         else
         {
             logger.warn("Unable to notify WISPA of new contact presence");
         }
+    }
 
-        int oldContactIndex = metaContactImpl.getParentGroup()
-            .indexOf(metaContactImpl);
-
-        int newContactIndex = metaContactImpl.reevalContact();
+    /**
+     * The notifications deferred while running a batch of presence changes.
+     */
+    private static class PresenceBatch
+    {
+        /**
+         * The meta contacts whose presence changed, in the order they first
+         * changed.
+         */
+        final Set<MetaContactImpl> changedContacts = new LinkedHashSet<>();
 
-        if (oldContactIndex != newContactIndex)
-        {
-            fireMetaContactGroupEvent(
-                findParentMetaContactGroup(metaContactImpl)
-                , evt.getSourceProvider()
-                , null
-                , MetaContactGroupEvent.CHILD_CONTACTS_REORDERED
-                , null);
-        }
+        /**
+         * The groups whose child contacts were reordered, each with the
+         * provider of the first change that reordered it.
+         */
+        final Map<MetaContactGroup, ProtocolProviderService> reorderedGroups =
+            new LinkedHashMap<>();
     }
 
     /**
@@ -3833,7 +3948,9 @@ public class MetaContactListServiceImpl
         state.append("Listeners: \n")
              .append(metaContactListListeners)
              .append("\n\nRoot group:\n")
-             .append(rootMetaGroup);
+             .append(rootMetaGroup)
+             .append("\n\n")
+             .append(metaContactIndex.checkConsistency());
 
         return state.toString();
     }
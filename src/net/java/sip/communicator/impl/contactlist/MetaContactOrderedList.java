@@ -0,0 +1,332 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.contactlist.*;
+
+/**
+ * The ordered list of the child MetaContacts of a MetaContactGroup.
+ * <p>
+ * MetaContacts are removed and re-added to their group each time their
+ * presence changes, and the group is asked for their index before and after,
+ * so this needs to be cheap for groups with thousands of contacts.  The list
+ * is held in an immutable balanced tree (an AVL tree in which each node also
+ * stores the size of its subtree), so that:
+ * <ul>
+ * <li>add, remove, indexOf and get are all O(log n)</li>
+ * <li>each change replaces just the O(log n) nodes on the path to the root,
+ * rather than copying the whole list</li>
+ * <li>readers and iterators just use the root at the time they start, so
+ * need no locking and never see a change part way through.</li>
+ * </ul>
+ * MetaContacts are ordered by meta UID, which never changes for a given
+ * MetaContact.
+ */
+class MetaContactOrderedList
+    implements Iterable<MetaContact>
+{
+    /**
+     * Orders MetaContacts by meta UID.  The identity hash code is only used
+     * to keep distinct MetaContacts apart if they somehow share a UID.
+     */
+    private static final Comparator<MetaContactImpl> ORDER =
+        Comparator.comparing(MetaContactImpl::getMetaUID)
+                  .thenComparingInt(System::identityHashCode);
+
+    /**
+     * The root of the tree, or null if the list is empty.  Writers replace
+     * this while synchronized on this list.
+     */
+    private volatile Node root;
+
+    /**
+     * Adds a MetaContact to the list, if it isn't already in it.
+     *
+     * @param metaContact the MetaContact to add.
+     * @return the index of the MetaContact in the list.
+     */
+    synchronized int add(MetaContactImpl metaContact)
+    {
+        root = insert(root, metaContact);
+        return indexOf(metaContact);
+    }
+
+    /**
+     * Removes a MetaContact from the list.
+     *
+     * @param metaContact the MetaContact to remove.
+     * @return true if the MetaContact was in the list.
+     */
+    synchronized boolean remove(MetaContactImpl metaContact)
+    {
+        Node oldRoot = root;
+        root = delete(oldRoot, metaContact);
+        return size(root) != size(oldRoot);
+    }
+
+    /**
+     * @return the number of MetaContacts in the list.
+     */
+    int size()
+    {
+        return size(root);
+    }
+
+    /**
+     * @param metaContact a MetaContact.
+     * @return true if the MetaContact is in the list.
+     */
+    boolean contains(MetaContact metaContact)
+    {
+        return indexOf(metaContact) >= 0;
+    }
+
+    /**
+     * @param metaContact a MetaContact.
+     * @return the index of the MetaContact in the list, or -1 if it is not in
+     * the list.
+     */
+    int indexOf(MetaContact metaContact)
+    {
+        if (!(metaContact instanceof MetaContactImpl))
+            return -1;
+
+        MetaContactImpl value = (MetaContactImpl) metaContact;
+        Node node = root;
+        int index = 0;
+
+        while (node != null)
+        {
+            int cmp = ORDER.compare(value, node.value);
+
+            if (cmp < 0)
+            {
+                node = node.left;
+            }
+            else if (cmp > 0)
+            {
+                index += size(node.left) + 1;
+                node = node.right;
+            }
+            else
+            {
+                return (node.value == value) ? index + size(node.left) : -1;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @param index an index in the list.
+     * @return the MetaContact at that index.
+     * @throws IndexOutOfBoundsException if the index is not in the list.
+     */
+    MetaContact get(int index)
+        throws IndexOutOfBoundsException
+    {
+        Node node = root;
+
+        if (index < 0 || index >= size(node))
+            throw new IndexOutOfBoundsException(
+                "Index: " + index + ", Size: " + size(node));
+
+        while (true)
+        {
+            int leftSize = size(node.left);
+
+            if (index < leftSize)
+            {
+                node = node.left;
+            }
+            else if (index > leftSize)
+            {
+                index -= leftSize + 1;
+                node = node.right;
+            }
+            else
+            {
+                return node.value;
+            }
+        }
+    }
+
+    /**
+     * Returns an iterator over the list as it is now.  Later changes to the
+     * list don't affect the iterator, and it doesn't support remove().
+     *
+     * @return an iterator over the MetaContacts in the list.
+     */
+    @Override
+    public Iterator<MetaContact> iterator()
+    {
+        final Deque<Node> path = new ArrayDeque<>();
+        pushLeft(path, root);
+
+        return new Iterator<MetaContact>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return !path.isEmpty();
+            }
+
+            @Override
+            public MetaContact next()
+            {
+                if (path.isEmpty())
+                    throw new NoSuchElementException();
+
+                Node node = path.pop();
+                pushLeft(path, node.right);
+                return node.value;
+            }
+        };
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder result = new StringBuilder("[");
+
+        for (Iterator<MetaContact> iter = iterator(); iter.hasNext();)
+        {
+            result.append(iter.next());
+
+            if (iter.hasNext())
+                result.append(", ");
+        }
+
+        return result.append("]").toString();
+    }
+
+    /**
+     * Pushes the given node and all of its left descendants onto the path.
+     */
+    private static void pushLeft(Deque<Node> path, Node node)
+    {
+        while (node != null)
+        {
+            path.push(node);
+            node = node.left;
+        }
+    }
+
+    /**
+     * @return the tree with the given MetaContact inserted.
+     */
+    private static Node insert(Node node, MetaContactImpl value)
+    {
+        if (node == null)
+            return new Node(value, null, null);
+
+        int cmp = ORDER.compare(value, node.value);
+
+        if (cmp < 0)
+            return balance(node.value, insert(node.left, value), node.right);
+        else if (cmp > 0)
+            return balance(node.value, node.left, insert(node.right, value));
+        else
+            return node;
+    }
+
+    /**
+     * @return the tree with the given MetaContact removed.
+     */
+    private static Node delete(Node node, MetaContactImpl value)
+    {
+        if (node == null)
+            return null;
+
+        int cmp = ORDER.compare(value, node.value);
+
+        if (cmp < 0)
+            return balance(node.value, delete(node.left, value), node.right);
+        else if (cmp > 0)
+            return balance(node.value, node.left, delete(node.right, value));
+        else if (node.left == null)
+            return node.right;
+        else if (node.right == null)
+            return node.left;
+
+        Node successor = node.right;
+        while (successor.left != null)
+            successor = successor.left;
+
+        return balance(successor.value,
+                       node.left,
+                       delete(node.right, successor.value));
+    }
+
+    /**
+     * @return a node with the given value and children, rotated if necessary
+     * so that the heights of its subtrees differ by at most one.
+     */
+    private static Node balance(MetaContactImpl value, Node left, Node right)
+    {
+        int heightDiff = height(left) - height(right);
+
+        if (heightDiff > 1)
+        {
+            if (height(left.left) < height(left.right))
+                left = rotateLeft(left.left, left.value, left.right);
+
+            return rotateRight(left, value, right);
+        }
+        else if (heightDiff < -1)
+        {
+            if (height(right.right) < height(right.left))
+                right = rotateRight(right.left, right.value, right.right);
+
+            return rotateLeft(left, value, right);
+        }
+
+        return new Node(value, left, right);
+    }
+
+    private static Node rotateRight(Node left, MetaContactImpl value, Node right)
+    {
+        return new Node(left.value,
+                        left.left,
+                        new Node(value, left.right, right));
+    }
+
+    private static Node rotateLeft(Node left, MetaContactImpl value, Node right)
+    {
+        return new Node(right.value,
+                        new Node(value, left, right.left),
+                        right.right);
+    }
+
+    private static int size(Node node)
+    {
+        return (node == null) ? 0 : node.size;
+    }
+
+    private static int height(Node node)
+    {
+        return (node == null) ? 0 : node.height;
+    }
+
+    /**
+     * An immutable node of the tree.
+     */
+    private static final class Node
+    {
+        final MetaContactImpl value;
+        final Node left;
+        final Node right;
+        final int height;
+        final int size;
+
+        Node(MetaContactImpl value, Node left, Node right)
+        {
+            this.value = value;
+            this.left = left;
+            this.right = right;
+            this.height = Math.max(height(left), height(right)) + 1;
+            this.size = size(left) + size(right) + 1;
+        }
+    }
+}
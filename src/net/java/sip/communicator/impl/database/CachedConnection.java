@@ -0,0 +1,220 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.impl.database;
+
+import java.sql.*;
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * A JDBC connection borrowed from the connection pool, together with an LRU
+ * cache of the PreparedStatements that have been prepared on it.
+ *
+ * DatabaseServiceImpl keeps hold of these after the DatabaseConnection that
+ * was using them is closed, so that the next DatabaseConnection can reuse both
+ * the connection and the statements, rather than paying to parse and plan the
+ * same SQL again.
+ *
+ * This class is not thread-safe - it must only be used by one
+ * DatabaseConnection at a time.
+ */
+class CachedConnection
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger sLog = Logger.getLogger(CachedConnection.class);
+
+    /**
+     * The maximum number of PreparedStatements to cache on each connection.
+     * The find methods in DatabaseConnectionImpl generate a fairly small
+     * number of SQL shapes, so this comfortably covers them all.
+     */
+    private static final int MAX_CACHED_STATEMENTS = 64;
+
+    /**
+     * The JDBC Connection object for this connection.
+     */
+    private final Connection mConnection;
+
+    /**
+     * The cached PreparedStatements, keyed by their SQL and held in access
+     * order so that the least recently used statement is evicted (and closed)
+     * when the cache is full.
+     */
+    private final Map<String, PreparedStatement> mStatements =
+        new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<String, PreparedStatement> eldest)
+            {
+                if (size() > MAX_CACHED_STATEMENTS)
+                {
+                    PreparedStatement statement = eldest.getValue();
+                    mStatementsInUse.remove(statement);
+                    closeStatement(statement);
+                    return true;
+                }
+
+                return false;
+            }
+        };
+
+    /**
+     * The cached statements that have been handed out since this connection
+     * was last released.  The ResultSet from one of these may still be being
+     * read, so we must not execute it again until the connection is released.
+     */
+    private final Set<PreparedStatement> mStatementsInUse =
+        Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * Constructs a new CachedConnection wrapping the given JDBC connection.
+     *
+     * @param connection A JDBC Connection.
+     */
+    CachedConnection(Connection connection)
+    {
+        mConnection = connection;
+    }
+
+    /**
+     * @return The JDBC Connection object for this connection.
+     */
+    Connection getConnection()
+    {
+        return mConnection;
+    }
+
+    /**
+     * Returns a PreparedStatement for the given SQL, reusing a cached one if
+     * possible.  If the cached statement for this SQL has already been handed
+     * out since the connection was last released, a new uncached statement is
+     * prepared instead, so that we never re-execute a statement whose
+     * ResultSet may still be in use.
+     *
+     * @param sql The SQL to prepare.
+     * @return The prepared statement.
+     * @throws SQLException on any SQL error.
+     */
+    PreparedStatement prepare(String sql)
+        throws SQLException
+    {
+        return prepare(sql, false);
+    }
+
+    /**
+     * As prepare(String), but optionally preparing the statement to return
+     * the keys it generates.  Such statements are cached separately from
+     * those for the same SQL that don't.
+     *
+     * @param sql The SQL to prepare.
+     * @param returnGeneratedKeys Whether getGeneratedKeys() will be called on
+     * the statement.
+     * @return The prepared statement.
+     * @throws SQLException on any SQL error.
+     */
+    PreparedStatement prepare(String sql, boolean returnGeneratedKeys)
+        throws SQLException
+    {
+        String key = returnGeneratedKeys ? "KEYS " + sql : sql;
+        int autoGeneratedKeys = returnGeneratedKeys ?
+            Statement.RETURN_GENERATED_KEYS : Statement.NO_GENERATED_KEYS;
+        PreparedStatement statement = mStatements.get(key);
+
+        if (statement == null)
+        {
+            statement = mConnection.prepareStatement(sql, autoGeneratedKeys);
+            mStatements.put(key, statement);
+        }
+        else if (mStatementsInUse.contains(statement))
+        {
+            return mConnection.prepareStatement(sql, autoGeneratedKeys);
+        }
+        else
+        {
+            statement.clearParameters();
+        }
+
+        mStatementsInUse.add(statement);
+        return statement;
+    }
+
+    /**
+     * @param statement A PreparedStatement.
+     * @return true if the statement is owned by this cache, so must not be
+     * closed by the caller.
+     */
+    boolean isCached(PreparedStatement statement)
+    {
+        return mStatementsInUse.contains(statement);
+    }
+
+    /**
+     * Called when the DatabaseConnection using this connection is closed, so
+     * that all the cached statements become available for reuse.
+     */
+    void release()
+    {
+        mStatementsInUse.clear();
+    }
+
+    /**
+     * @return true if the underlying JDBC connection is still open.
+     */
+    boolean isOpen()
+    {
+        try
+        {
+            return !mConnection.isClosed();
+        }
+        catch (SQLException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Close all the cached statements and the underlying JDBC connection,
+     * returning it to the connection pool.
+     */
+    void close()
+    {
+        for (PreparedStatement statement : mStatements.values())
+        {
+            closeStatement(statement);
+        }
+
+        mStatements.clear();
+        mStatementsInUse.clear();
+
+        try
+        {
+            mConnection.close();
+        }
+        catch (SQLException e)
+        {
+            sLog.error("Failed to close DB connection: ", e);
+        }
+    }
+
+    /**
+     * Close a PreparedStatement, ignoring any error.
+     *
+     * @param statement The statement to close.
+     */
+    private static void closeStatement(PreparedStatement statement)
+    {
+        try
+        {
+            statement.close();
+        }
+        catch (SQLException e)
+        {
+            sLog.debug("Failed to close cached statement: " + e);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.impl.database;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+import net.java.sip.communicator.service.database.*;
+import net.java.sip.communicator.service.database.util.*;
+import net.java.sip.communicator.service.threading.ThreadFactoryBuilder;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Implementation of DatabaseBatchWriter.  Writes are queued in memory and
+ * flushed in a single transaction, either on the thread that queues the
+ * write that fills the batch, on a timer thread once the oldest write has
+ * been queued for long enough, or on any thread that calls flush().
+ */
+class DatabaseBatchWriterImpl implements DatabaseBatchWriter
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger sLog =
+        Logger.getLogger(DatabaseBatchWriterImpl.class);
+
+    /**
+     * The name of this writer, for logging.
+     */
+    private final String mName;
+
+    /**
+     * The database service to get connections from.
+     */
+    private final DatabaseService mDatabaseService;
+
+    /**
+     * The number of queued writes that triggers a flush.
+     */
+    private final int mMaxBatchSize;
+
+    /**
+     * The longest time in milliseconds that a write may stay queued.
+     */
+    private final long mMaxDelayMillis;
+
+    /**
+     * Told about each batch of writes once they are committed.  May be null.
+     */
+    private final FlushListener mListener;
+
+    /**
+     * Runs the timed flushes.
+     */
+    private final ScheduledExecutorService mTimer;
+
+    /**
+     * Lock which protects mPendingWrites, mFlushingWrites, mScheduledFlush
+     * and mStopped.
+     */
+    private final Object mLock = new Object();
+
+    /**
+     * Held while flushing, so that flushes happen one at a time and in the
+     * order the writes were queued.
+     */
+    private final Object mFlushLock = new Object();
+
+    /**
+     * The writes queued since the last flush started.
+     */
+    private List<DatabaseWrite> mPendingWrites = new ArrayList<>();
+
+    /**
+     * The writes being written by the current flush.  These still count as
+     * pending, as they are not yet visible to readers.
+     */
+    private List<DatabaseWrite> mFlushingWrites = Collections.emptyList();
+
+    /**
+     * The timed flush for the writes in mPendingWrites, or null if there is
+     * none scheduled.
+     */
+    private ScheduledFuture<?> mScheduledFlush;
+
+    /**
+     * Whether stop() has been called.
+     */
+    private boolean mStopped;
+
+    DatabaseBatchWriterImpl(String name,
+                            DatabaseService databaseService,
+                            int maxBatchSize,
+                            long maxDelayMillis,
+                            FlushListener listener)
+    {
+        mName = name;
+        mDatabaseService = databaseService;
+        mMaxBatchSize = maxBatchSize;
+        mMaxDelayMillis = maxDelayMillis;
+        mListener = listener;
+        mTimer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                .setName("db-batch-writer-" + name)
+                .setDaemon(true)
+                .build());
+    }
+
+    @Override
+    public void enqueue(DatabaseWrite write)
+    {
+        boolean flushNow;
+
+        synchronized (mLock)
+        {
+            mPendingWrites.add(write);
+
+            // Once stopped, write everything straight away.
+            flushNow = mStopped || mPendingWrites.size() >= mMaxBatchSize;
+
+            if (!flushNow && mScheduledFlush == null)
+            {
+                mScheduledFlush = mTimer.schedule(this::flush,
+                                                  mMaxDelayMillis,
+                                                  TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (flushNow)
+        {
+            flush();
+        }
+    }
+
+    @Override
+    public void flush()
+    {
+        synchronized (mFlushLock)
+        {
+            List<DatabaseWrite> writes;
+
+            synchronized (mLock)
+            {
+                if (mScheduledFlush != null)
+                {
+                    mScheduledFlush.cancel(false);
+                    mScheduledFlush = null;
+                }
+
+                writes = mPendingWrites;
+
+                if (writes.isEmpty())
+                {
+                    return;
+                }
+
+                mPendingWrites = new ArrayList<>();
+                mFlushingWrites = writes;
+            }
+
+            try
+            {
+                List<DatabaseWrite> written = write(writes);
+
+                if (mListener != null && !written.isEmpty())
+                {
+                    mListener.writesFlushed(written);
+                }
+            }
+            catch (RuntimeException e)
+            {
+                sLog.error(mName + ": failed to flush writes", e);
+            }
+            finally
+            {
+                synchronized (mLock)
+                {
+                    mFlushingWrites = Collections.emptyList();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the given writes to the database in a single transaction.  If
+     * that fails, fall back to writing them one at a time, so that one bad
+     * write doesn't lose the rest of the batch.
+     *
+     * @param writes The writes to write.
+     * @return The writes that were successfully written.
+     */
+    private List<DatabaseWrite> write(List<DatabaseWrite> writes)
+    {
+        long startTime = System.currentTimeMillis();
+
+        if (writeInTransaction(writes))
+        {
+            sLog.debug(mName + ": wrote " + writes.size() + " writes in " +
+                       (System.currentTimeMillis() - startTime) + "ms");
+            return writes;
+        }
+
+        sLog.warn(mName + ": batch of " + writes.size() +
+                  " writes failed, retrying individually");
+        List<DatabaseWrite> written = new ArrayList<>(writes.size());
+
+        for (DatabaseWrite write : writes)
+        {
+            if (writeInTransaction(Collections.singletonList(write)))
+            {
+                written.add(write);
+            }
+        }
+
+        return written;
+    }
+
+    /**
+     * Run the given writes in a single transaction.
+     *
+     * @param writes The writes to run.
+     * @return true if they were committed.
+     */
+    private boolean writeInTransaction(List<DatabaseWrite> writes)
+    {
+        DatabaseConnection connection = null;
+
+        try
+        {
+            connection = mDatabaseService.connect();
+            connection.startTransaction();
+            connection.executeBatch(writes);
+            connection.commitTransaction();
+            return true;
+        }
+        catch (SQLException e)
+        {
+            sLog.error(mName + ": failed to write batch: ", e);
+            return false;
+        }
+        finally
+        {
+            // Closing rolls back the transaction if it wasn't committed.
+            DatabaseUtils.safeClose(connection);
+        }
+    }
+
+    @Override
+    public boolean hasPendingWrites()
+    {
+        synchronized (mLock)
+        {
+            return !mPendingWrites.isEmpty() || !mFlushingWrites.isEmpty();
+        }
+    }
+
+    @Override
+    public boolean hasPendingWrite(Predicate<DatabaseWrite> matcher)
+    {
+        synchronized (mLock)
+        {
+            return mPendingWrites.stream().anyMatch(matcher) ||
+                   mFlushingWrites.stream().anyMatch(matcher);
+        }
+    }
+
+    @Override
+    public void stop()
+    {
+        synchronized (mLock)
+        {
+            mStopped = true;
+        }
+
+        flush();
+        mTimer.shutdownNow();
+    }
+}
@@ -5,6 +5,8 @@ import java.sql.*;
 import java.util.*;
 
 import net.java.sip.communicator.service.database.*;
+import net.java.sip.communicator.service.database.schema.SearchIndexTable;
+import net.java.sip.communicator.service.database.util.DatabaseUtils;
 import net.java.sip.communicator.util.*;
 
 /**
@@ -18,23 +20,51 @@ public class DatabaseConnectionImpl implements DatabaseConnection
     private static final Logger sLog =
         Logger.getLogger(DatabaseConnectionImpl.class);
 
+    /**
+     * The number of search index rows to insert in each batch when rebuilding
+     * the search index.
+     */
+    private static final int SEARCH_INDEX_BATCH_SIZE = 500;
+
     /**
      * The JDBC Connection object for this connection.
      */
     private final Connection mConnection;
 
     /**
-     * Constructs a new DBConnectionImpl object using the java.sql.Connection
-     * object passed to it.
+     * The pooled connection (and its statement cache) that this connection
+     * is using.
+     */
+    private final CachedConnection mCachedConnection;
+
+    /**
+     * The database service to return the pooled connection to on close.
+     */
+    private final DatabaseServiceImpl mDatabaseService;
+
+    /**
+     * Whether this connection has been closed.  Once closed, the pooled
+     * connection may already be in use by another DatabaseConnection, so
+     * must not be released again.
+     */
+    private boolean mClosed = false;
+
+    /**
+     * Constructs a new DBConnectionImpl object using the pooled connection
+     * passed to it.
      *
-     * @param connection A JDBC Connection.
+     * @param cachedConnection A pooled JDBC Connection and statement cache.
+     * @param databaseService The database service that owns the pool.
      * @throws SQLException on SQL error.
      */
-    public DatabaseConnectionImpl(Connection connection)
+    DatabaseConnectionImpl(CachedConnection cachedConnection,
+                           DatabaseServiceImpl databaseService)
         throws SQLException
     {
-        sLog.debug("(conn=" + connection.hashCode() + ")");
-        mConnection = connection;
+        mCachedConnection = cachedConnection;
+        mDatabaseService = databaseService;
+        mConnection = cachedConnection.getConnection();
+        sLog.debug("(conn=" + mConnection.hashCode() + ")");
         // Always autocommit by default, unless the user explicitly requests a
         // transaction.
         mConnection.setAutoCommit(true);
@@ -52,7 +82,7 @@ public class DatabaseConnectionImpl implements DatabaseConnection
         throws SQLException
     {
         ResultSet resultSet = preparedStatement.executeQuery();
-        preparedStatement.close();
+        closeIfNotCached(preparedStatement);
 
         return resultSet;
     }
@@ -88,11 +118,26 @@ public class DatabaseConnectionImpl implements DatabaseConnection
         throws SQLException
     {
         int result = preparedStatement.executeUpdate();
-        preparedStatement.close();
+        closeIfNotCached(preparedStatement);
 
         return result;
     }
 
+    /**
+     * Close a prepared statement, unless it belongs to the statement cache for
+     * this connection, in which case it is kept for reuse.
+     * @param preparedStatement The statement to close.
+     * @throws SQLException on any SQL error.
+     */
+    private void closeIfNotCached(PreparedStatement preparedStatement)
+        throws SQLException
+    {
+        if (!mCachedConnection.isCached(preparedStatement))
+        {
+            preparedStatement.close();
+        }
+    }
+
     @Override
     public int executeNoClose(PreparedStatement preparedStatement)
         throws SQLException
@@ -114,6 +159,138 @@ public class DatabaseConnectionImpl implements DatabaseConnection
         return mConnection.prepareStatement(sql);
     }
 
+    /**
+     * Prepare an SQL statement, reusing a previously prepared statement with
+     * the same SQL on this connection if possible.  The SQL must not contain
+     * any literal values, otherwise it will just pollute the cache.
+     * @param sql
+     * @return The prepared statement.
+     * @throws SQLException on any SQL error.
+     */
+    private PreparedStatement prepareCached(String sql)
+        throws SQLException
+    {
+        return mCachedConnection.prepare(sql);
+    }
+
+    @Override
+    public void executeBatch(List<DatabaseWrite> writes)
+        throws SQLException
+    {
+        int start = 0;
+
+        while (start < writes.size())
+        {
+            // Find the run of consecutive writes with the same statements,
+            // which can share a batch for each statement.
+            List<String> statements = writes.get(start).getStatements();
+            int keyStatementIndex =
+                writes.get(start).getGeneratedKeyStatementIndex();
+            int end = start + 1;
+
+            while (end < writes.size() &&
+                   statements.equals(writes.get(end).getStatements()))
+            {
+                end++;
+            }
+
+            List<DatabaseWrite> run = writes.subList(start, end);
+
+            for (int ii = 0; ii < statements.size(); ii++)
+            {
+                boolean returnKeys = (ii == keyStatementIndex);
+                PreparedStatement preparedStatement =
+                    mCachedConnection.prepare(statements.get(ii), returnKeys);
+
+                try
+                {
+                    for (DatabaseWrite write : run)
+                    {
+                        write.addToBatch(ii, preparedStatement);
+                    }
+
+                    preparedStatement.executeBatch();
+
+                    if (returnKeys)
+                    {
+                        setGeneratedKeys(preparedStatement, run);
+                    }
+                }
+                finally
+                {
+                    // Don't leave a failed batch on a cached statement for
+                    // its next user.
+                    preparedStatement.clearBatch();
+                    closeIfNotCached(preparedStatement);
+                }
+            }
+
+            start = end;
+        }
+    }
+
+    /**
+     * Pass the keys generated by a batch of inserts to the writes that
+     * added them, one row per write.
+     *
+     * @param preparedStatement The statement, which has just run the batch.
+     * @param writes The writes that added the batch.
+     * @throws SQLException on any SQL error, or if the number of keys doesn't
+     * match the number of writes.
+     */
+    private void setGeneratedKeys(PreparedStatement preparedStatement,
+                                  List<DatabaseWrite> writes)
+        throws SQLException
+    {
+        List<Long> keys = new ArrayList<>(writes.size());
+        ResultSet rs = null;
+
+        try
+        {
+            rs = preparedStatement.getGeneratedKeys();
+
+            while (rs.next())
+            {
+                keys.add(rs.getLong(1));
+            }
+        }
+        finally
+        {
+            DatabaseUtils.safeClose(rs);
+        }
+
+        if (keys.isEmpty() && writes.size() == 1)
+        {
+            // IDENTITY() returns the last identity value inserted on this
+            // connection, so works for a single row whatever the driver
+            // returns for a batch.
+            try
+            {
+                rs = query(prepareCached("CALL IDENTITY()"));
+                rs.next();
+                keys.add(rs.getLong(1));
+            }
+            finally
+            {
+                DatabaseUtils.safeClose(rs);
+            }
+        }
+
+        if (keys.size() != writes.size())
+        {
+            // Fail the transaction rather than index the wrong rows.  The
+            // batch writer then retries the writes one at a time.
+            throw new SQLException("Got " + keys.size() +
+                                   " generated keys for " + writes.size() +
+                                   " writes");
+        }
+
+        for (int ii = 0; ii < writes.size(); ii++)
+        {
+            writes.get(ii).setGeneratedKey(keys.get(ii));
+        }
+    }
+
     @Override
     public void startTransaction()
         throws SQLException
@@ -137,8 +314,28 @@ public class DatabaseConnectionImpl implements DatabaseConnection
     public void close()
         throws SQLException
     {
+        synchronized (this)
+        {
+            if (mClosed)
+            {
+                sLog.debug("Already closed (conn=" + mConnection.hashCode() + ")");
+                return;
+            }
+
+            mClosed = true;
+        }
+
         sLog.debug("(conn=" + mConnection.hashCode() + ")");
-        mConnection.close();
+
+        // Don't leave a half-finished transaction behind for the next user of
+        // this pooled connection.
+        if (!mConnection.getAutoCommit())
+        {
+            mConnection.rollback();
+            mConnection.setAutoCommit(true);
+        }
+
+        mDatabaseService.releaseConnection(mCachedConnection);
     }
 
     @Override
@@ -234,7 +431,7 @@ public class DatabaseConnectionImpl implements DatabaseConnection
                                  boolean before)
         throws SQLException
     {
-        PreparedStatement preparedStatement = prepare(
+        PreparedStatement preparedStatement = prepareCached(
         "SELECT * FROM " + tableName + " WHERE " + dateColName + (before ? "<" : ">") + "? ORDER BY " + orderColName + " DESC");
         preparedStatement.setLong(1, date.getTime());
 
@@ -261,7 +458,7 @@ public class DatabaseConnectionImpl implements DatabaseConnection
         }
         sb.append(") AND " + dateColName + (before ? "<" : ">") + "? ORDER BY " + dateColName + ", " + idColName);
 
-        PreparedStatement preparedStatement = prepare(sb.toString());
+        PreparedStatement preparedStatement = prepareCached(sb.toString());
         preparedStatement.setString(1, localJid);
         int ii = 2;
         for (String jid : remoteJids)
@@ -282,7 +479,7 @@ public class DatabaseConnectionImpl implements DatabaseConnection
                                   java.util.Date endDate)
         throws SQLException
     {
-         PreparedStatement preparedStatement = prepare(
+         PreparedStatement preparedStatement = prepareCached(
              "SELECT * FROM " + tableName +
              " WHERE " + dateColName + ">=? AND " + dateColName + " <? ORDER BY " +
              orderColName + " DESC ");
@@ -302,7 +499,7 @@ public class DatabaseConnectionImpl implements DatabaseConnection
                                                             String callPeerIds)
             throws SQLException
     {
-        PreparedStatement preparedStatement = prepare(
+        PreparedStatement preparedStatement = prepareCached(
                 "SELECT * FROM " + tableName +
                 " WHERE " + startDateColName + "=? AND " + endDateColName
                 + " =? AND " + callPeerIdsColName + "=?");
@@ -352,7 +549,7 @@ public class DatabaseConnectionImpl implements DatabaseConnection
          }
          sb.append(") AND " + dateColName + ">=? AND " + dateColName +
              " <? ORDER BY " + dateColName + ", " + idColName);
-         PreparedStatement preparedStatement = prepare(sb.toString());
+         PreparedStatement preparedStatement = prepareCached(sb.toString());
 
          preparedStatement.setString(1, localJid);
          int ii = 2;
@@ -376,13 +573,13 @@ public class DatabaseConnectionImpl implements DatabaseConnection
 
         if (count != -1)
         {
-            preparedStatement = prepare(
+            preparedStatement = prepareCached(
                 "SELECT TOP " + count + " * FROM " + tableName + " ORDER BY " +
                 orderColName + " DESC");
         }
         else
         {
-            preparedStatement = prepare("SELECT * FROM " + tableName +
+            preparedStatement = prepareCached("SELECT * FROM " + tableName +
                 " ORDER BY " + orderColName + " DESC");
         }
 
@@ -508,7 +705,7 @@ public class DatabaseConnectionImpl implements DatabaseConnection
            ") b ON a." + remote + " = b." + remote + " AND " +
                   "a." + date + " = b." + date;
 
-        return prepare(sql);
+        return prepareCached(sql);
     }
 
     @Override
@@ -583,7 +780,7 @@ public class DatabaseConnectionImpl implements DatabaseConnection
                   "ORDER BY " + dateColName + ", " + idColName;
         }
 
-        preparedStatement = prepare(sql);
+        preparedStatement = prepareCached(sql);
         preparedStatement.setString(1, localJid);
 
         int ii = 2;
@@ -596,6 +793,43 @@ public class DatabaseConnectionImpl implements DatabaseConnection
         return query(preparedStatement);
     }
 
+    @Override
+    public ResultSet findLastForEachThread(String tableName,
+                                           String localJidColName,
+                                           String localJid,
+                                           String threadColName,
+                                           String dateColName,
+                                           String idColName,
+                                           int count)
+        throws SQLException
+    {
+        // For each distinct thread, use a LATERAL derived table to select the
+        // most recent 'count' rows for that thread (which requires ordering in
+        // descending date order), then order the combined results by thread
+        // and ascending date so the caller can stream them thread by thread.
+        String top = (count != -1) ? "TOP " + count + " " : "";
+        String sql =
+            "SELECT m.* " +
+            "FROM (SELECT DISTINCT " + threadColName + " " +
+                  "FROM " + tableName + " " +
+                  "WHERE " + localJidColName + " =?) t, " +
+            "LATERAL " +
+                 "(SELECT " + top + "* " +
+                  "FROM " + tableName + " " +
+                  "WHERE " + localJidColName + " =? " +
+                      "AND " + threadColName + " = t." + threadColName + " " +
+                  "ORDER BY " + dateColName + " DESC, " + idColName + " DESC" +
+                 ") m " +
+            "ORDER BY m." + threadColName + ", m." + dateColName + ", m." +
+                                                                     idColName;
+
+        PreparedStatement preparedStatement = prepareCached(sql);
+        preparedStatement.setString(1, localJid);
+        preparedStatement.setString(2, localJid);
+
+        return query(preparedStatement);
+    }
+
     @Override
     public ResultSet findFirstRecordsAfter(String tableName,
                                            String localJidColName,
@@ -635,7 +869,7 @@ public class DatabaseConnectionImpl implements DatabaseConnection
         }
         sb.append(") AND " + dateColName + ">? ORDER BY " + dateColName +
                                                            ", " + idColName);
-        PreparedStatement preparedStatement = prepare(sb.toString());
+        PreparedStatement preparedStatement = prepareCached(sb.toString());
 
         preparedStatement.setString(1, localJid);
         int ii = 2;
@@ -679,7 +913,7 @@ public class DatabaseConnectionImpl implements DatabaseConnection
             " SELECT * FROM BOTTOM ORDER BY " + dateColName + ", " +
             idColName);
 
-        PreparedStatement preparedStatement = prepare(sb.toString());
+        PreparedStatement preparedStatement = prepareCached(sb.toString());
 
         preparedStatement.setString(1, localJid);
 
@@ -737,7 +971,7 @@ public class DatabaseConnectionImpl implements DatabaseConnection
                                         int colValue)
     throws SQLException
     {
-        PreparedStatement preparedStatement = prepare(
+        PreparedStatement preparedStatement = prepareCached(
             "SELECT TOP 1 * FROM " + tableName + " WHERE " + localJidColName +
             " =? AND " + remoteJidColName + " =? AND " + colName + " =?" +
             " ORDER BY " + dateColName + " DESC, " + idColName + " DESC");
@@ -760,7 +994,7 @@ public class DatabaseConnectionImpl implements DatabaseConnection
                                          int colValue)
     throws SQLException
     {
-        PreparedStatement preparedStatement = prepare(
+        PreparedStatement preparedStatement = prepareCached(
             "SELECT TOP 1 * FROM " + tableName + " WHERE " + localJidColName +
             " =? AND " + remoteJidColName +
             " =? AND " + colName + " =?" + " ORDER BY " + dateColName + ", " +
@@ -782,7 +1016,7 @@ public class DatabaseConnectionImpl implements DatabaseConnection
                                        String colValue)
     throws SQLException
     {
-        PreparedStatement preparedStatement = prepare(
+        PreparedStatement preparedStatement = prepareCached(
             "SELECT * FROM " + tableName + " WHERE " + localJidColName +
             " =? AND " + remoteJidColName +
             " =? AND " + colName + " =?");
@@ -825,7 +1059,7 @@ public class DatabaseConnectionImpl implements DatabaseConnection
         sb.append(" ORDER BY " + dateColName + " DESC, " + idColName +
                                                                       " DESC ");
 
-        PreparedStatement preparedStatement = prepare(sb.toString());
+        PreparedStatement preparedStatement = prepareCached(sb.toString());
 
         preparedStatement.setString(1, localJid);
 
@@ -880,7 +1114,7 @@ public class DatabaseConnectionImpl implements DatabaseConnection
 
         sb.append(" ORDER BY " + orderColName + " DESC");
 
-        PreparedStatement preparedStatement = prepare(sb.toString());
+        PreparedStatement preparedStatement = prepareCached(sb.toString());
 
         for (int i = 1; i <= searchColNames.length; i++)
         {
@@ -890,6 +1124,340 @@ public class DatabaseConnectionImpl implements DatabaseConnection
         return query(preparedStatement);
     }
 
+    @Override
+    public ResultSet findByIndexedKeyword(String tableName,
+                                          String rowIdColName,
+                                          String orderColName,
+                                          String keyword,
+                                          String[] searchColNames,
+                                          int limit)
+        throws SQLException
+    {
+        Set<String> tokens = DatabaseUtils.getSearchKeywordTokens(keyword);
+
+        if (tokens.isEmpty())
+        {
+            // Nothing to look up in the index, e.g. the keyword is just
+            // punctuation, so scan for it as before.
+            return findByKeyword(tableName,
+                                 orderColName,
+                                 keyword,
+                                 searchColNames,
+                                 limit);
+        }
+
+        StringBuilder sb = new StringBuilder();
+
+        if (limit != -1)
+        {
+            sb.append("SELECT TOP " + limit);
+        }
+        else
+        {
+            sb.append("SELECT");
+        }
+
+        sb.append(" * FROM " + tableName + " WHERE TRUE");
+        appendSearchIndexConstraints(sb, rowIdColName, tokens.size());
+        sb.append(" ORDER BY " + orderColName + " DESC");
+
+        PreparedStatement preparedStatement = prepareCached(sb.toString());
+        setSearchIndexParameters(preparedStatement, 1, tableName, tokens);
+
+        ResultSet resultSet = query(preparedStatement);
+
+        if (isEmpty(resultSet))
+        {
+            // The keyword may still be in the middle of a word, which only a
+            // scan can find.
+            resultSet.close();
+            return findByKeyword(tableName,
+                                 orderColName,
+                                 keyword,
+                                 searchColNames,
+                                 limit);
+        }
+
+        return resultSet;
+    }
+
+    @Override
+    public ResultSet findByIndexedKeyword(String tableName,
+                                          String rowIdColName,
+                                          String localJidColName,
+                                          String localJid,
+                                          String remoteJidColName,
+                                          List<String> remoteJids,
+                                          String dateColName,
+                                          String idColName,
+                                          String keywordColName,
+                                          String keyword)
+        throws SQLException
+    {
+        Set<String> tokens = DatabaseUtils.getSearchKeywordTokens(keyword);
+
+        if (tokens.isEmpty())
+        {
+            // Nothing to look up in the index, e.g. the keyword is just
+            // punctuation, so scan for it as before.
+            return findByKeyword(tableName,
+                                 localJidColName,
+                                 localJid,
+                                 remoteJidColName,
+                                 remoteJids,
+                                 dateColName,
+                                 idColName,
+                                 keywordColName,
+                                 keyword);
+        }
+
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("SELECT * FROM " + tableName + " WHERE " + localJidColName +
+            " =? AND " + remoteJidColName + " IN (?");
+
+        for (int ii = 1; ii < remoteJids.size(); ii++)
+        {
+            sb.append(",?");
+        }
+
+        sb.append(")");
+        appendSearchIndexConstraints(sb, rowIdColName, tokens.size());
+        sb.append(" ORDER BY " + dateColName + " DESC, " + idColName +
+                                                                      " DESC ");
+
+        PreparedStatement preparedStatement = prepareCached(sb.toString());
+
+        preparedStatement.setString(1, localJid);
+
+        int ii = 2;
+        for (String remoteJid : remoteJids)
+        {
+            preparedStatement.setString(ii, remoteJid);
+            ii++;
+        }
+
+        setSearchIndexParameters(preparedStatement, ii, tableName, tokens);
+
+        ResultSet resultSet = query(preparedStatement);
+
+        if (isEmpty(resultSet))
+        {
+            // The keyword may still be in the middle of a word, which only a
+            // scan can find.
+            resultSet.close();
+            return findByKeyword(tableName,
+                                 localJidColName,
+                                 localJid,
+                                 remoteJidColName,
+                                 remoteJids,
+                                 dateColName,
+                                 idColName,
+                                 keywordColName,
+                                 keyword);
+        }
+
+        return resultSet;
+    }
+
+    /**
+     * @param resultSet A ResultSet that hasn't been read from yet.
+     * @return true if the ResultSet contains no rows.  HSQLDB result sets
+     * know their size, so this doesn't move the cursor, even for a
+     * forward-only ResultSet.
+     * @throws SQLException on any SQL error.
+     */
+    private static boolean isEmpty(ResultSet resultSet)
+        throws SQLException
+    {
+        return !resultSet.isBeforeFirst();
+    }
+
+    /**
+     * Append a constraint to a WHERE clause for each keyword token, requiring
+     * the row to have an entry in the search index that starts with that
+     * token.
+     *
+     * @param sb The StringBuilder containing the query so far.
+     * @param rowIdColName The name of the queried table's row ID column.
+     * @param tokenCount The number of keyword tokens.
+     */
+    private void appendSearchIndexConstraints(StringBuilder sb,
+                                              String rowIdColName,
+                                              int tokenCount)
+    {
+        for (int ii = 0; ii < tokenCount; ii++)
+        {
+            sb.append(" AND " + rowIdColName + " IN (" +
+                "SELECT " + SearchIndexTable.COL_ROW_ID +
+                " FROM " + SearchIndexTable.NAME +
+                " WHERE " + SearchIndexTable.COL_TABLE_NAME + " =?" +
+                " AND " + SearchIndexTable.COL_TOKEN + " LIKE ?)");
+        }
+    }
+
+    /**
+     * Set the parameters for the constraints added by
+     * appendSearchIndexConstraints().
+     *
+     * @param preparedStatement The statement to set the parameters on.
+     * @param firstIndex The index of the first search index parameter.
+     * @param tableName The name of the queried table.
+     * @param tokens The keyword tokens.
+     * @throws SQLException on any SQL error.
+     */
+    private void setSearchIndexParameters(PreparedStatement preparedStatement,
+                                          int firstIndex,
+                                          String tableName,
+                                          Set<String> tokens)
+        throws SQLException
+    {
+        int ii = firstIndex;
+        for (String token : tokens)
+        {
+            // Tokens only contain letters and digits, so there are no LIKE
+            // wildcards to escape.
+            preparedStatement.setString(ii, tableName);
+            preparedStatement.setString(ii + 1, token + "%");
+            ii += 2;
+        }
+    }
+
+    @Override
+    public void addToSearchIndex(String tableName, String... texts)
+        throws SQLException
+    {
+        Set<String> tokens = new HashSet<>();
+        for (String text : texts)
+        {
+            tokens.addAll(DatabaseUtils.getSearchIndexTokens(text));
+        }
+
+        if (tokens.isEmpty())
+        {
+            return;
+        }
+
+        // IDENTITY() returns the last identity value inserted on this
+        // connection, i.e. the row ID of the row that we are indexing.
+        long rowId;
+        ResultSet rs = null;
+        try
+        {
+            rs = query(prepareCached("CALL IDENTITY()"));
+            rs.next();
+            rowId = rs.getLong(1);
+        }
+        finally
+        {
+            DatabaseUtils.safeClose(rs);
+        }
+
+        PreparedStatement preparedStatement =
+            prepareCached(DatabaseUtils.getAddToSearchIndexSql());
+
+        for (String token : tokens)
+        {
+            preparedStatement.setString(1, tableName);
+            preparedStatement.setString(2, token);
+            preparedStatement.setLong(3, rowId);
+            preparedStatement.addBatch();
+        }
+
+        preparedStatement.executeBatch();
+        closeIfNotCached(preparedStatement);
+    }
+
+    @Override
+    public void removeFromSearchIndex(String tableName,
+                                      String rowIdColName,
+                                      String matchColName,
+                                      String matchValue)
+        throws SQLException
+    {
+        PreparedStatement preparedStatement = prepareCached(
+            DatabaseUtils.getRemoveFromSearchIndexSql(tableName,
+                                                      rowIdColName,
+                                                      matchColName));
+
+        preparedStatement.setString(1, tableName);
+        preparedStatement.setString(2, matchValue);
+
+        executeNoLog(preparedStatement);
+    }
+
+    @Override
+    public void rebuildSearchIndex(String tableName,
+                                   String rowIdColName,
+                                   String... textColNames)
+        throws SQLException
+    {
+        sLog.info("Rebuilding search index for " + tableName);
+
+        PreparedStatement deleteStatement = prepare(
+            "DELETE FROM " + SearchIndexTable.NAME +
+            " WHERE " + SearchIndexTable.COL_TABLE_NAME + " =?");
+        deleteStatement.setString(1, tableName);
+        execute(deleteStatement);
+
+        PreparedStatement insertStatement = prepare(
+            "INSERT INTO " + SearchIndexTable.NAME + "(" +
+            SearchIndexTable.COL_TABLE_NAME + "," +
+            SearchIndexTable.COL_TOKEN + "," +
+            SearchIndexTable.COL_ROW_ID + ") VALUES (?,?,?)");
+
+        ResultSet rs = null;
+        int rows = 0;
+        int batched = 0;
+
+        try
+        {
+            rs = query("SELECT " + rowIdColName + "," +
+                String.join(",", textColNames) + " FROM " + tableName);
+
+            while (rs.next())
+            {
+                long rowId = rs.getLong(rowIdColName);
+                Set<String> tokens = new HashSet<>();
+
+                for (String textColName : textColNames)
+                {
+                    tokens.addAll(DatabaseUtils.getSearchIndexTokens(
+                        rs.getString(textColName)));
+                }
+
+                for (String token : tokens)
+                {
+                    insertStatement.setString(1, tableName);
+                    insertStatement.setString(2, token);
+                    insertStatement.setLong(3, rowId);
+                    insertStatement.addBatch();
+                    batched++;
+                }
+
+                if (batched >= SEARCH_INDEX_BATCH_SIZE)
+                {
+                    insertStatement.executeBatch();
+                    batched = 0;
+                }
+
+                rows++;
+            }
+
+            if (batched > 0)
+            {
+                insertStatement.executeBatch();
+            }
+        }
+        finally
+        {
+            DatabaseUtils.safeClose(rs);
+            insertStatement.close();
+        }
+
+        sLog.info("Indexed " + rows + " rows of " + tableName);
+    }
+
     @Override
     public ResultSet findUniqueColumnValues(
         String tableName,
@@ -898,7 +1466,7 @@ public class DatabaseConnectionImpl implements DatabaseConnection
         String uniquesColName)
     throws SQLException
     {
-        PreparedStatement preparedStatement = prepare(
+        PreparedStatement preparedStatement = prepareCached(
             "SELECT DISTINCT " + uniquesColName + " FROM " + tableName + " WHERE " +
             matchColName + " =?");
         preparedStatement.setString(1, matchValue);
@@ -3,7 +3,10 @@ package net.java.sip.communicator.impl.database;
 
 import java.io.*;
 import java.sql.*;
+import java.util.Deque;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -43,11 +46,36 @@ public class DatabaseServiceImpl implements DatabaseService
     private static final String DATABASE_DIRECTORY = "database";
 
     /**
-     * A pool to allocate JDBC connections from. Must only be accessed whilst holding connectionPoolLock.
+     * The maximum number of idle connections (and their statement caches) to
+     * keep for reuse.  Any more than this are returned to the JDBC pool when
+     * they are closed.
      */
-    private JDBCPool mConnectionPool;
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+
+    /**
+     * A pool to allocate JDBC connections from.  JDBCPool is itself
+     * thread-safe, so this can be read without holding connectionPoolLock,
+     * which is only held to serialize creating and shutting down the pool.
+     * Null once the database has been shut down.
+     */
+    private volatile JDBCPool mConnectionPool;
     private final Object connectionPoolLock = new Object();
 
+    /**
+     * Connections that have been borrowed from the JDBC pool and released
+     * by their last user, kept open together with their cached prepared
+     * statements so the next caller of connect() can reuse them.
+     */
+    private final Deque<CachedConnection> mIdleConnections =
+        new ConcurrentLinkedDeque<>();
+
+    /**
+     * The number of connections in mIdleConnections, plus any that are about
+     * to be added.  ConcurrentLinkedDeque.size() has to walk the whole deque,
+     * and isn't atomic with adding to it.
+     */
+    private final AtomicInteger mIdleConnectionCount = new AtomicInteger();
+
     public DatabaseServiceImpl(FileAccessService fileAccessService)
             throws Exception
     {
@@ -141,10 +169,126 @@ public class DatabaseServiceImpl implements DatabaseService
     public DatabaseConnection connect()
         throws SQLException
     {
-        synchronized (connectionPoolLock)
+        // Prefer the most recently used idle connection, as its statement
+        // cache is most likely to be warm.
+        CachedConnection cachedConnection = pollIdleConnection();
+
+        while (cachedConnection != null && !cachedConnection.isOpen())
+        {
+            cachedConnection.close();
+            cachedConnection = pollIdleConnection();
+        }
+
+        if (cachedConnection == null)
+        {
+            JDBCPool connectionPool = mConnectionPool;
+
+            if (connectionPool == null)
+            {
+                throw new SQLException("Database has been shut down");
+            }
+
+            cachedConnection =
+                new CachedConnection(connectionPool.getConnection());
+        }
+
+        return new DatabaseConnectionImpl(cachedConnection, this);
+    }
+
+    /**
+     * Called when a DatabaseConnection is closed, to keep its JDBC connection
+     * and statement cache for reuse, or return it to the JDBC pool if we
+     * already have enough idle connections.
+     *
+     * @param cachedConnection The connection that has been released.
+     */
+    void releaseConnection(CachedConnection cachedConnection)
+    {
+        cachedConnection.release();
+
+        if (mConnectionPool == null || !reserveIdleConnectionSlot())
+        {
+            cachedConnection.close();
+            return;
+        }
+
+        mIdleConnections.offerFirst(cachedConnection);
+
+        // Shutdown clears mConnectionPool before it closes the idle
+        // connections.  If it's still set, shutdown hasn't started closing
+        // them yet, so will close this one.  Otherwise, shutdown may have
+        // finished already, so close any idle connections ourselves.
+        if (mConnectionPool == null)
+        {
+            closeIdleConnections();
+        }
+    }
+
+    /**
+     * Reserves a place for a connection in the idle list, if it isn't
+     * already full.
+     *
+     * @return whether a place was reserved.
+     */
+    private boolean reserveIdleConnectionSlot()
+    {
+        int count;
+
+        do
+        {
+            count = mIdleConnectionCount.get();
+
+            if (count >= MAX_IDLE_CONNECTIONS)
+            {
+                return false;
+            }
+        }
+        while (!mIdleConnectionCount.compareAndSet(count, count + 1));
+
+        return true;
+    }
+
+    /**
+     * @return the most recently released idle connection, removed from the
+     * idle list, or null if there are none.
+     */
+    private CachedConnection pollIdleConnection()
+    {
+        CachedConnection cachedConnection = mIdleConnections.pollFirst();
+
+        if (cachedConnection != null)
         {
-            return new DatabaseConnectionImpl(mConnectionPool.getConnection());
+            mIdleConnectionCount.decrementAndGet();
         }
+
+        return cachedConnection;
+    }
+
+    /**
+     * Closes all the idle connections.
+     */
+    private void closeIdleConnections()
+    {
+        CachedConnection idleConnection;
+
+        while ((idleConnection = pollIdleConnection()) != null)
+        {
+            idleConnection.close();
+        }
+    }
+
+    @Override
+    public DatabaseBatchWriter createBatchWriter(
+        String name,
+        int maxBatchSize,
+        long maxDelayMillis,
+        DatabaseBatchWriter.FlushListener listener)
+    {
+        return new DatabaseBatchWriterImpl(name,
+                                           this,
+                                           maxBatchSize,
+                                           maxDelayMillis,
+                                           listener);
     }
 
     /**
@@ -204,6 +348,8 @@ public class DatabaseServiceImpl implements DatabaseService
                 {
                     mConnectionPool = null;
                     DatabaseUtils.safeClose(connection);
+                    closeIdleConnections();
+
                     sLog.info("safeClose complete");
                 }
             }
@@ -312,6 +458,11 @@ public class DatabaseServiceImpl implements DatabaseService
                     upgradeDatabaseFromVersion4ToVersion5(connection);
                 }
 
+                if (oldVersion <= 5)
+                {
+                    upgradeDatabaseFromVersion5ToVersion6(connection);
+                }
+
                 // Finished upgrading, so write the new current version number
                 // into the database.
                 setDatabaseVersion(connection, DatabaseSchema.VERSION);
@@ -371,6 +522,10 @@ public class DatabaseServiceImpl implements DatabaseService
         sLog.info("Drop all database tables and indices");
         connection.execute(VersionTable.TABLE.getDropString());
 
+        connection.execute(SearchIndexTable.INDEX_TABLE_AND_TOKEN.getDropString());
+        connection.execute(SearchIndexTable.INDEX_TABLE_AND_ROW_ID.getDropString());
+        connection.execute(SearchIndexTable.TABLE.getDropString());
+
         connection.execute(GroupMessageHistoryTable.INDEX_JIDS.getDropString());
         connection.execute(GroupMessageHistoryTable.INDEX_JIDS_AND_DATE.getDropString());
         connection.execute(GroupMessageHistoryTable.INDEX_JIDS_AND_MSG_ID.getDropString());
@@ -469,11 +624,36 @@ public class DatabaseServiceImpl implements DatabaseService
     }
 
     /**
-     * This is a sample method for the next time we need to change the database schema.
+     * Version 5 added the search index table, used for keyword searches of
+     * message and call history instead of scanning every row.  Build the index
+     * for all the existing history.
      */
     private void upgradeDatabaseFromVersion4ToVersion5(DatabaseConnection connection)
+        throws SQLException
+    {
+        sLog.info("upgradeDatabaseFromVersion4ToVersion5");
+        connection.execute(SearchIndexTable.TABLE.getCreateString());
+        connection.execute(SearchIndexTable.INDEX_TABLE_AND_TOKEN.getCreateString());
+        connection.execute(SearchIndexTable.INDEX_TABLE_AND_ROW_ID.getCreateString());
+
+        connection.rebuildSearchIndex(MessageHistoryTable.NAME,
+                                      MessageHistoryTable.COL_ID,
+                                      MessageHistoryTable.COL_TEXT);
+        connection.rebuildSearchIndex(GroupMessageHistoryTable.NAME,
+                                      GroupMessageHistoryTable.COL_ID,
+                                      GroupMessageHistoryTable.COL_TEXT);
+        connection.rebuildSearchIndex(CallHistoryTable.NAME,
+                                      CallHistoryTable.COL_ID,
+                                      CallHistoryTable.COL_CALL_PARTICIPANT_IDS,
+                                      CallHistoryTable.COL_CALL_PARTICIPANT_NAMES);
+    }
+
+    /**
+     * This is a sample method for the next time we need to change the database schema.
+     */
+    private void upgradeDatabaseFromVersion5ToVersion6(DatabaseConnection connection)
     {
-        // sLog.info("upgradeDatabaseFromVersion4ToVersion5");
+        // sLog.info("upgradeDatabaseFromVersion5ToVersion6");
         // This code would typically do something like add a new column to a
         // table, or add a new table.
     }
@@ -0,0 +1,510 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.impl.dns;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import net.java.sip.communicator.util.Logger;
+import net.java.sip.communicator.util.UtilActivator;
+
+/**
+ * A cache of DNS answers that is saved to disk, so that after a restart we
+ * can connect without waiting for the DNS servers.
+ * <p>
+ * An answer is fresh until its TTL (the lowest TTL of its records) has
+ * passed, and is returned with its TTLs reduced by the time it has been
+ * cached.  After that it is stale: it can still be returned for up to
+ * <tt>MAX_STALE_MS</tt>, with a short TTL, but the caller should revalidate
+ * it in the background.  This is the same approach as RFC 8767
+ * (serve-stale), and means a slow or unreachable DNS server doesn't delay
+ * connecting with a name we've resolved before.
+ * <p>
+ * Only answers that the resolver considers satisfactory are cached.
+ */
+class DnsAnswerCache
+{
+    private static final Logger logger = Logger.getLogger(DnsAnswerCache.class);
+
+    private static final String CACHE_FILE_NAME = "dnscache.dat";
+
+    private static final int CACHE_MAGIC = 0x444E5331;
+
+    /**
+     * The maximum number of answers to cache.  We only resolve a handful of
+     * names, so this is generous.
+     */
+    private static final int MAX_ENTRIES = 256;
+
+    /**
+     * The maximum TTL we honour, matching the limit on dnsjava's own cache.
+     */
+    private static final long MAX_TTL_SECS = 86400;
+
+    /**
+     * How long after its TTL has passed an answer can be served while it is
+     * revalidated.
+     */
+    private static final long MAX_STALE_MS = 24 * 3600 * 1000;
+
+    /**
+     * The TTL of stale answers, as recommended by RFC 8767.  This stops
+     * dnsjava caching them for long, so the revalidated answer is used as
+     * soon as it arrives.
+     */
+    static final int STALE_TTL_SECS = 30;
+
+    /**
+     * How long to wait after a change before saving the cache.
+     */
+    private static final long SAVE_DELAY_MS = 10000;
+
+    private static final ScheduledExecutorService sExecutor =
+        Executors.newSingleThreadScheduledExecutor(runnable ->
+        {
+            Thread thread = new Thread(runnable, "dns-answer-cache");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    /**
+     * The cached answers, in order of least to most recently used.
+     */
+    private final LinkedHashMap<String, Entry> mEntries =
+        new LinkedHashMap<String, Entry>(64, 0.75f, true)
+        {
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+            {
+                return size() > MAX_ENTRIES;
+            }
+        };
+
+    /**
+     * The keys of the stale answers that are being revalidated.
+     */
+    private final Set<String> mRevalidating = new HashSet<>();
+
+    /**
+     * Whether we have tried to load the cache from disk.
+     */
+    private boolean mLoaded = false;
+
+    /**
+     * The file the cache is saved to, or null if we couldn't get one.
+     */
+    private File mFile;
+
+    private ScheduledFuture<?> mSaveTask;
+
+    /**
+     * Gets the cached answer to a query.
+     *
+     * @param query the query
+     * @return the answer, or null if there isn't one or it is too stale to
+     * use.
+     */
+    synchronized Answer get(Message query)
+    {
+        String key = getKey(query);
+
+        if (key == null)
+            return null;
+
+        load();
+        Entry entry = mEntries.get(key);
+
+        if (entry == null)
+            return null;
+
+        long now = System.currentTimeMillis();
+
+        if (now >= entry.mExpiresAt + MAX_STALE_MS)
+        {
+            mEntries.remove(key);
+            scheduleSave();
+            return null;
+        }
+
+        try
+        {
+            boolean stale = now >= entry.mExpiresAt;
+            Message response = new Message(entry.mWire);
+            response.getHeader().setID(query.getHeader().getID());
+            adjustTtls(response,
+                       stale,
+                       (now - entry.mStoredAt) / 1000,
+                       (entry.mExpiresAt - now) / 1000);
+
+            return new Answer(response, stale, entry.mDistrusted);
+        }
+        catch (IOException e)
+        {
+            logger.warn("Discarding unreadable cached DNS answer", e);
+            mEntries.remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Caches the answer to a query.  Answers without any records are not
+     * cached, as they carry no TTL.
+     *
+     * @param response the answer
+     */
+    synchronized void put(Message response)
+    {
+        String key = getKey(response);
+
+        if (key == null)
+            return;
+
+        long ttl = MAX_TTL_SECS;
+        boolean hasRecords = false;
+
+        for (int section : new int[] {Section.ANSWER,
+                                      Section.AUTHORITY,
+                                      Section.ADDITIONAL})
+        {
+            for (Record record : response.getSectionArray(section))
+            {
+                if (record.getType() != Type.OPT)
+                {
+                    ttl = Math.min(ttl, record.getTTL());
+                    hasRecords = true;
+                }
+            }
+        }
+
+        if (!hasRecords || ttl <= 0)
+            return;
+
+        load();
+        long now = System.currentTimeMillis();
+        mEntries.put(key, new Entry(response.toWire(), now, now + ttl * 1000));
+        scheduleSave();
+    }
+
+    /**
+     * Marks every cached answer as stale, e.g. because the network has
+     * changed, so that each is revalidated the next time it is used.
+     */
+    synchronized void expireAll()
+    {
+        load();
+        long now = System.currentTimeMillis();
+
+        for (Entry entry : mEntries.values())
+        {
+            entry.mExpiresAt = Math.min(entry.mExpiresAt, now);
+        }
+
+        scheduleSave();
+    }
+
+    /**
+     * Marks every cached answer as stale and distrusted, because we failed
+     * to connect and the answer used may have been the cause.  A distrusted
+     * answer is only used if the DNS servers can't give a new one.  This
+     * isn't saved, so after a restart the answers are just stale.
+     */
+    synchronized void distrustAll()
+    {
+        load();
+        long now = System.currentTimeMillis();
+
+        for (Entry entry : mEntries.values())
+        {
+            entry.mExpiresAt = Math.min(entry.mExpiresAt, now);
+            entry.mDistrusted = true;
+        }
+
+        scheduleSave();
+    }
+
+    /**
+     * Claims the revalidation of a stale answer, so that only one query
+     * revalidates each answer at a time.
+     *
+     * @param query the query for the stale answer
+     * @return true if the caller should revalidate the answer, and then call
+     * <tt>endRevalidation</tt>.
+     */
+    synchronized boolean startRevalidation(Message query)
+    {
+        String key = getKey(query);
+        return key != null && mRevalidating.add(key);
+    }
+
+    /**
+     * Releases the claim made by <tt>startRevalidation</tt>.
+     *
+     * @param query the query for the stale answer
+     */
+    synchronized void endRevalidation(Message query)
+    {
+        mRevalidating.remove(getKey(query));
+    }
+
+    /**
+     * Saves the cache now, if it has changed.
+     */
+    synchronized void save()
+    {
+        if (mSaveTask == null)
+            return;
+
+        mSaveTask.cancel(false);
+        mSaveTask = null;
+
+        if (mFile == null)
+            return;
+
+        File tempFile = new File(mFile.getPath() + ".tmp");
+
+        try
+        {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tempFile)))) // CodeQL [SM00697] Not Exploitable. The file/path is not user provided.
+            {
+                out.writeInt(CACHE_MAGIC);
+                out.writeInt(mEntries.size());
+
+                // Written from least to most recently used, so the order is
+                // kept when we load them again.
+                for (Entry entry : mEntries.values())
+                {
+                    out.writeLong(entry.mStoredAt);
+                    out.writeLong(entry.mExpiresAt);
+                    out.writeInt(entry.mWire.length);
+                    out.write(entry.mWire);
+                }
+            }
+
+            Files.move(tempFile.toPath(),
+                       mFile.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to save DNS answer cache", e);
+        }
+    }
+
+    /**
+     * Loads the cache from disk, if it hasn't been already.  Must be called
+     * while synchronized on this.
+     */
+    private void load()
+    {
+        if (mLoaded)
+            return;
+
+        mLoaded = true;
+
+        try
+        {
+            mFile = UtilActivator.getFileAccessService()
+                .getPrivatePersistentFile(CACHE_FILE_NAME);
+        }
+        catch (Exception e)
+        {
+            logger.error("Failed to get DNS answer cache file", e);
+            return;
+        }
+
+        if (mFile == null || !mFile.exists())
+            return;
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile))))
+        {
+            if (in.readInt() != CACHE_MAGIC)
+            {
+                logger.warn("Ignoring DNS answer cache with unknown format");
+                return;
+            }
+
+            int count = in.readInt();
+
+            for (int i = 0; i < count; i++)
+            {
+                long storedAt = in.readLong();
+                long expiresAt = in.readLong();
+                byte[] wire = new byte[in.readInt()];
+                in.readFully(wire);
+
+                String key = getKey(new Message(wire));
+
+                if (key != null)
+                    mEntries.put(key, new Entry(wire, storedAt, expiresAt));
+            }
+
+            logger.info("Loaded " + mEntries.size() + " cached DNS answers");
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to load DNS answer cache", e);
+        }
+    }
+
+    /**
+     * Schedules the cache to be saved, if it isn't already.  Must be called
+     * while synchronized on this.
+     */
+    private void scheduleSave()
+    {
+        if (mSaveTask == null)
+        {
+            mSaveTask = sExecutor.schedule(this::save,
+                                           SAVE_DELAY_MS,
+                                           TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sets the TTLs of the records in a cached answer to reflect how long it
+     * has been cached.
+     *
+     * @param response the cached answer
+     * @param stale whether the answer is stale
+     * @param ageSecs how long the answer has been cached
+     * @param remainingSecs how long until the answer becomes stale
+     */
+    private static void adjustTtls(Message response,
+                                   boolean stale,
+                                   long ageSecs,
+                                   long remainingSecs)
+    {
+        for (int section : new int[] {Section.ANSWER,
+                                      Section.AUTHORITY,
+                                      Section.ADDITIONAL})
+        {
+            Record[] records = response.getSectionArray(section);
+            response.removeAllRecords(section);
+
+            for (Record record : records)
+            {
+                // The TTL of an OPT record holds flags rather than a TTL.
+                if (record.getType() != Type.OPT)
+                {
+                    long ttl = stale ?
+                        STALE_TTL_SECS :
+                        Math.max(1, Math.min(record.getTTL() - ageSecs,
+                                             remainingSecs));
+                    record = record.withDClass(record.getDClass(), ttl);
+                }
+
+                response.addRecord(record, section);
+            }
+        }
+    }
+
+    /**
+     * @return the key of the question in a query or answer, or null if it
+     * doesn't have one.
+     */
+    private static String getKey(Message message)
+    {
+        Record question = message.getQuestion();
+
+        if (question == null)
+            return null;
+
+        return question.getName().toString().toLowerCase(Locale.ROOT) + " " +
+               Type.string(question.getType()) + " " +
+               DClass.string(question.getDClass());
+    }
+
+    /**
+     * A cached answer.
+     */
+    static class Answer
+    {
+        private final Message mResponse;
+
+        private final boolean mStale;
+
+        private final boolean mDistrusted;
+
+        Answer(Message response, boolean stale, boolean distrusted)
+        {
+            mResponse = response;
+            mStale = stale;
+            mDistrusted = distrusted;
+        }
+
+        /**
+         * @return the answer, with TTLs adjusted for its age.
+         */
+        Message getResponse()
+        {
+            return mResponse;
+        }
+
+        /**
+         * @return whether the answer's TTL has passed, so it should be
+         * revalidated.
+         */
+        boolean isStale()
+        {
+            return mStale;
+        }
+
+        /**
+         * @return whether we have failed to connect since the answer was
+         * cached, so it should only be used if the DNS servers can't give a
+         * new one.
+         */
+        boolean isDistrusted()
+        {
+            return mDistrusted;
+        }
+    }
+
+    private static class Entry
+    {
+        /**
+         * The answer in DNS wire format.
+         */
+        final byte[] mWire;
+
+        final long mStoredAt;
+
+        long mExpiresAt;
+
+        boolean mDistrusted;
+
+        Entry(byte[] wire, long storedAt, long expiresAt)
+        {
+            mWire = wire;
+            mStoredAt = storedAt;
+            mExpiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.impl.dns;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.xbill.DNS.Type;
+
+import net.java.sip.communicator.util.Logger;
+
+/**
+ * Histograms of how long our resolver took to answer DNS queries, kept per
+ * query type and per source of the answer, and written to the DNS log every
+ * few minutes.
+ * <p>
+ * The buckets are roughly logarithmic, so that a cache hit taking under a
+ * millisecond and a query to a slow server taking seconds are both visible.
+ * The counts are cumulative since the resolver was created.
+ */
+class DnsLatencyHistogram
+{
+    /**
+     * The logger that writes to the DNS log, rather than the main log.
+     */
+    private static final Logger sDnsLog = Logger.getLogger("jitsi.DnsLogger");
+
+    /**
+     * The upper bound of each bucket, in milliseconds.  There is a final
+     * bucket for anything slower than the last of these.
+     */
+    private static final long[] BUCKET_BOUNDS_MS =
+        {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
+
+    /**
+     * How often to write the histograms to the log.
+     */
+    private static final long LOG_INTERVAL_MS = 10 * 60 * 1000;
+
+    /**
+     * Where the answer to a query came from.
+     */
+    enum Source
+    {
+        /**
+         * A cached answer that was still within its TTL.
+         */
+        CACHE,
+
+        /**
+         * A cached answer past its TTL, served while it is revalidated.
+         */
+        STALE_CACHE,
+
+        /**
+         * An answer from a DNS server.
+         */
+        NETWORK,
+
+        /**
+         * No answer - the query failed.
+         */
+        FAILED
+    }
+
+    /**
+     * The bucket counts, keyed by query type and source.
+     */
+    private final Map<String, AtomicLongArray> mHistograms =
+        new ConcurrentHashMap<>();
+
+    private final AtomicLong mLastLogTime =
+        new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * Records the latency of a query, and writes the histograms to the log if
+     * it is time to.
+     *
+     * @param type the type of record queried for, e.g. <tt>Type.SRV</tt>
+     * @param source where the answer came from
+     * @param latencyMs how long the query took to answer
+     */
+    void record(int type, Source source, long latencyMs)
+    {
+        String key = Type.string(type) + " " + source.name().toLowerCase(Locale.ROOT);
+
+        mHistograms.computeIfAbsent(
+            key, k -> new AtomicLongArray(BUCKET_BOUNDS_MS.length + 1))
+            .incrementAndGet(getBucket(latencyMs));
+
+        long now = System.currentTimeMillis();
+        long lastLogTime = mLastLogTime.get();
+
+        if (now - lastLogTime >= LOG_INTERVAL_MS &&
+            mLastLogTime.compareAndSet(lastLogTime, now))
+        {
+            log();
+        }
+    }
+
+    /**
+     * Writes the histograms to the DNS log.
+     */
+    void log()
+    {
+        if (mHistograms.isEmpty())
+            return;
+
+        StringBuilder sb = new StringBuilder("DNS query latency (ms):");
+
+        for (Map.Entry<String, AtomicLongArray> histogram :
+                 new TreeMap<>(mHistograms).entrySet())
+        {
+            AtomicLongArray buckets = histogram.getValue();
+            long total = 0;
+
+            sb.append("\n  ").append(histogram.getKey()).append(":");
+
+            for (int i = 0; i < buckets.length(); i++)
+            {
+                long count = buckets.get(i);
+                total += count;
+
+                if (count > 0)
+                    sb.append(" ").append(getBucketName(i)).append("=")
+                      .append(count);
+            }
+
+            sb.append(" (total=").append(total)
+              .append(", p50").append(getPercentile(buckets, total, 0.5))
+              .append(", p95").append(getPercentile(buckets, total, 0.95))
+              .append(")");
+        }
+
+        sDnsLog.info(sb.toString());
+    }
+
+    private static int getBucket(long latencyMs)
+    {
+        for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++)
+        {
+            if (latencyMs < BUCKET_BOUNDS_MS[i])
+                return i;
+        }
+
+        return BUCKET_BOUNDS_MS.length;
+    }
+
+    private static String getBucketName(int bucket)
+    {
+        return bucket < BUCKET_BOUNDS_MS.length ?
+            "<" + BUCKET_BOUNDS_MS[bucket] :
+            ">=" + BUCKET_BOUNDS_MS[BUCKET_BOUNDS_MS.length - 1];
+    }
+
+    /**
+     * @return the bucket that the given percentile of the queries falls in,
+     * e.g. "&lt;20".
+     */
+    private static String getPercentile(AtomicLongArray buckets,
+                                        long total,
+                                        double percentile)
+    {
+        long target = (long) Math.ceil(total * percentile);
+        long count = 0;
+
+        for (int i = 0; i < buckets.length(); i++)
+        {
+            count += buckets.get(i);
+
+            if (count >= target)
+                return getBucketName(i);
+        }
+
+        return getBucketName(buckets.length() - 1);
+    }
+}
@@ -45,6 +45,11 @@ public class DnsUtilActivator
     private static BundleContext bundleContext;
     private static AccountManager mAccountManager;
 
+    /**
+     * The resolver we registered, or null if we didn't register one.
+     */
+    private static ParallelResolverImpl customResolver;
+
     /**
      * The address of the backup resolver we would use by default.
      */
@@ -120,9 +125,10 @@ public class DnsUtilActivator
                     DnsUtilActivator.PNAME_BACKUP_RESOLVER_ENABLED,
                     DnsUtilActivator.PDEFAULT_BACKUP_RESOLVER_ENABLED))
         {
+            customResolver = new ParallelResolverImpl();
             bundleContext.registerService(
                 CustomResolver.class.getName(),
-                new ParallelResolverImpl(),
+                customResolver,
                 null);
             logger.info("ParallelResolver ... [REGISTERED]");
         }
@@ -130,9 +136,10 @@ public class DnsUtilActivator
                     DnsUtilActivator.PNAME_NATIVE_RESOLVER_ENABLED,
                     DnsUtilActivator.PDEFAULT_NATIVE_RESOLVER_ENABLED))
         {
+            customResolver = new NativeResolver();
             bundleContext.registerService(
                 CustomResolver.class.getName(),
-                new NativeResolver(),
+                customResolver,
                 null);
             logger.info("NativeResolver ... [REGISTERED]");
         }
@@ -206,6 +213,13 @@ public class DnsUtilActivator
                     + Lookup.getDefaultResolver().getClass().getSimpleName());
 
             ((CustomResolver)Lookup.getDefaultResolver()).reset();
+
+            // answers cached on the old network may not hold on this one
+            if (Lookup.getDefaultResolver() instanceof ParallelResolverImpl)
+            {
+                ((ParallelResolverImpl)Lookup.getDefaultResolver())
+                    .expireCachedAnswers();
+            }
         }
         else
         {
@@ -232,7 +246,7 @@ public class DnsUtilActivator
     }
 
     /**
-     * Doesn't do anything.
+     * Saves the DNS answers cached by our resolver.
      *
      * @param context The execution context of the bundle being stopped.
      * @throws Exception If this method throws an exception, the bundle is
@@ -243,6 +257,10 @@ public class DnsUtilActivator
     public void stop(BundleContext context)
         throws Exception
     {
+        if (customResolver != null)
+        {
+            customResolver.stop();
+        }
     }
 
     /**
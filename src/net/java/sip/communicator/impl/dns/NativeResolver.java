@@ -55,7 +55,7 @@ public class NativeResolver
     private static final Duration TIMEOUT = Duration.ofSeconds(2L);
 
     /**
-     * Sends a message and waits for a response.
+     * Sends a message to the DNS servers and waits for a response.
      *
      * @param query The query to send.
      * @return The response
@@ -63,7 +63,8 @@ public class NativeResolver
      * @throws IOException An error occurred while sending or receiving.
      * @throws IllegalStateException We received a nonsensical response.
      */
-    public Message send(Message query) throws IOException
+    @Override
+    protected Message resolve(Message query) throws IOException
     {
         long lookupStartTime = System.currentTimeMillis();
         Message response = null;
@@ -342,6 +343,13 @@ public class NativeResolver
      * ensure we clear the cache so we try again next time we are asked.  We
      * also use unregistering as a trigger in case we're unregistering due to
      * a network change.
+     * <p>
+     * The answers in our persistent cache are kept rather than removed, as we
+     * unregister on shutdown and want them for the next start, and as they are
+     * better than nothing if the DNS servers are unreachable.  On unregistering
+     * they are marked as stale, so they are revalidated as soon as they are
+     * used.  After a connection failure they are also distrusted, so the DNS
+     * servers are queried first and they are only used if that fails.
      *
      * @param evt The event
      *
@@ -349,11 +357,17 @@ public class NativeResolver
     @Override
     public void registrationStateChanged(RegistrationStateChangeEvent evt)
     {
-        if (evt.getNewState().equals(RegistrationState.CONNECTION_FAILED) ||
-            evt.getNewState().equals(RegistrationState.UNREGISTERING))
+        if (evt.getNewState().equals(RegistrationState.CONNECTION_FAILED))
         {
             logger.debug("Clearing DNS cache due to connection failure");
             Lookup.getDefaultCache(DClass.IN).clearCache();
+            answerCache.distrustAll();
+        }
+        else if (evt.getNewState().equals(RegistrationState.UNREGISTERING))
+        {
+            logger.debug("Clearing DNS cache due to unregistering");
+            Lookup.getDefaultCache(DClass.IN).clearCache();
+            answerCache.expireAll();
         }
     }
 }
@@ -18,6 +18,8 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.xbill.DNS.EDNSOption;
 import org.xbill.DNS.ExtendedResolver;
@@ -34,7 +36,9 @@ import org.xbill.DNS.SimpleResolver;
 import org.xbill.DNS.TSIG;
 import org.xbill.DNS.Type;
 
+import net.java.sip.communicator.impl.dns.DnsLatencyHistogram.Source;
 import net.java.sip.communicator.service.dns.CustomResolver;
+import net.java.sip.communicator.service.threading.ThreadFactoryBuilder;
 import net.java.sip.communicator.util.Logger;
 import net.java.sip.communicator.util.NetworkUtils;
 
@@ -106,6 +110,29 @@ public class ParallelResolverImpl
      */
     private static final Object redemptionLock = new Object();
 
+    /**
+     * The pool of threads that send queries to the default and backup
+     * resolvers, and revalidate stale cached answers.  Threads are reused
+     * between queries rather than being created for each one.
+     */
+    private static final ExecutorService resolutionExecutor =
+        Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder()
+                .setName("ParallelResolution")
+                .build());
+
+    /**
+     * The answers we have received, saved to disk so they are available
+     * straight away after a restart.
+     */
+    protected final DnsAnswerCache answerCache = new DnsAnswerCache();
+
+    /**
+     * The latencies of the queries we have answered.
+     */
+    private final DnsLatencyHistogram latencyHistogram =
+        new DnsLatencyHistogram();
+
     /**
      * The default resolver that we use if everything works properly.
      */
@@ -215,7 +242,12 @@ public class ParallelResolverImpl
     }
 
     /**
-     * Sends a message and waits for a response.
+     * Sends a message and waits for a response, unless we have a cached
+     * response to it.
+     * <p>
+     * A stale cached response is returned straight away, and revalidated in
+     * the background.  A distrusted one is only returned if the DNS servers
+     * don't give a satisfactory response.
      *
      * @param query The query to send.
      * @return The response
@@ -223,7 +255,113 @@ public class ParallelResolverImpl
      * @throws IOException An error occurred while sending or receiving.
      */
     @Override
-    public Message send(Message query)
+    public final Message send(Message query)
+        throws IOException
+    {
+        long startTime = System.currentTimeMillis();
+        int type = query.getQuestion() == null ?
+            0 : query.getQuestion().getType();
+        DnsAnswerCache.Answer cached = answerCache.get(query);
+
+        if (cached != null && !cached.isDistrusted())
+        {
+            if (cached.isStale())
+            {
+                revalidate(query);
+            }
+
+            latencyHistogram.record(type,
+                                    cached.isStale() ? Source.STALE_CACHE
+                                                     : Source.CACHE,
+                                    System.currentTimeMillis() - startTime);
+            return cached.getResponse();
+        }
+
+        Message response = null;
+
+        try
+        {
+            response = resolve(query);
+        }
+        catch (IOException | RuntimeException | Error e)
+        {
+            if (cached == null)
+            {
+                latencyHistogram.record(type,
+                                        Source.FAILED,
+                                        System.currentTimeMillis() - startTime);
+                throw e;
+            }
+
+            logger.info("Failed to resolve query with distrusted cached " +
+                        "answer", e);
+        }
+
+        if (isResponseSatisfactory(response))
+        {
+            answerCache.put(response);
+        }
+        else if (cached != null)
+        {
+            logger.info("Using distrusted cached DNS answer, as no " +
+                        "satisfactory answer was received");
+            latencyHistogram.record(type,
+                                    Source.STALE_CACHE,
+                                    System.currentTimeMillis() - startTime);
+            return cached.getResponse();
+        }
+
+        latencyHistogram.record(type,
+                                Source.NETWORK,
+                                System.currentTimeMillis() - startTime);
+        return response;
+    }
+
+    /**
+     * Resolves a query whose cached answer is stale in the background, and
+     * caches the new answer, unless it is already being revalidated.
+     *
+     * @param query The query whose cached answer is stale.
+     */
+    private void revalidate(Message query)
+    {
+        if (!answerCache.startRevalidation(query))
+            return;
+
+        // The resolvers may tweak the query, so give them a copy.
+        Message revalidationQuery = query.clone();
+
+        resolutionExecutor.execute(() ->
+        {
+            try
+            {
+                Message response = resolve(revalidationQuery);
+
+                if (isResponseSatisfactory(response))
+                {
+                    answerCache.put(response);
+                }
+            }
+            catch (Throwable e)
+            {
+                logger.info("Failed to revalidate cached DNS answer", e);
+            }
+            finally
+            {
+                answerCache.endRevalidation(revalidationQuery);
+            }
+        });
+    }
+
+    /**
+     * Sends a message to the DNS servers and waits for a response.
+     *
+     * @param query The query to send.
+     * @return The response
+     *
+     * @throws IOException An error occurred while sending or receiving.
+     */
+    protected Message resolve(Message query)
         throws IOException
     {
         ParallelResolution resolution = new ParallelResolution(query);
@@ -475,6 +613,25 @@ public class ParallelResolverImpl
         defaultResolver = temp;
     }
 
+    /**
+     * Marks all cached answers as stale, so that they are revalidated the
+     * next time they are used.  Called when the network changes.
+     */
+    void expireCachedAnswers()
+    {
+        answerCache.expireAll();
+    }
+
+    /**
+     * Saves the cached answers and logs the query latencies.  Called when
+     * the bundle stops.
+     */
+    void stop()
+    {
+        answerCache.save();
+        latencyHistogram.log();
+    }
+
     /**
      * Determines if <tt>response</tt> can be considered a satisfactory DNS
      * response and returns accordingly.
@@ -538,7 +695,7 @@ public class ParallelResolverImpl
      * our default and backup servers and returns as soon as we get one or until
      * our default resolver fails.
      */
-    private class ParallelResolution extends Thread
+    private class ParallelResolution implements Runnable
     {
         /**
          * The query that we have sent to the default and backup DNS servers.
@@ -575,7 +732,6 @@ public class ParallelResolverImpl
          */
         public ParallelResolution(final Message query)
         {
-            super("ParallelResolution Primary Resolver");
             this.query = query;
         }
 
@@ -585,7 +741,7 @@ public class ParallelResolverImpl
          */
         public void sendFirstQuery()
         {
-            start();
+            resolutionExecutor.execute(this);
         }
 
         /**
@@ -631,10 +787,10 @@ public class ParallelResolverImpl
         {
             logger.info("Send DNS queries to backup resolvers");
 
-            //yes. a second thread in the thread ... it's ugly but it works
+            //yes. a second task from the task ... it's ugly but it works
             //and i do want to keep code simple to read ... this whole parallel
             //resolving is complicated enough as it is.
-            new Thread("ParallelResolution Backup Resolver")
+            resolutionExecutor.execute(new Runnable()
             {
                 @Override
                 public void run()
@@ -708,7 +864,7 @@ public class ParallelResolverImpl
                         return;
                     }
                 }
-            }.start();
+            });
         }
 
         /**
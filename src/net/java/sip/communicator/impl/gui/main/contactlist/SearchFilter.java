@@ -125,6 +125,12 @@ public class SearchFilter
         return mFilterPatternMetaContact;
     }
 
+    @Override
+    public String getFilterString()
+    {
+        return mFilterString;
+    }
+
     /**
      * Applies this filter to the default contact source.
      * @param filterQuery the query that tracks this filter.
@@ -140,7 +146,7 @@ public class SearchFilter
             mSourceContactList.getContactSources().iterator();
 
         MetaContactQuery defaultQuery =
-            mMclSource.queryMetaContactSource(mFilterPatternMetaContact);
+            mMclSource.queryMetaContactSource(mFilterString);
 
         defaultQuery.addContactQueryListener(mSourceContactList);
 
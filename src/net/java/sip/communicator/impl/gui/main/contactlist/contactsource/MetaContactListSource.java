@@ -7,16 +7,11 @@
 // Portions (c) Microsoft Corporation. All rights reserved.
 package net.java.sip.communicator.impl.gui.main.contactlist.contactsource;
 
-import static net.java.sip.communicator.util.PrivacyUtils.REDACTED;
-
 import java.awt.*;
 import java.awt.event.*;
-import java.text.*;
-import java.text.Normalizer.*;
 import java.util.*;
 import java.util.List;
 import java.util.concurrent.*;
-import java.util.regex.*;
 
 import javax.swing.*;
 
@@ -98,6 +93,12 @@ public class MetaContactListSource
     private final Map<MetaContactGroup, UIGroupImpl> mUiGroups =
             new ConcurrentHashMap<>();
 
+    /**
+     * The index used to find the <tt>MetaContact</tt>s matching a search.
+     */
+    private final MetaContactSearchIndex mSearchIndex =
+            new MetaContactSearchIndex();
+
     public MetaContactListSource(TreeContactList contactList)
     {
         mContactList = contactList;
@@ -199,27 +200,24 @@ public class MetaContactListSource
 
     /**
      * Filters the <tt>MetaContactListService</tt> to match the given
-     * <tt>filterPattern</tt> and stores the result in the given
+     * <tt>filterString</tt> and stores the result in the given
      * <tt>treeModel</tt>.
-     * @param filterPattern the pattern to filter through
+     * @param filterString the string to filter by, or null to match all
+     * contacts
      * @return the created <tt>MetaContactQuery</tt> corresponding to the
      * query this method does
      */
-    public MetaContactQuery queryMetaContactSource(final Pattern filterPattern)
+    public MetaContactQuery queryMetaContactSource(final String filterString)
     {
         final MetaContactQuery query = new MetaContactQuery();
-        sLog.debug("Querying " + this + " with pattern " + filterPattern + " on query " + query);
+        sLog.debug("Querying " + this + " on query " + query);
 
         new Thread(
             "MetaContactListSource@" + this.hashCode() + ".queryMetaContactSource")
         {
             public void run()
             {
-                int resultCount = 0;
-                queryMetaContactSource( filterPattern,
-                        GuiActivator.getContactListService().getRoot(),
-                        query,
-                        resultCount);
+                queryMetaContactSource(filterString, query);
 
                 if (!query.isCanceled())
                     query.fireQueryEvent(
@@ -234,78 +232,59 @@ public class MetaContactListSource
     }
 
     /**
-     * Filters the children in the given <tt>MetaContactGroup</tt> to match the
-     * given <tt>filterPattern</tt> and stores the result in the given
-     * <tt>treeModel</tt>.
-     * @param filterPattern the pattern to filter through
-     * @param parentGroup the <tt>MetaContactGroup</tt> to filter
+     * Finds the <tt>MetaContact</tt>s matching the given <tt>filterString</tt>
+     * in the search index and adds them to the contact list.
+     * @param filterString the string to filter by, or null to match all
+     * contacts
      * @param query the object that tracks the query
-     * @param resultCount the initial result count we would insert directly to
-     * the contact list without firing events
      */
-    public void queryMetaContactSource(Pattern filterPattern,
-                                       MetaContactGroup parentGroup,
-                                       MetaContactQuery query,
-                                       int resultCount)
+    private void queryMetaContactSource(String filterString,
+                                        MetaContactQuery query)
     {
-        sLog.debug("Query " + this + " for " + filterPattern + " on " + query);
-        Iterator<MetaContact> childContacts = parentGroup.getChildContacts();
+        List<MetaContact> matchingContacts = mSearchIndex.search(filterString);
+        int resultCount = 0;
 
-        while (childContacts.hasNext() && !query.isCanceled())
+        for (MetaContact metaContact : matchingContacts)
         {
-            MetaContact metaContact = childContacts.next();
+            if (query.isCanceled())
+                return;
 
-            if (isMatching(filterPattern, metaContact))
-            {
-                resultCount++;
+            resultCount++;
 
+            try
+            {
+                addMatchingMetaContact(metaContact.getParentMetaContactGroup(),
+                                       query,
+                                       resultCount,
+                                       metaContact);
+            }
+            catch (Exception e)
+            {
+                // Something went wrong adding the contact - catch the
+                // exception as it's most likely a bad contact.  Log and
+                // try to deal with the bad contact:
+                sLog.error("Exception trying to add a matching contact "
+                                                          + metaContact, e);
+                resultCount--;
+
+                // We have seen this where the metaContact doesn't have a
+                // group set.  This happens when a delete fails, in which
+                // case we just remove the contact from the group
                 try
                 {
-                    addMatchingMetaContact(parentGroup,
-                                           query,
-                                           resultCount,
-                                           metaContact);
+                    GuiActivator.getContactListService()
+                                .removeMetaContact(metaContact);
                 }
-                catch (Exception e)
+                catch (MetaContactListException mcle)
                 {
-                    // Something went wrong adding the contact - catch the
-                    // exception as it's most likely a bad contact.  Log and
-                    // try to deal with the bad contact:
-                    sLog.error("Exception trying to add a matching contact "
-                                                              + metaContact, e);
-                    resultCount--;
-
-                    // We have seen this where the metaContact doesn't have a
-                    // group set.  This happens when a delete fails, in which
-                    // case we just remove the contact from the group
-                    try
-                    {
-                        GuiActivator.getContactListService()
-                                    .removeMetaContact(metaContact);
-                    }
-                    catch (MetaContactListException mcle)
-                    {
-                        // Just give up.  Hope things are improved on restart
-                        sLog.error("Couldn't delete the contact "
-                                                           + metaContact, mcle);
-                    }
+                    // Just give up.  Hope things are improved on restart
+                    sLog.error("Couldn't delete the contact "
+                                                       + metaContact, mcle);
                 }
             }
         }
 
-        // If in the meantime the query is canceled we return here.
-        if(query.isCanceled())
-            return;
-
-        Iterator<MetaContactGroup> subgroups = parentGroup.getSubgroups();
-        while (subgroups.hasNext() && !query.isCanceled())
-        {
-            MetaContactGroup subgroup = subgroups.next();
-
-            queryMetaContactSource(filterPattern, subgroup, query, resultCount);
-        }
-
-        sLog.debug("Query " + this + " for " + filterPattern + " found " + resultCount);
+        sLog.debug("Query " + this + " found " + resultCount);
     }
 
     /**
@@ -365,175 +344,41 @@ public class MetaContactListSource
 
     /**
      * Checks if the given <tt>metaContact</tt> is matching the given
-     * <tt>filterPattern</tt>.
+     * <tt>filterString</tt>.
      * A <tt>MetaContact</tt> would be matching the filter if it is not hidden
      * and one of the following is true:<br>
      * - its display name contains the filter string
-     * - at least one of its child protocol contacts has a display name or an
-     * address that contains the filter string.
-     * @param filterPattern the filter pattern to check for matches
+     * - at least one of its child protocol contacts has a display name, a
+     * name, IM or email detail, or (if calling is enabled) a phone number that
+     * contains the filter string.
+     * See <tt>MetaContactSearchIndex</tt> for the details.
+     * @param filterString the filter string to check for matches
      * @param metaContact the <tt>MetaContact</tt> to check
      * @return <tt>true</tt> to indicate that the given <tt>metaContact</tt> is
      * matching the current filter and is not hidden, otherwise returns
      * <tt>false</tt>
      */
-    public boolean isMatching(Pattern filterPattern, MetaContact metaContact)
+    public boolean isMatching(String filterString, MetaContact metaContact)
     {
-        sLog.debug("isMatching");
-
-        // If the filter pattern is null, that means the user hasn't typed
+        // If the filter string is null, that means the user hasn't typed
         // anything into the search box so all contacts match, therefore return
         // true.
-        if (filterPattern == null)
-        {
-            sLog.debug("Returning true as no filter pattern has been entered");
-            return true;
-        }
-
-        // Check whether this MetaContact should be hidden from the contact list
-        List<String> hiddenDetails =
-            metaContact.getDetails(MetaContact.IS_CONTACT_HIDDEN);
-
-        boolean isHidden = hiddenDetails.size() == 0 ?
-                                    false :
-                                    Boolean.valueOf(hiddenDetails.get(0));
-        if (isHidden)
-        {
-            sLog.debug("Returning false as is hidden");
-            return false;
-        }
-
-        // Process the display name so that accents and apostrophes are ignored
-        Matcher matcher = filterPattern.matcher(Normalizer.normalize(
-                            metaContact.getDisplayName(), Form.NFD)
-                            .replaceAll("\\p{InCombiningDiacriticalMarks}+", "")
-                            .replaceAll("'", ""));
-
-        if(matcher.find())
-        {
-            sLog.debug("Returning true as found display name 1");
+        if (filterString == null)
             return true;
-        }
-
-        Iterator<Contact> contacts = metaContact.getContacts();
-        while (contacts.hasNext())
-        {
-            Contact contact = contacts.next();
-
-            // Process the display name to avoid NPEs and so that accents and
-            // apostrophes are ignored.
-            String contactDisplayName = contact.getDisplayName();
-            String parsedContactDisplayName =
-                (contactDisplayName == null) ? "" : contactDisplayName;
-            String displayName =
-                  Normalizer.normalize(parsedContactDisplayName, Form.NFD)
-                            .replaceAll("\\p{InCombiningDiacriticalMarks}+", "")
-                            .replaceAll("'", "");
-
-            matcher = filterPattern.matcher(displayName);
-
-            if (matcher.find())
-            {
-                sLog.debug("Returning true as found display name 2");
-                return true;
-            }
-
-            // Only add the address as a searchable string if the persistent
-            // presence operation set is marked as having a user-visible
-            // address.
-            Map<String, OperationSet> opSets =
-                contact.getProtocolProvider().getSupportedOperationSets();
-            String ppOpSetKey = OperationSetPersistentPresence.class.getName();
-
-            if (opSets.containsKey(ppOpSetKey))
-            {
-                OperationSetPersistentPresence presence =
-                    (OperationSetPersistentPresence)opSets.get(ppOpSetKey);
-
-                if (presence.isAddressDisplayable())
-                {
-                    matcher = filterPattern.matcher(parsedContactDisplayName);
-
-                    if (matcher.find())
-                    {
-                        sLog.debug("Returning true as found presence address");
-                        return true;
-                    }
-                }
-            }
-
-            // Check in the details too, if this contact has any
-            String ssdOpSetKey = OperationSetServerStoredContactInfo.class.getName();
-            if (opSets.containsKey(ssdOpSetKey))
-            {
-                OperationSetServerStoredContactInfo info =
-                    (OperationSetServerStoredContactInfo)opSets.get(ssdOpSetKey);
-
-                Iterator<GenericDetail> allDetails =
-                                          info.getAllDetailsForContact(contact);
-                while (allDetails.hasNext())
-                {
-                    GenericDetail detail = allDetails.next();
-
-                    // We are only interested in some details:
-                    if (!(detail instanceof NameDetail ||
-                          detail instanceof PhoneNumberDetail ||
-                          detail instanceof IMDetail ||
-                          detail instanceof EmailAddressDetail))
-                        continue;
-
-                    if ((detail instanceof PhoneNumberDetail) &&
-                        (!ConfigurationUtils.isCallingEnabled()))
-                    {
-                        // Detail is phone number but we don't support calling
-                        sLog.debug("Skip phone detail");
-                        continue;
-                    }
-
-                    if (detail.getDetailValue() != null)
-                    {
-                        String detailValue = detail.toString();
-
-                        // If this is an IM or Email detail, then remove the
-                        // domain - we don't want it as it causes confusion.
-                        if (detail instanceof IMDetail ||
-                            detail instanceof EmailAddressDetail)
-                        {
-                            int atIndex = detailValue.indexOf('@');
-
-                            if (atIndex != -1)
-                            {
-                                detailValue = detailValue.substring(0, atIndex);
-                            }
-                        }
-
-                        matcher = filterPattern.matcher(detailValue);
-
-                        if (matcher.find())
-                        {
-                            String valueToLog = mQAMode ? detailValue : REDACTED;
-                            sLog.debug("Return true as found in detail: " + valueToLog);
-                            return true;
-                        }
-                    }
-                }
-            }
-        }
 
-        sLog.debug("Return default false");
-        return false;
+        return mSearchIndex.isMatching(filterString, metaContact);
     }
 
     /**
      * Checks if the given <tt>metaGroup</tt> is matching the current filter. A
      * group is matching the current filter only if it contains at least one
      * child <tt>MetaContact</tt>, which is matching the current filter.
-     * @param filterPattern the filter pattern to check for matches
+     * @param filterString the filter string to check for matches
      * @param metaGroup the <tt>MetaContactGroup</tt> to check
      * @return <tt>true</tt> to indicate that the given <tt>metaGroup</tt> is
      * matching the current filter, otherwise returns <tt>false</tt>
      */
-    public boolean isMatching(Pattern filterPattern, MetaContactGroup metaGroup)
+    public boolean isMatching(String filterString, MetaContactGroup metaGroup)
     {
         Iterator<MetaContact> contacts = metaGroup.getChildContacts();
 
@@ -541,7 +386,7 @@ public class MetaContactListSource
         {
             MetaContact metaContact = contacts.next();
 
-            if (isMatching(filterPattern, metaContact))
+            if (isMatching(filterString, metaContact))
                 return true;
         }
         return false;
@@ -590,12 +435,12 @@ public class MetaContactListSource
         {
             if (currentFilter instanceof ContactListSearchFilter)
             {
-                // If this is the search filter, then get the pattern and use
-                // our own matches method
+                // If this is the search filter, then get the filter string
+                // and use our own matches method
                 ContactListSearchFilter searchFilter =
                                      (ContactListSearchFilter)currentFilter;
-                Pattern pattern = searchFilter.getMetaContactPattern();
-                matches = isMatching(pattern, metaContact);
+                matches = isMatching(searchFilter.getFilterString(),
+                                     metaContact);
             }
             else
             {
@@ -692,6 +537,8 @@ public class MetaContactListSource
      */
     public void metaContactAdded(final MetaContactEvent evt)
     {
+        mSearchIndex.invalidate(evt.getSourceMetaContact());
+
         metaContactAdded(evt.getSourceMetaContact(),
                         evt.getParentGroup());
     }
@@ -761,6 +608,10 @@ public class MetaContactListSource
     {
         final MetaContactGroup metaGroup = evt.getSourceMetaContactGroup();
 
+        // The group may arrive with contacts for which no contact added
+        // event is fired.
+        mSearchIndex.invalidate(metaGroup);
+
         UIGroup uiGroup;
 
         synchronized (metaGroup)
@@ -802,6 +653,10 @@ public class MetaContactListSource
     {
         final MetaContactGroup metaGroup = evt.getSourceMetaContactGroup();
 
+        // Contacts may have been added to the group along with a protocol
+        // group, without a contact added event.
+        mSearchIndex.invalidate(metaGroup);
+
         UIGroupImpl uiGroup;
         synchronized (metaGroup)
         {
@@ -826,6 +681,10 @@ public class MetaContactListSource
      */
     public void metaContactGroupRemoved(final MetaContactGroupEvent evt)
     {
+        // The group's contacts may have been removed with it, so just rebuild
+        // the search index.
+        mSearchIndex.invalidateAll();
+
         MetaContactGroup metaGroup = evt.getSourceMetaContactGroup();
 
         UIGroup uiGroup;
@@ -846,6 +705,7 @@ public class MetaContactListSource
     public void metaContactModified(final MetaContactModifiedEvent evt)
     {
         MetaContact metaContact = evt.getSourceMetaContact();
+        mSearchIndex.invalidate(metaContact);
 
         UIContactImpl uiContact;
         synchronized (metaContact)
@@ -958,6 +818,7 @@ public class MetaContactListSource
     public void metaContactRemoved(final MetaContactEvent evt)
     {
         MetaContact metaContact = evt.getSourceMetaContact();
+        mSearchIndex.invalidate(metaContact);
 
         UIContact uiContact;
         synchronized (metaContact)
@@ -978,6 +839,7 @@ public class MetaContactListSource
     public void metaContactRenamed(final MetaContactRenamedEvent evt)
     {
         MetaContact metaContact = evt.getSourceMetaContact();
+        mSearchIndex.invalidate(metaContact);
 
         UIContactImpl uiContact;
         synchronized (metaContact)
@@ -1029,6 +891,7 @@ public class MetaContactListSource
     public void protoContactAdded(ProtoContactEvent evt)
     {
         sLog.debug("protoContactAdded");
+        mSearchIndex.invalidate(evt.getNewParent());
 
         final MetaContact metaContact = evt.getNewParent();
 
@@ -1092,6 +955,7 @@ public class MetaContactListSource
     public void protoContactModified(ProtoContactEvent evt)
     {
         MetaContact metaContact = evt.getNewParent();
+        mSearchIndex.invalidate(metaContact);
 
         UIContactImpl uiContact;
         synchronized (metaContact)
@@ -1119,6 +983,8 @@ public class MetaContactListSource
     public void protoContactMoved(ProtoContactEvent evt)
     {
         sLog.debug("protoContactMoved");
+        mSearchIndex.invalidate(evt.getOldParent());
+        mSearchIndex.invalidate(evt.getNewParent());
 
         final MetaContact oldParent = evt.getOldParent();
         final MetaContact newParent = evt.getNewParent();
@@ -1202,6 +1068,7 @@ public class MetaContactListSource
     public void protoContactRemoved(ProtoContactEvent evt)
     {
         final MetaContact oldParent = evt.getOldParent();
+        mSearchIndex.invalidate(oldParent);
 
         UIContactImpl oldUIContact;
         synchronized (oldParent)
@@ -0,0 +1,686 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.impl.gui.main.contactlist.contactsource;
+
+import java.text.*;
+import java.text.Normalizer.*;
+import java.util.*;
+import java.util.regex.*;
+
+import net.java.sip.communicator.impl.gui.*;
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.protocol.*;
+import net.java.sip.communicator.service.protocol.PersonalContactDetails.*;
+import net.java.sip.communicator.service.protocol.ServerStoredDetails.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * An index of the searchable text of every <tt>MetaContact</tt>, so that
+ * filtering the contact list doesn't have to normalize every contact's names
+ * and fetch all of its details on each keystroke.
+ * <p>
+ * Each <tt>MetaContact</tt> has an entry holding its display names, name
+ * details, IM and email local parts and phone numbers, with accents and
+ * apostrophes stripped and lower cased, just as the search string is.  Every
+ * trigram (three character sequence) in an entry maps to the ids of the
+ * entries containing it, so only the entries containing every trigram of the
+ * search terms need to be checked.  If the search string just extends the
+ * previous one (i.e. the user has typed another character) then only the
+ * previous results are checked.
+ * <p>
+ * The whole index is built on the first search.  After that, contacts which
+ * have changed are passed to <tt>invalidate()</tt> and re-indexed on the next
+ * search.
+ */
+final class MetaContactSearchIndex
+{
+    private static final Logger sLog =
+        Logger.getLogger(MetaContactSearchIndex.class);
+
+    /**
+     * The characters removed from both the search string and the indexed text
+     * so that accents and apostrophes are ignored.
+     */
+    private static final Pattern IGNORED_CHARS =
+        Pattern.compile("'|\\p{InCombiningDiacriticalMarks}+");
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private static final Pattern NON_DIGITS = Pattern.compile("[^0-9]");
+
+    private static final int GRAM_LENGTH = 3;
+
+    /**
+     * The entries for each indexed <tt>MetaContact</tt>.
+     */
+    private final Map<MetaContact, Entry> mEntries = new HashMap<>();
+
+    /**
+     * The entries indexed by their ids, with null for the ids of entries that
+     * have since been replaced or removed.
+     */
+    private final List<Entry> mEntriesById = new ArrayList<>();
+
+    /**
+     * The ids of the entries containing each trigram, in ascending order.
+     */
+    private final Map<String, Postings> mPostings = new HashMap<>();
+
+    /**
+     * The <tt>MetaContact</tt>s to re-index on the next search.
+     */
+    private final Set<MetaContact> mDirty = new LinkedHashSet<>();
+
+    /**
+     * Held while updating the index.
+     */
+    private final Object mUpdateLock = new Object();
+
+    /**
+     * Whether the index has been built.
+     */
+    private boolean mBuilt = false;
+
+    /**
+     * The number of null entries in mEntriesById.
+     */
+    private int mRemovedCount = 0;
+
+    /**
+     * Incremented whenever the index changes, so that the previous results
+     * are only reused while they are still valid.
+     */
+    private long mVersion = 0;
+
+    private String mLastSearch;
+    private boolean mLastCallingEnabled;
+    private long mLastVersion;
+    private int[] mLastResults;
+
+    /**
+     * Normalizes a string in the same way as the search string, i.e. strips
+     * accents and apostrophes and lower cases it.
+     *
+     * @param text the string to normalize
+     * @return the normalized string
+     */
+    static String normalize(String text)
+    {
+        return IGNORED_CHARS.matcher(Normalizer.normalize(text, Form.NFD))
+                            .replaceAll("")
+                            .toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Notes that a <tt>MetaContact</tt> has been added, changed or removed,
+     * so must be re-indexed.
+     *
+     * @param metaContact the <tt>MetaContact</tt>, or null to do nothing
+     */
+    synchronized void invalidate(MetaContact metaContact)
+    {
+        if (mBuilt && metaContact != null)
+        {
+            mDirty.add(metaContact);
+            mVersion++;
+        }
+    }
+
+    /**
+     * Notes that the <tt>MetaContact</tt>s in a group and its subgroups may
+     * have changed, so must be re-indexed.
+     *
+     * @param group the <tt>MetaContactGroup</tt>
+     */
+    void invalidate(MetaContactGroup group)
+    {
+        List<MetaContact> metaContacts = new ArrayList<>();
+        addContacts(group, metaContacts);
+
+        synchronized (this)
+        {
+            if (mBuilt && !metaContacts.isEmpty())
+            {
+                mDirty.addAll(metaContacts);
+                mVersion++;
+            }
+        }
+    }
+
+    /**
+     * Discards the whole index, so that it is rebuilt on the next search.
+     */
+    synchronized void invalidateAll()
+    {
+        clear();
+        mBuilt = false;
+    }
+
+    /**
+     * Finds the <tt>MetaContact</tt>s matching a search string.  A
+     * <tt>MetaContact</tt> matches if it is not hidden and every
+     * whitespace-separated term in the search string appears in the same one
+     * of its names, details or (if calling is enabled) phone numbers.
+     *
+     * @param searchString the search string, or null to return every
+     * <tt>MetaContact</tt>
+     * @return the matching <tt>MetaContact</tt>s
+     */
+    List<MetaContact> search(String searchString)
+    {
+        boolean callingEnabled = ConfigurationUtils.isCallingEnabled();
+        update();
+
+        List<MetaContact> results = new ArrayList<>();
+
+        synchronized (this)
+        {
+            if (searchString == null)
+            {
+                for (Entry entry : mEntriesById)
+                {
+                    if (entry != null)
+                        results.add(entry.mMetaContact);
+                }
+
+                return results;
+            }
+
+            String normalized = normalize(searchString);
+            String[] terms = splitTerms(normalized);
+            int[] candidates;
+
+            if (mLastResults != null &&
+                mLastVersion == mVersion &&
+                mLastCallingEnabled == callingEnabled &&
+                normalized.startsWith(mLastSearch))
+            {
+                // Every term in the new search contains a term from the last
+                // search, so the results can only be a subset of the last
+                // results.
+                candidates = mLastResults;
+            }
+            else
+            {
+                candidates = findCandidates(terms);
+            }
+
+            int[] matches = new int[candidates.length];
+            int matchCount = 0;
+
+            for (int id : candidates)
+            {
+                Entry entry = mEntriesById.get(id);
+
+                if (entry != null && entry.matches(terms, callingEnabled))
+                {
+                    matches[matchCount++] = id;
+                    results.add(entry.mMetaContact);
+                }
+            }
+
+            mLastSearch = normalized;
+            mLastCallingEnabled = callingEnabled;
+            mLastVersion = mVersion;
+            mLastResults = Arrays.copyOf(matches, matchCount);
+        }
+
+        return results;
+    }
+
+    /**
+     * Checks whether a single <tt>MetaContact</tt> matches a search string,
+     * in the same way as <tt>search()</tt>.  This uses the contact's entry if
+     * it is up to date, but doesn't update the index.
+     *
+     * @param searchString the search string
+     * @param metaContact the <tt>MetaContact</tt> to check
+     * @return true if the <tt>MetaContact</tt> matches
+     */
+    boolean isMatching(String searchString, MetaContact metaContact)
+    {
+        Entry entry;
+
+        synchronized (this)
+        {
+            entry = mDirty.contains(metaContact) ?
+                                             null : mEntries.get(metaContact);
+        }
+
+        if (entry == null)
+            entry = createEntry(metaContact);
+
+        return entry.matches(splitTerms(normalize(searchString)),
+                             ConfigurationUtils.isCallingEnabled());
+    }
+
+    /**
+     * Builds the index if it hasn't been built yet, otherwise re-indexes the
+     * <tt>MetaContact</tt>s which have changed.  The entries are created
+     * without holding the lock on this, as that requires calls into the
+     * protocol providers.  Updates are serialized on <tt>mUpdateLock</tt>
+     * instead, so that a search made while another thread is building the
+     * index waits for it rather than searching a partial index.
+     */
+    private void update()
+    {
+        synchronized (mUpdateLock)
+        {
+            boolean build;
+            List<MetaContact> toIndex;
+
+            synchronized (this)
+            {
+                build = !mBuilt;
+
+                if (build)
+                {
+                    clear();
+                    mBuilt = true;
+                }
+
+                toIndex = new ArrayList<>(mDirty);
+                mDirty.clear();
+            }
+
+            if (build)
+            {
+                toIndex = new ArrayList<>();
+                addContacts(GuiActivator.getContactListService().getRoot(),
+                            toIndex);
+                sLog.debug("Indexing " + toIndex.size() + " contacts");
+            }
+            else if (toIndex.isEmpty())
+            {
+                return;
+            }
+
+            List<Entry> entries = new ArrayList<>(toIndex.size());
+
+            for (MetaContact metaContact : toIndex)
+            {
+                // A MetaContact that has been removed no longer has a parent.
+                entries.add(metaContact.getParentMetaContactGroup() == null ?
+                                              null : createEntry(metaContact));
+            }
+
+            synchronized (this)
+            {
+                for (int i = 0; i < toIndex.size(); i++)
+                {
+                    put(toIndex.get(i), entries.get(i));
+                }
+
+                if (mRemovedCount > mEntries.size())
+                    compact();
+            }
+        }
+    }
+
+    /**
+     * Adds all the <tt>MetaContact</tt>s in a group and its subgroups to a
+     * list.
+     */
+    private static void addContacts(MetaContactGroup group,
+                                    List<MetaContact> metaContacts)
+    {
+        Iterator<MetaContact> childContacts = group.getChildContacts();
+
+        while (childContacts.hasNext())
+        {
+            metaContacts.add(childContacts.next());
+        }
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+
+        while (subgroups.hasNext())
+        {
+            addContacts(subgroups.next(), metaContacts);
+        }
+    }
+
+    /**
+     * Replaces the entry for a <tt>MetaContact</tt>.  Must be called while
+     * synchronized on this.
+     *
+     * @param metaContact the <tt>MetaContact</tt>
+     * @param entry its new entry, or null to remove it from the index
+     */
+    private void put(MetaContact metaContact, Entry entry)
+    {
+        Entry oldEntry = mEntries.remove(metaContact);
+
+        if (oldEntry != null)
+        {
+            // Leave the old id in the postings - it is skipped as there is no
+            // entry for it.
+            mEntriesById.set(oldEntry.mId, null);
+            mRemovedCount++;
+        }
+
+        if (entry != null)
+        {
+            mEntries.put(metaContact, entry);
+            addToPostings(entry);
+        }
+
+        mVersion++;
+    }
+
+    /**
+     * Gives an entry the next id and adds it to the postings for each of its
+     * trigrams.  Must be called while synchronized on this.
+     */
+    private void addToPostings(Entry entry)
+    {
+        entry.mId = mEntriesById.size();
+        mEntriesById.add(entry);
+
+        for (String gram : entry.grams())
+        {
+            mPostings.computeIfAbsent(gram, k -> new Postings()).add(entry.mId);
+        }
+    }
+
+    /**
+     * Rebuilds the postings without the ids of replaced and removed entries.
+     * Must be called while synchronized on this.
+     */
+    private void compact()
+    {
+        List<Entry> entries = new ArrayList<>(mEntries.size());
+
+        for (Entry entry : mEntriesById)
+        {
+            if (entry != null)
+                entries.add(entry);
+        }
+
+        mEntriesById.clear();
+        mPostings.clear();
+        mRemovedCount = 0;
+
+        for (Entry entry : entries)
+        {
+            addToPostings(entry);
+        }
+
+        mVersion++;
+    }
+
+    /**
+     * Empties the index.  Must be called while synchronized on this.
+     */
+    private void clear()
+    {
+        mEntries.clear();
+        mEntriesById.clear();
+        mPostings.clear();
+        mDirty.clear();
+        mRemovedCount = 0;
+        mLastResults = null;
+        mVersion++;
+    }
+
+    /**
+     * Finds the ids of the entries which contain every trigram of the search
+     * terms.  If no term is long enough to have a trigram, that is every
+     * entry.  Must be called while synchronized on this.
+     */
+    private int[] findCandidates(String[] terms)
+    {
+        int[] candidates = null;
+
+        for (String term : terms)
+        {
+            for (int i = 0; i + GRAM_LENGTH <= term.length(); i++)
+            {
+                Postings postings =
+                    mPostings.get(term.substring(i, i + GRAM_LENGTH));
+
+                if (postings == null)
+                    return new int[0];
+
+                candidates = candidates == null ?
+                    Arrays.copyOf(postings.mIds, postings.mSize) :
+                    intersect(candidates, postings);
+
+                if (candidates.length == 0)
+                    return candidates;
+            }
+        }
+
+        if (candidates == null)
+        {
+            candidates = new int[mEntriesById.size()];
+
+            for (int id = 0; id < candidates.length; id++)
+            {
+                candidates[id] = id;
+            }
+        }
+
+        return candidates;
+    }
+
+    /**
+     * Intersects two ascending lists of ids.
+     */
+    private static int[] intersect(int[] ids, Postings postings)
+    {
+        int[] result = new int[Math.min(ids.length, postings.mSize)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+
+        while (i < ids.length && j < postings.mSize)
+        {
+            if (ids[i] < postings.mIds[j])
+            {
+                i++;
+            }
+            else if (ids[i] > postings.mIds[j])
+            {
+                j++;
+            }
+            else
+            {
+                result[count++] = ids[i];
+                i++;
+                j++;
+            }
+        }
+
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Splits a normalized search string into its terms.
+     */
+    private static String[] splitTerms(String normalized)
+    {
+        return Arrays.stream(WHITESPACE.split(normalized))
+                     .filter(term -> !term.isEmpty())
+                     .toArray(String[]::new);
+    }
+
+    /**
+     * Creates the entry for a <tt>MetaContact</tt>.
+     */
+    private static Entry createEntry(MetaContact metaContact)
+    {
+        List<String> hiddenDetails =
+            metaContact.getDetails(MetaContact.IS_CONTACT_HIDDEN);
+
+        boolean hidden = !hiddenDetails.isEmpty() &&
+                         Boolean.valueOf(hiddenDetails.get(0));
+
+        Set<String> fields = new LinkedHashSet<>();
+        Set<String> phoneFields = new LinkedHashSet<>();
+
+        addField(fields, metaContact.getDisplayName());
+
+        Iterator<Contact> contacts = metaContact.getContacts();
+
+        while (contacts.hasNext())
+        {
+            Contact contact = contacts.next();
+
+            // This also covers the contact's address where that is
+            // displayable, as the address is used as the display name.
+            addField(fields, contact.getDisplayName());
+
+            OperationSetServerStoredContactInfo info =
+                contact.getProtocolProvider().getOperationSet(
+                    OperationSetServerStoredContactInfo.class);
+
+            if (info == null)
+                continue;
+
+            Iterator<GenericDetail> allDetails =
+                info.getAllDetailsForContact(contact);
+
+            while (allDetails.hasNext())
+            {
+                GenericDetail detail = allDetails.next();
+
+                if (detail.getDetailValue() == null)
+                    continue;
+
+                String detailValue = detail.toString();
+
+                if (detail instanceof NameDetail)
+                {
+                    addField(fields, detailValue);
+                }
+                else if (detail instanceof IMDetail ||
+                         detail instanceof EmailAddressDetail)
+                {
+                    // Remove the domain - we don't want it as it causes
+                    // confusion.
+                    int atIndex = detailValue.indexOf('@');
+
+                    if (atIndex != -1)
+                        detailValue = detailValue.substring(0, atIndex);
+
+                    addField(fields, detailValue);
+                }
+                else if (detail instanceof PhoneNumberDetail)
+                {
+                    // Index the number both as displayed and as just its
+                    // digits, so that it can be found however it is typed.
+                    addField(phoneFields, detailValue);
+                    addField(phoneFields,
+                             NON_DIGITS.matcher(detailValue).replaceAll(""));
+                }
+            }
+        }
+
+        return new Entry(metaContact,
+                         hidden,
+                         fields.toArray(new String[0]),
+                         phoneFields.toArray(new String[0]));
+    }
+
+    private static void addField(Set<String> fields, String text)
+    {
+        if (text != null && !text.isEmpty())
+            fields.add(normalize(text));
+    }
+
+    /**
+     * The indexed text of a <tt>MetaContact</tt>.
+     */
+    private static final class Entry
+    {
+        final MetaContact mMetaContact;
+        final boolean mHidden;
+        final String[] mFields;
+        final String[] mPhoneFields;
+        int mId;
+
+        Entry(MetaContact metaContact,
+              boolean hidden,
+              String[] fields,
+              String[] phoneFields)
+        {
+            mMetaContact = metaContact;
+            mHidden = hidden;
+            mFields = fields;
+            mPhoneFields = phoneFields;
+        }
+
+        /**
+         * @return the distinct trigrams in all of the entry's fields.
+         */
+        Set<String> grams()
+        {
+            Set<String> grams = new HashSet<>();
+            addGrams(mFields, grams);
+            addGrams(mPhoneFields, grams);
+            return grams;
+        }
+
+        /**
+         * @return true if the entry isn't hidden and one of its fields
+         * contains all of the terms.
+         */
+        boolean matches(String[] terms, boolean includePhoneFields)
+        {
+            if (mHidden)
+                return false;
+
+            return containsAll(mFields, terms) ||
+                   (includePhoneFields && containsAll(mPhoneFields, terms));
+        }
+
+        private static void addGrams(String[] fields, Set<String> grams)
+        {
+            for (String field : fields)
+            {
+                for (int i = 0; i + GRAM_LENGTH <= field.length(); i++)
+                {
+                    grams.add(field.substring(i, i + GRAM_LENGTH));
+                }
+            }
+        }
+
+        private static boolean containsAll(String[] fields, String[] terms)
+        {
+            for (String field : fields)
+            {
+                boolean containsAll = true;
+
+                for (String term : terms)
+                {
+                    if (!field.contains(term))
+                    {
+                        containsAll = false;
+                        break;
+                    }
+                }
+
+                if (containsAll)
+                    return true;
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * A growable list of ids.
+     */
+    private static final class Postings
+    {
+        int[] mIds = new int[4];
+        int mSize = 0;
+
+        void add(int id)
+        {
+            if (mSize == mIds.length)
+                mIds = Arrays.copyOf(mIds, mSize * 2);
+
+            mIds[mSize++] = id;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 // Copyright (c) Microsoft Corporation. All rights reserved.
 package net.java.sip.communicator.impl.imageloader;
 
+import net.java.sip.communicator.service.diagnostics.*;
 import net.java.sip.communicator.service.gui.*;
 import net.java.sip.communicator.service.imageloader.*;
 import net.java.sip.communicator.service.threading.*;
@@ -46,11 +47,16 @@ public class ImageLoaderActivator implements BundleActivator
         sBundleContext.registerService(ImageLoaderService.class.getName(),
                                        new ImageLoaderServiceImpl(),
                                        null);
+
+        DiagnosticsServiceRegistrar.registerStateDumper(
+            ImageCache.getInstance(), context);
     }
 
     @Override
     public void stop(BundleContext bundleContext)
     {
+        DiagnosticsServiceRegistrar.unregisterStateDumper(
+            ImageCache.getInstance());
         logger.info("Image Loader Service ...[STOPPED]");
     }
 
@@ -34,37 +34,27 @@ public class ImageLoaderServiceImpl
     private static final Logger logger = Logger.getLogger(ImageLoaderService.class);
 
     /**
-     * Stores all images that have been requested to be loaded - both those
-     * being loaded and those already loaded.
+     * Stores the images that are being loaded, so that concurrent requests for
+     * the same image share one load.  Loaded images are held (within bounds)
+     * by the <tt>ImageCache</tt>.
      */
     private static final Map<ImageID, BufferedImageFuture> loadingImages =
-            new Hashtable<>();
-
-    /**
-     * Stores all already loaded images.
-     */
-    private static final Map<URL, BufferedImage> loadedImages =
             new HashMap<>();
 
     static BufferedImage getCachedImage(URL url)
     {
-        synchronized (loadedImages)
-        {
-            return loadedImages.get(url);
-        }
+        return ImageCache.getInstance().getImage(url);
     }
 
     static void putCachedImage(URL url, BufferedImage image)
     {
-        synchronized (loadedImages)
-        {
-            loadedImages.put(url, image);
-        }
+        ImageCache.getInstance().putImage(url, image);
     }
 
-    public BufferedImageFuture getImage(ImageID imageID)
+    public BufferedImageFuture getImage(final ImageID imageID)
     {
-        BufferedImageFuture image;
+        final BufferedImageFuture image;
+        boolean loading = false;
 
         synchronized (loadingImages)
         {
@@ -75,10 +65,31 @@ public class ImageLoaderServiceImpl
             else
             {
                 image = new BufferedImageLoading(imageID);
-                loadingImages.put(imageID, image);
+
+                if (!image.isDone())
+                {
+                    loadingImages.put(imageID, image);
+                    loading = true;
+                }
             }
         }
 
+        if (loading)
+        {
+            // Once loaded, the image is found in the ImageCache.
+            image.onResolve(new Resolution<>()
+            {
+                @Override
+                public void onResolution(BufferedImage resolved)
+                {
+                    synchronized (loadingImages)
+                    {
+                        loadingImages.remove(imageID, image);
+                    }
+                }
+            });
+        }
+
         image.resolve();
 
         return image;
@@ -246,8 +257,12 @@ public class ImageLoaderServiceImpl
     public void clearCache()
     {
         logger.info("Clearing ImageLoaderService cache");
-        loadedImages.clear();
-        loadingImages.clear();
+        ImageCache.getInstance().clear();
+
+        synchronized (loadingImages)
+        {
+            loadingImages.clear();
+        }
     }
 
     public ImageIconFuture getAuthenticationWindowIcon(
@@ -236,6 +236,8 @@ public class LdapContactSourceService
         }
         if (interrupted)
             Thread.currentThread().interrupt();
+
+        ldapDirectory.close();
     }
 
     /**
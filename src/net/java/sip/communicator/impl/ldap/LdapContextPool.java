@@ -0,0 +1,235 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.impl.ldap;
+
+import java.util.*;
+
+import javax.naming.*;
+import javax.naming.ldap.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * A small pool of bound connections to an LDAP directory, so that each search
+ * doesn't have to connect, negotiate TLS and bind again.
+ * <p>
+ * Connections that have been idle for a while are checked with a read of
+ * the root DSE before being reused, and those idle for longer than servers
+ * typically keep them open for are closed rather than reused.
+ */
+class LdapContextPool
+{
+    private static final Logger logger = Logger.getLogger(LdapContextPool.class);
+
+    /**
+     * The maximum number of idle connections to keep.  We run at most a
+     * couple of searches at once for each query.
+     */
+    private static final int MAX_IDLE = 3;
+
+    /**
+     * How long a connection can be idle before we check it still works
+     * before reusing it.
+     */
+    private static final long VALIDATE_AFTER_MS = 30 * 1000;
+
+    /**
+     * How long a connection can be idle before we close it rather than reuse
+     * it.
+     */
+    private static final long MAX_IDLE_MS = 5 * 60 * 1000;
+
+    /**
+     * The settings used to create an InitialLdapContext.
+     */
+    private final Hashtable<String, String> env;
+
+    /**
+     * The name of the directory, for logging.
+     */
+    private final String name;
+
+    /**
+     * The idle connections, most recently used first.
+     */
+    private final Deque<IdleContext> idleContexts = new ArrayDeque<>();
+
+    private boolean closed = false;
+
+    /**
+     * @param env the settings used to create an InitialLdapContext
+     * @param name the name of the directory, for logging
+     */
+    LdapContextPool(Hashtable<String, String> env, String name)
+    {
+        this.env = env;
+        this.name = name;
+    }
+
+    /**
+     * Gets a connection to the directory, reusing an idle one if there is
+     * one that still works.  The connection must be given back with
+     * <tt>release()</tt> or <tt>invalidate()</tt>.
+     *
+     * @return a connection to the directory
+     * @throws NamingException if we failed to connect
+     */
+    LdapContext borrow() throws NamingException
+    {
+        while (true)
+        {
+            IdleContext idle;
+
+            synchronized (this)
+            {
+                idle = idleContexts.pollFirst();
+            }
+
+            if (idle == null)
+                return connect();
+
+            long idleTime = System.currentTimeMillis() - idle.since;
+
+            if (idleTime > MAX_IDLE_MS)
+            {
+                logger.trace("closing connection idle for " + idleTime + "ms");
+                disconnect(idle.context);
+            }
+            else if (idleTime > VALIDATE_AFTER_MS && !isHealthy(idle.context))
+            {
+                logger.info("closing broken connection to directory \"" +
+                            name + "\"");
+                disconnect(idle.context);
+            }
+            else
+            {
+                return idle.context;
+            }
+        }
+    }
+
+    /**
+     * Gives back a connection that can be reused.
+     *
+     * @param context the connection
+     */
+    void release(LdapContext context)
+    {
+        try
+        {
+            context.setRequestControls(null);
+        }
+        catch (NamingException e)
+        {
+            logger.warn("failed to reset connection, closing it", e);
+            disconnect(context);
+            return;
+        }
+
+        synchronized (this)
+        {
+            if (!closed && idleContexts.size() < MAX_IDLE)
+            {
+                idleContexts.addFirst(
+                    new IdleContext(context, System.currentTimeMillis()));
+                return;
+            }
+        }
+
+        disconnect(context);
+    }
+
+    /**
+     * Gives back a connection that has failed, so shouldn't be reused.
+     *
+     * @param context the connection
+     */
+    void invalidate(LdapContext context)
+    {
+        disconnect(context);
+    }
+
+    /**
+     * Closes all the idle connections, and any given back afterwards.
+     */
+    void close()
+    {
+        List<IdleContext> toClose;
+
+        synchronized (this)
+        {
+            closed = true;
+            toClose = new ArrayList<>(idleContexts);
+            idleContexts.clear();
+        }
+
+        for (IdleContext idle : toClose)
+        {
+            disconnect(idle.context);
+        }
+    }
+
+    /**
+     * Connects to the remote directory
+     */
+    private LdapContext connect() throws NamingException
+    {
+        logger.trace("connecting to directory \"" + name + "\"");
+        long time0 = System.currentTimeMillis();
+        LdapContext context = new InitialLdapContext(env, null);
+        long time1 = System.currentTimeMillis();
+        logger.trace("connection to directory \"" + name + "\" took " +
+                (time1-time0)  + " ms");
+        return context;
+    }
+
+    /**
+     * Closes an LDAP connection
+     */
+    private void disconnect(LdapContext context)
+    {
+        try
+        {
+            context.close();
+        }
+        catch (NamingException e)
+        {
+            logger.error("disconnection from directory \"" + name + "\" failed!", e);
+        }
+
+        logger.trace("disconnection achieved!");
+    }
+
+    /**
+     * Checks a connection still works by reading the root DSE, which every
+     * server allows.
+     */
+    private boolean isHealthy(LdapContext context)
+    {
+        try
+        {
+            context.getAttributes("", new String[] {"supportedLDAPVersion"});
+            return true;
+        }
+        catch (NamingException e)
+        {
+            logger.debug("health check failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static class IdleContext
+    {
+        final LdapContext context;
+
+        /**
+         * When the connection became idle.
+         */
+        final long since;
+
+        IdleContext(LdapContext context, long since)
+        {
+            this.context = context;
+            this.since = since;
+        }
+    }
+}
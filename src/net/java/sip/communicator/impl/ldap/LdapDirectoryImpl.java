@@ -9,13 +9,15 @@ package net.java.sip.communicator.impl.ldap;
 
 import static net.java.sip.communicator.util.PrivacyUtils.REDACTED;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import javax.naming.*;
 import javax.naming.directory.*;
+import javax.naming.ldap.*;
 
 import org.jitsi.util.StringUtils;
-import org.jitsi.util.ThreadUtils;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
@@ -70,6 +72,41 @@ public class LdapDirectoryImpl
      */
     private HashMap<LdapQuery, LdapPendingSearch> pendingSearches = new HashMap<>();
 
+    /**
+     * The maximum number of results the server sends in each page of a
+     * search.
+     */
+    private static final int MAX_PAGE_SIZE = 50;
+
+    /**
+     * The threads that run searches on all directories.  Each search is
+     * scheduled after its delay (see <tt>LdapSearchSettings</tt>) rather
+     * than sleeping on a thread, so searches superseded while the user types
+     * are cancelled without holding up a thread.
+     */
+    private static final ScheduledExecutorService searchExecutor =
+        Executors.newScheduledThreadPool(4, runnable ->
+        {
+            Thread thread = new Thread(runnable, "LDAPSearchThread");
+
+            // setting the classloader is necessary so that the BundleContext
+            // can be accessed from classes instantiated from JNDI
+            // (specifically from our custom SocketFactory)
+            thread.setContextClassLoader(LdapDirectoryImpl.class.getClassLoader());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    /**
+     * The connections to this directory that aren't in use.
+     */
+    private final LdapContextPool contextPool;
+
+    /**
+     * The results of recent searches.
+     */
+    private final LdapResultCache resultCache = new LdapResultCache();
+
     /**
      * The characters that need to be escaped in LDAP searches, mapped to the
      * escaped version of each character.
@@ -176,8 +213,6 @@ public class LdapDirectoryImpl
         this.env.put("com.sun.jndi.ldap.read.timeout", LDAP_READ_TIMEOUT);
         this.env.put(Context.PROVIDER_URL, settings.getEncryption().
                 protocolString() + settings.getHostname() + portText +"/");
-        //connection pooling
-        this.env.put("com.sun.jndi.ldap.connect.pool", "true");
 
         /* TODO STARTTLS */
         switch(this.settings.getEncryption())
@@ -243,6 +278,10 @@ public class LdapDirectoryImpl
             addressAttributes.add(s);
             numberAttributes.add(s);
         }
+
+        // Connections are pooled by contextPool rather than by JNDI, as JNDI
+        // doesn't pool SSL connections, or check pooled connections work.
+        contextPool = new LdapContextPool(env, this.settings.getName());
     }
 
     /**
@@ -259,41 +298,6 @@ public class LdapDirectoryImpl
         return this.settings.clone();
     }
 
-    /**
-     * Connects to the remote directory
-     */
-    private InitialDirContext connect() throws NamingException
-    {
-        logger.trace("connecting to directory \"" + this + "\"");
-        long time0 = System.currentTimeMillis();
-        InitialDirContext dirContext =
-            new InitialDirContext(this.env);
-        long time1 = System.currentTimeMillis();
-        logger.trace("connection to directory \"" + this + "\" took " +
-                (time1-time0)  + " ms");
-        return dirContext;
-    }
-
-    /**
-     * Closes the LDAP connection
-     */
-    private void disconnect(InitialDirContext dirContext)
-    {
-        if (dirContext != null)
-        {
-            try
-            {
-                dirContext.close();
-            }
-            catch (NamingException e)
-            {
-                logger.error("disconnection from directory \"" + this + "\" failed!", e);
-            }
-
-            logger.trace("disconnection achieved!");
-        }
-    }
-
     /**
      * Close an LDAP response resource.
      * @param resource
@@ -313,6 +317,16 @@ public class LdapDirectoryImpl
         }
     }
 
+    /**
+     * Closes the connections held open to the directory.
+     *
+     * @see LdapDirectory#close
+     */
+    public void close()
+    {
+        contextPool.close();
+    }
+
     /**
      * Searches a person in the directory, based on a search string.
      * Since that method might take time to process, it should be
@@ -436,30 +450,32 @@ public class LdapDirectoryImpl
         // really performs the search
         for (String searchString : formattedSearchStrings)
         {
-            String searchFilter = buildSearchFilter(searchString,
+            // Phone numbers have matching rules that ignore spaces, hyphens
+            // etc, so we can't refine the results of number searches.
+            LdapSearchFilter searchFilter = buildSearchFilter(searchString,
                                                     searchAttributes,
                                                     extraSearchString,
-                                                    extraSearchAttributes);
+                                                    extraSearchAttributes,
+                                                    !searchNumber);
 
-            performSearchInNewThread(query, searchFilter, searchSettings, this);
+            scheduleSearch(query, searchFilter, searchSettings, this);
         }
     }
 
     @VisibleForTesting
-    class LDAPSearchThread extends Thread
+    class LDAPSearchTask implements Runnable
     {
         int cancelState = 0;
         LdapQuery query;
-        String searchFilter;
+        LdapSearchFilter searchFilter;
         LdapSearchSettings searchSettings;
         LdapListener caller;
 
-        LDAPSearchThread(LdapQuery query,
-            String searchFilter,
+        LDAPSearchTask(LdapQuery query,
+            LdapSearchFilter searchFilter,
             LdapSearchSettings searchSettings,
             LdapListener caller)
         {
-            super("LDAPSearchThread");
             this.query = query;
             this.searchFilter = searchFilter;
             this.searchSettings = searchSettings;
@@ -468,7 +484,7 @@ public class LdapDirectoryImpl
 
         public void run()
         {
-            String searchFilterToLog = mQAMode ? searchFilter : REDACTED;
+            String searchFilterToLog = mQAMode ? searchFilter.toString() : REDACTED;
             String initialQueryToLog = mQAMode ? query.toString() : REDACTED;
             logger.trace("starting search for " + searchFilterToLog +
                     " (initial query: \"" + initialQueryToLog +
@@ -478,101 +494,40 @@ public class LdapDirectoryImpl
                 buildSearchControls(searchSettings);
 
             LdapEvent endEvent = null;
-            InitialDirContext dirContext = null;
-            NamingEnumeration<?> results = null;
 
             try
             {
-                if (searchSettings.isDelaySet())
-                {
-                    int delay = searchSettings.getDelay();
-                    logger.debug("Sleeping for " + delay);
-                    Thread.sleep(delay);
-                }
-
-                checkCancel();
-                dirContext = connect();
                 checkCancel();
 
                 long time0 = System.currentTimeMillis();
 
-                results = dirContext.search(
-                        LdapDirectoryImpl.this.settings.getBaseDN(),
-                        searchFilter,
-                        searchControls);
-                logger.debug("Retrieved some results");
-
-                checkCancel();
-                List<LdapPersonFound> resultsList = new ArrayList<>();
-                NamingException namingException = null;
-
-                try
-                {
-                    while (results.hasMore())
-                    {
-                        checkCancel();
-
-                        SearchResult searchResult =
-                            (SearchResult) results.next();
-                        Map<String, Set<String>> retrievedAttributes = retrieveAttributes(searchResult);
-                        LdapPersonFound person = buildPerson(
-                            query,
-                            searchResult.getName(),
-                            retrievedAttributes);
-
-                        // Add the results to the list of results.  An event for each person will be
-                        // fired after they have been sorted.
-                        resultsList.add(person);
-                    }
-                }
-                catch (NamingException e)
-                {
-                    // This exception is expected if the number of
-                    // results is larger than the search controls allow
-                    logger.trace("Naming exception while getting results");
-                    namingException = e;
-                }
+                LdapResultCache.CachedResults cachedResults =
+                    resultCache.get(searchFilter,
+                                    searchControls.getSearchScope(),
+                                    searchSettings.getMaxResults());
 
-                logger.debug("Parsed results into list of size " + resultsList.size());
-                Collections.sort(resultsList);
-                logger.debug("Sorted results");
+                boolean limitExceeded;
 
-                if (resultsList.size() > searchSettings.getMaxResults())
+                if (cachedResults != null)
                 {
-                    // We've received more contacts than we should display.
-                    // Drop the last results that we don't need and prepare
-                    // to fire an exception after firing the new contacts
-                    logger.trace("Results exceeded expected size");
-                    namingException = new SizeLimitExceededException();
-                    resultsList.subList(searchSettings.getMaxResults(),
-                                        resultsList.size()).clear();
+                    logger.debug("Using cached results");
+                    limitExceeded = fireCachedResults(cachedResults);
                 }
-
-                logger.debug("About to fire event for some contacts: " +
-                                                        resultsList.size());
-
-                for (LdapPersonFound person : resultsList)
+                else
                 {
-                    LdapEvent resultEvent =
-                        new LdapEvent(LdapDirectoryImpl.this,
-                                LdapEvent.LdapEventCause.NEW_SEARCH_RESULT,
-                                (Object) person);
-                    caller.ldapEventReceived(resultEvent);
+                    limitExceeded = searchDirectory(searchControls);
                 }
 
                 long time1 = System.currentTimeMillis();
-                logger.trace("search for real query \"" + searchFilter +
-                        "\" (initial query: \"" + query.toString() +
+                logger.trace("search for real query \"" + searchFilterToLog +
+                        "\" (initial query: \"" + initialQueryToLog +
                         "\") on directory \"" + LdapDirectoryImpl.this +
                         "\" took " + (time1-time0) + "ms");
 
-                // If we had an exception while getting the results, throw
-                // it here, now that we have sent out the events for the
-                // results.
-                if (namingException != null)
+                if (limitExceeded)
                 {
-                    logger.trace("Throwing caught name exception");
-                    throw namingException;
+                    // We've found more contacts than we should display.
+                    logger.info("Results exceeded expected size for " + query);
                 }
 
                 endEvent = new LdapEvent(LdapDirectoryImpl.this,
@@ -583,7 +538,7 @@ public class LdapDirectoryImpl
                 logger.error(
                         "use bind DN without password during search" +
                         " for real query \"" +
-                        searchFilter + "\" (initial query: \"" +
+                        searchFilterToLog + "\" (initial query: \"" +
                         query.toString() + "\") on directory \"" +
                         LdapDirectoryImpl.this, e);
                 endEvent = new LdapEvent(
@@ -596,7 +551,7 @@ public class LdapDirectoryImpl
                 logger.error(
                         "authentication failed during search" +
                         " for real query \"" +
-                        searchFilter + "\" (initial query: \"" +
+                        searchFilterToLog + "\" (initial query: \"" +
                         query.toString() + "\") on directory \"" +
                         LdapDirectoryImpl.this, e);
                 endEvent = new LdapEvent(
@@ -616,7 +571,7 @@ public class LdapDirectoryImpl
                 logger.error(
                         "an external exception was thrown during search" +
                         " for real query \"" +
-                        searchFilter + "\" (initial query: \"" +
+                        searchFilterToLog + "\" (initial query: \"" +
                         query.toString() + "\") on directory \"" +
                         LdapDirectoryImpl.this, e);
                 endEvent = new LdapEvent(
@@ -627,7 +582,7 @@ public class LdapDirectoryImpl
             }
             catch (LdapQueryCancelledException e)
             {
-                logger.trace("search for real query \"" + searchFilter +
+                logger.trace("search for real query \"" + searchFilterToLog +
                         "\" (initial query: \"" + query.toString() +
                         "\") on " + LdapDirectoryImpl.this +
                         " cancelled at state " + cancelState, e);
@@ -637,12 +592,6 @@ public class LdapDirectoryImpl
                         query
                         );
             }
-            catch (InterruptedException e)
-            {
-                logger.info("Interrupted exception while searching", e);
-                // whether sleep was interrupted
-                // is not that important
-            }
             finally
             {
                 // We should always have an end event.
@@ -655,17 +604,203 @@ public class LdapDirectoryImpl
                 }
 
                 caller.ldapEventReceived(endEvent);
+            }
+        }
+
+        /**
+         * Fires events for the results of this search found in the cache.
+         *
+         * @param cachedResults the results
+         * @return true if there were more results than we should display.
+         */
+        private boolean fireCachedResults(
+            LdapResultCache.CachedResults cachedResults)
+            throws LdapQueryCancelledException
+        {
+            List<LdapPersonFound> resultsList = new ArrayList<>();
 
-                closeLdapResource(results);
-                disconnect(dirContext);
+            for (LdapResultCache.Result result : cachedResults.results)
+            {
+                checkCancel();
+                resultsList.add(buildPerson(query, result.dn, result.attributes));
+            }
+
+            Collections.sort(resultsList);
+            int maxResults = searchSettings.getMaxResults();
+            boolean limitExceeded = !cachedResults.complete;
+
+            if (resultsList.size() > maxResults)
+            {
+                limitExceeded = true;
+                resultsList.subList(maxResults, resultsList.size()).clear();
+            }
+
+            fireResults(resultsList);
+            return limitExceeded;
+        }
+
+        /**
+         * Sends this search to the directory, a page at a time, firing
+         * events for the results in each page as it arrives.  The server
+         * limits the results to the maximum we want.
+         * <p>
+         * If a pooled connection turns out to have been closed by the server,
+         * the search is retried once on a new connection.  If reading a page
+         * fails for another reason, the results read so far are still fired
+         * but aren't cached.
+         *
+         * @param searchControls the controls for the search
+         * @return true if there were more results than we should display.
+         */
+        private boolean searchDirectory(SearchControls searchControls)
+            throws NamingException, LdapQueryCancelledException
+        {
+            int maxResults = searchSettings.getMaxResults();
+            int pageSize = Math.min(maxResults, MAX_PAGE_SIZE);
+            List<LdapResultCache.Result> allResults = new ArrayList<>();
+            boolean limitExceeded = false;
+
+            searchControls.setCountLimit(maxResults);
+
+            for (int attempt = 1; ; attempt++)
+            {
+                checkCancel();
+                LdapContext dirContext = contextPool.borrow();
+                NamingEnumeration<SearchResult> results = null;
+                boolean connectionFailed = false;
+
+                try
+                {
+                    byte[] cookie = null;
+
+                    do
+                    {
+                        checkCancel();
+                        dirContext.setRequestControls(
+                            createPagedResultsControls(pageSize, cookie));
+                        results = dirContext.search(
+                            LdapDirectoryImpl.this.settings.getBaseDN(),
+                            searchFilter.toString(),
+                            searchControls);
+
+                        List<LdapPersonFound> page = new ArrayList<>();
+                        NamingException pageException = null;
+
+                        try
+                        {
+                            while (results.hasMore())
+                            {
+                                checkCancel();
+
+                                SearchResult searchResult = results.next();
+                                Map<String, Set<String>> retrievedAttributes =
+                                    retrieveAttributes(searchResult);
+                                allResults.add(new LdapResultCache.Result(
+                                    searchResult.getName(),
+                                    retrievedAttributes));
+                                page.add(buildPerson(query,
+                                                     searchResult.getName(),
+                                                     retrievedAttributes));
+                            }
+                        }
+                        catch (SizeLimitExceededException e)
+                        {
+                            // This exception is expected if the number of
+                            // results is larger than the search controls allow
+                            logger.trace("Size limit exceeded while getting results");
+                            limitExceeded = true;
+                        }
+                        catch (NamingException e)
+                        {
+                            // E.g. a referral that couldn't be followed, or
+                            // the time limit was reached.  Show the results
+                            // we already have before failing the search.
+                            pageException = e;
+                        }
+
+                        closeLdapResource(results);
+                        results = null;
+
+                        logger.debug("Parsed page of size " + page.size());
+                        Collections.sort(page);
+                        fireResults(page);
+
+                        if (pageException != null)
+                            throw pageException;
+
+                        cookie = getPagedResultsCookie(dirContext);
+                    }
+                    while (cookie != null &&
+                           !limitExceeded &&
+                           allResults.size() < maxResults);
+
+                    if (cookie != null)
+                    {
+                        // Tell the server we don't want the remaining pages.
+                        dirContext.setRequestControls(
+                            createPagedResultsControls(0, cookie));
+                        closeLdapResource(dirContext.search(
+                            LdapDirectoryImpl.this.settings.getBaseDN(),
+                            searchFilter.toString(),
+                            searchControls));
+                        limitExceeded = true;
+                    }
+
+                    break;
+                }
+                catch (CommunicationException | ServiceUnavailableException e)
+                {
+                    connectionFailed = true;
+
+                    if (attempt > 1 || !allResults.isEmpty())
+                        throw e;
+
+                    logger.info("Connection to directory failed, retrying", e);
+                }
+                finally
+                {
+                    closeLdapResource(results);
+
+                    if (connectionFailed)
+                        contextPool.invalidate(dirContext);
+                    else
+                        contextPool.release(dirContext);
+                }
+            }
+
+            resultCache.put(searchFilter,
+                            searchControls.getSearchScope(),
+                            allResults,
+                            !limitExceeded);
+
+            return limitExceeded;
+        }
+
+        /**
+         * Fires an event for each of some results.
+         *
+         * @param resultsList the results
+         */
+        private void fireResults(List<LdapPersonFound> resultsList)
+        {
+            logger.debug("About to fire event for some contacts: " +
+                                                    resultsList.size());
+
+            for (LdapPersonFound person : resultsList)
+            {
+                LdapEvent resultEvent =
+                    new LdapEvent(LdapDirectoryImpl.this,
+                            LdapEvent.LdapEventCause.NEW_SEARCH_RESULT,
+                            (Object) person);
+                caller.ldapEventReceived(resultEvent);
             }
         }
 
         /**
          * Checks if the query that triggered this search has been marked as cancelled. If that's
-         * the case, the search thread should be stopped and this method will send a search
+         * the case, the search should be stopped and this method will send a search
          * cancelled event to the search initiator. This method should be called by the search
-         * thread as often as possible to quickly interrupt when needed.
+         * task as often as possible to quickly interrupt when needed.
          */
         private void checkCancel() throws LdapQueryCancelledException
         {
@@ -677,22 +812,76 @@ public class LdapDirectoryImpl
         }
     }
 
-    private void performSearchInNewThread(final LdapQuery query,
-            final String searchFilter,
+    private void scheduleSearch(final LdapQuery query,
+            final LdapSearchFilter searchFilter,
             final LdapSearchSettings searchSettings,
             final LdapListener caller)
     {
-        LDAPSearchThread searchThread = new LDAPSearchThread(query,
+        LDAPSearchTask searchTask = new LDAPSearchTask(query,
             searchFilter,
             searchSettings,
             caller);
 
-        // setting the classloader is necessary so that the BundleContext can be
-        // accessed from classes instantiated from JNDI (specifically from our
-        // custom SocketFactory)
-        searchThread.setContextClassLoader(getClass().getClassLoader());
-        searchThread.setDaemon(true);
-        ThreadUtils.startThread(searchThread);
+        long delay = searchSettings.isDelaySet() ? searchSettings.getDelay() : 0;
+        logger.debug("Scheduling search in " + delay + "ms");
+        searchExecutor.schedule(searchTask, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates the request controls for a page of a paged search (RFC 2696).
+     * The control isn't critical, so servers that don't support paging
+     * return all the results at once.
+     *
+     * @param pageSize the number of results in the page, or 0 to abandon
+     * the search
+     * @param cookie the cookie returned with the previous page, or null for
+     * the first page
+     */
+    private static Control[] createPagedResultsControls(int pageSize,
+                                                        byte[] cookie)
+        throws NamingException
+    {
+        try
+        {
+            return new Control[]
+            {
+                new PagedResultsControl(pageSize, cookie, Control.NONCRITICAL)
+            };
+        }
+        catch (IOException e)
+        {
+            NamingException namingException =
+                new NamingException("Failed to encode paged results control");
+            namingException.setRootCause(e);
+            throw namingException;
+        }
+    }
+
+    /**
+     * Gets the cookie for the next page of a paged search.
+     *
+     * @param dirContext the context the last page was read from
+     * @return the cookie, or null if there are no more pages.
+     */
+    private static byte[] getPagedResultsCookie(LdapContext dirContext)
+        throws NamingException
+    {
+        Control[] controls = dirContext.getResponseControls();
+
+        if (controls != null)
+        {
+            for (Control control : controls)
+            {
+                if (control instanceof PagedResultsResponseControl)
+                {
+                    byte[] cookie =
+                        ((PagedResultsResponseControl) control).getCookie();
+                    return (cookie == null || cookie.length == 0) ? null : cookie;
+                }
+            }
+        }
+
+        return null;
     }
 
     @VisibleForTesting
@@ -840,7 +1029,7 @@ public class LdapDirectoryImpl
             while (ids.hasMore())
             {
                 String id = ids.next();
-                if (containsAttribute(id))
+                if (containsAttribute(id) || isSearchAttribute(id))
                 {
                     Set<String> valuesSet = new HashSet<>();
                     retrievedAttributes.put(id, valuesSet);
@@ -1035,25 +1224,22 @@ public class LdapDirectoryImpl
      * @param extraQuery Optional extra search query to use for searching each of the keys in the
      * (optional) extraAttributes parameter.
      * @param extraAttributes See "extraQuery"
+     * @param refinable whether the results of the filter can be refined
+     * locally, see <tt>LdapSearchFilter</tt>
      * @return an LDAP search filter
      */
-    private String buildSearchFilter(String query,
+    private LdapSearchFilter buildSearchFilter(String query,
         Set<String> attributes,
         String extraQuery,
-        Set<String> extraAttributes)
+        Set<String> extraAttributes,
+        boolean refinable)
     {
-        StringBuffer searchFilter = new StringBuffer();
-
-        searchFilter.append("(|");
+        LdapSearchFilter searchFilter = new LdapSearchFilter(refinable);
 
         /* cn=*query* OR sn=*query* OR ... */
         for (String attribute : attributes)
         {
-            searchFilter.append("(");
-            searchFilter.append(attribute);
-            searchFilter.append("=");
-            searchFilter.append(query);
-            searchFilter.append(")");
+            searchFilter.addTerm(attribute, query);
         }
 
         // Add the extra query if we have it.
@@ -1061,16 +1247,11 @@ public class LdapDirectoryImpl
         {
             for (String attribute : extraAttributes)
             {
-                searchFilter.append("(");
-                searchFilter.append(attribute);
-                searchFilter.append("=");
-                searchFilter.append(extraQuery);
-                searchFilter.append(")");
+                searchFilter.addTerm(attribute, extraQuery);
             }
         }
 
-        searchFilter.append(")");
-        return searchFilter.toString();
+        return searchFilter;
     }
 
     private SearchControls buildSearchControls(LdapSearchSettings searchSettings)
@@ -1092,7 +1273,7 @@ public class LdapDirectoryImpl
                     );
         }
 
-        List<String> retrievableAttrs = new ArrayList<>();
+        Set<String> retrievableAttrs = new LinkedHashSet<>();
 
         for(String key : attributesMap.keySet())
         {
@@ -1111,6 +1292,12 @@ public class LdapDirectoryImpl
             }
         }
 
+        // We also need the attributes we search on, so that we can refine
+        // cached results locally.
+        retrievableAttrs.addAll(nameAttributes);
+        retrievableAttrs.addAll(addressAttributes);
+        retrievableAttrs.addAll(numberAttributes);
+
         searchControls.setReturningAttributes(retrievableAttrs.toArray(
                 new String[0]));
 
@@ -1184,6 +1371,29 @@ public class LdapDirectoryImpl
         return false;
     }
 
+    /**
+     * Returns true if <tt>attribute</tt> is one we search on.
+     *
+     * @param attribute attribute to check
+     * @return true if <tt>attribute</tt> is one we search on
+     */
+    private boolean isSearchAttribute(String attribute)
+    {
+        for (Set<String> attrs : Arrays.asList(nameAttributes,
+                                               addressAttributes,
+                                               numberAttributes))
+        {
+            for (String attr : attrs)
+            {
+                if (attr.equalsIgnoreCase(attribute))
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     /**
      * A custom exception used internally by LdapDirectoryImpl
      * to indicate that a query was cancelled
@@ -0,0 +1,196 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.impl.ldap;
+
+import java.util.*;
+
+/**
+ * A short-lived cache of the entries returned by LDAP searches, keyed by the
+ * normalized search filter and scope.
+ * <p>
+ * As the user types a name, each search is usually narrower than the last,
+ * so as well as returning the results of an identical search, this answers a
+ * search by refining the complete results of a broader one (see
+ * <tt>LdapSearchFilter</tt>), which saves a round trip to the server for
+ * each keystroke.
+ * <p>
+ * Results are only kept for <tt>TTL_MS</tt>, so changes on the server are
+ * picked up reasonably quickly.
+ */
+class LdapResultCache
+{
+    /**
+     * How long results are cached for.
+     */
+    private static final long TTL_MS = 5 * 60 * 1000;
+
+    /**
+     * The maximum number of searches to cache results for.
+     */
+    private static final int MAX_ENTRIES = 32;
+
+    /**
+     * The cached searches, in order of least to most recently used.
+     */
+    private final LinkedHashMap<String, Entry> entries =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+            {
+                return size() > MAX_ENTRIES;
+            }
+        };
+
+    /**
+     * Gets the cached results of a search, either from an identical search
+     * or by refining those of a broader one.
+     *
+     * @param filter the search filter
+     * @param scope the search scope
+     * @param maxResults the maximum number of results wanted
+     * @return the results, or null if the search must be sent to the server.
+     */
+    synchronized CachedResults get(LdapSearchFilter filter,
+                                   int scope,
+                                   int maxResults)
+    {
+        long now = System.currentTimeMillis();
+        entries.values().removeIf(entry -> entry.expiry <= now);
+
+        Entry entry = entries.get(getKey(filter, scope));
+
+        // Incomplete results are only any use if they are all we want.
+        if (entry != null &&
+            (entry.complete || entry.results.size() >= maxResults))
+        {
+            return new CachedResults(entry.results, entry.complete);
+        }
+
+        if (!filter.isRefinable())
+            return null;
+
+        Entry broadest = null;
+
+        for (Entry candidate : entries.values())
+        {
+            if (candidate.complete &&
+                candidate.scope == scope &&
+                filter.isNarrowerThan(candidate.filter) &&
+                (broadest == null ||
+                 candidate.results.size() < broadest.results.size()))
+            {
+                broadest = candidate;
+            }
+        }
+
+        if (broadest == null)
+            return null;
+
+        List<Result> results = new ArrayList<>();
+
+        for (Result result : broadest.results)
+        {
+            if (filter.matches(result.attributes))
+                results.add(result);
+        }
+
+        // The refined results are no newer than those they came from, so
+        // expire at the same time.
+        results = Collections.unmodifiableList(results);
+        entries.put(getKey(filter, scope),
+                    new Entry(filter, scope, results, true, broadest.expiry));
+        return new CachedResults(results, true);
+    }
+
+    /**
+     * Caches the results of a search.
+     *
+     * @param filter the search filter
+     * @param scope the search scope
+     * @param results the entries returned
+     * @param complete false if the server had more results than it returned
+     */
+    synchronized void put(LdapSearchFilter filter,
+                          int scope,
+                          List<Result> results,
+                          boolean complete)
+    {
+        entries.put(getKey(filter, scope),
+                    new Entry(filter,
+                              scope,
+                              Collections.unmodifiableList(
+                                  new ArrayList<>(results)),
+                              complete,
+                              System.currentTimeMillis() + TTL_MS));
+    }
+
+    private static String getKey(LdapSearchFilter filter, int scope)
+    {
+        return scope + ":" + filter.toString().toLowerCase();
+    }
+
+    /**
+     * An entry returned by a search.
+     */
+    static class Result
+    {
+        /**
+         * The name of the entry, relative to the base DN.
+         */
+        final String dn;
+
+        /**
+         * The values of the entry's attributes, by attribute ID.
+         */
+        final Map<String, Set<String>> attributes;
+
+        Result(String dn, Map<String, Set<String>> attributes)
+        {
+            this.dn = dn;
+            this.attributes = attributes;
+        }
+    }
+
+    /**
+     * The results of a search, from the cache.
+     */
+    static class CachedResults
+    {
+        final List<Result> results;
+
+        /**
+         * False if there were more results on the server.
+         */
+        final boolean complete;
+
+        CachedResults(List<Result> results, boolean complete)
+        {
+            this.results = results;
+            this.complete = complete;
+        }
+    }
+
+    private static class Entry
+    {
+        final LdapSearchFilter filter;
+        final int scope;
+        final List<Result> results;
+        final boolean complete;
+        final long expiry;
+
+        Entry(LdapSearchFilter filter,
+              int scope,
+              List<Result> results,
+              boolean complete,
+              long expiry)
+        {
+            this.filter = filter;
+            this.scope = scope;
+            this.results = results;
+            this.complete = complete;
+            this.expiry = expiry;
+        }
+    }
+}
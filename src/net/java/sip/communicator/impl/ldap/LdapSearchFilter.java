@@ -0,0 +1,253 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.impl.ldap;
+
+import java.util.*;
+
+/**
+ * An LDAP search filter of the form we build, i.e. an OR of substring
+ * assertions such as (|(cn=*john* *d*)(mail=john*)).
+ * <p>
+ * As well as producing the filter string, this can evaluate the filter
+ * against the attributes of an entry we have already fetched, and can tell
+ * whether every entry matching this filter must also match another filter.
+ * Together these let us answer a search by refining the cached results of a
+ * broader one, e.g. "john" from the results for "jo".
+ * <p>
+ * Matching is case-insensitive, like the matching rules of the name and
+ * address attributes we search.  Filters containing escaped characters, and
+ * filters on attributes with other matching rules (such as phone numbers,
+ * where the server ignores spaces and hyphens), are never evaluated locally.
+ */
+class LdapSearchFilter
+{
+    private final List<Term> terms = new ArrayList<>();
+
+    private final boolean refinable;
+
+    /**
+     * @param refinable false if the filter must always be evaluated by the
+     * server, e.g. because its attributes have special matching rules.
+     */
+    LdapSearchFilter(boolean refinable)
+    {
+        this.refinable = refinable;
+    }
+
+    /**
+     * Adds an assertion to the filter.
+     *
+     * @param attribute the attribute to match
+     * @param pattern the value to match, with '*' as a wildcard
+     */
+    void addTerm(String attribute, String pattern)
+    {
+        terms.add(new Term(attribute, pattern));
+    }
+
+    /**
+     * @return whether this filter can be evaluated locally.
+     */
+    boolean isRefinable()
+    {
+        if (!refinable)
+            return false;
+
+        for (Term term : terms)
+        {
+            if (term.pattern.indexOf('\\') >= 0)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Evaluates this filter against the attributes of an entry.
+     *
+     * @param attributes the attributes of the entry, by attribute ID
+     * @return whether the entry matches.
+     */
+    boolean matches(Map<String, Set<String>> attributes)
+    {
+        for (Map.Entry<String, Set<String>> attribute : attributes.entrySet())
+        {
+            for (Term term : terms)
+            {
+                if (!term.attribute.equalsIgnoreCase(attribute.getKey()))
+                    continue;
+
+                for (String value : attribute.getValue())
+                {
+                    if (term.matches(value))
+                        return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Determines whether every entry matching this filter must also match
+     * another filter.  This may return false for some filters where that is
+     * the case, but never returns true where it isn't.
+     *
+     * @param broader the other filter
+     * @return true if this filter is at least as narrow as the other.
+     */
+    boolean isNarrowerThan(LdapSearchFilter broader)
+    {
+        for (Term term : terms)
+        {
+            boolean implied = false;
+
+            for (Term broaderTerm : broader.terms)
+            {
+                if (term.attribute.equalsIgnoreCase(broaderTerm.attribute) &&
+                    term.implies(broaderTerm))
+                {
+                    implied = true;
+                    break;
+                }
+            }
+
+            if (!implied)
+                return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder searchFilter = new StringBuilder("(|");
+
+        for (Term term : terms)
+        {
+            searchFilter.append("(")
+                        .append(term.attribute)
+                        .append("=")
+                        .append(term.pattern)
+                        .append(")");
+        }
+
+        return searchFilter.append(")").toString();
+    }
+
+    /**
+     * An assertion that an attribute matches a pattern.
+     */
+    private static class Term
+    {
+        final String attribute;
+
+        final String pattern;
+
+        /**
+         * The lower case pattern split at each '*'.  The first part must
+         * start the value and the last part must end it; the parts in between
+         * must appear in order.  A single part is an equality match.
+         */
+        final String[] parts;
+
+        Term(String attribute, String pattern)
+        {
+            this.attribute = attribute;
+            this.pattern = pattern;
+            this.parts = pattern.toLowerCase().split("\\*", -1);
+        }
+
+        boolean matches(String value)
+        {
+            String lowerValue = value.toLowerCase();
+
+            if (parts.length == 1)
+                return lowerValue.equals(parts[0]);
+
+            String initial = parts[0];
+            String last = parts[parts.length - 1];
+            int end = lowerValue.length() - last.length();
+
+            if (end < initial.length() ||
+                !lowerValue.startsWith(initial) ||
+                !lowerValue.endsWith(last))
+            {
+                return false;
+            }
+
+            int position = initial.length();
+
+            for (int i = 1; i < parts.length - 1; i++)
+            {
+                int index = lowerValue.indexOf(parts[i], position);
+
+                if (index < 0 || index + parts[i].length() > end)
+                    return false;
+
+                position = index + parts[i].length();
+            }
+
+            return true;
+        }
+
+        /**
+         * @return true if every value matching this term must match the
+         * other term.
+         */
+        boolean implies(Term broader)
+        {
+            if (parts.length == 1)
+                return broader.matches(parts[0]);
+
+            if (broader.parts.length == 1)
+                return false;
+
+            String initial = parts[0];
+            String last = parts[parts.length - 1];
+            String broaderInitial = broader.parts[0];
+            String broaderLast = broader.parts[broader.parts.length - 1];
+
+            if (!initial.startsWith(broaderInitial) ||
+                !last.endsWith(broaderLast))
+            {
+                return false;
+            }
+
+            // The text that every matching value contains, in order, once
+            // the parts matched by the broader initial and last parts are
+            // taken away.
+            List<String> segments = new ArrayList<>();
+            segments.add(initial.substring(broaderInitial.length()));
+            segments.addAll(Arrays.asList(parts).subList(1, parts.length - 1));
+            segments.add(last.substring(0, last.length() - broaderLast.length()));
+
+            int segment = 0;
+            int position = 0;
+
+            for (int i = 1; i < broader.parts.length - 1; i++)
+            {
+                String part = broader.parts[i];
+
+                while (true)
+                {
+                    if (segment == segments.size())
+                        return false;
+
+                    int index = segments.get(segment).indexOf(part, position);
+
+                    if (index >= 0)
+                    {
+                        position = index + part.length();
+                        break;
+                    }
+
+                    segment++;
+                    position = 0;
+                }
+            }
+
+            return true;
+        }
+    }
+}
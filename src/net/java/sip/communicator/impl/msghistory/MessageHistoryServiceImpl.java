@@ -21,11 +21,13 @@ import java.util.Date;
 import java.util.EventObject;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jitsi.service.configuration.ConfigurationService;
 import org.jitsi.service.resources.BufferedImageFuture;
@@ -41,8 +43,10 @@ import net.java.sip.communicator.service.analytics.AnalyticsService;
 import net.java.sip.communicator.service.contactlist.MetaContact;
 import net.java.sip.communicator.service.contactsource.SourceContact;
 import net.java.sip.communicator.service.contactsource.SourceContactChangeListener;
+import net.java.sip.communicator.service.database.DatabaseBatchWriter;
 import net.java.sip.communicator.service.database.DatabaseConnection;
 import net.java.sip.communicator.service.database.DatabaseService;
+import net.java.sip.communicator.service.database.DatabaseWrite;
 import net.java.sip.communicator.service.database.schema.GroupMessageHistoryTable;
 import net.java.sip.communicator.service.database.schema.MessageHistoryTable;
 import net.java.sip.communicator.service.database.util.DatabaseUtils;
@@ -140,6 +144,41 @@ public class MessageHistoryServiceImpl
      */
     private static final String DEFAULT_ID = "default";
 
+    /**
+     * The SQL to insert a one-to-one message.
+     */
+    private static final String INSERT_MESSAGE_SQL = "INSERT INTO " +
+        MessageHistoryTable.NAME + "(" +
+        MessageHistoryTable.COL_LOCAL_JID + "," +
+        MessageHistoryTable.COL_REMOTE_JID + "," +
+        MessageHistoryTable.COL_DIR + "," +
+        MessageHistoryTable.COL_TEXT + "," +
+        MessageHistoryTable.COL_MSG_ID + "," +
+        MessageHistoryTable.COL_RECEIVED_TIMESTAMP + "," +
+        MessageHistoryTable.COL_TYPE + "," +
+        MessageHistoryTable.COL_READ + "," +
+        MessageHistoryTable.COL_FAILED +
+        ") VALUES (?,?,?,?,?,?,?,?,?)";
+
+    /**
+     * The statements to write an archived one-to-one message and add it to
+     * the search index.  The index entries use the row ID generated for the
+     * message by the first statement.
+     */
+    private static final List<String> WRITE_ARCHIVE_MESSAGE_STATEMENTS =
+        List.of(INSERT_MESSAGE_SQL,
+                DatabaseUtils.getAddToSearchIndexSql());
+
+    /**
+     * The most archived messages that are queued before they are written to
+     * the database, and the longest time in ms that they are queued for.
+     * Catching up with the archive can deliver hundreds of messages in a
+     * burst, which are much cheaper to write in a few transactions than one
+     * at a time.
+     */
+    private static final int MAX_QUEUED_ARCHIVE_MESSAGES = 200;
+    private static final long MAX_QUEUED_ARCHIVE_MESSAGE_DELAY_MS = 500;
+
     /**
      * String used for the group chat subject if the chat room returns null
      * for the subject.
@@ -276,11 +315,39 @@ public class MessageHistoryServiceImpl
 
     private DatabaseService mDatabaseService = MessageHistoryActivator.getDatabaseService();
 
+    /**
+     * Queues the one-to-one messages that we get from the message archive, so
+     * they are written in batches.
+     */
+    private final DatabaseBatchWriter mArchiveWriter =
+        mDatabaseService.createBatchWriter("MessageArchive",
+                                           MAX_QUEUED_ARCHIVE_MESSAGES,
+                                           MAX_QUEUED_ARCHIVE_MESSAGE_DELAY_MS,
+                                           this::archiveMessagesWritten);
+
+    /**
+     * Filter of the stored message IDs, used to avoid querying the database
+     * to check whether we already have a message when we definitely don't.
+     */
+    private final MessageIdFilter mMessageIdFilter =
+        new MessageIdFilter(mDatabaseService);
+
     /**
      * The IM ProtocolProviderService.
      */
     private ProtocolProviderService mImProvider;
 
+    /**
+     * The number of times findLastForAllThreads() has been called, used with
+     * mFindLastForAllThreadsTotalMillis to log the average time taken.
+     */
+    private final AtomicLong mFindLastForAllThreadsCalls = new AtomicLong();
+
+    /**
+     * The total time in milliseconds spent in findLastForAllThreads().
+     */
+    private final AtomicLong mFindLastForAllThreadsTotalMillis = new AtomicLong();
+
     /**
      * Creates a new instance of the MessageHistoryServiceImpl.
      *
@@ -301,6 +368,7 @@ public class MessageHistoryServiceImpl
     {
         sLog.info("Starting the MessageHistoryService.");
         mBundleContext = bundleContext;
+        mMessageIdFilter.load();
         loadMessageHistoryService();
     }
 
@@ -351,6 +419,8 @@ public class MessageHistoryServiceImpl
     {
         sLog.info("Stopping the MessageHistoryService.");
 
+        mArchiveWriter.stop();
+
         // Start listening for newly register or removed protocol providers.
         mBundleContext.removeServiceListener(this);
 
@@ -417,7 +487,7 @@ public class MessageHistoryServiceImpl
         List<MessageEvent> result = new ArrayList<>();
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
             rs = connection.findBeforeDate(MessageHistoryTable.NAME,
                                            MessageHistoryTable.COL_LOCAL_JID,
                                            getImAccountJid(),
@@ -491,7 +561,7 @@ public class MessageHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
             rs = connection.findByPeriod(MessageHistoryTable.NAME,
                                      MessageHistoryTable.COL_LOCAL_JID,
                                      getImAccountJid(),
@@ -534,7 +604,7 @@ public class MessageHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
             String [] searchColumnNames = {MessageHistoryTable.COL_MSG_ID};
             resultSet = connection.findByKeyword(
                 MessageHistoryTable.NAME,
@@ -612,7 +682,7 @@ public class MessageHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
             rs = connection.findLast(MessageHistoryTable.NAME,
                                      MessageHistoryTable.COL_LOCAL_JID,
                                      getImAccountJid(),
@@ -701,7 +771,7 @@ public class MessageHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
             rs = connection.findFirstRecordsAfter(MessageHistoryTable.NAME,
                                      MessageHistoryTable.COL_LOCAL_JID,
                                      getImAccountJid(),
@@ -778,7 +848,7 @@ public class MessageHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
             rs = connection.findLastRecordsBefore(MessageHistoryTable.NAME,
                                      MessageHistoryTable.COL_LOCAL_JID,
                                      getImAccountJid(),
@@ -1208,34 +1278,71 @@ public class MessageHistoryServiceImpl
         // the change is reflected in the 'Recent' tab.  This isn't necessary
         // for incoming messages, as the 'Recent' tab is refreshed when they
         // are marked as unread and read.
+        // Messages from the archive tend to arrive in bursts, so they are
+        // queued and written in batches, and any history changed
+        // notifications are sent once each batch is written.
+        boolean isArchive = evt.getSourceMessage().isArchive() &&
+                            evt.getSourceMessage().getMessageUID() != null;
+
         if (type.equals(MessageType.SMS_MESSAGE))
         {
-            writeOneToOneMessage(peerId, direction, evt.getSourceMessage(),
-                evt.getTimestamp(), evt.isMessageRead(),
-                MessageHistoryTable.TYPE.SMS, evt.isFailed());
+            boolean sendHistoryChanged =
+                MessageHistoryTable.DIRECTION.OUT.equals(direction);
 
-            if (MessageHistoryTable.DIRECTION.OUT.equals(direction))
+            if (isArchive)
             {
-                sendMessageHistoryChanged(peerId, false);
+                queueArchiveMessage(peerId, direction, evt.getSourceMessage(),
+                    evt.getTimestamp(), evt.isMessageRead(),
+                    MessageHistoryTable.TYPE.SMS, evt.isFailed(),
+                    sendHistoryChanged ? peerId : null);
+            }
+            else
+            {
+                writeOneToOneMessage(peerId, direction, evt.getSourceMessage(),
+                    evt.getTimestamp(), evt.isMessageRead(),
+                    MessageHistoryTable.TYPE.SMS, evt.isFailed());
+
+                if (sendHistoryChanged)
+                {
+                    sendMessageHistoryChanged(peerId, false);
+                }
             }
         }
         else if (peerContact != null)
         {
-            writeOneToOneMessage(peerContact, direction,
-                evt.getSourceMessage(), evt.getTimestamp(),
-                evt.isMessageRead(),
-                MessageHistoryTable.TYPE.IM,
-                                 evt.isFailed());
+            MetaContact metaContact = null;
 
             if (MessageHistoryTable.DIRECTION.OUT.equals(direction))
             {
-                MetaContact metaContact =
-                    MessageHistoryActivator.getContactListService()
+                metaContact = MessageHistoryActivator.getContactListService()
                                      .findMetaContactByContact(peerContact);
+            }
 
+            if (isArchive)
+            {
+                queueArchiveMessage(peerContact.getAddress(), direction,
+                    evt.getSourceMessage(), evt.getTimestamp(),
+                    evt.isMessageRead(), MessageHistoryTable.TYPE.IM,
+                    evt.isFailed(), metaContact);
+            }
+            else
+            {
+                writeOneToOneMessage(peerContact, direction,
+                    evt.getSourceMessage(), evt.getTimestamp(),
+                    evt.isMessageRead(),
+                    MessageHistoryTable.TYPE.IM,
+                                     evt.isFailed());
+            }
+
+            if (MessageHistoryTable.DIRECTION.OUT.equals(direction))
+            {
                 if (metaContact != null)
                 {
-                    sendMessageHistoryChanged(metaContact, false);
+                    // Archived messages send this once they are written.
+                    if (!isArchive)
+                    {
+                        sendMessageHistoryChanged(metaContact, false);
+                    }
                 }
                 else
                 {
@@ -1369,30 +1476,21 @@ public class MessageHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
 
-            preparedStatement = connection.prepare("INSERT INTO " +
-                MessageHistoryTable.NAME + "(" +
-                MessageHistoryTable.COL_LOCAL_JID + "," +
-                MessageHistoryTable.COL_REMOTE_JID + "," +
-                MessageHistoryTable.COL_DIR + "," +
-                MessageHistoryTable.COL_TEXT + "," +
-                MessageHistoryTable.COL_MSG_ID + "," +
-                MessageHistoryTable.COL_RECEIVED_TIMESTAMP + "," +
-                MessageHistoryTable.COL_TYPE + "," +
-                MessageHistoryTable.COL_READ + "," +
-                MessageHistoryTable.COL_FAILED +
-                ") VALUES (?,?,?,?,?,?,?,?,?)");
+            // Insert the message and its search index entries together.
+            connection.startTransaction();
 
-            preparedStatement.setString(1, getImAccountJid());
-            preparedStatement.setString(2, formattedRemoteJid);
-            preparedStatement.setInt(3, direction.ordinal());
-            preparedStatement.setString(4, message.getContent());
-            preparedStatement.setString(5, message.getMessageUID());
-            preparedStatement.setLong(6, messageTimestamp.getTime());
-            preparedStatement.setInt(7, type.ordinal());
-            preparedStatement.setBoolean(8, isRead);
-            preparedStatement.setBoolean(9, isFailed);
+            preparedStatement = connection.prepare(INSERT_MESSAGE_SQL);
+            setInsertMessageParameters(preparedStatement,
+                                       getImAccountJid(),
+                                       formattedRemoteJid,
+                                       direction,
+                                       message,
+                                       messageTimestamp,
+                                       type,
+                                       isRead,
+                                       isFailed);
 
             // We can't log the actual statement as it contains the full text
             // of the message. Instead, log a copy of the statement with the
@@ -1407,6 +1505,11 @@ public class MessageHistoryServiceImpl
                 isRead));
 
             connection.executeNoLog(preparedStatement);
+            connection.addToSearchIndex(MessageHistoryTable.NAME,
+                                        message.getContent());
+            connection.commitTransaction();
+            mMessageIdFilter.add(MessageIdFilter.IdType.XMPP,
+                                 message.getMessageUID());
         }
         catch (SQLException e)
         {
@@ -1418,6 +1521,216 @@ public class MessageHistoryServiceImpl
         }
     }
 
+    /**
+     * Set the parameters of the INSERT_MESSAGE_SQL statement.
+     *
+     * @param preparedStatement The statement.
+     * @param localJid The local JID.
+     * @param formattedRemoteJid The remote JID, or formatted SMS number.
+     * @param direction Incoming or outgoing
+     * @param message Message
+     * @param messageTimestamp Date this is the timestamp when was message
+     *                              received that came from the protocol provider
+     * @param type IM or SMS.
+     * @param isRead If true, the message has been read
+     * @param isFailed If true, the message failed to send
+     * @throws SQLException on SQL error.
+     */
+    private static void setInsertMessageParameters(
+        PreparedStatement preparedStatement,
+        String localJid,
+        String formattedRemoteJid,
+        MessageHistoryTable.DIRECTION direction,
+        ImMessage message,
+        Date messageTimestamp,
+        MessageHistoryTable.TYPE type,
+        boolean isRead,
+        boolean isFailed)
+        throws SQLException
+    {
+        preparedStatement.setString(1, localJid);
+        preparedStatement.setString(2, formattedRemoteJid);
+        preparedStatement.setInt(3, direction.ordinal());
+        preparedStatement.setString(4, message.getContent());
+        preparedStatement.setString(5, message.getMessageUID());
+        preparedStatement.setLong(6, messageTimestamp.getTime());
+        preparedStatement.setInt(7, type.ordinal());
+        preparedStatement.setBoolean(8, isRead);
+        preparedStatement.setBoolean(9, isFailed);
+    }
+
+    /**
+     * Queues a one-to-one message from the message archive to be written to
+     * the history database in the next batch.
+     *
+     * @param remoteJid the remote sender/receiver of the message
+     * @param direction Incoming or outgoing
+     * @param message Message, which must have a message UID
+     * @param messageTimestamp Date this is the timestamp when was message
+     *                              received that came from the protocol provider
+     * @param isRead If true, the message has been read
+     * @param type IM or SMS.
+     * @param isFailed If true, the message failed to send
+     * @param historyChanged The MetaContact or SMS number to send a message
+     * history changed notification for once the message has been written, or
+     * null if none is needed.
+     */
+    private void queueArchiveMessage(String remoteJid,
+                                     MessageHistoryTable.DIRECTION direction,
+                                     ImMessage message,
+                                     Date messageTimestamp,
+                                     boolean isRead,
+                                     MessageHistoryTable.TYPE type,
+                                     boolean isFailed,
+                                     Object historyChanged)
+    {
+        String localJid = getImAccountJid();
+        String formattedRemoteJid = (type == MessageHistoryTable.TYPE.SMS) ?
+            formatToNationalNumber(remoteJid) :
+            remoteJid.toLowerCase();
+
+        // Add the ID to the filter now - findById() writes the queued
+        // messages first if asked for one of them.
+        mMessageIdFilter.add(MessageIdFilter.IdType.XMPP,
+                             message.getMessageUID());
+        mArchiveWriter.enqueue(new ArchiveMessageWrite(message.getMessageUID(),
+                                                       historyChanged)
+        {
+            @Override
+            public void addToBatch(int statementIndex,
+                                   PreparedStatement preparedStatement)
+                throws SQLException
+            {
+                if (statementIndex == 0)
+                {
+                    setInsertMessageParameters(preparedStatement,
+                                               localJid,
+                                               formattedRemoteJid,
+                                               direction,
+                                               message,
+                                               messageTimestamp,
+                                               type,
+                                               isRead,
+                                               isFailed);
+                    preparedStatement.addBatch();
+                }
+                else
+                {
+                    for (String token :
+                        DatabaseUtils.getSearchIndexTokens(message.getContent()))
+                    {
+                        preparedStatement.setString(1, MessageHistoryTable.NAME);
+                        preparedStatement.setString(2, token);
+                        preparedStatement.setLong(3, getRowId());
+                        preparedStatement.addBatch();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Called once a batch of archived messages has been written to the
+     * database, to send one message history changed notification for each
+     * conversation that needs one.
+     *
+     * @param writes The writes for the archived messages.
+     */
+    private void archiveMessagesWritten(List<DatabaseWrite> writes)
+    {
+        Set<Object> historyChanged = new LinkedHashSet<>();
+
+        for (DatabaseWrite write : writes)
+        {
+            Object target = ((ArchiveMessageWrite) write).mHistoryChanged;
+
+            if (target != null)
+            {
+                historyChanged.add(target);
+            }
+        }
+
+        for (Object target : historyChanged)
+        {
+            if (target instanceof MetaContact)
+            {
+                sendMessageHistoryChanged((MetaContact) target, false);
+            }
+            else
+            {
+                sendMessageHistoryChanged((String) target, false);
+            }
+        }
+    }
+
+    /**
+     * The queued write of an archived one-to-one message.
+     */
+    private abstract static class ArchiveMessageWrite implements DatabaseWrite
+    {
+        /**
+         * The XMPP ID of the message.
+         */
+        private final String mMessageUid;
+
+        /**
+         * The MetaContact or SMS number to send a message history changed
+         * notification for once the message has been written, or null.
+         */
+        private final Object mHistoryChanged;
+
+        /**
+         * The row ID of the message, once it has been inserted.
+         */
+        private long mRowId;
+
+        ArchiveMessageWrite(String messageUid, Object historyChanged)
+        {
+            mMessageUid = messageUid;
+            mHistoryChanged = historyChanged;
+        }
+
+        @Override
+        public List<String> getStatements()
+        {
+            return WRITE_ARCHIVE_MESSAGE_STATEMENTS;
+        }
+
+        @Override
+        public int getGeneratedKeyStatementIndex()
+        {
+            return 0;
+        }
+
+        @Override
+        public void setGeneratedKey(long key)
+        {
+            mRowId = key;
+        }
+
+        /**
+         * @return The row ID of the message, once it has been inserted.
+         */
+        long getRowId()
+        {
+            return mRowId;
+        }
+    }
+
+    /**
+     * Connect to the database, first writing any queued archived messages so
+     * that they are visible to the caller.
+     *
+     * @return The connection.
+     * @throws SQLException on SQL error.
+     */
+    private DatabaseConnection connect()
+        throws SQLException
+    {
+        mArchiveWriter.flush();
+        return mDatabaseService.connect();
+    }
+
     /**
      * Writes a chatroom message to the history.
      *
@@ -1465,7 +1778,10 @@ public class MessageHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
+
+            // Insert the message and its search index entries together.
+            connection.startTransaction();
 
             preparedStatement = connection.prepare("INSERT INTO " +
                 GroupMessageHistoryTable.NAME + " (" +
@@ -1512,6 +1828,10 @@ public class MessageHistoryServiceImpl
                 subject));
 
             connection.executeNoLog(preparedStatement);
+            connection.addToSearchIndex(GroupMessageHistoryTable.NAME,
+                                        messageText);
+            connection.commitTransaction();
+            mMessageIdFilter.addGroup(roomJid, messageUid);
         }
         catch (SQLException e)
         {
@@ -1688,8 +2008,9 @@ public class MessageHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
-            rs = connection.findByKeyword(MessageHistoryTable.NAME,
+            connection = connect();
+            rs = connection.findByIndexedKeyword(MessageHistoryTable.NAME,
+                                     MessageHistoryTable.COL_ID,
                                      MessageHistoryTable.COL_LOCAL_JID,
                                      getImAccountJid(),
                                      MessageHistoryTable.COL_REMOTE_JID,
@@ -1735,7 +2056,7 @@ public class MessageHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
             rs = connection.findBeforeDate(GroupMessageHistoryTable.NAME,
                                 GroupMessageHistoryTable.COL_LOCAL_JID,
                                 getImAccountJid(),
@@ -1779,7 +2100,7 @@ public class MessageHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
             rs = connection.findByPeriod(GroupMessageHistoryTable.NAME,
                                 GroupMessageHistoryTable.COL_LOCAL_JID,
                                 getImAccountJid(),
@@ -1819,7 +2140,7 @@ public class MessageHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
 
             rs = connection.findFirstByIntValue(GroupMessageHistoryTable.NAME,
                                 GroupMessageHistoryTable.COL_LOCAL_JID,
@@ -1859,7 +2180,7 @@ public class MessageHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
 
             rs = connection.findLastByIntValue(GroupMessageHistoryTable.NAME,
                                 GroupMessageHistoryTable.COL_LOCAL_JID,
@@ -1922,7 +2243,7 @@ public class MessageHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
             rs = connection.findLast(GroupMessageHistoryTable.NAME,
                                 GroupMessageHistoryTable.COL_LOCAL_JID,
                                 getImAccountJid(),
@@ -1953,6 +2274,23 @@ public class MessageHistoryServiceImpl
     @Override
     public Collection<MessageEvent> findByKeyword(ChatRoom chatRoom,
                                                    String keyword)
+    {
+        return findByKeyword(chatRoom, keyword, true);
+    }
+
+    /**
+     * Return all the messages in the given chat room matching a keyword.
+     *
+     * @param chatRoom The chat room.
+     * @param keyword Keyword to search on
+     * @param useSearchIndex If true, search the search index, so every token
+     * of the keyword must be a prefix of a word in the message.  Otherwise
+     * scan the messages for any that contain the keyword as a substring.
+     * @return the event objects for the messages
+     */
+    private Collection<MessageEvent> findByKeyword(ChatRoom chatRoom,
+                                                   String keyword,
+                                                   boolean useSearchIndex)
     {
         String chatRoomId = chatRoom.getIdentifier().toString();
 
@@ -1964,8 +2302,11 @@ public class MessageHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
-            rs = connection.findByKeyword(GroupMessageHistoryTable.NAME,
+            connection = connect();
+            if (useSearchIndex)
+            {
+                rs = connection.findByIndexedKeyword(GroupMessageHistoryTable.NAME,
+                                GroupMessageHistoryTable.COL_ID,
                                 GroupMessageHistoryTable.COL_LOCAL_JID,
                                 getImAccountJid(),
                                 GroupMessageHistoryTable.COL_ROOM_JID,
@@ -1974,6 +2315,19 @@ public class MessageHistoryServiceImpl
                                 GroupMessageHistoryTable.COL_MSG_ID,
                                 GroupMessageHistoryTable.COL_TEXT,
                                 keyword);
+            }
+            else
+            {
+                rs = connection.findByKeyword(GroupMessageHistoryTable.NAME,
+                                GroupMessageHistoryTable.COL_LOCAL_JID,
+                                getImAccountJid(),
+                                GroupMessageHistoryTable.COL_ROOM_JID,
+                                Arrays.asList(chatRoomId),
+                                GroupMessageHistoryTable.COL_RECEIVED_TIMESTAMP,
+                                GroupMessageHistoryTable.COL_MSG_ID,
+                                GroupMessageHistoryTable.COL_TEXT,
+                                keyword);
+            }
 
             while (rs.next())
             {
@@ -2013,7 +2367,7 @@ public class MessageHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
             rs = connection.findFirstRecordsAfter(GroupMessageHistoryTable.NAME,
                                 GroupMessageHistoryTable.COL_LOCAL_JID,
                                 getImAccountJid(),
@@ -2054,7 +2408,7 @@ public class MessageHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
             rs = connection.findLastRecordsBefore(GroupMessageHistoryTable.NAME,
                                 GroupMessageHistoryTable.COL_LOCAL_JID,
                                 getImAccountJid(),
@@ -2089,21 +2443,47 @@ public class MessageHistoryServiceImpl
         List<String> matches = new ArrayList<>();
 
         sLog.debug("room: " + sanitisePeerId(roomJid) + " msgUids: " + msgUids);
+
+        // Use the ID filter to find the IDs that we definitely have and
+        // definitely don't have, and only look up the rest in the database.
+        List<String> uidsToCheck = new ArrayList<>();
+
+        for (String msgUid : msgUids)
+        {
+            if (mMessageIdFilter.isKnownGroupId(roomJid, msgUid))
+            {
+                matches.add(msgUid);
+            }
+            else if (mMessageIdFilter.mightContain(MessageIdFilter.IdType.GROUP,
+                                                   msgUid))
+            {
+                uidsToCheck.add(msgUid);
+            }
+        }
+
+        if (uidsToCheck.isEmpty())
+        {
+            sLog.debug("found " + matches.size() + " matches without querying");
+            return matches;
+        }
+
         DatabaseConnection connection = null;
         ResultSet rs = null;
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
             rs = connection.findMatchingGroupChatMsgUids(GroupMessageHistoryTable.NAME,
                                                          GroupMessageHistoryTable.COL_ROOM_JID,
                                                          roomJid,
                                                          GroupMessageHistoryTable.COL_MSG_ID,
-                                                         msgUids);
+                                                         uidsToCheck);
 
             while (rs.next())
             {
-                matches.add(rs.getString(GroupMessageHistoryTable.COL_MSG_ID));
+                String msgUid = rs.getString(GroupMessageHistoryTable.COL_MSG_ID);
+                matches.add(msgUid);
+                mMessageIdFilter.addGroup(roomJid, msgUid);
             }
         }
         catch (SQLException e)
@@ -2128,7 +2508,7 @@ public class MessageHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
 
             rs = connection.findLast(GroupMessageHistoryTable.NAME,
                                 GroupMessageHistoryTable.COL_LOCAL_JID,
@@ -2166,17 +2546,27 @@ public class MessageHistoryServiceImpl
     public MessageEvent findByXmppId(String remoteJid, String xmppId)
     {
         // We don't know if we're looking for a group message or a one-to-one
-        // IM/SMS, so check both tables until we find a result.
-        // Check for one-to-one IM message with chat address
-        MessageEvent msgEvt = findById(
-            remoteJid, xmppId, MessageHistoryTable.COL_MSG_ID);
-        // If there is no IM message, check for SMS message with national number
-        if (msgEvt == null && remoteJid.contains("@"))
+        // IM/SMS, so check both tables until we find a result.  Skip any
+        // table that the ID filter says definitely doesn't have it - which is
+        // the usual case, as this is called for every new message.
+        MessageEvent msgEvt = null;
+
+        if (mMessageIdFilter.mightContain(MessageIdFilter.IdType.XMPP, xmppId))
         {
-            msgEvt = findById(formatToNationalNumber(remoteJid.split("@")[0]),
-                              xmppId, MessageHistoryTable.COL_MSG_ID);
+            // Check for one-to-one IM message with chat address
+            msgEvt = findById(remoteJid, xmppId, MessageHistoryTable.COL_MSG_ID);
+
+            // If there is no IM message, check for SMS message with national
+            // number
+            if (msgEvt == null && remoteJid.contains("@"))
+            {
+                msgEvt = findById(formatToNationalNumber(remoteJid.split("@")[0]),
+                                  xmppId, MessageHistoryTable.COL_MSG_ID);
+            }
         }
-        if (msgEvt == null)
+
+        if (msgEvt == null &&
+            mMessageIdFilter.mightContain(MessageIdFilter.IdType.GROUP, xmppId))
         {
             msgEvt = findByIdRoom(
                 remoteJid, xmppId, GroupMessageHistoryTable.COL_MSG_ID);
@@ -2188,6 +2578,11 @@ public class MessageHistoryServiceImpl
     @Override
     public MessageEvent findBySmppId(String remoteJid, String smppId)
     {
+        if (!mMessageIdFilter.mightContain(MessageIdFilter.IdType.SMPP, smppId))
+        {
+            return null;
+        }
+
         return findById(remoteJid, smppId, MessageHistoryTable.COL_SMPP_ID);
     }
 
@@ -2212,6 +2607,17 @@ public class MessageHistoryServiceImpl
         ResultSet rs = null;
         MessageEvent result = null;
 
+        // This is used to check whether we already have each message that we
+        // get from the archive, so only write the queued archived messages
+        // first if one of them is the one we are looking for - otherwise we'd
+        // never write more than one archived message in a batch.
+        if (MessageHistoryTable.COL_MSG_ID.equals(idColumn) &&
+            mArchiveWriter.hasPendingWrite(write ->
+                messageId.equals(((ArchiveMessageWrite) write).mMessageUid)))
+        {
+            mArchiveWriter.flush();
+        }
+
         try
         {
             connection = mDatabaseService.connect();
@@ -2266,6 +2672,8 @@ public class MessageHistoryServiceImpl
         ResultSet rs = null;
         MessageEvent result = null;
 
+        // Group messages are never queued, so there's no need to write the
+        // queued archived messages first.
         try
         {
             connection = mDatabaseService.connect();
@@ -2313,7 +2721,7 @@ public class MessageHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
 
             preparedStatement = connection.prepare("UPDATE " +
                 MessageHistoryTable.NAME + " SET " +
@@ -2328,6 +2736,7 @@ public class MessageHistoryServiceImpl
             preparedStatement.setString(4, xmppId);
 
             connection.execute(preparedStatement);
+            mMessageIdFilter.add(MessageIdFilter.IdType.SMPP, smppId);
             updated = true;
         }
         catch (SQLException e)
@@ -2356,7 +2765,7 @@ public class MessageHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
 
             preparedStatement = connection.prepare("UPDATE " +
                 MessageHistoryTable.NAME + " SET " +
@@ -2397,7 +2806,7 @@ public class MessageHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
 
             preparedStatement = connection.prepare("UPDATE " +
                 MessageHistoryTable.NAME + " SET " +
@@ -2438,7 +2847,7 @@ public class MessageHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
 
             preparedStatement = connection.prepare("UPDATE " +
                 GroupMessageHistoryTable.NAME + " SET " +
@@ -2481,7 +2890,7 @@ public class MessageHistoryServiceImpl
         // Get the last one-to-one message for each conversation
         try
         {
-            conn = mDatabaseService.connect();
+            conn = connect();
             rs = conn.findLast(MessageHistoryTable.NAME,
                                MessageHistoryTable.COL_LOCAL_JID,
                                accountJid,
@@ -2514,7 +2923,7 @@ public class MessageHistoryServiceImpl
         // Get the last group message for each group chat.
         try
         {
-            conn = mDatabaseService.connect();
+            conn = connect();
             rs = conn.findLastByType(GroupMessageHistoryTable.NAME,
                                      GroupMessageHistoryTable.COL_LOCAL_JID,
                                      accountJid,
@@ -2549,7 +2958,7 @@ public class MessageHistoryServiceImpl
         // has "x left" messages on top of an 'active' group.
         try
         {
-            conn = mDatabaseService.connect();
+            conn = connect();
 
             rs = conn.findFirstByType(GroupMessageHistoryTable.NAME,
                                       GroupMessageHistoryTable.COL_LOCAL_JID,
@@ -2716,23 +3125,47 @@ public class MessageHistoryServiceImpl
             sAnalyticsService.onEvent(AnalyticsEventType.CHAT_LIST_REQUEST_BEFORE_IM_PROVIDER_READY);
         }
 
+        long startTime = System.currentTimeMillis();
+        List<List<MessageEvent>> events = new ArrayList<>();
         DatabaseConnection conn = null;
         ResultSet rs = null;
 
-        // Get a set of all the thread IDs
-        List<String> threadIds = new ArrayList<>();
+        // Get the most recent n messages for every one to one thread in a
+        // single query.  The results are ordered by remote JID so we start a
+        // new thread each time the remote JID changes.
+        int oneToOneThreads = 0;
         try
         {
-            conn = mDatabaseService.connect();
-            rs = conn.findUniqueColumnValues(
+            conn = connect();
+            rs = conn.findLastForEachThread(
                 MessageHistoryTable.NAME,
                 MessageHistoryTable.COL_LOCAL_JID,
                 accountJid,
-                MessageHistoryTable.COL_REMOTE_JID);
+                MessageHistoryTable.COL_REMOTE_JID,
+                MessageHistoryTable.COL_RECEIVED_TIMESTAMP,
+                MessageHistoryTable.COL_MSG_ID,
+                count);
 
+            String currentJid = null;
+            List<MessageEvent> thread = null;
             while (rs.next())
             {
-                threadIds.add(rs.getString(MessageHistoryTable.COL_REMOTE_JID));
+                String remoteJid =
+                    rs.getString(MessageHistoryTable.COL_REMOTE_JID);
+
+                if (thread == null || !remoteJid.equals(currentJid))
+                {
+                    currentJid = remoteJid;
+                    thread = new ArrayList<>();
+                    events.add(thread);
+                    oneToOneThreads++;
+                }
+
+                MessageEvent evt = convertDatabaseRecordToMessageEvent(null, rs);
+                if (evt != null)
+                {
+                    thread.add(evt);
+                }
             }
         }
         catch (SQLException e)
@@ -2743,29 +3176,39 @@ public class MessageHistoryServiceImpl
         {
             DatabaseUtils.safeClose(conn, rs);
         }
-        sLog.debug(threadIds.size() + " one to one threads found");
-        // For each thread, get the most recent n messages
-        List<List<MessageEvent>> events = new ArrayList<List<MessageEvent>>();
-        Iterator<String> threadIter = threadIds.iterator();
-        while (threadIter.hasNext())
-        {
-            events.add(findLastForThread(threadIter.next(), count));
-        }
+        sLog.debug(oneToOneThreads + " one to one threads found");
 
         // Group chat
-        List<String> roomIds = new ArrayList<>();
+        int roomThreads = 0;
         try
         {
-            conn = mDatabaseService.connect();
-            rs = conn.findUniqueColumnValues(
+            conn = connect();
+            rs = conn.findLastForEachThread(
                 GroupMessageHistoryTable.NAME,
                 GroupMessageHistoryTable.COL_LOCAL_JID,
                 accountJid,
-                GroupMessageHistoryTable.COL_ROOM_JID);
+                GroupMessageHistoryTable.COL_ROOM_JID,
+                GroupMessageHistoryTable.COL_RECEIVED_TIMESTAMP,
+                GroupMessageHistoryTable.COL_MSG_ID,
+                count);
 
+            String currentRoomJid = null;
+            List<MessageEvent> thread = null;
             while (rs.next())
             {
-                roomIds.add(rs.getString(GroupMessageHistoryTable.COL_ROOM_JID));
+                String roomJid =
+                    rs.getString(GroupMessageHistoryTable.COL_ROOM_JID);
+
+                if (thread == null || !roomJid.equals(currentRoomJid))
+                {
+                    currentRoomJid = roomJid;
+                    thread = new ArrayList<>();
+                    events.add(thread);
+                    roomThreads++;
+                }
+
+                thread.add(
+                    convertDatabaseRecordToGroupMessageEvent(rs, roomJid, null));
             }
         }
         catch (SQLException e)
@@ -2776,13 +3219,14 @@ public class MessageHistoryServiceImpl
         {
             DatabaseUtils.safeClose(conn, rs);
         }
-        sLog.debug(roomIds.size() + " chat room threads found");
-        // For each room, get the most recent n messages
-        Iterator<String> roomIter = roomIds.iterator();
-        while (roomIter.hasNext())
-        {
-            events.add(findLastForThread(roomIter.next(), count));
-        }
+        sLog.debug(roomThreads + " chat room threads found");
+
+        long elapsed = System.currentTimeMillis() - startTime;
+        long calls = mFindLastForAllThreadsCalls.incrementAndGet();
+        long totalElapsed = mFindLastForAllThreadsTotalMillis.addAndGet(elapsed);
+        sLog.info("Found last " + count + " messages for " + events.size() +
+            " threads in " + elapsed + "ms (average " + (totalElapsed / calls) +
+            "ms over " + calls + " calls)");
 
         return events;
     }
@@ -2809,7 +3253,7 @@ public class MessageHistoryServiceImpl
         List<String> roomJids = new ArrayList<>();
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
             rs = connection.findUniqueColumnValues(
                 GroupMessageHistoryTable.NAME,
                 GroupMessageHistoryTable.COL_LOCAL_JID,
@@ -2835,7 +3279,7 @@ public class MessageHistoryServiceImpl
         {
             try
             {
-                connection = mDatabaseService.connect();
+                connection = connect();
                 rs = connection.findLastByIntValue(GroupMessageHistoryTable.NAME,
                               GroupMessageHistoryTable.COL_LOCAL_JID,
                               accountJid,
@@ -3082,7 +3526,7 @@ public class MessageHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
 
             preparedStatement = connection.prepare(
                 "UPDATE " + MessageHistoryTable.NAME +
@@ -3189,7 +3633,7 @@ public class MessageHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
 
             preparedStatement = connection.prepare("UPDATE " +
                 MessageHistoryTable.NAME + " SET " +
@@ -3226,7 +3670,7 @@ public class MessageHistoryServiceImpl
         // One-to-one
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
 
             preparedStatement = connection.prepare("UPDATE " +
                 MessageHistoryTable.NAME + " SET " +
@@ -3254,7 +3698,7 @@ public class MessageHistoryServiceImpl
         // Group
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
 
             preparedStatement = connection.prepare("UPDATE " +
                 GroupMessageHistoryTable.NAME + " SET " +
@@ -3304,7 +3748,7 @@ public class MessageHistoryServiceImpl
         try
         {
             String accountJid = getImAccountJid();
-            connection = mDatabaseService.connect();
+            connection = connect();
 
             // Update the value for the latest group IM message
             preparedStatement = connection.prepare(
@@ -3381,7 +3825,7 @@ public class MessageHistoryServiceImpl
         try
         {
             String accountJid = getImAccountJid();
-            connection = mDatabaseService.connect();
+            connection = connect();
             preparedStatement = connection.prepare(
                 "UPDATE " + GroupMessageHistoryTable.NAME +
                 " SET " + colName + "=?" +
@@ -3452,7 +3896,13 @@ public class MessageHistoryServiceImpl
 
         try
         {
-            connection = mDatabaseService.connect();
+            connection = connect();
+            connection.startTransaction();
+
+            connection.removeFromSearchIndex(MessageHistoryTable.NAME,
+                                             MessageHistoryTable.COL_ID,
+                                             MessageHistoryTable.COL_MSG_ID,
+                                             uid);
 
             PreparedStatement preparedStatement = connection.prepare("DELETE FROM " +
             MessageHistoryTable.NAME + " WHERE " +
@@ -3460,6 +3910,8 @@ public class MessageHistoryServiceImpl
 
             preparedStatement.setString(1, uid);
             connection.execute(preparedStatement);
+            connection.commitTransaction();
+            mMessageIdFilter.remove(uid);
         }
         catch (SQLException e)
         {
@@ -3881,7 +4333,9 @@ public class MessageHistoryServiceImpl
             textContent = SUBJECT + "," + contactAddress + "," + subjectEvt.getNewValue();
             uid = UUID.randomUUID().toString();
 
-            if (findByKeyword(chatRoom, textContent).size() != 0)
+            // This needs an exact match on the status text, so scan rather
+            // than using the search index, which matches on word prefixes.
+            if (findByKeyword(chatRoom, textContent, false).size() != 0)
             {
                 return;
             }
@@ -0,0 +1,316 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.impl.msghistory;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import net.java.sip.communicator.service.database.DatabaseConnection;
+import net.java.sip.communicator.service.database.DatabaseService;
+import net.java.sip.communicator.service.database.schema.GroupMessageHistoryTable;
+import net.java.sip.communicator.service.database.schema.MessageHistoryTable;
+import net.java.sip.communicator.service.database.util.DatabaseUtils;
+import net.java.sip.communicator.util.Logger;
+
+/**
+ * An in-memory filter of the message IDs in the message history, used so
+ * that the checks for whether we've already stored a message (which happen
+ * for every message we get, including each message from the archive and from
+ * chat room history) can usually be answered without querying the database.
+ *
+ * A Bloom filter over every stored ID answers "definitely not stored" for new
+ * messages.  A bounded cache of recently stored group message IDs answers
+ * "definitely stored" for repeated group messages (e.g. chat room history
+ * sent each time we join a room).  Anything else has to be checked in the
+ * database.
+ *
+ * The Bloom filter is filled from the database on a background thread at
+ * start-up - until that is done, mightContain() always returns true.
+ */
+class MessageIdFilter
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger sLog = Logger.getLogger(MessageIdFilter.class);
+
+    /**
+     * The types of message ID.
+     */
+    enum IdType
+    {
+        /** The XMPP ID of a one-to-one IM or SMS. */
+        XMPP("x:"),
+        /** The SMPP ID of an SMS. */
+        SMPP("s:"),
+        /** The XMPP ID of a group chat message. */
+        GROUP("g:");
+
+        private final String mPrefix;
+
+        IdType(String prefix)
+        {
+            mPrefix = prefix;
+        }
+    }
+
+    /**
+     * The smallest number of IDs to size the Bloom filter for, and the
+     * multiple of the number of IDs already stored that we size it for, to
+     * leave room for new messages.
+     */
+    private static final int MIN_EXPECTED_IDS = 100000;
+    private static final int EXPECTED_GROWTH_FACTOR = 2;
+
+    /**
+     * The false positive rate of the Bloom filter (when it holds the expected
+     * number of IDs).  A false positive just costs a database query.
+     */
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+
+    /**
+     * The number of recently stored group message IDs to remember.
+     */
+    private static final int MAX_RECENT_GROUP_IDS = 5000;
+
+    /**
+     * The database service to fill the Bloom filter from.
+     */
+    private final DatabaseService mDatabaseService;
+
+    /**
+     * Lock which protects mAllIds and mIdsAddedWhileLoading.
+     */
+    private final Object mLock = new Object();
+
+    /**
+     * A Bloom filter over every message ID in the history, prefixed by type.
+     * Null until it has been created at start-up.
+     */
+    private BloomFilter<CharSequence> mAllIds;
+
+    /**
+     * The IDs added before mAllIds was created, to be added to it once it is.
+     */
+    private List<String> mIdsAddedWhileLoading = new ArrayList<>();
+
+    /**
+     * Whether mAllIds holds every ID in the database yet.
+     */
+    private volatile boolean mLoaded;
+
+    /**
+     * Recently stored group message IDs, keyed by room and ID (see
+     * getGroupKey()).  Guava caches
+     * are split into independently locked segments, so this doesn't serialize
+     * the threads that handle messages for different rooms.
+     */
+    private final Cache<String, Boolean> mRecentGroupIds =
+        CacheBuilder.newBuilder().maximumSize(MAX_RECENT_GROUP_IDS).build();
+
+    MessageIdFilter(DatabaseService databaseService)
+    {
+        mDatabaseService = databaseService;
+    }
+
+    /**
+     * Start filling the filter from the database on a background thread.
+     */
+    void load()
+    {
+        Thread loadThread = new Thread("MessageIdFilter-load")
+        {
+            @Override
+            public void run()
+            {
+                loadFromDatabase();
+            }
+        };
+        loadThread.setDaemon(true);
+        loadThread.start();
+    }
+
+    /**
+     * Create the Bloom filter and add every message ID in the database to it.
+     */
+    private void loadFromDatabase()
+    {
+        long startTime = System.currentTimeMillis();
+        DatabaseConnection connection = null;
+        ResultSet rs = null;
+
+        try
+        {
+            connection = mDatabaseService.connect();
+
+            long storedMessages = 0;
+
+            for (String tableName : new String[] {MessageHistoryTable.NAME,
+                                                  GroupMessageHistoryTable.NAME})
+            {
+                rs = connection.query("SELECT COUNT(*) FROM " + tableName);
+                rs.next();
+                storedMessages += rs.getLong(1);
+                DatabaseUtils.safeClose(rs);
+            }
+
+            // SMSs have an SMPP ID too, so allow for two IDs per message.
+            long expectedIds = Math.max(MIN_EXPECTED_IDS,
+                                        storedMessages * 2 * EXPECTED_GROWTH_FACTOR);
+            BloomFilter<CharSequence> allIds = BloomFilter.create(
+                Funnels.stringFunnel(StandardCharsets.UTF_8),
+                expectedIds,
+                FALSE_POSITIVE_PROBABILITY);
+
+            synchronized (mLock)
+            {
+                mAllIds = allIds;
+                mIdsAddedWhileLoading.forEach(allIds::put);
+                mIdsAddedWhileLoading = null;
+            }
+
+            rs = connection.query(
+                "SELECT " + MessageHistoryTable.COL_MSG_ID + "," +
+                MessageHistoryTable.COL_SMPP_ID +
+                " FROM " + MessageHistoryTable.NAME);
+
+            while (rs.next())
+            {
+                putIfNotNull(allIds, IdType.XMPP,
+                             rs.getString(MessageHistoryTable.COL_MSG_ID));
+                putIfNotNull(allIds, IdType.SMPP,
+                             rs.getString(MessageHistoryTable.COL_SMPP_ID));
+            }
+
+            DatabaseUtils.safeClose(rs);
+            rs = connection.query(
+                "SELECT " + GroupMessageHistoryTable.COL_MSG_ID +
+                " FROM " + GroupMessageHistoryTable.NAME);
+
+            while (rs.next())
+            {
+                putIfNotNull(allIds, IdType.GROUP,
+                             rs.getString(GroupMessageHistoryTable.COL_MSG_ID));
+            }
+
+            mLoaded = true;
+            sLog.info("Loaded " + storedMessages + " messages into ID filter in " +
+                      (System.currentTimeMillis() - startTime) + "ms");
+        }
+        catch (SQLException e)
+        {
+            // We'll just keep checking everything in the database.
+            sLog.error("Failed to load message ID filter: ", e);
+        }
+        finally
+        {
+            DatabaseUtils.safeClose(connection, rs);
+        }
+    }
+
+    /**
+     * Record that a message ID has been stored in the history.
+     *
+     * @param type The type of the ID.
+     * @param id The ID.  Ignored if null.
+     */
+    void add(IdType type, String id)
+    {
+        if (id == null)
+        {
+            return;
+        }
+
+        synchronized (mLock)
+        {
+            if (mAllIds == null)
+            {
+                mIdsAddedWhileLoading.add(type.mPrefix + id);
+                return;
+            }
+        }
+
+        putIfNotNull(mAllIds, type, id);
+    }
+
+    /**
+     * Record that a group message ID has been stored in the history for the
+     * given room.
+     *
+     * @param roomJid The room JID, in any case.
+     * @param id The ID.  Ignored if null.
+     */
+    void addGroup(String roomJid, String id)
+    {
+        if (id != null)
+        {
+            add(IdType.GROUP, id);
+            mRecentGroupIds.put(getGroupKey(roomJid, id), Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Record that the messages with the given ID have been deleted from the
+     * history.  The Bloom filter can't forget IDs, but that just means
+     * lookups for this ID go to the database.
+     *
+     * @param id The ID.
+     */
+    void remove(String id)
+    {
+        String suffix = " " + id;
+        mRecentGroupIds.asMap().keySet().removeIf(key -> key.endsWith(suffix));
+    }
+
+    /**
+     * @param type The type of the ID.
+     * @param id The ID.
+     * @return false if the ID is definitely not stored in the history, true
+     * if it might be.
+     */
+    boolean mightContain(IdType type, String id)
+    {
+        return !mLoaded || (id != null && mAllIds.mightContain(type.mPrefix + id));
+    }
+
+    /**
+     * @param roomJid The room JID, in any case.
+     * @param id The ID.
+     * @return true if the group message ID is definitely stored in the
+     * history for the given room, false if it might not be.
+     */
+    boolean isKnownGroupId(String roomJid, String id)
+    {
+        return mRecentGroupIds.getIfPresent(getGroupKey(roomJid, id)) != null;
+    }
+
+    /**
+     * @return The key in mRecentGroupIds for a group message ID.  Room JIDs
+     * are stored in lower case in the history, so are matched in any case.
+     */
+    private static String getGroupKey(String roomJid, String id)
+    {
+        return roomJid.toLowerCase(Locale.ROOT) + " " + id;
+    }
+
+    /**
+     * Add an ID to the given Bloom filter.
+     */
+    private static void putIfNotNull(BloomFilter<CharSequence> filter,
+                                     IdType type,
+                                     String id)
+    {
+        if (id != null)
+        {
+            filter.put(type.mPrefix + id);
+        }
+    }
+}
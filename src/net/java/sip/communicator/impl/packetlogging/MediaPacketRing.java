@@ -0,0 +1,260 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.impl.packetlogging;
+
+import java.nio.*;
+
+/**
+ * A ring buffer holding the most recent media packets, so that they can be
+ * written out if the user sends a problem report.
+ * <p>
+ * The packets are copied into a single preallocated byte array rather than
+ * each being held in its own object.  Once either the array or the maximum
+ * number of packets is full, the oldest packets are discarded to make space
+ * for new ones.
+ * <p>
+ * Each packet is stored as a record made up of:
+ * <ul>
+ * <li>the length of the record (int)</li>
+ * <li>the timestamp (long)</li>
+ * <li>the source and destination ports (shorts)</li>
+ * <li>the lengths of the source and destination addresses (bytes)</li>
+ * <li>the source and destination addresses</li>
+ * <li>the packet content.</li>
+ * </ul>
+ * Records are never split over the end of the array.  A record length of
+ * zero (or too little space for a length) marks the end of the records
+ * before they wrap back round to the start of the array.
+ * <p>
+ * This class is not thread safe.
+ */
+class MediaPacketRing
+{
+    private static final int RECORD_HEADER_LENGTH = 4 + 8 + 2 + 2 + 1 + 1;
+
+    private final ByteBuffer data;
+
+    private final int maxPackets;
+
+    /**
+     * The offset of the oldest record.
+     */
+    private int head = 0;
+
+    /**
+     * The offset to write the next record at.
+     */
+    private int tail = 0;
+
+    /**
+     * The number of records in the ring.
+     */
+    private int count = 0;
+
+    /**
+     * @param capacity the number of bytes to allocate for the packets.
+     * @param maxPackets the maximum number of packets to hold.
+     */
+    MediaPacketRing(int capacity, int maxPackets)
+    {
+        this.data = ByteBuffer.allocate(capacity);
+        this.maxPackets = maxPackets;
+    }
+
+    /**
+     * Adds a packet to the ring, discarding the oldest packets if there isn't
+     * space.  The packet content and addresses are copied.
+     *
+     * @return false if the packet is too big to ever fit in the ring.
+     */
+    boolean add(byte[] content,
+                int offset,
+                int length,
+                long timestamp,
+                byte[] sourceAddress,
+                int sourcePort,
+                byte[] destinationAddress,
+                int destinationPort)
+    {
+        int recordLength = RECORD_HEADER_LENGTH +
+                           sourceAddress.length +
+                           destinationAddress.length +
+                           length;
+
+        if (recordLength > data.capacity() ||
+            sourceAddress.length > Byte.MAX_VALUE ||
+            destinationAddress.length > Byte.MAX_VALUE)
+        {
+            return false;
+        }
+
+        while (count >= maxPackets)
+        {
+            removeOldest();
+        }
+
+        int position = reserve(recordLength);
+
+        data.position(position);
+        data.putInt(recordLength);
+        data.putLong(timestamp);
+        data.putShort((short) sourcePort);
+        data.putShort((short) destinationPort);
+        data.put((byte) sourceAddress.length);
+        data.put((byte) destinationAddress.length);
+        data.put(sourceAddress);
+        data.put(destinationAddress);
+        data.put(content, offset, length);
+
+        tail = position + recordLength;
+        count++;
+
+        return true;
+    }
+
+    /**
+     * @return the number of packets in the ring.
+     */
+    int size()
+    {
+        return count;
+    }
+
+    /**
+     * Removes all the packets from the ring.
+     */
+    void clear()
+    {
+        head = 0;
+        tail = 0;
+        count = 0;
+    }
+
+    /**
+     * Passes each packet in the ring, oldest first, to the given visitor.
+     * The arrays passed to the visitor are only valid for the duration of
+     * the call.
+     */
+    void forEach(PacketVisitor visitor)
+    {
+        byte[] array = data.array();
+        int position = head;
+
+        for (int i = 0; i < count; i++)
+        {
+            if (isEndMarker(position))
+                position = 0;
+
+            int recordLength = data.getInt(position);
+            long timestamp = data.getLong(position + 4);
+            int sourcePort = data.getShort(position + 12) & 0xffff;
+            int destinationPort = data.getShort(position + 14) & 0xffff;
+            int sourceLength = data.get(position + 16);
+            int destinationLength = data.get(position + 17);
+
+            int addressStart = position + RECORD_HEADER_LENGTH;
+            byte[] sourceAddress = new byte[sourceLength];
+            byte[] destinationAddress = new byte[destinationLength];
+            System.arraycopy(array, addressStart, sourceAddress, 0, sourceLength);
+            System.arraycopy(array,
+                             addressStart + sourceLength,
+                             destinationAddress,
+                             0,
+                             destinationLength);
+
+            int contentStart = addressStart + sourceLength + destinationLength;
+
+            visitor.visit(array,
+                          contentStart,
+                          position + recordLength - contentStart,
+                          timestamp,
+                          sourceAddress,
+                          sourcePort,
+                          destinationAddress,
+                          destinationPort);
+
+            position += recordLength;
+        }
+    }
+
+    /**
+     * Finds space for a record of the given length, discarding the oldest
+     * records as necessary.
+     *
+     * @return the offset to write the record at.
+     */
+    private int reserve(int recordLength)
+    {
+        while (true)
+        {
+            if (count == 0)
+            {
+                head = 0;
+                tail = 0;
+                return 0;
+            }
+
+            if (tail > head)
+            {
+                // The records run from head to tail, so there's free space
+                // after tail and before head.
+                if (data.capacity() - tail >= recordLength)
+                    return tail;
+
+                // Not enough space at the end - wrap round to the start.
+                markEnd(tail);
+                tail = 0;
+            }
+            else
+            {
+                // The records run from head to the end marker, then from the
+                // start to tail, so the only free space is between them.
+                if (head - tail >= recordLength)
+                    return tail;
+
+                removeOldest();
+            }
+        }
+    }
+
+    private void removeOldest()
+    {
+        head += data.getInt(head);
+        count--;
+
+        if (count == 0)
+        {
+            head = 0;
+            tail = 0;
+        }
+        else if (isEndMarker(head))
+        {
+            head = 0;
+        }
+    }
+
+    private void markEnd(int position)
+    {
+        if (data.capacity() - position >= 4)
+            data.putInt(position, 0);
+    }
+
+    private boolean isEndMarker(int position)
+    {
+        return data.capacity() - position < 4 || data.getInt(position) == 0;
+    }
+
+    /**
+     * Receives the packets in the ring.
+     */
+    interface PacketVisitor
+    {
+        void visit(byte[] content,
+                   int offset,
+                   int length,
+                   long timestamp,
+                   byte[] sourceAddress,
+                   int sourcePort,
+                   byte[] destinationAddress,
+                   int destinationPort);
+    }
+}
@@ -14,9 +14,6 @@ import net.java.sip.communicator.service.protocol.Call;
 import net.java.sip.communicator.service.protocol.CallConference;
 import net.java.sip.communicator.util.*;
 
-import org.apache.commons.collections4.QueueUtils;
-import org.apache.commons.collections4.queue.CircularFifoQueue;
-
 import org.jitsi.service.configuration.ConfigurationService;
 import org.jitsi.service.packetlogging.*;
 
@@ -63,9 +60,9 @@ public class PacketLoggingServiceImpl
             = Logger.getLogger(PacketLoggingServiceImpl.class);
 
     /**
-     * The OutputStream we are currently writing to.
+     * The writers for the files we are currently writing to.
      */
-    private Map<PCapLogType, FileOutputStream> outputStreams = new HashMap<>(2);
+    private Map<PCapLogType, PcapFileWriter> writers = new HashMap<>(2);
 
     /**
      * The thread that queues packets and saves them to file.
@@ -78,15 +75,38 @@ public class PacketLoggingServiceImpl
     private PacketLoggingConfiguration packetLoggingConfiguration = null;
 
     /**
-     * A circular queue for storing media information
+     * The most media packets that we buffer.
      *
      * 6000 for 2 mins (50/sec * 60 sec * 2 minutes)
      *
      * Note: This is used for both inbound and outbound media so this will be
      * one minute in each direction.
      */
-    private Queue<Packet> mediaQueue =
-        QueueUtils.synchronizedQueue(new CircularFifoQueue<>(6000));
+    private static final int MAX_BUFFERED_MEDIA_PACKETS = 6000;
+
+    /**
+     * The space allocated for buffered media packets - enough for 6000 audio
+     * packets, but fewer if they are larger (e.g. video).
+     */
+    private static final int MEDIA_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * A ring buffer storing recent media packets.  Created when the first
+     * media packet is buffered, and guarded by mediaBufferLock.
+     */
+    private MediaPacketRing mediaBuffer = null;
+
+    private final Object mediaBufferLock = new Object();
+
+    /**
+     * The most packets that we keep for reuse once they've been saved.
+     */
+    private static final int MAX_POOLED_PACKETS = 256;
+
+    /**
+     * Packets that have been saved, for reuse by logPacket().
+     */
+    private final Deque<Packet> packetPool = new ArrayDeque<>();
 
     /**
      * The fake ethernet header we use as template.
@@ -161,6 +181,17 @@ public class PacketLoggingServiceImpl
                 (byte)0x6e, (byte)0xcc, (byte)0x76, (byte)0xbd  // options
             };
 
+    /**
+     * The headers of the packet being saved - these are reused for each packet
+     * and only used while synchronized on this service.
+     */
+    private final byte[] ipHeader = new byte[ipHeaderTemplate.length];
+    private final byte[] ip6Header = new byte[ip6HeaderTemplate.length];
+    private final byte[] udpHeader = new byte[udpHeaderTemplate.length];
+    private final byte[] tcpHeader = new byte[tcpHeaderTemplate.length];
+    private final byte[][] recordHeaders = new byte[3][];
+    private final int[] recordHeaderLengths = new int[3];
+
     /**
      * Using this object to lock and protectd the two counters
      * used for tcp seq and ack numbers.
@@ -177,11 +208,6 @@ public class PacketLoggingServiceImpl
      */
     private long dstCount = 1;
 
-    /**
-     * A counter watching how much has been written to the file.
-     */
-    private Map<PCapLogType, Long> written = new HashMap<>(PCapLogType.values().length);
-
     /**
      * All the files we can use for writing.
      */
@@ -245,15 +271,14 @@ public class PacketLoggingServiceImpl
      * for writing.
      * @throws IOException
      */
-    private OutputStream rotateFiles(PCapLogType logType)
+    private PcapFileWriter rotateFiles(PCapLogType logType)
         throws IOException
     {
-        FileOutputStream outputStream = outputStreams.get(logType);
+        PcapFileWriter writer = writers.get(logType);
 
-        if(outputStream != null)
+        if(writer != null)
         {
-            outputStream.flush();
-            outputStream.close();
+            writer.close();
         }
 
         File[] localFiles = files.get(logType);
@@ -271,12 +296,10 @@ public class PacketLoggingServiceImpl
             }
         }
 
-        outputStream = new FileOutputStream(localFiles[0]);
-        outputStreams.put(logType, outputStream);
-        written.put(logType, 0L);
-        createGlobalHeader(outputStream);
+        writer = new PcapFileWriter(localFiles[0]);
+        writers.put(logType, writer);
 
-        return outputStream;
+        return writer;
     }
 
     /**
@@ -286,74 +309,24 @@ public class PacketLoggingServiceImpl
     {
         saverThread.stopRunning();
 
-//        for (FileOutputStream outputStream : outputStreams.values()) //Handle
+//        for (PcapFileWriter writer : writers.values()) //Handle
 // closing the media stream ourselves as we might want to continue writing to
 // it after the packet logging service is stopped???
-        FileOutputStream outputStream = outputStreams.get(PCapLogType.jitsi);
-        {
-        if(outputStream != null)
+        synchronized(this)
         {
-            try
-            {
-                outputStream.flush();
-                outputStream.close();
-            }
-            catch(IOException e)
+            PcapFileWriter writer = writers.remove(PCapLogType.jitsi);
+            if(writer != null)
             {
-                e.printStackTrace();
-            }
-            finally
-            {
-                outputStream = null;
+                try
+                {
+                    writer.close();
+                }
+                catch(IOException e)
+                {
+                    e.printStackTrace();
+                }
             }
         }
-        }
-    }
-
-    /**
-     * Creates pcap file global header.
-     * @throws IOException
-     */
-    private void createGlobalHeader(OutputStream outputStream)
-            throws IOException
-    {
-        /* magic number(swapped) */
-        outputStream.write(0xd4);
-        outputStream.write(0xc3);
-        outputStream.write(0xb2);
-        outputStream.write(0xa1);
-
-        /* major version number */
-        outputStream.write(0x02);
-        outputStream.write(0x00);
-
-        /* minor version number */
-        outputStream.write(0x04);
-        outputStream.write(0x00);
-
-        /* GMT to local correction */
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-
-        /* accuracy of timestamps */
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-
-        /* max length of captured packets, in octets */
-        outputStream.write(0xff);
-        outputStream.write(0xff);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-
-        /* data link type(ethernet) */
-        outputStream.write(0x01);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
     }
 
     /**
@@ -470,18 +443,63 @@ public class PacketLoggingServiceImpl
             // Sometimes this method gets passed duff data (for example if we
             // fail to parse a packet). Be defensive and don't save the packet
             // if there's no data.
-            saverThread.queuePacket(
-                new Packet(protocol,
-                           sourceAddress,
-                           sourcePort,
-                           destinationAddress,
-                           destinationPort,
-                           transport,
-                           sender,
-                           packetContent,
-                           packetOffset,
-                           packetLength,
-                           System.currentTimeMillis()));
+            // The caller may reuse its buffer once we return, so copy the
+            // content into a pooled packet.
+            Packet packet = acquirePacket(packetLength);
+            System.arraycopy(packetContent,
+                             packetOffset,
+                             packet.buffer,
+                             0,
+                             packetLength);
+            packet.set(protocol,
+                       sourceAddress,
+                       sourcePort,
+                       destinationAddress,
+                       destinationPort,
+                       transport,
+                       sender,
+                       packet.buffer,
+                       0,
+                       packetLength,
+                       System.currentTimeMillis());
+
+            saverThread.queuePacket(packet);
+        }
+    }
+
+    /**
+     * Gets a packet from the pool (or a new one if the pool is empty) with a
+     * buffer big enough for the given length of content.
+     */
+    private Packet acquirePacket(int length)
+    {
+        Packet packet;
+
+        synchronized(packetPool)
+        {
+            packet = packetPool.poll();
+        }
+
+        if (packet == null)
+            packet = new Packet();
+
+        if (packet.buffer == null || packet.buffer.length < length)
+            packet.buffer = new byte[Math.max(length, Packet.MIN_BUFFER_SIZE)];
+
+        return packet;
+    }
+
+    /**
+     * Returns a packet that has been saved to the pool for reuse.
+     */
+    private void releasePacket(Packet packet)
+    {
+        packet.clear();
+
+        synchronized(packetPool)
+        {
+            if (packetPool.size() < MAX_POOLED_PACKETS)
+                packetPool.push(packet);
         }
     }
 
@@ -506,7 +524,7 @@ public class PacketLoggingServiceImpl
      * @throws Exception when error occurs saving to file stream or when
      *  rotating files.
      */
-    private void savePacket(Packet packet, PCapLogType logType)
+    private synchronized void savePacket(Packet packet, PCapLogType logType)
         throws Exception
     {
         byte[] sourceAddress = packet.sourceAddress;
@@ -529,7 +547,7 @@ public class PacketLoggingServiceImpl
 
         if(isIPv4)
         {
-            ipHeader = new byte[ipHeaderTemplate.length];
+            ipHeader = this.ipHeader;
             System.arraycopy(
                     ipHeaderTemplate, 0, ipHeader, 0, ipHeader.length);
             System.arraycopy(sourceAddress,
@@ -545,7 +563,7 @@ public class PacketLoggingServiceImpl
         }
         else
         {
-            ipHeader = new byte[ip6HeaderTemplate.length];
+            ipHeader = this.ip6Header;
             System.arraycopy(
                     ip6HeaderTemplate, 0, ipHeader, 0, ipHeader.length);
             System.arraycopy(sourceAddress,
@@ -565,7 +583,6 @@ public class PacketLoggingServiceImpl
         short len;
         if(packet.transport == TransportName.UDP)
         {
-            byte[] udpHeader = new byte[udpHeaderTemplate.length];
             transportHeader = udpHeader;
             System.arraycopy(udpHeaderTemplate, 0,
                     udpHeader, 0, udpHeader.length);
@@ -577,7 +594,7 @@ public class PacketLoggingServiceImpl
         }
         else
         {
-            transportHeader = new byte[tcpHeaderTemplate.length];
+            transportHeader = tcpHeader;
             System.arraycopy(tcpHeaderTemplate, 0, transportHeader,
                    0, transportHeader.length);
 
@@ -645,62 +662,68 @@ public class PacketLoggingServiceImpl
                 ipHeader[6] = (byte)0x06;
         }
 
-        long current = packet.timestamp;
-        int tsSec = (int)(current/1000);
-        int tsUsec = (int)((current%1000) * 1000);
-        int feakHeaderLen = fakeEthernetHeader.length +
-                ipHeader.length + transportHeader.length;
-        int inclLen = packet.packetLength + feakHeaderLen;
-        int origLen = inclLen;
+        // open files only if needed
+        PcapFileWriter writer = writers.get(logType);
 
-        synchronized(this)
+        if (writer == null)
         {
-            // open files only if needed
-            OutputStream outputStream = outputStreams.get(logType);
+            getFileNames(logType);
+            writer = rotateFiles(logType);// this one opens the file for write
+        }
 
-            if (outputStream == null)
-            {
-                getFileNames(logType);
-                outputStream = rotateFiles(logType);// this one opens the file for write
-            }
+        long limit = getConfiguration().getLimit();
 
-            long limit = getConfiguration().getLimit();
+        if((limit > 0) && (writer.getWritten() > limit))
+        {
+            writer = rotateFiles(logType);
+        }
+
+        recordHeaders[0] = fakeEthernetHeader;
+        recordHeaders[1] = ipHeader;
+        recordHeaders[2] = transportHeader;
+        recordHeaderLengths[0] = fakeEthernetHeader.length;
+        recordHeaderLengths[1] = ipHeader.length;
+        recordHeaderLengths[2] = transportHeader.length;
+
+        writer.writeRecord(packet.timestamp,
+                           recordHeaders,
+                           recordHeaderLengths,
+                           packet.packetContent,
+                           packet.packetOffset,
+                           packet.packetLength);
+    }
 
-            if((limit > 0) && (written.get(logType) > limit))
+    /**
+     * Writes any packets that have been waiting too long to be written to
+     * their files.
+     */
+    private synchronized void flushIfDue()
+    {
+        for (PcapFileWriter writer : writers.values())
+        {
+            try
             {
-                outputStream = rotateFiles(logType);
+                writer.flushIfDue();
+            }
+            catch (IOException e)
+            {
+                logger.error("Error flushing packets to file", e);
             }
-
-            addInt(tsSec, outputStream);
-            addInt(tsUsec, outputStream);
-            addInt(inclLen, outputStream);
-            addInt(origLen, outputStream);
-
-            outputStream.write(fakeEthernetHeader);
-            outputStream.write(ipHeader);
-            outputStream.write(transportHeader);
-            outputStream.write(
-                    packet.packetContent,
-                    packet.packetOffset,
-                    packet.packetLength);
-            outputStream.flush();
-
-            written.put(logType, written.get(logType) + inclLen + 16);
         }
     }
 
     /**
-     * Writes int to the file. Used for packet headers.
-     * @param d the value to write.
-     * @throws IOException
+     * @return true if there are packets waiting to be written to their files.
      */
-    private void addInt(int d, OutputStream outputStream)
-        throws IOException
+    private synchronized boolean hasBufferedPackets()
     {
-        outputStream.write ((d & 0xff));
-        outputStream.write(((d & 0xff00) >> 8));
-        outputStream.write(((d & 0xff0000) >> 16));
-        outputStream.write(((d & 0xff000000) >> 24));
+        for (PcapFileWriter writer : writers.values())
+        {
+            if (writer.hasBufferedRecords())
+                return true;
+        }
+
+        return false;
     }
 
     /**
@@ -759,10 +782,21 @@ public class PacketLoggingServiceImpl
     }
 
     /**
-     * The data we receive and that we will dump in a file.
+     * The data we receive and that we will dump in a file.  Packets are
+     * pooled, so are reused once they have been saved.
      */
     private static class Packet
     {
+        /**
+         * The smallest buffer we allocate for packet content.
+         */
+        static final int MIN_BUFFER_SIZE = 2048;
+
+        /**
+         * The buffer owned by this packet that logged content is copied into.
+         */
+        byte[] buffer;
+
         /**
          * The source address of the packet.
          */
@@ -814,7 +848,7 @@ public class PacketLoggingServiceImpl
         long timestamp;
 
         /**
-         * Creates a packet with the needed data.
+         * Sets the data of the packet.
          * @param protocol the source protocol that logs this packet.
          * @param sourceAddress The source address of the packet.
          * @param sourcePort The source port of the packet.
@@ -828,17 +862,17 @@ public class PacketLoggingServiceImpl
          *  where packet content is.
          * @param packetLength The length of the packet content.
          */
-        private Packet(ProtocolName protocol,
-                       byte[] sourceAddress,
-                       int sourcePort,
-                       byte[] destinationAddress,
-                       int destinationPort,
-                       TransportName transport,
-                       boolean sender,
-                       byte[] packetContent,
-                       int packetOffset,
-                       int packetLength,
-                       long timestamp)
+        void set(ProtocolName protocol,
+                 byte[] sourceAddress,
+                 int sourcePort,
+                 byte[] destinationAddress,
+                 int destinationPort,
+                 TransportName transport,
+                 boolean sender,
+                 byte[] packetContent,
+                 int packetOffset,
+                 int packetLength,
+                 long timestamp)
         {
             this.sourceAddress = sourceAddress;
             this.sourcePort = sourcePort;
@@ -851,6 +885,17 @@ public class PacketLoggingServiceImpl
             this.packetLength = packetLength;
             this.timestamp = timestamp;
         }
+
+        /**
+         * Clears the references held by the packet, other than to its own
+         * buffer, before it is returned to the pool.
+         */
+        void clear()
+        {
+            this.sourceAddress = null;
+            this.destinationAddress = null;
+            this.packetContent = null;
+        }
     }
 
     /**
@@ -868,7 +913,7 @@ public class PacketLoggingServiceImpl
         /**
          * List of packets queued to be written in the file.
          */
-        private final List<Packet> pktsToSave = new ArrayList<>();
+        private final Deque<Packet> pktsToSave = new ArrayDeque<>();
 
         public SaverThread(String name)
         {
@@ -886,40 +931,58 @@ public class PacketLoggingServiceImpl
             {
                 Packet pktToSave;
 
+                // If packets are waiting to be written to file, only wait
+                // for new packets until they are due to be written.
+                boolean flushPending = hasBufferedPackets();
+
                 synchronized(this)
                 {
                     if(pktsToSave.isEmpty())
                     {
                         try
                         {
-                            wait();
+                            if (flushPending)
+                                wait(PcapFileWriter.FLUSH_INTERVAL_MS);
+                            else
+                                wait();
                         }
                         catch (InterruptedException iex)
                         {
                         }
-                        continue;
                     }
 
-                    pktToSave = pktsToSave.remove(0);
+                    // Don't save anything once we've been stopped, as that
+                    // would open a new pcap file after stop() closed it.
+                    if (stopped)
+                        break;
+
+                    pktToSave = pktsToSave.poll();
                 }
 
-                if(pktToSave != null)
+                if(pktToSave == null)
                 {
-                    try
-                    {
-                        savePacket(pktToSave, PCapLogType.jitsi);
-                    }
-                    catch(Throwable t)
-                    {
-                        /*
-                         * XXX ThreadDeath must be rethrown; otherwise, the
-                         * related Thread will not die.
-                         */
-                        if (t instanceof ThreadDeath)
-                            throw (ThreadDeath) t;
-                        else
-                            logger.error("Error writing packet to file", t);
-                    }
+                    flushIfDue();
+                    continue;
+                }
+
+                try
+                {
+                    savePacket(pktToSave, PCapLogType.jitsi);
+                }
+                catch(Throwable t)
+                {
+                    /*
+                     * XXX ThreadDeath must be rethrown; otherwise, the
+                     * related Thread will not die.
+                     */
+                    if (t instanceof ThreadDeath)
+                        throw (ThreadDeath) t;
+                    else
+                        logger.error("Error writing packet to file", t);
+                }
+                finally
+                {
+                    releasePacket(pktToSave);
                 }
             }
         }
@@ -995,38 +1058,67 @@ public class PacketLoggingServiceImpl
     {
         if (allowedToWriteMedia())
         {
-            try
-            {
-                Object[] mediaQueueArray = mediaQueue.toArray();
+            // Take the buffered packets, so we don't block media threads
+            // while they are written.
+            MediaPacketRing bufferToDump;
 
-                for (Object aBuf : mediaQueueArray)
-                {
-                    Packet packet = (Packet) aBuf;
-                    savePacket(packet, PCapLogType.media);
-                }
-            }
-            catch (Exception e)
+            synchronized(mediaBufferLock)
             {
-                e.printStackTrace();
+                bufferToDump = mediaBuffer;
+                mediaBuffer = null;
             }
 
-            FileOutputStream os = outputStreams.get(PCapLogType.media);
-            if (os != null)
+            synchronized(this)
             {
-                try
+                if (bufferToDump != null)
                 {
-                    os.flush();
-                    os.close();
-                    outputStreams.remove(PCapLogType.media);
+                    final Packet packet = new Packet();
+
+                    bufferToDump.forEach((content,
+                                          offset,
+                                          length,
+                                          timeStamp,
+                                          sourceAddress,
+                                          sourcePort,
+                                          destinationAddress,
+                                          destinationPort) ->
+                    {
+                        packet.set(ProtocolName.RTP,
+                                   sourceAddress,
+                                   sourcePort,
+                                   destinationAddress,
+                                   destinationPort,
+                                   TransportName.UDP,
+                                   false,
+                                   content,
+                                   offset,
+                                   length,
+                                   timeStamp);
+
+                        try
+                        {
+                            savePacket(packet, PCapLogType.media);
+                        }
+                        catch (Exception e)
+                        {
+                            e.printStackTrace();
+                        }
+                    });
                 }
-                catch (IOException e)
+
+                PcapFileWriter writer = writers.remove(PCapLogType.media);
+                if (writer != null)
                 {
-                    e.printStackTrace();
+                    try
+                    {
+                        writer.close();
+                    }
+                    catch (IOException e)
+                    {
+                        e.printStackTrace();
+                    }
                 }
-                os = null;
             }
-
-            mediaQueue.clear();
         }
     }
 
@@ -1041,7 +1133,6 @@ public class PacketLoggingServiceImpl
      * @param destinationAddress The IP address the packet was sent to
      * @param destinationPort The port the packet was sent to
      */
-    @SuppressWarnings("unchecked")
     @Override
     public void bufferMedia(byte[] packetContent,
                             long timeStamp,
@@ -1052,19 +1143,23 @@ public class PacketLoggingServiceImpl
     {
         if (allowedToCaptureMedia())
         {
-            Packet packet =
-                new Packet(ProtocolName.RTP,
-                           sourceAddress,
-                           sourcePort,
-                           destinationAddress,
-                           destinationPort,
-                           TransportName.UDP,
-                           false,
-                           packetContent,
-                           0,
-                           packetContent.length,
-                           timeStamp);
-            mediaQueue.add(packet);
+            synchronized(mediaBufferLock)
+            {
+                if (mediaBuffer == null)
+                {
+                    mediaBuffer = new MediaPacketRing(MEDIA_BUFFER_SIZE,
+                                                      MAX_BUFFERED_MEDIA_PACKETS);
+                }
+
+                mediaBuffer.add(packetContent,
+                                0,
+                                packetContent.length,
+                                timeStamp,
+                                sourceAddress,
+                                sourcePort,
+                                destinationAddress,
+                                destinationPort);
+            }
         }
     }
 }
@@ -0,0 +1,243 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.impl.packetlogging;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+/**
+ * Writes packets to a pcap file.
+ * <p>
+ * Records are assembled in a direct buffer and written to the file when the
+ * buffer fills up, or when the oldest record in it has waited for longer
+ * than the flush interval - rather than with several system calls for every
+ * packet.  Packets too big to fit in the buffer are written with a single
+ * gathering write along with the buffered records.
+ * <p>
+ * This class is not thread safe.
+ */
+class PcapFileWriter
+    implements Closeable
+{
+    /**
+     * How long a record may wait in the buffer before it is written to the
+     * file.
+     */
+    static final long FLUSH_INTERVAL_MS = 1000;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The length of the header before each packet in the file.
+     */
+    private static final int RECORD_HEADER_LENGTH = 16;
+
+    private final FileChannel channel;
+
+    /**
+     * The records not yet written to the file.  pcap files are written
+     * little endian.
+     */
+    private final ByteBuffer buffer =
+        ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * The buffers for a gathering write of the buffered records and a packet.
+     */
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[2];
+
+    /**
+     * The number of bytes written to the file, including those still in the
+     * buffer.
+     */
+    private long written = 0;
+
+    /**
+     * The time (from System.nanoTime()) that the oldest record in the buffer
+     * was added.
+     */
+    private long oldestBufferedNanos;
+
+    /**
+     * Creates (or truncates) a pcap file and writes its global header.
+     *
+     * @param file the file to write to.
+     * @throws IOException if the file could not be opened.
+     */
+    PcapFileWriter(File file)
+        throws IOException
+    {
+        channel = FileChannel.open(file.toPath(),  // CodeQL [SM00697] Not Exploitable. The file/path is not user provided.
+                                   StandardOpenOption.CREATE,
+                                   StandardOpenOption.WRITE,
+                                   StandardOpenOption.TRUNCATE_EXISTING);
+
+        buffer.putInt(0xa1b2c3d4); // magic number
+        buffer.putShort((short) 2); // major version number
+        buffer.putShort((short) 4); // minor version number
+        buffer.putInt(0); // GMT to local correction
+        buffer.putInt(0); // accuracy of timestamps
+        buffer.putInt(0xffff); // max length of captured packets, in octets
+        buffer.putInt(1); // data link type (ethernet)
+        written += buffer.position();
+        oldestBufferedNanos = System.nanoTime();
+    }
+
+    /**
+     * Writes a packet record.  The packet is made up of a number of headers
+     * and its content.
+     *
+     * @param timestamp the time of the packet, in ms since the epoch.
+     * @param headers the headers of the packet, in order.
+     * @param headerLengths the length of each header to write.
+     * @param content the array containing the packet content.
+     * @param offset the offset of the packet content in the array.
+     * @param length the length of the packet content.
+     * @throws IOException if the record could not be written.
+     */
+    void writeRecord(long timestamp,
+                     byte[][] headers,
+                     int[] headerLengths,
+                     byte[] content,
+                     int offset,
+                     int length)
+        throws IOException
+    {
+        int packetLength = length;
+        for (int headerLength : headerLengths)
+        {
+            packetLength += headerLength;
+        }
+
+        int headersLength = RECORD_HEADER_LENGTH + packetLength - length;
+
+        if (buffer.remaining() < headersLength)
+        {
+            drain(null);
+        }
+
+        if (buffer.position() == 0)
+        {
+            oldestBufferedNanos = System.nanoTime();
+        }
+
+        buffer.putInt((int) (timestamp / 1000));
+        buffer.putInt((int) ((timestamp % 1000) * 1000));
+        buffer.putInt(packetLength); // included length
+        buffer.putInt(packetLength); // original length
+
+        for (int i = 0; i < headers.length; i++)
+        {
+            buffer.put(headers[i], 0, headerLengths[i]);
+        }
+
+        if (buffer.remaining() >= length)
+        {
+            buffer.put(content, offset, length);
+        }
+        else
+        {
+            drain(ByteBuffer.wrap(content, offset, length));
+        }
+
+        written += RECORD_HEADER_LENGTH + packetLength;
+
+        flushIfDue();
+    }
+
+    /**
+     * @return the number of bytes written to the file.
+     */
+    long getWritten()
+    {
+        return written;
+    }
+
+    /**
+     * @return true if there are records waiting to be written to the file.
+     */
+    boolean hasBufferedRecords()
+    {
+        return buffer.position() > 0;
+    }
+
+    /**
+     * Writes the buffered records to the file if the oldest has waited for
+     * longer than the flush interval.
+     *
+     * @throws IOException if the records could not be written.
+     */
+    void flushIfDue()
+        throws IOException
+    {
+        if (hasBufferedRecords() &&
+            System.nanoTime() - oldestBufferedNanos >=
+                TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MS))
+        {
+            drain(null);
+        }
+    }
+
+    /**
+     * Writes the buffered records to the file.
+     *
+     * @throws IOException if the records could not be written.
+     */
+    void flush()
+        throws IOException
+    {
+        drain(null);
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        try
+        {
+            drain(null);
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes the buffered records, followed by the given data if it isn't
+     * null, to the file and empties the buffer.
+     */
+    private void drain(ByteBuffer extra)
+        throws IOException
+    {
+        buffer.flip();
+
+        try
+        {
+            if (extra == null)
+            {
+                while (buffer.hasRemaining())
+                {
+                    channel.write(buffer);
+                }
+            }
+            else
+            {
+                gatherBuffers[0] = buffer;
+                gatherBuffers[1] = extra;
+
+                while (buffer.hasRemaining() || extra.hasRemaining())
+                {
+                    channel.write(gatherBuffers);
+                }
+            }
+        }
+        finally
+        {
+            gatherBuffers[1] = null;
+            buffer.clear();
+        }
+    }
+}
@@ -13,6 +13,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
 import javax.swing.*;
 
@@ -96,9 +97,30 @@ public class InfoRetreiver
     @VisibleForTesting
     public long vcardTimeoutReply;
 
+    /**
+     * The vCards fetched by previous runs, so that contacts' vCards aren't
+     * fetched again if they haven't changed.
+     */
+    private final VCardCache mVCardCache;
+
+    /**
+     * Map from contact address to the photo hash that the contact last
+     * advertised in presence (XEP-0153).
+     */
+    private final Map<String, String> mAdvertisedPhotoHashes
+        = new ConcurrentHashMap<>();
+
+    /**
+     * Map from contact address to the photo hash of the vCard that the
+     * contact's details in retrievedDetails came from.
+     */
+    private final Map<String, String> mRetrievedPhotoHashes
+        = new ConcurrentHashMap<>();
+
     protected InfoRetreiver(ProtocolProviderServiceJabberImpl jabberProvider)
     {
         this.jabberProvider = jabberProvider;
+        mVCardCache = new VCardCache(jabberProvider.getAccountID());
 
         vcardTimeoutReply
             = JabberActivator.getConfigurationService().global().getLong(
@@ -194,6 +216,11 @@ public class InfoRetreiver
 
         List<GenericDetail> result = new LinkedList<>();
 
+        // The photo hash that the contact was advertising when we started,
+        // so that we can tell if it changes while we're fetching the vCard.
+        String advertisedPhotoHash = mAdvertisedPhotoHashes.get(contactAddress);
+        String retrievedPhotoHash = null;
+
         Throwable throwable = null;
         try
         {
@@ -201,10 +228,26 @@ public class InfoRetreiver
             EntityBareJid contactAddressAsJid =
                 JidCreate.entityBareFrom(contactAddress);
 
-            if(connection == null || !connection.isAuthenticated())
-                return null;
+            // Our own vCard is always fetched, as it may have been changed
+            // by another client without us seeing a new photo hash.
+            boolean isOwnAddress = contactAddress.equalsIgnoreCase(
+                jabberProvider.getAccountID().getUserID());
+
+            VCard card = isOwnAddress ? null : mVCardCache.get(
+                contactAddress, advertisedPhotoHash);
+
+            if (card == null)
+            {
+                if(connection == null || !connection.isAuthenticated())
+                    return null;
 
-            VCard card = load(connection, contactAddressAsJid);
+                card = load(connection, contactAddressAsJid);
+
+                if (!isOwnAddress)
+                    mVCardCache.put(contactAddress, card);
+            }
+
+            retrievedPhotoHash = VCardCache.getPhotoHash(card);
 
             String tmp;
 
@@ -360,11 +403,46 @@ public class InfoRetreiver
             sLog.error("Cannot load details for contact " + sanitiseChatAddress(contactAddress));
         }
 
-        retrievedDetails.put(contactAddress, result);
+        storeRetrievedDetails(contactAddress,
+                              result,
+                              advertisedPhotoHash,
+                              retrievedPhotoHash);
 
         return result;
     }
 
+    /**
+     * Stores the details retrieved for a contact, unless the contact has
+     * advertised a different photo hash since we started retrieving them, in
+     * which case they are out of date and will be retrieved again.
+     *
+     * @param contactAddress the address of the contact
+     * @param details the details retrieved
+     * @param advertisedPhotoHash the photo hash the contact was advertising
+     * when we started retrieving the details
+     * @param retrievedPhotoHash the photo hash of the vCard the details came
+     * from, or null if we failed to get the vCard
+     */
+    private synchronized void storeRetrievedDetails(
+        String contactAddress,
+        List<GenericDetail> details,
+        String advertisedPhotoHash,
+        String retrievedPhotoHash)
+    {
+        if (!Objects.equals(advertisedPhotoHash,
+                            mAdvertisedPhotoHashes.get(contactAddress)))
+        {
+            sLog.debug("Photo hash changed while retrieving details for " +
+                       sanitiseChatAddress(contactAddress));
+            return;
+        }
+
+        if (retrievedPhotoHash != null)
+            mRetrievedPhotoHashes.put(contactAddress, retrievedPhotoHash);
+
+        retrievedDetails.put(contactAddress, details);
+    }
+
     /**
      * request the full info for the given contactAddress if available
      * in cache.
@@ -377,6 +455,29 @@ public class InfoRetreiver
         return retrievedDetails.get(contactAddress);
     }
 
+    /**
+     * Records the photo hash that a contact has advertised in presence
+     * (XEP-0153).  If it differs from the photo in the details we hold for the
+     * contact, they are dropped so that they are retrieved again.
+     *
+     * @param contactAddress the address of the contact
+     * @param photoHash the SHA-1 hash of the contact's photo as hex, or the
+     * empty string if the contact has no photo.
+     */
+    synchronized void setAdvertisedPhotoHash(String contactAddress,
+                                             String photoHash)
+    {
+        mAdvertisedPhotoHashes.put(contactAddress, photoHash);
+
+        String retrievedPhotoHash = mRetrievedPhotoHashes.get(contactAddress);
+
+        if (!photoHash.equals(retrievedPhotoHash))
+        {
+            mRetrievedPhotoHashes.remove(contactAddress);
+            retrievedDetails.remove(contactAddress);
+        }
+    }
+
     /**
      * Checks for full name tag in the <tt>card</tt>.
      * @param card the card to check.
@@ -434,6 +434,10 @@ public class JabberActivator implements BundleActivator
         jabberProviderFactory.stop();
         jabberPpFactoryServReg.unregister();
 
+        // Write out the index of the vCard cache, which otherwise may not
+        // have been checkpointed since the last change.
+        VCardCache.closeStore();
+
         if (uriHandlerImpl != null)
         {
             uriHandlerImpl.dispose();
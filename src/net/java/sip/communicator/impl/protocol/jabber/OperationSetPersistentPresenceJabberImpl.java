@@ -18,12 +18,15 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.jivesoftware.smack.SmackException.NoResponseException;
 import org.jivesoftware.smack.SmackException.NotConnectedException;
@@ -55,6 +58,7 @@ import org.jxmpp.stringprep.XmppStringprepException;
 
 import net.java.sip.communicator.service.analytics.AnalyticsEventType;
 import net.java.sip.communicator.service.analytics.AnalyticsParameter;
+import net.java.sip.communicator.service.contactlist.MetaContactListService;
 import net.java.sip.communicator.service.diagnostics.DiagnosticsServiceRegistrar;
 import net.java.sip.communicator.service.diagnostics.StateDumper;
 import net.java.sip.communicator.service.imageloader.BufferedImageAvailableFromBytes;
@@ -79,6 +83,7 @@ import net.java.sip.communicator.service.protocol.event.ServerStoredGroupListene
 import net.java.sip.communicator.service.protocol.globalstatus.GlobalStatusService;
 import net.java.sip.communicator.service.protocol.jabberconstants.JabberStatusEnum;
 import net.java.sip.communicator.service.protocol.jabberconstants.JabberStatusEnum.JabberPresenceStatus;
+import net.java.sip.communicator.service.threading.ThreadFactoryBuilder;
 import net.java.sip.communicator.util.ContactLogger;
 import net.java.sip.communicator.util.Logger;
 import org.jitsi.service.resources.BufferedImageFuture;
@@ -1407,6 +1412,7 @@ public class OperationSetPersistentPresenceJabberImpl
                 }
 
                 DiagnosticsServiceRegistrar.unregisterStateDumper(contactChangesListener);
+                contactChangesListener.stop();
                 contactChangesListener = null;
             }
         }
@@ -1428,19 +1434,53 @@ public class OperationSetPersistentPresenceJabberImpl
     class ContactChangesListener
         implements RosterListener, StateDumper
     {
+        /**
+         * How long to wait after receiving a presence before applying it, so
+         * that any later presences from the same resource received in the
+         * meantime replace it rather than being applied as well.
+         */
+        private static final long COALESCE_WINDOW_MS = 100;
+
         /**
          * Store events for later processing, used when initializing contact
-         * list, and when reading the statuses during a statedump to prevent a
-         * ConcurrentModificationException. Access to this field and
-         * storedPresences is synchronized on storedPresences.
+         * list. Access to this field, pendingPresences and
+         * applyScheduled is synchronized on pendingPresences.
          */
         private boolean storeEvents = false;
 
         /**
-         * Stored presences for later processing.  Access to this field and storeEvents is
-         * synchronized on storedPresences.
+         * The presences waiting to be applied, indexed by the full JID they
+         * are from.  Only the latest presence from each resource is kept, as
+         * it supersedes any earlier ones.
+         */
+        private final Map<Jid, Presence> pendingPresences = new LinkedHashMap<>();
+
+        /**
+         * Whether a task to apply the pending presences has been scheduled.
+         */
+        private boolean applyScheduled = false;
+
+        /**
+         * Applies the pending presences, one batch at a time, in the order
+         * they were received.
+         */
+        private final ScheduledThreadPoolExecutor presenceExecutor;
+
+        /**
+         * The number of presences received from the server.
+         */
+        private final LongAdder presencesReceived = new LongAdder();
+
+        /**
+         * The number of presences applied, i.e. not superseded by a later
+         * presence from the same resource before they were applied.
+         */
+        private final LongAdder presencesApplied = new LongAdder();
+
+        /**
+         * The number of batches of presences applied.
          */
-        private final List<Presence> storedPresences = new ArrayList<>();
+        private final LongAdder batchesApplied = new LongAdder();
 
         /**
          * Map containing all statuses for a userID. The statuses for each
@@ -1450,6 +1490,18 @@ public class OperationSetPersistentPresenceJabberImpl
         private final Map<String, TreeSet<ProcessedPresence>> statuses =
                 new Hashtable<>();
 
+        ContactChangesListener()
+        {
+            presenceExecutor = new ScheduledThreadPoolExecutor(
+                1,
+                new ThreadFactoryBuilder()
+                    .setName("jabber-presence-thread")
+                    .setDaemon(true)
+                    .build());
+            presenceExecutor.setKeepAliveTime(60L, TimeUnit.SECONDS);
+            presenceExecutor.allowCoreThreadTimeOut(true);
+        }
+
         /**
          * Not used here.
          * @param addresses list of addresses added
@@ -1599,7 +1651,7 @@ public class OperationSetPersistentPresenceJabberImpl
          */
         void storeEvents()
         {
-            synchronized (storedPresences)
+            synchronized (pendingPresences)
             {
                 sLog.info("Setting storeEvents to true.");
                 storeEvents = true;
@@ -1610,60 +1662,138 @@ public class OperationSetPersistentPresenceJabberImpl
          * Processes all presence updates that were stored while store events
          * was set to true. Also sets store events to false so that future
          * presence updates will be processed as soon as they are received.
+         * The stored presences are applied in a single batch on the presence
+         * thread, rather than on this thread.
          */
         void processStoredEvents()
         {
-            List<Presence> storedPresencesToFire;
-
-            // We don't want to call firePresenceStatusChanged whilst holding the storedPresences
-            // lock because that calls into Smack code that will require an XMPPConnection lock
-            // which may be owned by another thread that also needs the storedPresences lock,
-            // causing a deadlock.  Therefore, copy the list, release the lock, then iterate through
-            // the copy of the list.
-            synchronized (storedPresences)
+            synchronized (pendingPresences)
             {
-                sLog.info("Processing stored events and setting storeEvents to false.");
+                sLog.info("Processing " + pendingPresences.size() +
+                          " stored presences and setting storeEvents to false.");
                 storeEvents = false;
-                storedPresencesToFire = new ArrayList<>(storedPresences);
-                storedPresences.clear();
+                scheduleApply(0);
             }
+        }
 
-            for (Presence p : storedPresencesToFire)
+        /**
+         * Stops applying presences, and discards any which have not yet been
+         * applied.
+         */
+        void stop()
+        {
+            synchronized (pendingPresences)
             {
-                firePresenceStatusChanged(p);
+                pendingPresences.clear();
+                presenceExecutor.shutdownNow();
             }
         }
 
         /**
-         * Called when we receive a presence update from a buddy.  If we are
-         * storing events to be processed later, this adds the presence update
-         * to the list of stored presences.  Otherwise, it fires a presence
-         * status change event immediately.
+         * Called when we receive a presence update from a buddy.  The
+         * presence replaces any pending presence from the same resource, and
+         * is applied after a short delay unless we are storing events to be
+         * processed later.
          *
          * @param presence the newly received Presence
          */
         private void handlePresenceStatusChanged(Presence presence)
         {
-            // We don't want to call firePresenceStatusChanged whilst holding the storedPresences
+            presencesReceived.increment();
+
+            synchronized (pendingPresences)
+            {
+                // Remove any earlier presence first, so that the order of
+                // the map is the order the latest presences were received.
+                Jid from = presence.getFrom();
+                pendingPresences.remove(from);
+                pendingPresences.put(from, presence);
+
+                if (!storeEvents)
+                {
+                    scheduleApply(COALESCE_WINDOW_MS);
+                }
+            }
+        }
+
+        /**
+         * Schedules the pending presences to be applied, unless that has
+         * already been scheduled.  Must be called while synchronized on
+         * pendingPresences.
+         *
+         * @param delay the delay in milliseconds before applying them.
+         */
+        private void scheduleApply(long delay)
+        {
+            if (applyScheduled ||
+                pendingPresences.isEmpty() ||
+                presenceExecutor.isShutdown())
+            {
+                return;
+            }
+
+            applyScheduled = true;
+            presenceExecutor.schedule(this::applyPendingPresences,
+                                      delay,
+                                      TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Applies the pending presences as a single batch, so that the
+         * contact list is only updated once for each contact and group.
+         */
+        private void applyPendingPresences()
+        {
+            // We don't want to call firePresenceStatusChanged whilst holding the pendingPresences
             // lock because that calls into Smack code that will require an XMPPConnection lock
-            // which may be owned by another thread that also needs the storedPresences lock,
-            // causing a deadlock.  Therefore, we effectively store the value of storeEvents for
-            // use after releasing the lock.
-            boolean storedForLater = false;
+            // which may be owned by another thread that also needs the pendingPresences lock,
+            // causing a deadlock.  Therefore, copy the presences, release the lock, then iterate
+            // through the copy.
+            List<Presence> presencesToFire;
 
-            synchronized (storedPresences)
+            synchronized (pendingPresences)
             {
+                applyScheduled = false;
+
                 if (storeEvents)
                 {
-                    storedPresences.add(presence);
-                    storedForLater = true;
+                    // They will be applied by processStoredEvents.
+                    return;
                 }
+
+                presencesToFire = new ArrayList<>(pendingPresences.values());
+                pendingPresences.clear();
             }
 
-            if (!storedForLater)
+            Runnable batch = () ->
+            {
+                for (Presence p : presencesToFire)
+                {
+                    firePresenceStatusChanged(p);
+                }
+            };
+
+            try
             {
-                firePresenceStatusChanged(presence);
+                MetaContactListService metaContactListService =
+                    JabberActivator.getMetaContactListService();
+
+                if (metaContactListService != null)
+                    metaContactListService.runPresenceBatch(batch);
+                else
+                    batch.run();
             }
+            catch (RuntimeException ex)
+            {
+                sLog.error("Failed to apply presence updates", ex);
+            }
+
+            presencesApplied.add(presencesToFire.size());
+            batchesApplied.increment();
+            sLog.debug("Applied " + presencesToFire.size() +
+                       " presence updates; " + presencesApplied.sum() +
+                       " of " + presencesReceived.sum() +
+                       " received have been applied");
         }
 
         /**
@@ -1702,65 +1832,70 @@ public class OperationSetPersistentPresenceJabberImpl
                     return;
                 }
 
-                // All contact statuses that are received from all its
-                // resources and are ordered by which is most important to the
-                // local user.
-                TreeSet<ProcessedPresence> userStatus = statuses.get(userIDString);
-                if (userStatus == null)
-                {
-                    userStatus = new TreeSet<>();
-                    statuses.put(userIDString, userStatus);
-                }
-                else
+                Presence currentPresence;
+
+                // The state dump reads the statuses on another thread.
+                synchronized (statuses)
                 {
-                    // Remove any existing status for this resource.  If it is
-                    // online we will update its value with the new status
-                    // below.
-                    Iterator<ProcessedPresence> iter = userStatus.iterator();
-                    while (iter.hasNext())
+                    // All contact statuses that are received from all its
+                    // resources and are ordered by which is most important to the
+                    // local user.
+                    TreeSet<ProcessedPresence> userStatus = statuses.get(userIDString);
+                    if (userStatus == null)
+                    {
+                        userStatus = new TreeSet<>();
+                        statuses.put(userIDString, userStatus);
+                    }
+                    else
                     {
-                        Presence p = iter.next().getPresence();
-                        if ((p.getFrom().getResourceOrEmpty().toString()).equals(resource))
+                        // Remove any existing status for this resource.  If it is
+                        // online we will update its value with the new status
+                        // below.
+                        Iterator<ProcessedPresence> iter = userStatus.iterator();
+                        while (iter.hasNext())
                         {
-                            iter.remove();
+                            Presence p = iter.next().getPresence();
+                            if ((p.getFrom().getResourceOrEmpty().toString()).equals(resource))
+                            {
+                                iter.remove();
+                            }
                         }
                     }
-                }
 
-                // We don't want to add the offline status to the set
-                if (!status.equals(parentProvider.getJabberStatusEnum().
-                                    getStatus(JabberStatusEnum.OFFLINE_STATUS)))
-                {
-                    userStatus.add(new ProcessedPresence(presence));
-                }
+                    // We don't want to add the offline status to the set
+                    if (!status.equals(parentProvider.getJabberStatusEnum().
+                                        getStatus(JabberStatusEnum.OFFLINE_STATUS)))
+                    {
+                        userStatus.add(new ProcessedPresence(presence));
+                    }
 
-                Presence currentPresence;
-                if (userStatus.size() == 0)
-                {
-                    /*
-                     * We no longer have statuses for this resource so it
-                     * doesn't make sense to retain (1) the TreeSet and (2) its
-                     * slot in the statuses Map.
-                     */
-                    sLog.debug("No stored presence found for " + loggableUserID);
-                    currentPresence = presence;
-                    statuses.remove(userIDString);
-                }
-                else
-                {
-                    /*
-                     * There is some presence for this resource - we use the
-                     * highest importance one - i.e. the last in the TreeSet.
-                     */
-                    ProcessedPresence mostImportantStatus = userStatus.last();
-                    currentPresence = mostImportantStatus.getPresence();
-                    contactLogger.debug("Most important presence stored for " +
-                                  loggableUserID + " is from resource " +
-                                  sanitisePeerId(currentPresence.getFrom().getResourceOrEmpty()) +
-                                 ", mode: " + currentPresence.getMode() +
-                                 ", type: " + currentPresence.getType() +
-                                 ", message: " + logHasher(currentPresence.getStatus()) +
-                                 ", time processed: " + mostImportantStatus.getTimeStamp());
+                    if (userStatus.size() == 0)
+                    {
+                        /*
+                         * We no longer have statuses for this resource so it
+                         * doesn't make sense to retain (1) the TreeSet and (2) its
+                         * slot in the statuses Map.
+                         */
+                        sLog.debug("No stored presence found for " + loggableUserID);
+                        currentPresence = presence;
+                        statuses.remove(userIDString);
+                    }
+                    else
+                    {
+                        /*
+                         * There is some presence for this resource - we use the
+                         * highest importance one - i.e. the last in the TreeSet.
+                         */
+                        ProcessedPresence mostImportantStatus = userStatus.last();
+                        currentPresence = mostImportantStatus.getPresence();
+                        contactLogger.debug("Most important presence stored for " +
+                                      loggableUserID + " is from resource " +
+                                      sanitisePeerId(currentPresence.getFrom().getResourceOrEmpty()) +
+                                     ", mode: " + currentPresence.getMode() +
+                                     ", type: " + currentPresence.getType() +
+                                     ", message: " + logHasher(currentPresence.getStatus()) +
+                                     ", time processed: " + mostImportantStatus.getTimeStamp());
+                    }
                 }
 
                 // Bail out now if the userID is for a chatroom.
@@ -1932,19 +2067,22 @@ public class OperationSetPersistentPresenceJabberImpl
             state.append("Bare JID --> Presence from resources in asc. importance [resource, type, mode, status, time processed]:\n");
 
             // Prevent ConcurrentModificationException
-            storeEvents();
-
-            for (Map.Entry<String, TreeSet<ProcessedPresence>> entry : statuses.entrySet())
+            synchronized (statuses)
             {
-                state.append("\n").append(logHasher(entry.getKey())).append(": ");
-
-                for (ProcessedPresence status : entry.getValue())
+                for (Map.Entry<String, TreeSet<ProcessedPresence>> entry : statuses.entrySet())
                 {
-                    state.append(status.dumpResourcePresenceInfo()).append(", ");
+                    state.append("\n").append(logHasher(entry.getKey())).append(": ");
+
+                    for (ProcessedPresence status : entry.getValue())
+                    {
+                        state.append(status.dumpResourcePresenceInfo()).append(", ");
+                    }
                 }
             }
 
-            processStoredEvents();
+            state.append("\n\nPresences received: ").append(presencesReceived.sum())
+                 .append(", applied: ").append(presencesApplied.sum())
+                 .append(", in batches: ").append(batchesApplied.sum());
 
             return state.toString();
         }
@@ -2509,41 +2647,41 @@ public class OperationSetPersistentPresenceJabberImpl
                     VCardTempXUpdatePresenceExtension.NAMESPACE);
         if(defaultExtensionElement != null)
         {
-            try
-            {
-                String packetPhotoSHA1 =
-                    defaultExtensionElement.getAttributeValue("photo");
-                // If this presence packet has a photo tag with a SHA-1 hash
-                // which differs from the current avatar SHA-1 hash, then Jitsi
-                // retrieves the new avatar image and updates this contact image
-                // in the contact list.
-                if(packetPhotoSHA1 != null &&
-                   !packetPhotoSHA1.equals(
-                           currentAvatar == null ?
-                               "":
-                               VCardTempXUpdatePresenceExtension.getImageSha1(currentAvatar.getBytes())
-                               )
-                   )
-                {
-                    byte[] newAvatar;
+            String packetPhotoSHA1 =
+                defaultExtensionElement.getAttributeValue("photo");
 
-                    // If there is an avatar image, retrieves it.
-                    if(!packetPhotoSHA1.isEmpty())
-                    {
-                        // Retrieves the new contact avatar image.
-                        VCard vCard = VCardManager.getInstanceFor(parentProvider.getConnection())
-                            .loadVCard(userID.asEntityBareJidOrThrow());
-                        newAvatar = vCard.getAvatar();
-                    }
-                    // Else removes the current avatar image, since the contact
-                    // has removed it from the server.
-                    else
-                    {
-                        newAvatar = new byte[0];
-                    }
+            if (packetPhotoSHA1 == null)
+            {
+                return;
+            }
 
+            ssContactList.setAdvertisedPhotoHash(sourceContact, packetPhotoSHA1);
+
+            // If this presence packet has a photo tag with a SHA-1 hash
+            // which differs from the current avatar SHA-1 hash, then Jitsi
+            // retrieves the new avatar image and updates this contact image
+            // in the contact list.
+            if(!packetPhotoSHA1.equals(
+                   currentAvatar == null ?
+                       "":
+                       VCardTempXUpdatePresenceExtension.getImageSha1(currentAvatar.getBytes())
+                       )
+               )
+            {
+                // If there is an avatar image, queue the contact to retrieve
+                // it, rather than blocking the stanza listener.  The image
+                // retriever fires the property change event once it has it.
+                if(!packetPhotoSHA1.isEmpty())
+                {
+                    ssContactList.addContactForImageUpdate(sourceContact);
+                }
+                // Else removes the current avatar image, since the contact
+                // has removed it from the server.
+                else
+                {
                     // Sets the new avatar image to the Jitsi contact.
-                    BufferedImageFuture bif = BufferedImageAvailableFromBytes.fromBytes(newAvatar);
+                    BufferedImageFuture bif =
+                        BufferedImageAvailableFromBytes.fromBytes(new byte[0]);
                     sourceContact.setImage(bif);
                     // Fires a property change event to update the contact list.
                     this.fireContactPropertyChangeEvent(
@@ -2553,13 +2691,6 @@ public class OperationSetPersistentPresenceJabberImpl
                         bif);
                 }
             }
-            catch(XMPPErrorException | NoResponseException | NotConnectedException |
-                InterruptedException ex)
-            {
-                sLog.info("Cannot retrieve vCard from: " +
-                            sanitisePeerId(stanza.getFrom()));
-                sLog.trace("vCard retrieval exception was: ", ex);
-            }
         }
     }
 
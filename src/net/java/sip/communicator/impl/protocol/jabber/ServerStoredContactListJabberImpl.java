@@ -14,10 +14,15 @@ import static org.jitsi.util.SanitiseUtils.sanitiseValuesInList;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 import com.google.common.annotations.VisibleForTesting;
 
@@ -57,6 +62,7 @@ import net.java.sip.communicator.service.protocol.event.ContactPropertyChangeEve
 import net.java.sip.communicator.service.protocol.event.ServerStoredGroupEvent;
 import net.java.sip.communicator.service.protocol.event.ServerStoredGroupListener;
 import net.java.sip.communicator.service.protocol.event.SubscriptionEvent;
+import net.java.sip.communicator.service.threading.ThreadFactoryBuilder;
 import net.java.sip.communicator.service.wispaservice.WISPAAction;
 import net.java.sip.communicator.service.wispaservice.WISPANamespace;
 import net.java.sip.communicator.service.wispaservice.WISPAService;
@@ -123,12 +129,22 @@ public class ServerStoredContactListJabberImpl implements StateDumper
         = new Vector<>();
 
     /**
-     *  Thread retrieving images for contacts
+     * The name of the property which sets the maximum number of vCard
+     * requests to have in flight at once when retrieving contact images.
+     */
+    private static final String MAX_CONCURRENT_VCARD_REQUESTS_PROPERTY =
+        "net.java.sip.communicator.impl.protocol.jabber." +
+        "MAX_CONCURRENT_VCARD_REQUESTS";
+
+    private static final int DEFAULT_MAX_CONCURRENT_VCARD_REQUESTS = 4;
+
+    /**
+     *  Retriever of images for contacts
      */
     private ImageRetriever imageRetriever = null;
 
     /**
-     *  Lock for accessing the above thread.
+     *  Lock for accessing the above retriever.
      */
     private final Object imageRetrieverLock = new Object();
 
@@ -1028,8 +1044,8 @@ public class ServerStoredContactListJabberImpl implements StateDumper
             logger.warn("XMPP connection is null - not setting roster");
         }
 
-        // We don't set imageRetriever to null in cleanup, to stop further calls to addContactForImageUpdate from creating a new
-        // Thread with an object that mightn't be used again.  Set it to null here, so we can create a new one from this point.
+        // We don't set imageRetriever to null in cleanup, to stop further calls to addContactForImageUpdate from creating new
+        // threads with an object that mightn't be used again.  Set it to null here, so we can create a new one from this point.
         // Out of an abundance of caution, call quit() again, in case cleanup() hasn't been called since the last init().
         synchronized (imageRetrieverLock)
         {
@@ -1430,7 +1446,6 @@ public class ServerStoredContactListJabberImpl implements StateDumper
             if (imageRetriever == null)
             {
                 imageRetriever = new ImageRetriever(jabberProvider.getAccountID());
-                imageRetriever.start();
             }
 
             local = imageRetriever;
@@ -1439,6 +1454,20 @@ public class ServerStoredContactListJabberImpl implements StateDumper
         local.addContact(c);
     }
 
+    /**
+     * Records the hash of a contact's photo, as advertised in presence
+     * (XEP-0153).  Once recorded, a contact queued for image update gets its
+     * image from the vCard cache if we hold a vCard with that photo.
+     *
+     * @param c ContactJabberImpl
+     * @param photoHash the SHA-1 hash of the photo as hex, or the empty
+     * string if the contact has no photo.
+     */
+    void setAdvertisedPhotoHash(ContactJabberImpl c, String photoHash)
+    {
+        infoRetreiver.setAdvertisedPhotoHash(c.getAddress(), photoHash);
+    }
+
     /**
      * Some roster entries are not supposed to be seen.
      * Like some services automatically add contacts from their
@@ -1923,109 +1952,107 @@ public class ServerStoredContactListJabberImpl implements StateDumper
     }
 
     /**
-     * Thread retrieving images.
+     * Retrieves images for contacts, fetching the vCards of up to
+     * <tt>MAX_CONCURRENT_VCARD_REQUESTS_PROPERTY</tt> contacts at once.
      */
     private class ImageRetriever
-        extends Thread
     {
-        private ImageRetriever(AccountID account)
-        {
-            super("Jabber ImageRetriever for: " + account.getLoggableAccountID());
-        }
+        private final ExecutorService mExecutor;
 
         /**
-         * list with the accounts with missing image
+         * The contacts waiting for image retrieval.
          */
-        private final List<ContactJabberImpl> contactsForUpdate
-            = new Vector<>();
+        private final Set<ContactJabberImpl> contactsForUpdate
+            = new HashSet<>();
 
         /**
          * Should we stop.
          */
-        private boolean running = false;
+        private volatile boolean running = true;
+
+        private ImageRetriever(AccountID account)
+        {
+            int maxRequests = JabberActivator.getConfigurationService().global()
+                .getInt(MAX_CONCURRENT_VCARD_REQUESTS_PROPERTY,
+                        DEFAULT_MAX_CONCURRENT_VCARD_REQUESTS);
+
+            mExecutor = Executors.newFixedThreadPool(
+                Math.max(maxRequests, 1),
+                new ThreadFactoryBuilder()
+                    .setName("Jabber ImageRetriever for: " +
+                             account.getLoggableAccountID())
+                    .build());
+        }
 
         /**
-         * Thread entry point.
+         * Retrieves the image of a contact, and updates the contact with it.
+         *
+         * @param contact ContactJabberImpl
          */
-        public void run()
+        private void retrieveImage(ContactJabberImpl contact)
         {
-            try
+            // Remove the contact before fetching, so that if it advertises a
+            // new photo while we're fetching then it is queued again rather
+            // than the new photo being missed.
+            synchronized(contactsForUpdate)
             {
-                Collection<ContactJabberImpl> copyContactsForUpdate = null;
-                running = true;
-                while (running)
-                {
-                    synchronized(contactsForUpdate)
-                    {
-                        if(contactsForUpdate.isEmpty())
-                            contactsForUpdate.wait();
-
-                        if(!running)
-                            return;
-
-                        copyContactsForUpdate
-                            = new Vector<>(contactsForUpdate);
-                        contactsForUpdate.clear();
-                    }
+                contactsForUpdate.remove(contact);
+            }
 
-                    Iterator<ContactJabberImpl> iter
-                        = copyContactsForUpdate.iterator();
-                    while (iter.hasNext())
-                    {
-                        ContactJabberImpl contact = iter.next();
+            if (!running)
+                return;
 
-                        BufferedImageFuture imgBytes = getAvatar(contact);
+            BufferedImageFuture imgBytes = getAvatar(contact);
 
-                        if(imgBytes != null)
-                        {
-                            BufferedImageFuture oldImage = contact.getImage(false);
-
-                            contact.setImage(imgBytes);
-                            parentOperationSet.fireContactPropertyChangeEvent(
-                                ContactPropertyChangeEvent.PROPERTY_IMAGE,
-                                contact, oldImage, imgBytes);
-                        }
-                        else
-                            // set an empty image data so it won't be queried again
-                            contact.setImage(null);
-                    }
-                }
-            }
-            catch (InterruptedException ex)
+            if(imgBytes != null)
             {
-                logger.error("ImageRetriever error waiting will stop now!", ex);
+                BufferedImageFuture oldImage = contact.getImage(false);
+
+                contact.setImage(imgBytes);
+                parentOperationSet.fireContactPropertyChangeEvent(
+                    ContactPropertyChangeEvent.PROPERTY_IMAGE,
+                    contact, oldImage, imgBytes);
             }
+            else
+                // set an empty image data so it won't be queried again
+                contact.setImage(null);
         }
 
         /**
-         * Add contact for retrieving
-         * if the provider is register notify the retriever to get the nicks
-         * if we are not registered add a listener to wait for registering
+         * Add contact for retrieving, unless it is already queued.
          *
          * @param contact ContactJabberImpl
          */
-        synchronized void addContact(ContactJabberImpl contact)
+        void addContact(ContactJabberImpl contact)
         {
             synchronized(contactsForUpdate)
             {
-                if (!contactsForUpdate.contains(contact))
+                if (!running || !contactsForUpdate.add(contact))
+                    return;
+            }
+
+            try
+            {
+                mExecutor.execute(() -> retrieveImage(contact));
+            }
+            catch (RejectedExecutionException ex)
+            {
+                // We've quit.
+                synchronized(contactsForUpdate)
                 {
-                    contactsForUpdate.add(contact);
-                    contactsForUpdate.notifyAll();
+                    contactsForUpdate.remove(contact);
                 }
             }
         }
 
         /**
-         * Stops this thread.
+         * Stops retrieving images.  Retrievals already in progress are left
+         * to finish.
          */
         void quit()
         {
-            synchronized(contactsForUpdate)
-            {
-                running = false;
-                contactsForUpdate.notifyAll();
-            }
+            running = false;
+            mExecutor.shutdown();
         }
 
         /**
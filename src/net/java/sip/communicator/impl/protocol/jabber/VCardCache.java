@@ -0,0 +1,190 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.impl.protocol.jabber;
+
+import static net.java.sip.communicator.util.PrivacyUtils.sanitiseChatAddress;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.IqData;
+import org.jivesoftware.smack.provider.IqProvider;
+import org.jivesoftware.smack.provider.ProviderManager;
+import org.jivesoftware.smack.util.PacketParserUtils;
+import org.jivesoftware.smack.xml.XmlPullParser;
+import org.jivesoftware.smackx.vcardtemp.packet.VCard;
+
+import net.java.sip.communicator.service.protocol.AccountID;
+import net.java.sip.communicator.util.AvatarStore;
+import net.java.sip.communicator.util.Logger;
+
+/**
+ * A persistent cache of the vCards fetched for an account, so that we don't
+ * fetch them all again after a restart.
+ *
+ * A cached vCard is only used if it was fetched within the last day and, if
+ * the contact has advertised the SHA-1 hash of its photo in presence
+ * (XEP-0153), the hash matches the photo in the vCard.  The vCards are held as
+ * XML in an <tt>AvatarStore</tt> shared by all accounts, which only rewrites a
+ * vCard if it has changed.
+ */
+class VCardCache
+{
+    private static final Logger sLog = Logger.getLogger(VCardCache.class);
+
+    /**
+     * The directory of the store, relative to the active user's directory.
+     */
+    private static final String CACHE_DIR = "vcardcache";
+
+    /**
+     * How long a vCard can be used for before it is fetched again.  The photo
+     * hash in presence only covers the photo, so other details could be out
+     * of date however recently the hash was advertised.  This matches the
+     * expiry of the avatar cache.
+     */
+    private static final long MAX_AGE_MS = 24 * 3600 * 1000;
+
+    /**
+     * The store for the active user, or null if it hasn't been opened yet.
+     */
+    private static AvatarStore sStore;
+
+    private final AccountID mAccountID;
+
+    private final IqProvider<IQ> mVCardProvider;
+
+    private final IqData mCommonIqData;
+
+    VCardCache(AccountID accountID)
+    {
+        mAccountID = accountID;
+        mVCardProvider = ProviderManager.getIQProvider("vCard", "vcard-temp");
+        mCommonIqData = IqData.buildIqData(null);
+    }
+
+    /**
+     * Gets a cached vCard, if it is still valid.
+     *
+     * @param contactAddress the bare JID of the contact
+     * @param advertisedPhotoHash the photo hash last advertised by the
+     * contact, or null if it hasn't advertised one.
+     * @return the vCard, or null if there is no valid vCard cached.
+     */
+    VCard get(String contactAddress, String advertisedPhotoHash)
+    {
+        String key = getKey(contactAddress);
+
+        try
+        {
+            AvatarStore store = getStore();
+            long timestamp = store.getTimestamp(key);
+
+            if (timestamp < 0 ||
+                timestamp + MAX_AGE_MS < System.currentTimeMillis())
+            {
+                return null;
+            }
+
+            byte[] xml = store.get(key);
+
+            if (xml == null)
+                return null;
+
+            XmlPullParser parser = PacketParserUtils.getParserFor(
+                new String(xml, StandardCharsets.UTF_8));
+            parser.next();
+            VCard card = (VCard) mVCardProvider.parse(parser, mCommonIqData);
+
+            if (advertisedPhotoHash != null &&
+                !advertisedPhotoHash.equals(getPhotoHash(card)))
+            {
+                sLog.debug("Cached vCard for " +
+                           sanitiseChatAddress(contactAddress) +
+                           " has a different photo to the one advertised");
+                return null;
+            }
+
+            return card;
+        }
+        catch (Exception ex)
+        {
+            sLog.error("Failed to read cached vCard for " +
+                       sanitiseChatAddress(contactAddress), ex);
+            return null;
+        }
+    }
+
+    /**
+     * Caches a vCard fetched from the server.
+     *
+     * @param contactAddress the bare JID of the contact
+     * @param card the vCard
+     */
+    void put(String contactAddress, VCard card)
+    {
+        try
+        {
+            getStore().put(getKey(contactAddress),
+                           card.toXML().toString().getBytes(StandardCharsets.UTF_8),
+                           System.currentTimeMillis());
+        }
+        catch (IOException | SecurityException ex)
+        {
+            sLog.error("Failed to cache vCard for " +
+                       sanitiseChatAddress(contactAddress), ex);
+        }
+    }
+
+    /**
+     * Gets the hash of the photo in a vCard, in the form advertised in
+     * presence.
+     *
+     * @param card the vCard
+     * @return the SHA-1 hash of the photo as hex, or the empty string if the
+     * vCard has no photo.
+     */
+    static String getPhotoHash(VCard card)
+    {
+        String hash = card.getAvatarHash();
+        return hash == null ? "" : hash;
+    }
+
+    private String getKey(String contactAddress)
+    {
+        return mAccountID.getAccountUniqueID() +
+               AvatarStore.KEY_SEPARATOR +
+               contactAddress.toLowerCase();
+    }
+
+    /**
+     * Gets the store of the active user, opening it if necessary.
+     */
+    private static synchronized AvatarStore getStore() throws IOException
+    {
+        File storeDir = JabberActivator.getFileAccessService()
+            .getPrivatePersistentActiveUserDirectory(CACHE_DIR);
+
+        if (sStore == null || !sStore.getDirectory().equals(storeDir))
+        {
+            closeStore();
+            sStore = new AvatarStore(storeDir, null);
+        }
+
+        return sStore;
+    }
+
+    /**
+     * Closes the store, writing out its index.  It is reopened the next time
+     * a vCard is used.
+     */
+    static synchronized void closeStore()
+    {
+        if (sStore != null)
+        {
+            sStore.close();
+            sStore = null;
+        }
+    }
+}
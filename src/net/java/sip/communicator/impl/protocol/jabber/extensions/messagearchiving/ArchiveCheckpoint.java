@@ -0,0 +1,140 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.impl.protocol.jabber.extensions.messagearchiving;
+
+import net.java.sip.communicator.impl.protocol.jabber.JabberActivator;
+import net.java.sip.communicator.impl.protocol.jabber.ProtocolProviderFactoryJabberImpl;
+import net.java.sip.communicator.service.protocol.AccountID;
+import net.java.sip.communicator.service.protocol.AccountManager;
+import net.java.sip.communicator.service.protocol.OperationFailedException;
+import net.java.sip.communicator.service.protocol.ProtocolProviderFactory;
+import net.java.sip.communicator.service.threading.CancellableRunnable;
+import net.java.sip.communicator.util.Logger;
+import org.jitsi.service.configuration.ConfigurationService;
+
+/**
+ * The position that we have reached in the archive, i.e. the archive ID of the
+ * last message received.
+ *
+ * The position is updated in the account properties in memory straight away,
+ * but only written to config at most every FLUSH_DELAY_MS, and then just the
+ * one property rather than the whole account.  Thus a burst of archived
+ * messages only causes one config write.  Call flush() to write it straight
+ * away, e.g. when disconnecting.
+ */
+class ArchiveCheckpoint
+{
+    private static final Logger sLog = Logger.getLogger(ArchiveCheckpoint.class);
+
+    /**
+     * The account property holding the archive ID of the last message
+     * received.
+     */
+    static final String LAST_ARCHIVE_ID = "lastArchiveId";
+
+    /**
+     * How long to wait after the position changes before writing it to
+     * config.
+     */
+    private static final long FLUSH_DELAY_MS = 5000;
+
+    private final AccountID mAccountID;
+
+    /**
+     * The archive ID that has been set but not yet written to config, or
+     * null if there is none.
+     */
+    private String mUnflushedId;
+
+    /**
+     * The task that will write the position to config, or null if none is
+     * scheduled.
+     */
+    private CancellableRunnable mFlushTask;
+
+    /**
+     * The config property name prefix for the account, once found.
+     */
+    private String mAccountPrefix;
+
+    ArchiveCheckpoint(AccountID accountID)
+    {
+        mAccountID = accountID;
+    }
+
+    /**
+     * Sets the archive ID of the last message received, and schedules it to be
+     * written to config.
+     *
+     * @param lastArchiveId the archive ID
+     */
+    synchronized void set(String lastArchiveId)
+    {
+        mAccountID.putAccountProperty(LAST_ARCHIVE_ID, lastArchiveId);
+        mUnflushedId = lastArchiveId;
+
+        if (mFlushTask == null)
+        {
+            mFlushTask = new CancellableRunnable()
+            {
+                @Override
+                public void run()
+                {
+                    flush();
+                }
+            };
+
+            JabberActivator.getThreadingService().schedule(
+                "ArchiveCheckpoint.flush", mFlushTask, FLUSH_DELAY_MS);
+        }
+    }
+
+    /**
+     * Writes the archive ID of the last message received to config, if it has
+     * changed since it was last written.
+     */
+    synchronized void flush()
+    {
+        if (mFlushTask != null)
+        {
+            mFlushTask.cancel();
+            mFlushTask = null;
+        }
+
+        if (mUnflushedId == null)
+            return;
+
+        String lastArchiveId = mUnflushedId;
+        mUnflushedId = null;
+
+        if (mAccountPrefix == null)
+        {
+            mAccountPrefix = ProtocolProviderFactory.findAccountPrefix(
+                JabberActivator.getBundleContext(),
+                mAccountID,
+                ProtocolProviderFactoryJabberImpl.class.getPackageName());
+        }
+
+        if (mAccountPrefix != null)
+        {
+            sLog.debug("Writing last archive id " + lastArchiveId);
+            ConfigurationService configurationService =
+                JabberActivator.getConfigurationService();
+            configurationService.user().setProperty(
+                mAccountPrefix + "." + LAST_ARCHIVE_ID, lastArchiveId);
+        }
+        else
+        {
+            // The account hasn't been stored yet, so store all of it.
+            try
+            {
+                AccountManager manager = JabberActivator.getAccountManager();
+                manager.storeAccount(JabberActivator.getProtocolProviderFactory(),
+                                     mAccountID);
+            }
+            catch (OperationFailedException e)
+            {
+                sLog.error("Unable to store last " + lastArchiveId, e);
+            }
+        }
+    }
+}
@@ -5,6 +5,7 @@ import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.jivesoftware.smack.roster.Roster;
@@ -18,6 +19,8 @@ import org.jxmpp.jid.Jid;
 import net.java.sip.communicator.impl.gui.main.MainFrameTabComponent;
 import net.java.sip.communicator.impl.protocol.jabber.JabberActivator;
 import net.java.sip.communicator.impl.protocol.jabber.ProtocolProviderServiceJabberImpl;
+import net.java.sip.communicator.service.diagnostics.DiagnosticsServiceRegistrar;
+import net.java.sip.communicator.service.diagnostics.StateDumper;
 import net.java.sip.communicator.service.protocol.AccountID;
 import net.java.sip.communicator.service.protocol.RegistrationState;
 import net.java.sip.communicator.service.protocol.event.RegistrationStateChangeEvent;
@@ -36,10 +39,17 @@ import org.jitsi.service.configuration.ConfigurationService;
  *    new Poller is created when this happens
  * 2. When the user opens the recents tab - via a config listener
  * 3. Every 5 minutes, but only if the user is logged in on multiple accounts
+ *
+ * Each request starts with pages of MAX_RESULTS messages.  While the pages
+ * come back full (e.g. when catching up after a long time offline), the page
+ * size is doubled up to MAX_CATCH_UP_RESULTS, and the next page is requested
+ * as soon as the previous one has been received, while the ArchiveReceiver is
+ * still persisting it.  At most one page is requested ahead like this.
  */
 public class ArchivePoller implements RegistrationStateChangeListener,
                                       PropertyChangeListener,
-                                      RosterListener
+                                      RosterListener,
+                                      StateDumper
 {
     private static final Logger sLog = Logger.getLogger(ArchivePoller.class);
 
@@ -48,6 +58,12 @@ public class ArchivePoller implements RegistrationStateChangeListener,
      */
     public static final int MAX_RESULTS = 10;
 
+    /**
+     * Maximum number of results to query for when catching up with a large
+     * archive.
+     */
+    public static final int MAX_CATCH_UP_RESULTS = 320;
+
     /**
      * The place in config where the currently selected tab is stored
      */
@@ -114,6 +130,49 @@ public class ArchivePoller implements RegistrationStateChangeListener,
      */
     private Roster mRoster;
 
+    /**
+     * Lock for the fields below, which track the pages of the current request.
+     */
+    private final Object mPageLock = new Object();
+
+    /**
+     * The number of messages to request in the next page.
+     */
+    private int mPageSize = MAX_RESULTS;
+
+    /**
+     * Whether a page has been requested but not yet received.
+     */
+    private boolean mPageInFlight;
+
+    /**
+     * The number of pages received but not yet persisted.
+     */
+    private int mPagesPersisting;
+
+    /**
+     * The archive ID to request the next page after, once the page being
+     * persisted is done, or null if there's no such page to request.
+     */
+    private String mDeferredPageAfter;
+
+    /**
+     * The time (from System.nanoTime()) at which the current request started.
+     */
+    private long mRequestStartNanos;
+
+    /**
+     * The number of pages and messages received by the current (or, if none
+     * is in progress, the last) request.
+     */
+    private int mRequestPages;
+    private int mRequestMessages;
+
+    /**
+     * The time the last request took, in milliseconds.
+     */
+    private long mLastRequestMillis;
+
     public ArchivePoller(ProtocolProviderServiceJabberImpl jabberProvider)
     {
         sLog.debug("Created archive poller " + this);
@@ -136,6 +195,9 @@ public class ArchivePoller implements RegistrationStateChangeListener,
 
         // Listen for the recents tab being selected
         mConfigurationService.user().addPropertyChangeListener(SELECTED_TAB_NAME, this);
+
+        DiagnosticsServiceRegistrar.registerStateDumper(this,
+                                                        JabberActivator.getBundleContext());
     }
 
     /**
@@ -195,17 +257,73 @@ public class ArchivePoller implements RegistrationStateChangeListener,
 
     /**
      * Called when part of a query has completed.  I.e. a request for part of the
-     * archive has completed, but there are still more parts to request
+     * archive has completed, but there are still more parts to request.  The
+     * next part is requested straight away, unless the part before this one is
+     * still being persisted.
+     *
+     * @param last the archive ID of the last message in the part
+     * @param messageCount the number of messages in the part
      */
-    public void onQueryPartComplete()
+    public void onQueryPartComplete(String last, int messageCount)
     {
         // This request succeeded, thus cancel the reset task
         if (mGettingArchiveResetTask != null)
             mGettingArchiveResetTask.cancel();
 
-        // Request the next part of the archive
-        sLog.debug("Request next part of archive");
-        doRequestArchive();
+        boolean requestNow;
+
+        synchronized (mPageLock)
+        {
+            mPageInFlight = false;
+            mRequestPages++;
+            mRequestMessages += messageCount;
+
+            // A full page means we're probably catching up with a lot of
+            // messages, so ask for more at a time.
+            if (messageCount >= mPageSize)
+                mPageSize = Math.min(mPageSize * 2, MAX_CATCH_UP_RESULTS);
+
+            mPagesPersisting++;
+            requestNow = (mPagesPersisting == 1);
+
+            if (!requestNow)
+                mDeferredPageAfter = last;
+        }
+
+        if (requestNow)
+        {
+            // Request the next part of the archive
+            sLog.debug("Request next part of archive");
+            doRequestArchive(last);
+        }
+        else
+        {
+            sLog.debug("Request next part of archive once previous part persisted");
+        }
+    }
+
+    /**
+     * Called when a part of a query has been persisted, after
+     * onQueryPartComplete.  Requests the next part if that was waiting for
+     * this one.
+     */
+    public void onQueryPartPersisted()
+    {
+        String after;
+
+        synchronized (mPageLock)
+        {
+            // Can already be 0 if the recovery task let a new request start.
+            mPagesPersisting = Math.max(mPagesPersisting - 1, 0);
+            after = mDeferredPageAfter;
+            mDeferredPageAfter = null;
+        }
+
+        if (after != null)
+        {
+            sLog.debug("Request next part of archive");
+            doRequestArchive(after);
+        }
     }
 
     /**
@@ -213,7 +331,17 @@ public class ArchivePoller implements RegistrationStateChangeListener,
      */
     public void onQueryComplete()
     {
-        sLog.debug("Query complete");
+        synchronized (mPageLock)
+        {
+            mPageInFlight = false;
+            mPageSize = MAX_RESULTS;
+            mLastRequestMillis = TimeUnit.NANOSECONDS.toMillis(
+                System.nanoTime() - mRequestStartNanos);
+            sLog.debug("Query complete: " + mRequestMessages +
+                       " messages in " + mRequestPages + " pages took " +
+                       mLastRequestMillis + "ms");
+        }
+
         mRequestingArchive.set(false);
 
         if (mGettingArchiveResetTask != null)
@@ -248,15 +376,29 @@ public class ArchivePoller implements RegistrationStateChangeListener,
         {
             sLog.debug("Requesting archive");
             mRequestingArchive.set(true);
-            doRequestArchive();
+
+            synchronized (mPageLock)
+            {
+                mPageSize = MAX_RESULTS;
+                mPagesPersisting = 0;
+                mDeferredPageAfter = null;
+                mRequestStartNanos = System.nanoTime();
+                mRequestPages = 0;
+                mRequestMessages = 0;
+            }
+
+            doRequestArchive(null);
         }
     }
 
     /**
      * Actually request the archive, regardless of whether or not a query is in
      * progress
+     *
+     * @param after the archive ID to request messages after, or null to use
+     * the last archive ID that has been stored
      */
-    private void doRequestArchive()
+    private void doRequestArchive(String after)
     {
         // If (for some reason) we fail to complete a request, then we will be
         // in a situation where all further requests to get the archive will
@@ -283,12 +425,21 @@ public class ArchivePoller implements RegistrationStateChangeListener,
             public void run()
             {
                 AccountID account = mJabberProvider.getAccountID();
-                String lastArchiveId = (String)
-                                    account.getAccountProperty("lastArchiveId");
-                sLog.debug("Requesting archive since " + lastArchiveId);
+                String lastArchiveId = (after != null) ? after : (String)
+                                    account.getAccountProperty(ArchiveCheckpoint.LAST_ARCHIVE_ID);
+                int pageSize;
+
+                synchronized (mPageLock)
+                {
+                    pageSize = mPageSize;
+                    mPageInFlight = true;
+                }
+
+                sLog.debug("Requesting " + pageSize +
+                           " archive messages since " + lastArchiveId);
 
                 ArchiveQueryPacket archiveRequest =
-                    new ArchiveQueryPacket(lastArchiveId,MAX_RESULTS);
+                    new ArchiveQueryPacket(lastArchiveId, pageSize);
 
                 try
                 {
@@ -469,12 +620,45 @@ public class ArchivePoller implements RegistrationStateChangeListener,
         return mFirstRequestComplete.get();
     }
 
+    @Override
+    public String getStateDumpName()
+    {
+        return "ArchivePoller " +
+               mJabberProvider.getAccountID().getLoggableAccountID();
+    }
+
+    @Override
+    public String getState()
+    {
+        synchronized (mPageLock)
+        {
+            boolean inProgress = mRequestingArchive.get();
+            long elapsedMillis = inProgress ?
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mRequestStartNanos) :
+                mLastRequestMillis;
+            long messagesPerSecond = (elapsedMillis > 0) ?
+                mRequestMessages * 1000L / elapsedMillis : 0;
+
+            return "Request in progress: " + inProgress + "\n" +
+                   "Page size: " + mPageSize + "\n" +
+                   "Pages outstanding: " +
+                       ((mPageInFlight ? 1 : 0) + mPagesPersisting) +
+                       " (" + (mPageInFlight ? 1 : 0) + " requested, " +
+                       mPagesPersisting + " persisting)\n" +
+                   "Pages received: " + mRequestPages + "\n" +
+                   "Messages received: " + mRequestMessages + "\n" +
+                   "Elapsed: " + elapsedMillis + "ms\n" +
+                   "Messages per second: " + messagesPerSecond + "\n";
+        }
+    }
+
     /**
      * Stop this poller, shutting down all listeners and receivers
      */
     public synchronized void stop()
     {
         sLog.info("Stop called on ArchivePoller " + this);
+        DiagnosticsServiceRegistrar.unregisterStateDumper(this);
         mJabberProvider.removeRegistrationStateChangeListener(this);
         mConfigurationService.user().removePropertyChangeListener(this);
 
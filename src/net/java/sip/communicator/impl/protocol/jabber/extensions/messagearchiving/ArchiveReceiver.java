@@ -2,6 +2,9 @@
 package net.java.sip.communicator.impl.protocol.jabber.extensions.messagearchiving;
 
 import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -18,18 +21,20 @@ import org.jivesoftware.smackx.archive.MessageArchivedExtensionElement;
 import net.java.sip.communicator.impl.protocol.jabber.JabberActivator;
 import net.java.sip.communicator.impl.protocol.jabber.OperationSetBasicInstantMessagingJabberImpl;
 import net.java.sip.communicator.impl.protocol.jabber.ProtocolProviderServiceJabberImpl;
-import net.java.sip.communicator.service.protocol.AccountID;
-import net.java.sip.communicator.service.protocol.AccountManager;
-import net.java.sip.communicator.service.protocol.OperationFailedException;
 import net.java.sip.communicator.service.protocol.OperationSetBasicInstantMessaging;
 import net.java.sip.communicator.service.protocol.RegistrationState;
 import net.java.sip.communicator.service.protocol.event.RegistrationStateChangeEvent;
 import net.java.sip.communicator.service.protocol.event.RegistrationStateChangeListener;
+import net.java.sip.communicator.service.threading.ThreadFactoryBuilder;
 import net.java.sip.communicator.util.Logger;
 
 /**
  * The ArchiveReceiver gets archive messages and passes them on to the message
  * handler in the OperationSetBasicImJabberImpl class
+ *
+ * Messages are handled, and the last archive ID stored, on a separate thread
+ * rather than the Smack thread, so that the poller can have the next page of
+ * the archive sent to us while the previous page is still being persisted.
  */
 public class ArchiveReceiver implements RegistrationStateChangeListener,
                                         StanzaListener,
@@ -64,12 +69,35 @@ public class ArchiveReceiver implements RegistrationStateChangeListener,
      */
     private final AtomicInteger mMessageReceivedCount = new AtomicInteger();
 
+    /**
+     * The number of archive messages in the current page, including those
+     * that we ignore.  Used to tell whether the page was full.
+     */
+    private final AtomicInteger mPageMessageCount = new AtomicInteger();
+
+    /**
+     * Where we have got to in the archive.
+     */
+    private final ArchiveCheckpoint mCheckpoint;
+
+    /**
+     * Handles the messages in each page, and then stores the last archive ID
+     * of the page, in the order they were received.
+     */
+    private final ExecutorService mPersistExecutor =
+        Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder()
+                .setName("archive-receiver-thread")
+                .setDaemon(true)
+                .build());
+
     public ArchiveReceiver(ProtocolProviderServiceJabberImpl jabberProvider,
                            ArchivePoller archivePoller)
     {
         sLog.info("Created ArchiveReceiver " + this);
         mJabberProvider = jabberProvider;
         mArchivePoller = archivePoller;
+        mCheckpoint = new ArchiveCheckpoint(jabberProvider.getAccountID());
         mImOpSet = (OperationSetBasicInstantMessagingJabberImpl)
                        mJabberProvider.getOperationSet(
                            OperationSetBasicInstantMessaging.class);
@@ -97,6 +125,14 @@ public class ArchiveReceiver implements RegistrationStateChangeListener,
             mJabberProvider.getConnection().removeStanzaListener(this);
             mJabberProvider.getConnection().addStanzaListener(this, this);
         }
+        else if (RegistrationState.UNREGISTERING.equals(newState) ||
+                 RegistrationState.UNREGISTERED.equals(newState) ||
+                 RegistrationState.CONNECTION_FAILED.equals(newState))
+        {
+            // Make sure that where we've got to is persisted, once any
+            // messages we've already received have been handled.
+            persist(mCheckpoint::flush);
+        }
     }
 
     @Override
@@ -107,30 +143,42 @@ public class ArchiveReceiver implements RegistrationStateChangeListener,
             ArchiveCompleteIQ iq = (ArchiveCompleteIQ) stanza;
             String last = iq.getLast();
             int count = mMessageReceivedCount.getAndSet(0);
-            sLog.debug("Query complete, last: " + last + ", count: " + count);
+            int pageCount = mPageMessageCount.getAndSet(0);
+            sLog.debug("Query complete, last: " + last + ", count: " + count +
+                       " of " + pageCount);
 
             if (last != null)
             {
                 // Last will only exist if we actually got some archive messages.
                 mGotArchiveMessages.set(true);
-                storeLast(last);
 
                 // If we're still getting messages, then we should carry on and
-                // see if there are any more.
-                mArchivePoller.onQueryPartComplete();
+                // see if there are any more.  Only store last once this page
+                // has been handled, so we don't skip it if we stop part way.
+                mArchivePoller.onQueryPartComplete(last, pageCount);
+
+                persist(() ->
+                {
+                    storeLast(last);
+                    mArchivePoller.onQueryPartPersisted();
+                });
             }
             else
             {
-                if (mGotArchiveMessages.get())
+                persist(() ->
                 {
-                    // We've finished getting the archive, and have sent some
-                    // archive messages.  Thus the UI might be out of date.
-                    JabberActivator.getUIService().reloadContactList();
-                    mGotArchiveMessages.set(false);
-                }
-
-                // Inform the poller that we've finished getting the archive
-                mArchivePoller.onQueryComplete();
+                    if (mGotArchiveMessages.get())
+                    {
+                        // We've finished getting the archive, and have sent
+                        // some archive messages.  Thus the UI might be out of
+                        // date.
+                        JabberActivator.getUIService().reloadContactList();
+                        mGotArchiveMessages.set(false);
+                    }
+
+                    // Inform the poller that we've finished getting the archive
+                    mArchivePoller.onQueryComplete();
+                });
             }
         }
         else if (stanza instanceof Message)
@@ -148,8 +196,10 @@ public class ArchiveReceiver implements RegistrationStateChangeListener,
                 if (mArchivePoller.isOnlyUser())
                 {
                     // This is the only user logged in, thus store the id.
+                    // Do so after any archive pages still being handled, so
+                    // that they don't overwrite it with an older id.
                     String last = maee.getArchivedId();
-                    storeLast(last);
+                    persist(() -> storeLast(last));
                 }
             }
             else
@@ -161,36 +211,51 @@ public class ArchiveReceiver implements RegistrationStateChangeListener,
 
                 // New, previously unseen message.  Send it to the im opset
                 Date date = amee.getDate();
-                mImOpSet.handleMessage(archivedMessage, date);
+                persist(() -> mImOpSet.handleMessage(archivedMessage, date));
             }
         }
     }
 
     /**
-     * Store the id of the last message received
+     * Runs a task on the persist thread, after any tasks for stanzas that
+     * were received earlier.
      *
-     * @param last the archive id of the last message received
+     * @param task the task to run
      */
-    private void storeLast(String last)
+    private void persist(Runnable task)
     {
-        AccountID accountID = mJabberProvider.getAccountID();
-
-        // putAccountProperty updates the in memory copy.  For this to be
-        // persisted, we need to call AccountManager.storeAccount
-        accountID.putAccountProperty("lastArchiveId", last);
-
         try
         {
-            AccountManager manager = JabberActivator.getAccountManager();
-            manager.storeAccount(JabberActivator.getProtocolProviderFactory(),
-                                 accountID);
+            mPersistExecutor.execute(() ->
+            {
+                try
+                {
+                    task.run();
+                }
+                catch (RuntimeException ex)
+                {
+                    sLog.error("Failed to handle archive stanza", ex);
+                }
+            });
         }
-        catch (OperationFailedException e)
+        catch (RejectedExecutionException ex)
         {
-            sLog.error("Unable to store last " + last, e);
+            sLog.debug("Ignoring archive stanza as receiver is stopped");
         }
     }
 
+    /**
+     * Store the id of the last message received
+     *
+     * @param last the archive id of the last message received
+     */
+    private void storeLast(String last)
+    {
+        // This updates the in memory copy straight away, and persists it
+        // shortly afterwards.
+        mCheckpoint.set(last);
+    }
+
     @Override
     public boolean accept(Stanza stanza)
     {
@@ -207,6 +272,8 @@ public class ArchiveReceiver implements RegistrationStateChangeListener,
 
             if (amee != null)
             {
+                mPageMessageCount.incrementAndGet();
+
                 // This is an archived message, ignore it if it is a group
                 // chat message - those are handled elsewhere, unless this is
                 // the first time we're querying the archive - in which case
@@ -293,5 +360,10 @@ public class ArchiveReceiver implements RegistrationStateChangeListener,
         {
             connection.removeStanzaListener(this);
         }
+
+        // Persist where we've got to once any messages we've already
+        // received have been handled.
+        persist(mCheckpoint::flush);
+        mPersistExecutor.shutdown();
     }
 }
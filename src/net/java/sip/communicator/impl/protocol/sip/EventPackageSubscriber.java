@@ -763,7 +763,11 @@ public class EventPackageSubscriber
                  // try to keep a margin if the refresh delay allows it
                  if (refreshDelay >= (2*refreshMargin))
                      refreshDelay -= refreshMargin;
-                 timer.schedule(refreshTask, refreshDelay * 1000);
+                 // spread refreshes which were all set up at once (e.g.
+                 // after registering) over the end of the refresh delay
+                 timer.scheduleWithJitter(refreshTask,
+                                          refreshDelay * 1000L,
+                                          refreshDelay * 1000L / 10);
 
                  // do it to remember the dialog in case of a polling
                  // subscription (which means no call to finalizeSubscription)
@@ -1034,7 +1038,7 @@ public class EventPackageSubscriber
             // recreate the timer
             logger.warn("Scheduling of subscription refresh task failed - " +
                         "recreating the timer and trying again");
-            timer = new TimerScheduler();
+            timer = new TimerScheduler(timer.getOwner());
             timer.schedule(refreshTask, retryMargin * 1000);
         }
     }
@@ -116,7 +116,8 @@ public class EventPackageSupport
         this.eventPackage = eventPackage;
         this.subscriptionDuration = subscriptionDuration;
         this.contentSubType = contentSubType;
-        this.timer = (timer != null) ? timer : new TimerScheduler();
+        this.timer
+            = (timer != null) ? timer : new TimerScheduler(eventPackage);
 
         this.protocolProvider.registerEvent(this.eventPackage);
 
@@ -695,7 +696,7 @@ public class EventPackageSupport
             if (this.timerTask != timerTask)
             {
                 if (this.timerTask != null)
-                    this.timerTask.cancel();
+                    TimerScheduler.cancel(this.timerTask);
 
                 this.timerTask = timerTask;
             }
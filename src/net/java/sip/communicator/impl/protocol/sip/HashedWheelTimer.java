@@ -0,0 +1,397 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.diagnostics.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * The single, process-wide timer behind every <tt>TimerScheduler</tt>.
+ * <p>
+ * Rather than a <tt>java.util.Timer</tt> thread (and priority queue) for each
+ * <tt>TimerScheduler</tt>, tasks are kept in a hashed timing wheel: a ring of
+ * buckets each covering one tick, with each task in the bucket for the tick it
+ * is due in.  Buckets are doubly linked lists, so scheduling and cancelling a
+ * task are both O(1).  A single daemon thread wakes once per tick, runs the
+ * due tasks from the current bucket and leaves any which are due on a later
+ * turn of the wheel.  The thread waits without ticking while no tasks are
+ * scheduled.
+ * <p>
+ * As with <tt>java.util.Timer</tt>, tasks are run one at a time on the timer
+ * thread, so should complete quickly.
+ */
+final class HashedWheelTimer
+    implements StateDumper
+{
+    private static final Logger logger
+        = Logger.getLogger(HashedWheelTimer.class);
+
+    /**
+     * The length of a tick in milliseconds.  Tasks run up to one tick after
+     * they are due.
+     */
+    private static final long TICK_MS = 100;
+
+    /**
+     * The number of buckets in the wheel.  Must be a power of two.
+     */
+    private static final int WHEEL_SIZE = 512;
+
+    private static final HashedWheelTimer instance = new HashedWheelTimer();
+
+    /**
+     * The buckets of the wheel, each the head of a list of timeouts.
+     */
+    private final Timeout[] wheel = new Timeout[WHEEL_SIZE];
+
+    /**
+     * The scheduled timeouts, indexed by their task.  A task may only be
+     * scheduled once at a time, as with <tt>java.util.Timer</tt>.  A
+     * one-off timeout stays here until its task starts to run, so it can be
+     * cancelled by a task that runs before it in the same tick.
+     */
+    private final Map<TimerTask, Timeout> timeouts = new IdentityHashMap<>();
+
+    /**
+     * The time (from System.nanoTime()) at which tick zero started.
+     */
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * The next tick for the timer thread to process.
+     */
+    private long nextTick = 0;
+
+    private Thread thread;
+
+    private HashedWheelTimer()
+    {
+    }
+
+    /**
+     * @return the process-wide timer.
+     */
+    static HashedWheelTimer getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * Schedules a task to run after a delay and then, if the period is
+     * positive, repeatedly with that delay between runs.
+     *
+     * @param scheduler the <tt>TimerScheduler</tt> the task is scheduled by.
+     * @param task the task.
+     * @param delay the delay in milliseconds before the first run.
+     * @param period the delay in milliseconds between runs, or 0 to only run
+     * once.
+     * @throws IllegalStateException if the task is already scheduled.
+     */
+    synchronized void schedule(TimerScheduler scheduler,
+                               TimerTask task,
+                               long delay,
+                               long period)
+        throws IllegalStateException
+    {
+        if (delay < 0)
+            throw new IllegalArgumentException("Negative delay.");
+
+        if (timeouts.containsKey(task))
+            throw new IllegalStateException("Task already scheduled.");
+
+        Timeout timeout = new Timeout(scheduler, task, period);
+        timeouts.put(task, timeout);
+        add(timeout, delay);
+
+        if (thread == null)
+        {
+            thread = new Thread(this::runWheel, "HashedWheelTimer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        else if (timeouts.size() == 1)
+        {
+            // The thread may be waiting for something to be scheduled.
+            notifyAll();
+        }
+    }
+
+    /**
+     * Cancels a task, so that it won't run again.
+     *
+     * @param task the task.
+     * @return true if the task was scheduled.
+     */
+    synchronized boolean cancel(TimerTask task)
+    {
+        Timeout timeout = timeouts.remove(task);
+
+        if (timeout == null)
+            return false;
+
+        timeout.cancelled = true;
+        remove(timeout);
+        return true;
+    }
+
+    /**
+     * Cancels all the tasks scheduled by a <tt>TimerScheduler</tt>.
+     *
+     * @param scheduler the <tt>TimerScheduler</tt>.
+     */
+    synchronized void cancelAll(TimerScheduler scheduler)
+    {
+        Iterator<Timeout> iter = timeouts.values().iterator();
+
+        while (iter.hasNext())
+        {
+            Timeout timeout = iter.next();
+
+            if (timeout.scheduler == scheduler)
+            {
+                iter.remove();
+                timeout.cancelled = true;
+                remove(timeout);
+            }
+        }
+    }
+
+    @Override
+    public String getStateDumpName()
+    {
+        return "HashedWheelTimer";
+    }
+
+    @Override
+    public synchronized String getState()
+    {
+        Map<String, Integer> counts = new TreeMap<>();
+
+        for (Timeout timeout : timeouts.values())
+        {
+            counts.merge(timeout.scheduler.getOwner(), 1, Integer::sum);
+        }
+
+        StringBuilder state = new StringBuilder()
+            .append("Scheduled tasks: ").append(timeouts.size()).append("\n")
+            .append("Current tick: ").append(currentTick()).append("\n");
+
+        for (Map.Entry<String, Integer> count : counts.entrySet())
+        {
+            state.append(count.getKey())
+                 .append(": ")
+                 .append(count.getValue())
+                 .append("\n");
+        }
+
+        return state.toString();
+    }
+
+    /**
+     * Puts a timeout in the bucket for the tick it is due in.
+     */
+    private void add(Timeout timeout, long delay)
+    {
+        long deadline = (System.nanoTime() - startNanos) / 1_000_000 + delay;
+
+        // Round up, so the task never runs early, and never put it in a
+        // tick which the timer thread has already processed.
+        timeout.deadlineTick =
+            Math.max((deadline + TICK_MS - 1) / TICK_MS, nextTick);
+
+        int bucket = (int) (timeout.deadlineTick & (WHEEL_SIZE - 1));
+        timeout.bucket = bucket;
+        timeout.prev = null;
+        timeout.next = wheel[bucket];
+
+        if (wheel[bucket] != null)
+            wheel[bucket].prev = timeout;
+
+        wheel[bucket] = timeout;
+    }
+
+    /**
+     * Removes a timeout from its bucket.
+     */
+    private void remove(Timeout timeout)
+    {
+        if (timeout.bucket < 0)
+            return;
+
+        if (timeout.prev != null)
+            timeout.prev.next = timeout.next;
+        else
+            wheel[timeout.bucket] = timeout.next;
+
+        if (timeout.next != null)
+            timeout.next.prev = timeout.prev;
+
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+    }
+
+    private long currentTick()
+    {
+        return (System.nanoTime() - startNanos) / (TICK_MS * 1_000_000);
+    }
+
+    /**
+     * The body of the timer thread.
+     */
+    private void runWheel()
+    {
+        List<Timeout> expired = new ArrayList<>();
+
+        while (true)
+        {
+            try
+            {
+                synchronized (this)
+                {
+                    waitForTick();
+                    collectExpired(expired);
+                }
+
+                for (Timeout timeout : expired)
+                {
+                    runTask(timeout);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                logger.warn("Timer thread interrupted", e);
+            }
+            finally
+            {
+                expired.clear();
+            }
+        }
+    }
+
+    /**
+     * Waits until there is a tick to process and a task scheduled.  Must be
+     * called while synchronized on this.
+     */
+    private void waitForTick()
+        throws InterruptedException
+    {
+        while (true)
+        {
+            if (timeouts.isEmpty())
+            {
+                wait();
+                continue;
+            }
+
+            long untilNextTick = startNanos +
+                                 nextTick * TICK_MS * 1_000_000 -
+                                 System.nanoTime();
+
+            if (untilNextTick <= 0)
+                return;
+
+            TimeUnit.NANOSECONDS.timedWait(this, untilNextTick);
+        }
+    }
+
+    /**
+     * Removes the timeouts that are due from the wheel.  They stay in
+     * <tt>timeouts</tt>, so can still be cancelled until they run.  Must be
+     * called while synchronized on this.
+     */
+    private void collectExpired(List<Timeout> expired)
+    {
+        long now = currentTick();
+
+        // If the thread has fallen behind (e.g. the machine was asleep),
+        // one turn of the wheel visits every bucket.
+        long lastTick = Math.min(now, nextTick + WHEEL_SIZE - 1);
+
+        for (long tick = nextTick; tick <= lastTick; tick++)
+        {
+            Timeout timeout = wheel[(int) (tick & (WHEEL_SIZE - 1))];
+
+            while (timeout != null)
+            {
+                Timeout next = timeout.next;
+
+                if (timeout.deadlineTick <= now)
+                {
+                    remove(timeout);
+                    expired.add(timeout);
+                }
+
+                timeout = next;
+            }
+        }
+
+        nextTick = now + 1;
+    }
+
+    /**
+     * Runs the task of an expired timeout, unless it has been cancelled since
+     * it expired, and, if it is periodic and hasn't been cancelled, puts it
+     * back in the wheel.
+     */
+    private void runTask(Timeout timeout)
+    {
+        synchronized (this)
+        {
+            // An earlier task in the same tick may have cancelled this one.
+            if (timeout.cancelled)
+                return;
+
+            // Once a one-off task starts to run, it can't be cancelled, as
+            // with java.util.Timer.
+            if (timeout.period <= 0)
+                timeouts.remove(timeout.task);
+        }
+
+        try
+        {
+            timeout.task.run();
+        }
+        catch (Throwable t)
+        {
+            // Unlike java.util.Timer, an exception in one task doesn't stop
+            // any others from running.
+            logger.error("Timer task for " + timeout.scheduler.getOwner() +
+                         " failed", t);
+        }
+
+        if (timeout.period > 0)
+        {
+            synchronized (this)
+            {
+                if (!timeout.cancelled)
+                    add(timeout, timeout.period);
+            }
+        }
+    }
+
+    /**
+     * A task in the wheel.
+     */
+    private static final class Timeout
+    {
+        final TimerScheduler scheduler;
+        final TimerTask task;
+        final long period;
+
+        long deadlineTick;
+        int bucket = -1;
+        Timeout prev;
+        Timeout next;
+        boolean cancelled;
+
+        Timeout(TimerScheduler scheduler, TimerTask task, long period)
+        {
+            this.scheduler = scheduler;
+            this.task = task;
+            this.period = period;
+        }
+    }
+}
@@ -115,7 +115,7 @@ public class OperationSetBasicTelephonySipImpl
      * The <tt>Timer</tt> which executes delayed tasks.  Used to retry
      * requests that received a "request pending" response.
      */
-    private final TimerScheduler timer = new TimerScheduler();
+    private final TimerScheduler timer = new TimerScheduler("BasicTelephony");
 
     /**
      * Map "&lt;dialog id&gt;-&lt;cseq number&gt;" to a response handler that
@@ -52,7 +52,7 @@ public class OperationSetMessageWaitingSipImpl
     /**
      * The timer which will handle all the scheduled tasks
      */
-    private final TimerScheduler timer = new TimerScheduler();
+    private final TimerScheduler timer = new TimerScheduler("MessageWaiting");
 
     /**
      * The configuration service.
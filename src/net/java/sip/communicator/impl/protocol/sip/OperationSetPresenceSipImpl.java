@@ -72,7 +72,7 @@ public abstract class OperationSetPresenceSipImpl
     /**
      * The timer which will handle all the scheduled tasks
      */
-    protected final TimerScheduler timer = new TimerScheduler();
+    protected final TimerScheduler timer = new TimerScheduler("Presence");
 
     /**
      * The currently active status message.
@@ -124,7 +124,7 @@ public class OperationSetTelephonyConferencingSipImpl
      * The <tt>Timer</tt> which executes delayed tasks scheduled by
      * {@link #notifier} and {@link #subscriber}.
      */
-    private final TimerScheduler timer = new TimerScheduler();
+    private final TimerScheduler timer = new TimerScheduler("Conferencing");
 
     /**
      * Listener to CallPeer state.
@@ -23,6 +23,7 @@ import net.java.sip.communicator.service.certificate.CertificateService;
 import net.java.sip.communicator.service.commportal.ClassOfServiceService;
 import net.java.sip.communicator.service.commportal.CommPortalService;
 import net.java.sip.communicator.service.contactsource.ContactSourceService;
+import net.java.sip.communicator.service.diagnostics.DiagnosticsServiceRegistrar;
 import net.java.sip.communicator.service.gui.UIService;
 import net.java.sip.communicator.service.insights.InsightsService;
 import net.java.sip.communicator.service.netaddr.NetworkAddressManagerService;
@@ -128,6 +129,9 @@ public class SipActivator
                     sipProviderFactory,
                     properties);
 
+        DiagnosticsServiceRegistrar.registerStateDumper(
+            HashedWheelTimer.getInstance(), context);
+
         logger.debug("SIP Protocol Provider Factory ... [REGISTERED]");
     }
 
@@ -517,6 +521,9 @@ public class SipActivator
         sipProviderFactory.stop();
         sipPpFactoryServReg.unregister();
 
+        DiagnosticsServiceRegistrar.unregisterStateDumper(
+            HashedWheelTimer.getInstance());
+
         if (sipUriHandlerSipImpl != null)
         {
             sipUriHandlerSipImpl.dispose();
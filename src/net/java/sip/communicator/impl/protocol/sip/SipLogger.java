@@ -8,7 +8,7 @@
 package net.java.sip.communicator.impl.protocol.sip;
 
 import static gov.nist.core.Separators.NEWLINE;
-import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toList;
 import static org.jitsi.util.Hasher.logHasher;
 import static org.jitsi.util.SanitiseUtils.sanitise;
 
@@ -16,6 +16,7 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
@@ -180,6 +181,89 @@ public class SipLogger
      */
     private static final Pattern VIA_BRANCH_PATTERN = Pattern.compile("(?<=branch=)(.+)(?=$)");
 
+    /**
+     * Patterns to split Content-ID and Geolocation lines around the address
+     * they contain.
+     */
+    private static final Pattern CONTENT_ID_SPLIT_PATTERN = Pattern.compile("<|@|>");
+    private static final Pattern GEOLOCATION_SPLIT_PATTERN = Pattern.compile("<cid:|@|>");
+
+    /**
+     * Regex for the elements in the ca namespace of geolocation xml:
+     *  - a tag consisting of ca namespace and a word
+     *  - then the element contents
+     *  - then the matching closing tag using a back reference
+     */
+    private static final Pattern CIVIC_ADDRESS_ELEMENT_PATTERN =
+            Pattern.compile("(<ca:(\\w+)>)(.+)(</ca:\\2>)");
+
+    /**
+     * The attributes of geolocation xml that contain personal info, and the
+     * regexes that pick out their values.
+     */
+    private static final List<String> GEO_XML_ATTRIBUTES = List.of("entity=\"pres:", "id=\"");
+    private static final List<Pattern> GEO_XML_ATTRIBUTE_PATTERNS =
+            GEO_XML_ATTRIBUTES.stream()
+                              .map(first -> Pattern.compile(first + "(.+?)@(.+?)(\")"))
+                              .collect(toList());
+
+    /**
+     * The sanitisers for each line of a SIP message, indexed by the first
+     * character of the lines that they apply to.  Within each entry, they are
+     * in the order that they should be tried - a line is sanitised by the
+     * first whose prefix it starts with.
+     */
+    private static final LineSanitiser[][] LINE_SANITISERS = new LineSanitiser[128][];
+    static
+    {
+        Function<String, String> contactSanitiser =
+            useMultipleSanitisers(List.of(SipLogger::sanitiseContactName,
+                                          SipLogger::sanitiseIPv4Address,
+                                          SipLogger::sanitiseSipUser,
+                                          SipLogger::sanitiseDomain,
+                                          SipLogger::sanitiseRegisterAccDomain));
+        Function<String, String> routeSanitiser =
+            useMultipleSanitisers(List.of(SipLogger::sanitiseIPv4Address,
+                                          SipLogger::sanitiseViaBranch,
+                                          SipLogger::sanitiseDomain));
+        Function<String, String> requestLineSanitiser =
+            useMultipleSanitisers(List.of(SipLogger::sanitiseIPv4Address,
+                                          SipLogger::sanitiseSipUser,
+                                          SipLogger::sanitiseDomain));
+        Function<String, String> contentFieldSanitiser =
+            useMultipleSanitisers(List.of(SipLogger::sanitiseIPv4Address,
+                                          SipLogger::sanitiseSubscriberDn,
+                                          SipLogger::sanitiseDomain));
+
+        List<LineSanitiser> sanitisers = new ArrayList<>();
+        CONTACT_TAGS.forEach(tag -> sanitisers.add(new LineSanitiser(tag, contactSanitiser)));
+        ROUTE_TAGS.forEach(tag -> sanitisers.add(new LineSanitiser(tag, routeSanitiser)));
+        SIP_METHODS.forEach(method -> sanitisers.add(new LineSanitiser(method, requestLineSanitiser)));
+        sanitisers.add(new LineSanitiser("Authorization",
+            useMultipleSanitisers(List.of(SipLogger::sanitiseIPv4Address,
+                                          SipLogger::sanitiseSipUser,
+                                          SipLogger::sanitiseDigestUser,
+                                          SipLogger::sanitiseDomain))));
+        sanitisers.add(new LineSanitiser("<dialog-info",
+            useMultipleSanitisers(List.of(SipLogger::sanitiseSipUser,
+                                          SipLogger::sanitiseDomain))));
+        SENSITIVE_SIP_CONTENT_FIELDS.forEach(field -> sanitisers.add(new LineSanitiser(field, contentFieldSanitiser)));
+        sanitisers.add(new LineSanitiser("Content-ID:", SipLogger::sanitiseContentId));
+        sanitisers.add(new LineSanitiser("Geolocation:", SipLogger::sanitiseGeolocation));
+        // We make the assumption than any xml is only going to be the geolocation one!
+        sanitisers.add(new LineSanitiser("<?xml", SipLogger::sanitiseGeoXml));
+
+        for (LineSanitiser sanitiser : sanitisers)
+        {
+            char first = sanitiser.prefix.charAt(0);
+            LineSanitiser[] existing = LINE_SANITISERS[first];
+            LineSanitiser[] updated = (existing == null) ?
+                new LineSanitiser[1] : Arrays.copyOf(existing, existing.length + 1);
+            updated[updated.length - 1] = sanitiser;
+            LINE_SANITISERS[first] = updated;
+        }
+    }
+
     /*
      * Implementation of StackLogger
      */
@@ -450,12 +534,17 @@ public class SipLogger
         InetSocketAddress remoteAddr = sender ? to : from;
         Direction direction = sender ? Direction.OUTBOUND : Direction.INBOUND;
 
-        logToCsv(System.currentTimeMillis(),
-                 direction,
-                 localAddr,
-                 remoteAddr,
-                 transport,
-                 sanitiseSipMessage(message));
+        // CRLF keep-alives are blank so never logged to the CSV, and nothing
+        // is if it is disabled - so don't spend time sanitising them.
+        if (!message.isNullRequest() && csvLogger.isInfoEnabled())
+        {
+            logToCsv(System.currentTimeMillis(),
+                     direction,
+                     localAddr,
+                     remoteAddr,
+                     transport,
+                     sanitiseSipMessage(message));
+        }
 
         try
         {
@@ -469,15 +558,75 @@ public class SipLogger
 
     /**
      * Removes Personal Data in SIP messages before logging. Processes each
-     * message line by line.
+     * message line by line, in a single pass over the message.
+     */
+    static String sanitiseSipMessage(SIPMessage message)
+    {
+        return sanitiseSipMessage(message.toString());
+    }
+
+    /**
+     * Removes Personal Data from the text of a SIP message.
      */
-    private static String sanitiseSipMessage(SIPMessage message)
+    static String sanitiseSipMessage(String text)
     {
         // We are processing a SIP message.
         // By definition, these use a fixed CR+LF separator, not an OS dependent value
-        return Arrays.stream(message.toString().split(NEWLINE, -1))
-                .map(SipLogger::processSipMessageLines)
-                .collect(joining(NEWLINE));
+        StringBuilder sb = new StringBuilder(text.length() + 64);
+        int start = 0;
+
+        while (true)
+        {
+            int separator = text.indexOf(NEWLINE, start);
+            int end = (separator < 0) ? text.length() : separator;
+            Function<String, String> sanitiser = getLineSanitiser(text, start);
+
+            if (sanitiser == null)
+            {
+                sb.append(text, start, end);
+            }
+            else
+            {
+                sb.append(sanitiser.apply(text.substring(start, end)));
+            }
+
+            if (separator < 0)
+                break;
+
+            sb.append(NEWLINE);
+            start = separator + NEWLINE.length();
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Finds the sanitiser for the line starting at the given index of a SIP
+     * message.
+     *
+     * @return the sanitiser, or null if the line needs no sanitising.
+     */
+    private static Function<String, String> getLineSanitiser(String text, int start)
+    {
+        if (start >= text.length())
+            return null;
+
+        char first = text.charAt(start);
+        LineSanitiser[] candidates =
+            (first < LINE_SANITISERS.length) ? LINE_SANITISERS[first] : null;
+
+        if (candidates != null)
+        {
+            // None of the prefixes contain CR or LF, so can only match
+            // within this line.
+            for (LineSanitiser candidate : candidates)
+            {
+                if (text.startsWith(candidate.prefix, start))
+                    return candidate.sanitiser;
+            }
+        }
+
+        return null;
     }
 
     /**
@@ -547,17 +696,19 @@ public class SipLogger
 
     private static String sanitiseContentId(String line)
     {
-        return splitAndSanitize(line, "<");
+        return splitAndSanitize(line, "<", CONTENT_ID_SPLIT_PATTERN);
     }
 
     private static String sanitiseGeolocation(String line)
     {
-        return splitAndSanitize(line, "<cid:");
+        return splitAndSanitize(line, "<cid:", GEOLOCATION_SPLIT_PATTERN);
     }
 
-    private static String splitAndSanitize(String line, String firstToken)
+    private static String splitAndSanitize(String line,
+                                           String firstToken,
+                                           Pattern splitPattern)
     {
-        String[] parts = line.split(firstToken + "|@|>");
+        String[] parts = splitPattern.split(line);
         if (parts.length == 3)
         {
             line = parts[0] + firstToken + logHasher(parts[1]) + "@" + logHasher(parts[2]) + ">";
@@ -576,11 +727,7 @@ public class SipLogger
         line = line.replace(CIVIC_ADDRESS, CIVIC_ADDRESS_MASKED);
 
         // Find all the remaining elements in the ca namespace
-        //  - a tag consisting of ca namespace and a word
-        //  - then the element contents
-        //  - then the matching closing tag using a back reference
-        final Pattern pattern = Pattern.compile("(<ca:(\\w+)>)(.+)(</ca:\\2>)");
-        final Matcher matcher = pattern.matcher(line);
+        final Matcher matcher = CIVIC_ADDRESS_ELEMENT_PATTERN.matcher(line);
 
         // Hash the contents of each element - group 2 was a nested group so not needed
         line = matcher.replaceAll(mr -> mr.group(1) + logHasher(mr.group(3)) + mr.group(4));
@@ -589,9 +736,10 @@ public class SipLogger
         line =  line.replace(CIVIC_ADDRESS_MASKED, CIVIC_ADDRESS);
 
         // We also have personal info in some of the attributes
-        for (String first : List.of("entity=\"pres:", "id=\""))
+        for (int i = 0; i < GEO_XML_ATTRIBUTES.size(); i++)
         {
-            line = Pattern.compile( first + "(.+?)@(.+?)(\")")
+            String first = GEO_XML_ATTRIBUTES.get(i);
+            line = GEO_XML_ATTRIBUTE_PATTERNS.get(i)
                     .matcher(line)
                     .replaceAll(mr -> first + logHasher(mr.group(1)) + "@" + logHasher(mr.group(2)) + mr.group(3));
         }
@@ -599,68 +747,6 @@ public class SipLogger
         return line;
     }
 
-    /**
-     * Sanitises each line according to the specific Personal Data it could
-     * contain.
-     */
-    private static String processSipMessageLines(String line)
-    {
-        List<Function<String, String>> sanitisers = null;
-        if (CONTACT_TAGS.stream().anyMatch(line::startsWith))
-        {
-            sanitisers = List.of(SipLogger::sanitiseContactName,
-                                 SipLogger::sanitiseIPv4Address,
-                                 SipLogger::sanitiseSipUser,
-                                 SipLogger::sanitiseDomain,
-                                 SipLogger::sanitiseRegisterAccDomain);
-        }
-        else if (ROUTE_TAGS.stream().anyMatch(line::startsWith))
-        {
-            sanitisers = List.of(SipLogger::sanitiseIPv4Address,
-                                 SipLogger::sanitiseViaBranch,
-                                 SipLogger::sanitiseDomain);
-        }
-        else if (SIP_METHODS.stream().anyMatch(line::startsWith))
-        {
-            sanitisers = List.of(SipLogger::sanitiseIPv4Address,
-                                 SipLogger::sanitiseSipUser,
-                                 SipLogger::sanitiseDomain);
-        }
-        else if (line.startsWith("Authorization"))
-        {
-            sanitisers = List.of(SipLogger::sanitiseIPv4Address,
-                                 SipLogger::sanitiseSipUser,
-                                 SipLogger::sanitiseDigestUser,
-                                 SipLogger::sanitiseDomain);
-        }
-        else if (line.startsWith("<dialog-info"))
-        {
-            sanitisers = List.of(SipLogger::sanitiseSipUser,
-                                 SipLogger::sanitiseDomain);
-        }
-        else if (SENSITIVE_SIP_CONTENT_FIELDS.stream().anyMatch(line::startsWith))
-        {
-            sanitisers = List.of(SipLogger::sanitiseIPv4Address,
-                                 SipLogger::sanitiseSubscriberDn,
-                                 SipLogger::sanitiseDomain);
-        }
-        else if (line.startsWith("Content-ID:"))
-        {
-            sanitisers = List.of(SipLogger::sanitiseContentId);
-        }
-        else if (line.startsWith("Geolocation:"))
-        {
-            sanitisers = List.of(SipLogger::sanitiseGeolocation);
-        }
-        else if (line.startsWith("<?xml"))
-        {
-            // We make the assumption than any xml is only going to be the geolocation one!
-            sanitisers = List.of(SipLogger::sanitiseGeoXml);
-        }
-
-        return sanitisers == null ? line : useMultipleSanitisers(sanitisers).apply(line);
-    }
-
     /**
      * Utility method that stacks multiple sanitisers.
      * @return a single function that applies all the
@@ -892,4 +978,19 @@ public class SipLogger
         // Remove the final ','.
         return sb.substring(0, sb.length() - 1);
     }
+
+    /**
+     * A sanitiser for the lines of a SIP message that start with a prefix.
+     */
+    private static class LineSanitiser
+    {
+        final String prefix;
+        final Function<String, String> sanitiser;
+
+        LineSanitiser(String prefix, Function<String, String> sanitiser)
+        {
+            this.prefix = prefix;
+            this.sanitiser = sanitiser;
+        }
+    }
 }
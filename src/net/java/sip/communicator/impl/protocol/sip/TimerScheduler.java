@@ -8,6 +8,7 @@
 package net.java.sip.communicator.impl.protocol.sip;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import net.java.sip.communicator.util.*;
 
@@ -17,6 +18,11 @@ import net.java.sip.communicator.util.*;
  * construction time. It also allows the currently scheduled
  * <code>TimerTask</code>s to be canceled while still being able to schedule new
  * <code>TimerTask</code>s later on.
+ * <p>
+ * All <code>TimerScheduler</code>s share the single process-wide
+ * <code>HashedWheelTimer</code>, so they don't each need a thread.  Because of
+ * that, a scheduled <code>TimerTask</code> must be cancelled through
+ * {@link #cancel(TimerTask)} rather than <code>TimerTask.cancel()</code>.
  *
  * @author Lubomir Marinov
  */
@@ -27,31 +33,61 @@ public class TimerScheduler
     /**
      * The timer which will handle all scheduled tasks.
      */
-    private Timer timer;
+    private static final HashedWheelTimer timer = HashedWheelTimer.getInstance();
+
+    /**
+     * The name of the owner of this scheduler, under which its tasks are
+     * counted in state dumps.
+     */
+    private final String owner;
+
+    /**
+     * Creates a scheduler whose tasks are counted under the name of this
+     * class in state dumps.
+     */
+    public TimerScheduler()
+    {
+        this("TimerScheduler");
+    }
+
+    /**
+     * Creates a scheduler whose tasks are counted under the given name in
+     * state dumps.
+     *
+     * @param owner the name of the owner of the scheduler.
+     */
+    public TimerScheduler(String owner)
+    {
+        this.owner = owner;
+    }
+
+    /**
+     * @return the name of the owner of this scheduler.
+     */
+    public String getOwner()
+    {
+        return owner;
+    }
 
     /**
      * Discarding any currently scheduled <code>TimerTask</code>s.
      */
-    public synchronized void cancel()
+    public void cancel()
     {
-       if (timer != null)
-       {
-           timer.cancel();
-           timer = null;
-       }
+        timer.cancelAll(this);
     }
 
     /**
-     * Gets the timer which handles all scheduled tasks. If it still doesn't
-     * exists, a new <tt>Timer</tt> is created.
+     * Cancels a <code>TimerTask</code> which was scheduled by any
+     * <code>TimerScheduler</code>, so that it won't run again.
      *
-     * @return the <tt>Timer</tt> which handles all scheduled tasks
+     * @param task the <code>TimerTask</code> to cancel
+     * @return true if the task was scheduled
      */
-    private synchronized Timer getTimer()
+    public static boolean cancel(TimerTask task)
     {
-       if (timer == null)
-           timer = new Timer(true);
-       return timer;
+        task.cancel();
+        return timer.cancel(task);
     }
 
     /**
@@ -65,19 +101,35 @@ public class TimerScheduler
      *            the delay in milliseconds before the specified
      *            <code>TimerTask</code> is executed
      */
-    public synchronized void schedule(TimerTask task, long delay)
+    public void schedule(TimerTask task, long delay)
     {
-        try
-        {
-            getTimer().schedule(task, delay);
-        }
-        catch (IllegalStateException ex)
-        {
-            logger.error("Attempt to scedule a timer task failed ", ex);
+        schedule(task, delay, 0);
+    }
 
-            // Rethrow the exception so it can be handled elsewhere if necessary
-            throw ex;
-        }
+    /**
+     * Schedules the specified <code>TimerTask</code> for execution after the
+     * specified delay, less a random amount of up to <code>maxJitter</code>.
+     * This stops tasks which were scheduled together with the same delay (e.g.
+     * subscription refreshes after a reconnect) from all running at once,
+     * without any of them running later than the specified delay.
+     *
+     * @param task
+     *            the <code>TimerTask</code> to be executed
+     * @param delay
+     *            the maximum delay in milliseconds before the specified
+     *            <code>TimerTask</code> is executed
+     * @param maxJitter
+     *            the maximum amount in milliseconds by which to shorten the
+     *            delay
+     */
+    public void scheduleWithJitter(TimerTask task, long delay, long maxJitter)
+    {
+        long jitter = Math.min(Math.max(maxJitter, 0), delay);
+
+        if (jitter > 0)
+            delay -= ThreadLocalRandom.current().nextLong(jitter + 1);
+
+        schedule(task, delay, 0);
     }
 
     /**
@@ -95,11 +147,11 @@ public class TimerScheduler
      *            the time in milliseconds between successive executions of the
      *            specified <code>TimerTask</code>
      */
-    public synchronized void schedule(TimerTask task, long delay, long period)
+    public void schedule(TimerTask task, long delay, long period)
     {
         try
         {
-            getTimer().schedule(task, delay, period);
+            timer.schedule(this, task, delay, period);
         }
         catch (IllegalStateException ex)
         {
@@ -12,6 +12,8 @@ import java.net.UnknownHostException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
 
 import javax.net.ssl.*;
 import javax.sip.address.*;
@@ -24,7 +26,9 @@ import org.apache.http.conn.scheme.*;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.entity.*;
 import org.apache.http.impl.client.*;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
 import org.apache.http.params.*;
+import org.apache.http.util.EntityUtils;
 
 import net.java.sip.communicator.impl.protocol.sip.*;
 import net.java.sip.communicator.impl.protocol.sip.xcap.model.*;
@@ -59,6 +63,11 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
      */
     public static final String HEADER_ETAG = "ETag";
 
+    /**
+     * HTTP If-None-Match header.
+     */
+    public static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+
     /**
      * XCap-error content type.
      */
@@ -70,6 +79,11 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
      */
     private static int DEFAULT_TIMEOUT = 10 * 1000;
 
+    /**
+     * The most connections we keep open to the XCAP server.
+     */
+    private static final int MAX_CONNECTIONS = 4;
+
     /**
      * Current server uri.
      */
@@ -105,6 +119,28 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
      */
     private CertificateService certificateVerification;
 
+    /**
+     * The HTTP client used for all requests while connected, which keeps
+     * connections to the server open between requests.  Created on first use
+     * and guarded by this client.
+     */
+    private DefaultHttpClient httpClient;
+
+    /**
+     * The last version of each resource got from the server that had an
+     * ETag, keyed by resource URI.  Used to make conditional GETs, so that
+     * unchanged resources aren't downloaded again.
+     */
+    private final Map<String, XCapHttpResponse> documentCache =
+        new ConcurrentHashMap<>();
+
+    /**
+     * The GETs currently in progress, keyed by resource URI, so that
+     * concurrent GETs of the same resource share a single request.
+     */
+    private final Map<String, CompletableFuture<XCapHttpResponse>> getsInProgress =
+        new ConcurrentHashMap<>();
+
     /**
      * Creates an instance of this XCAP client.
      */
@@ -130,6 +166,10 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
         {
             throw new IllegalArgumentException("Address must contains SipUri");
         }
+        // Any existing client and cached resources are for the old server
+        // or credentials.
+        closeHttpClient();
+
         this.uri = uri;
         this.userAddress = (Address) userAddress.clone();
         this.username = username;
@@ -152,6 +192,7 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
      */
     public void disconnect()
     {
+        closeHttpClient();
         this.uri = null;
         this.userAddress = null;
         this.password = null;
@@ -173,7 +214,9 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
     }
 
     /**
-     * Gets resource from the server.
+     * Gets resource from the server.  If a GET of the same resource is
+     * already in progress, this waits for and returns its response rather
+     * than making another request.
      *
      * @param uri the resource uri.
      * @return the server response.
@@ -183,19 +226,115 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
     protected XCapHttpResponse get(URI uri)
             throws XCapException
     {
-        DefaultHttpClient httpClient = createHttpClient();
+        String key = uri.toString();
+        CompletableFuture<XCapHttpResponse> ourGet = new CompletableFuture<>();
+        CompletableFuture<XCapHttpResponse> existingGet =
+            getsInProgress.putIfAbsent(key, ourGet);
+
+        if (existingGet != null)
+        {
+            logger.debug("Waiting for GET already in progress for " + key);
+            return waitForGet(existingGet, uri);
+        }
+
+        try
+        {
+            XCapHttpResponse response = doGet(uri);
+            ourGet.complete(response);
+            return response;
+        }
+        catch (XCapException | RuntimeException e)
+        {
+            ourGet.completeExceptionally(e);
+            throw e;
+        }
+        finally
+        {
+            getsInProgress.remove(key, ourGet);
+        }
+    }
+
+    /**
+     * Waits for a GET made by another thread to complete.
+     *
+     * @param get the GET in progress.
+     * @param uri the resource uri.
+     * @return the server response.
+     * @throws XCapException if the GET failed.
+     */
+    private XCapHttpResponse waitForGet(
+            CompletableFuture<XCapHttpResponse> get,
+            URI uri)
+            throws XCapException
+    {
+        try
+        {
+            return get.get();
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            throw new XCapException(cause.getMessage(), cause);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new XCapException(
+                "Interrupted while getting " + uri, e);
+        }
+    }
+
+    /**
+     * Makes a GET request for a resource.  If we have a cached version of
+     * the resource, the request is conditional on its ETag, and the cached
+     * version is returned if the server says it hasn't changed.
+     *
+     * @param uri the resource uri.
+     * @return the server response.
+     * @throws XCapException if there is error during reading the resource's
+     *                       content.
+     */
+    private XCapHttpResponse doGet(URI uri)
+            throws XCapException
+    {
+        String key = uri.toString();
+        HttpResponse response = null;
         try
         {
             HttpGet getMethod = new HttpGet(uri);
-            getMethod.setHeader("Connection", "close");
-            Credentials credentials =
-                    new UsernamePasswordCredentials(getUserName(), password);
-            httpClient.getCredentialsProvider().
-                    setCredentials(AuthScope.ANY, credentials);
 
-            HttpResponse response = httpClient.execute(getMethod);
+            XCapHttpResponse cached = documentCache.get(key);
+            if (cached != null)
+            {
+                getMethod.setHeader(HEADER_IF_NONE_MATCH, cached.getETag());
+            }
+
+            response = getHttpClient().execute(getMethod);
+
+            if (cached != null &&
+                response.getStatusLine().getStatusCode() ==
+                    HttpStatus.SC_NOT_MODIFIED)
+            {
+                logger.debug("Resource " + uri + " not modified");
+                return cached;
+            }
+
             XCapHttpResponse result = createResponse(response);
 
+            if (result.getHttpCode() == HttpStatus.SC_OK &&
+                result.getETag() != null)
+            {
+                documentCache.put(key, result);
+            }
+            else
+            {
+                documentCache.remove(key);
+            }
+
             byte[] contentBytes = result.getContent();
             String contenString;
             // for debug purposes print only xmls
@@ -234,7 +373,7 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
         }
         finally
         {
-            httpClient.getConnectionManager().shutdown();
+            releaseConnection(response);
         }
     }
 
@@ -279,20 +418,18 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
     public XCapHttpResponse put(XCapResource resource)
             throws XCapException
     {
-        DefaultHttpClient httpClient = createHttpClient();
+        HttpResponse response = null;
         try
         {
             URI resourceUri = getResourceURI(resource.getId());
             HttpPut putMethod = new HttpPut(resourceUri);
-            putMethod.setHeader("Connection", "close");
             StringEntity stringEntity = new StringEntity(resource.getContent());
             stringEntity.setContentType(resource.getContentType());
             stringEntity.setContentEncoding("UTF-8");
             putMethod.setEntity(stringEntity);
-            Credentials credentials =
-                    new UsernamePasswordCredentials(getUserName(), password);
-            httpClient.getCredentialsProvider().
-                    setCredentials(AuthScope.ANY, credentials);
+
+            // The cached version is out of date whether or not this succeeds.
+            documentCache.remove(resourceUri.toString());
 
             String logMessage = String.format(
                     "Puting resource %1s to the server %2s",
@@ -301,7 +438,7 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
             );
             logger.debug(logMessage);
 
-            HttpResponse response = httpClient.execute(putMethod);
+            response = getHttpClient().execute(putMethod);
             return createResponse(response);
         }
         catch (IOException e)
@@ -313,7 +450,7 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
         }
         finally
         {
-            httpClient.getConnectionManager().shutdown();
+            releaseConnection(response);
         }
     }
 
@@ -329,16 +466,12 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
             throws XCapException
     {
         assertConnected();
-        DefaultHttpClient httpClient = createHttpClient();
+        HttpResponse response = null;
         try
         {
             URI resourceUri = getResourceURI(resourceId);
             HttpDelete deleteMethod = new HttpDelete(resourceUri);
-            deleteMethod.setHeader("Connection", "close");
-            Credentials credentials =
-                    new UsernamePasswordCredentials(getUserName(), password);
-            httpClient.getCredentialsProvider().
-                    setCredentials(AuthScope.ANY, credentials);
+            documentCache.remove(resourceUri.toString());
 
             String logMessage = String.format(
                     "Deleting resource %1s from the server",
@@ -346,7 +479,7 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
             );
             logger.debug(logMessage);
 
-            HttpResponse response = httpClient.execute(deleteMethod);
+            response = getHttpClient().execute(deleteMethod);
             return createResponse(response);
         }
         catch (IOException e)
@@ -358,7 +491,7 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
         }
         finally
         {
-            httpClient.getConnectionManager().shutdown();
+            releaseConnection(response);
         }
     }
 
@@ -435,6 +568,55 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
         }
     }
 
+    /**
+     * Gets the HTTP client for the current connection, creating it if
+     * necessary.  The client pools connections to the server, so they can be
+     * reused by later requests.
+     *
+     * @return the HTTP client.
+     */
+    private synchronized DefaultHttpClient getHttpClient()
+    {
+        if (httpClient == null)
+        {
+            httpClient = createHttpClient();
+        }
+
+        HttpParams httpParams = httpClient.getParams();
+        HttpConnectionParams.setConnectionTimeout(httpParams, timeout);
+        HttpConnectionParams.setSoTimeout(httpParams, timeout);
+        return httpClient;
+    }
+
+    /**
+     * Shuts down the HTTP client, closing its connections, and forgets any
+     * cached resources.
+     */
+    private synchronized void closeHttpClient()
+    {
+        if (httpClient != null)
+        {
+            httpClient.getConnectionManager().shutdown();
+            httpClient = null;
+        }
+
+        documentCache.clear();
+    }
+
+    /**
+     * Makes sure the content of a response has been read, so that its
+     * connection can be reused.
+     *
+     * @param response the response, or null if there isn't one.
+     */
+    private static void releaseConnection(HttpResponse response)
+    {
+        if (response != null)
+        {
+            EntityUtils.consumeQuietly(response.getEntity());
+        }
+    }
+
     /**
      * Creates HTTP client with special parameters.
      *
@@ -443,7 +625,12 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
     private DefaultHttpClient createHttpClient()
     {
         //TODO: move to HttpUtil
-        DefaultHttpClient httpClient = new DefaultHttpClient();
+        PoolingClientConnectionManager connectionManager =
+            new PoolingClientConnectionManager();
+        connectionManager.setMaxTotal(MAX_CONNECTIONS);
+        connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+
+        DefaultHttpClient httpClient = new DefaultHttpClient(connectionManager);
         try
         {
             // make sure we use Certificate Verification Service if
@@ -463,9 +650,10 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
         {
             logger.error("Cannot add our trust manager to httpClient", e);
         }
-        HttpParams httpParams = httpClient.getParams();
-        HttpConnectionParams.setConnectionTimeout(httpParams, timeout);
-        HttpConnectionParams.setSoTimeout(httpParams, timeout);
+        Credentials credentials =
+                new UsernamePasswordCredentials(getUserName(), password);
+        httpClient.getCredentialsProvider().
+                setCredentials(AuthScope.ANY, credentials);
         return httpClient;
     }
 
@@ -93,6 +93,16 @@ public class XCapHttpResponse
         this.content = content;
     }
 
+    /**
+     * Gets HTTP ETag.
+     *
+     * @return the HTTP ETag.
+     */
+    public String getETag()
+    {
+        return eTag;
+    }
+
     /**
      * Sets HTTP ETag.
      *
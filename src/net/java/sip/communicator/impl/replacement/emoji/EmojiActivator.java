@@ -86,6 +86,10 @@ public class EmojiActivator
 
             EmojiResources.loadEmojiImages();
 
+            // Build the emoji trie now rather than when the first message is
+            // displayed.
+            EmojiResources.getEmojiTrie();
+
             logger.info("Emoji source implementation [STARTED].");
         }
 
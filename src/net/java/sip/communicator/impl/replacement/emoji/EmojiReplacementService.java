@@ -19,13 +19,11 @@ public class EmojiReplacementService
      */
     public static final String EMOJI_REPLACEMENT_SERVICE = "EMOJI_REPLACEMENT";
 
-    private static final Set<Integer> setOfIgnorableCodepoints = new HashSet<>();
-
-    static
-    {
-        // Usually sent along with 4 character long codepoints
-        setOfIgnorableCodepoints.add(new Integer(65039));
-    }
+    /**
+     * Variation selector 16, usually sent along with 4 character long
+     * codepoints.
+     */
+    private static final int IGNORABLE_CODEPOINT = 65039;
 
   /**
     * Returns the source name
@@ -51,17 +49,10 @@ public class EmojiReplacementService
     */
     public boolean isSupportedSingleCodepointEmojiNotStartingSequence(int codepoint)
     {
-        boolean isSupportedSingleCodepointNotStartingSequence = false;
         // So we don't bother checking any of the 256 ASCII characters
-        if (!isASCII(codepoint))
-        {
-            Set<Integer> setOfEmojis = EmojiResources.getSetOfEmojiCodepointsNotStartingSequence();
-            if (setOfEmojis.contains(codepoint))
-            {
-                isSupportedSingleCodepointNotStartingSequence = true;
-            }
-        }
-        return isSupportedSingleCodepointNotStartingSequence;
+        return !isASCII(codepoint) &&
+               EmojiResources.getEmojiTrie()
+                             .isSingleCodepointEmojiNotStartingSequence(codepoint);
     }
 
     /**
@@ -75,106 +66,41 @@ public class EmojiReplacementService
      */
     private boolean isIgnorableCodepoint(int codepoint)
     {
-        return setOfIgnorableCodepoints.contains(codepoint);
+        return codepoint == IGNORABLE_CODEPOINT;
     }
 
     /**
-     * Create a PicturePartOfMessage for an emoji that matches the greatest
-     * sequence of codepoints at the beginning of the supplied list.
-     * Remove the codepoints from the list if we find a match.
+     * Create a PicturePartOfMessage for the emoji made up of the given range of
+     * codepoints.
      *
-     * @param listOfCodepoints
-     * @return
+     * @param codepoints the codepoints of the message
+     * @param start the index of the first codepoint of the emoji
+     * @param length the number of codepoints in the emoji
+     * @return the emoji
      */
-    private PicturePartOfMessage createLongestMatchEmoji(List<Integer> listOfCodepoints)
+    private PicturePartOfMessage createEmoji(int[] codepoints, int start, int length)
     {
-        // Create a emoji out of the longest matching sequence
-        PicturePartOfMessage emoji = null;
-
-        Set<List<Integer>> sequences = EmojiResources.getCodepointSequences();
+        String alt = new String(codepoints, start, length);
 
-        List<Integer> bestMatch = new ArrayList<>();
-
-        for (int i = 1; i <= listOfCodepoints.size(); i++)
+        if (length == 1 && isSupportedSingleCodepointEmojiNotStartingSequence(codepoints[start]))
         {
-          // We don't want to create an emoji from (single-codepoint) ASCII
-          // but do want to continue looping to find any emojis that start
-          // with an ASCII codepoint
-          if ((i>1) || !(isASCII(listOfCodepoints.get(0))))
-          {
-              if (sequences.contains(listOfCodepoints.subList(0, i)))
-              {
-                  // If sequence is a match, append the remaining portion to bestMatch
-                  bestMatch.addAll(listOfCodepoints.subList(bestMatch.size(), i));
-              }
-          }
+            int codepoint = codepoints[start];
+            return new PicturePartOfMessage(EmojiResources.getURLFromCodepoint(codepoint),
+                                            alt,
+                                            EmojiResources.getFilepathFromCodepoint(codepoint));
         }
 
-        if (!bestMatch.isEmpty())
+        List<Integer> sequence = new ArrayList<>(length);
+        for (int i = start; i < start + length; i++)
         {
-            // Remove what we've matched
-            StringBuilder alt = new StringBuilder();
-
-            for (Integer r : bestMatch)
-            {
-                listOfCodepoints.remove(0);
-                alt.append(Character.toChars(r));
-            }
-
-            ResourceManagementService res = EmojiActivator.getResources();
-            String path = EmojiResources.getFilepathFromCodepoints(bestMatch);
-            String url = res.getImageURLForPath(path).toString();
-
-            emoji = new PicturePartOfMessage(url,
-                                             alt.toString(),
-                                             EmojiResources.getFilepathFromCodepoints(bestMatch));
+            sequence.add(codepoints[i]);
         }
 
-        return emoji;
-    }
-
-    /**
-     * We're supplied with a set of integer lists in possibleEmojiCodepoints.  Remove any of them
-     * that don't have the supplied codepoint at the supplied position.
-     * @param possibleEmojiCodepoints
-     * @param codepoint
-     * @param position
-     */
-    private void filterPrefixes(Set<List<Integer>> possibleEmojiCodepoints, int codepoint, int position)
-    {
-        for (Iterator<List<Integer>> iterator = possibleEmojiCodepoints.iterator(); iterator.hasNext();)
-        {
-            List<Integer> codepointSequence = iterator.next();
+        ResourceManagementService res = EmojiActivator.getResources();
+        String path = EmojiResources.getFilepathFromCodepoints(sequence);
+        String url = res.getImageURLForPath(path).toString();
 
-            if ((codepointSequence.size() <= position) ||
-                (codepointSequence.get(position) != codepoint))
-            {
-                iterator.remove();
-            }
-        }
-    }
-
-    /*
-     * Get a set of emojis starting with the supplied codepoint (note the emoji could be
-     * _just_ the supplied codepoint, i.e. sequence of length 1)
-     */
-    private Set<List<Integer>> getEmojiMatches(int codepoint, Set<List<Integer>> possibleEmojiCodepoints)
-    {
-        // Get a list of possible sequences of emoji characters beginning with this one.
-        Set<List<Integer>> result = new HashSet<>();
-        for (List<Integer> codepointSequence : EmojiResources.getCodepointSequences())
-        {
-            if (codepointSequence.get(0) == codepoint)
-            {
-                if (isASCII(codepointSequence.get(0)) && codepointSequence.size() == 0)
-                {
-                    //We don't want to consider single codepoint ASCII
-                    continue;
-                }
-                result.add(codepointSequence);
-            }
-        }
-        return result;
+        return new PicturePartOfMessage(url, alt, path);
     }
 
     /**
@@ -191,160 +117,58 @@ public class EmojiReplacementService
         List<DisplayablePartOfMessage> replacedMessageList = new ArrayList<>();
         StringBuilder collectedNonEmojis = new StringBuilder();
 
-        List<Integer> collectedPossibleEmojiCharacters = new ArrayList<>();
-        Set<List<Integer>> possibleEmojiCodepointSequences = new HashSet<>();
-
+        // Drop the ignorable codepoints up front, so that they can't get in
+        // the way of matching emojis.
         int[] codePoints = messageText.codePoints().toArray();
+        int length = 0;
+
+        for (int codepoint : codePoints)
+        {
+            if (!isIgnorableCodepoint(codepoint))
+            {
+                codePoints[length++] = codepoint;
+            }
+        }
 
+        EmojiTrie trie = EmojiResources.getEmojiTrie();
         int currentCodepointIndex = 0;
 
-        // Loop over the codepoints in this message. If we match an emoji,
-        // continue processing from the codepoint after the emoji.
-        while (currentCodepointIndex < codePoints.length)
+        // Loop over the codepoints in this message, replacing the longest
+        // emoji starting at each one. If we match an emoji, continue
+        // processing from the codepoint after the emoji.
+        while (currentCodepointIndex < length)
         {
             int codepoint = codePoints[currentCodepointIndex];
+            int matchLength = trie.longestMatch(codePoints, currentCodepointIndex, length);
 
-            if (isIgnorableCodepoint(codepoint))
+            // We don't want to create an emoji from (single-codepoint) ASCII
+            // but do want emojis that start with an ASCII codepoint
+            if (matchLength == 0 || (matchLength == 1 && isASCII(codepoint)))
             {
+                //This codepoint is definitely text
+                collectedNonEmojis.appendCodePoint(codepoint);
                 currentCodepointIndex++;
                 continue;
             }
 
-            if (collectedPossibleEmojiCharacters.size() > 0)
+            if (collectedNonEmojis.length() > 0)
             {
-                // Already collected some characters that might make up an emoji
-                // Narrow down possibilities using current character
-                filterPrefixes(possibleEmojiCodepointSequences, codepoint, collectedPossibleEmojiCharacters.size());
-                if (possibleEmojiCodepointSequences.size() > 0)
-                {
-                    // There are supported sequences that begin with the
-                    // codepoints in collectedPossibleEmojiCharacters
-                    // We need to continue collecting characters
-                    collectedPossibleEmojiCharacters.add(codepoint);
-                    currentCodepointIndex++;
-                }
-                else
-                {
-                    // No more possibilities - create the longest match with what we have
-                    PicturePartOfMessage emoji = createLongestMatchEmoji(collectedPossibleEmojiCharacters);
-                    //This call also removes the codepoints of emoji from collectedPossibleEmojiCharacters
-
-                    if (emoji == null)
-                    {
-                        // The first character of
-                        // collectedPossibleEmojiCharacters is clearly text
-                        collectedNonEmojis.append(Character.toChars(collectedPossibleEmojiCharacters.get(0)));
-                        //Continue processing from the next character
-                        currentCodepointIndex -= (collectedPossibleEmojiCharacters.size() - 1);
-                        collectedPossibleEmojiCharacters.clear();
-                    }
-                    else
-                    {
-                        if (collectedNonEmojis.length() > 0)
-                        {
-                            // Must add any collected text to the replacedMessageList to maintain ordering
-                            addTextToReplacedMessageList(replacedMessageList, collectedNonEmojis.toString());
-                            collectedNonEmojis.delete(0, collectedNonEmojis.length()); // This is the fastest way to clear a stringBuilder
-                        }
-
-                        replacedMessageList.add(emoji);
-
-                        // Continue processing codePoints where the leftovers begin
-                        currentCodepointIndex -= collectedPossibleEmojiCharacters.size();
-                        collectedPossibleEmojiCharacters.clear();
-                    }
-                }
+                // Must add any collected text to the replacedMessageList to maintain ordering
+                addTextToReplacedMessageList(replacedMessageList, collectedNonEmojis.toString());
+                collectedNonEmojis.setLength(0);
             }
-            else
-            {
-                //Not currently collecting emoji characters
-                possibleEmojiCodepointSequences = getEmojiMatches(codepoint, possibleEmojiCodepointSequences);
-                if (possibleEmojiCodepointSequences.size() > 0)
-                {
-                    //Could be part of an emoji
-                    //
-                    if (collectedNonEmojis.length() > 0)
-                    {
-                        // Must add any collected text to the replacedMessageList to maintain ordering
-                        String stringBeforeCurrentEmoji = collectedNonEmojis.toString();
-                        addTextToReplacedMessageList(replacedMessageList, stringBeforeCurrentEmoji);
-                        collectedNonEmojis.delete(0, collectedNonEmojis.length()); // This is the fastest way to clear a stringBuilder
-                    }
 
-                    if (isSupportedSingleCodepointEmojiNotStartingSequence(codepoint))
-                    {
-                        // Single codepoint emoji only, don't bother collecting - just add it
-                        replacedMessageList.add(new PicturePartOfMessage
-                                                             (EmojiResources.getURLFromCodepoint(codepoint),
-                                                             String.valueOf(Character.toChars(codepoint)),
-                                                             EmojiResources.getFilepathFromCodepoint(codepoint)));
-                    }
-                    else
-                    {
-                        collectedPossibleEmojiCharacters.add(codepoint);
-                    }
-                }
-                else
-                {
-                    //This codepoint is definitely text
-                    collectedNonEmojis.append(Character.toChars(codepoint));
-                }
-                currentCodepointIndex++;
-            }
+            replacedMessageList.add(createEmoji(codePoints, currentCodepointIndex, matchLength));
+            currentCodepointIndex += matchLength;
         }
 
-        // Now we've finished inspecting the stream of characters, do we have
-        // anything 'partially collected' to add?
-        processLeftovers(collectedPossibleEmojiCharacters, collectedNonEmojis, replacedMessageList);
-
-        return replacedMessageList;
-    }
-
-    /**
-     * Finds (longest) emojis in the codepoint sequence
-     * collectedEmojiCharacters (recursively) and
-     * adds them to the replacedMessageList.
-     * Adds any text characters to the replacedMessageList to maintain ordering.
-     *
-     * When this method returns, collectedPossibleEmojiCharacters and collectedNonEmojis
-     * will be empty
-     */
-    private void processLeftovers(List<Integer> collectedPossibleEmojiCharacters,
-                                  StringBuilder collectedNonEmojis,
-                                  List<DisplayablePartOfMessage> replacedMessageList)
-    {
-        while (collectedPossibleEmojiCharacters.size() > 0)
-        {
-            PicturePartOfMessage emoji = createLongestMatchEmoji(collectedPossibleEmojiCharacters);
-            //This call also removes the characters in emoji from collectedEmojiCharacters
-
-            if (emoji != null)
-            {
-                // Emoji matched
-                if (collectedNonEmojis.length() > 0)
-                {
-                    // Must add any collected text to the replacedMessageList to maintain ordering
-                    addTextToReplacedMessageList(replacedMessageList, collectedNonEmojis.toString());
-                    collectedNonEmojis.delete(0, collectedNonEmojis.length()); // This is the fastest way to clear a stringBuilder
-                }
-                replacedMessageList.add(emoji);
-            }
-            else
-            {
-                // This codepoint sequence does not match any emojis, however
-                // its tail might, so we pop the first codepoint, add it to
-                // nonEmojiCodepoints (since it must be text), and try
-                // to match on the remainder of the sequence
-                collectedNonEmojis.append(Character.toChars(collectedPossibleEmojiCharacters.get(0)));
-                collectedPossibleEmojiCharacters = collectedPossibleEmojiCharacters.subList(1,
-                                                                                            collectedPossibleEmojiCharacters.size());
-            }
-        }
         //Save remaining text characters, if any
         if (collectedNonEmojis.length() > 0)
         {
             addTextToReplacedMessageList(replacedMessageList, collectedNonEmojis.toString());
         }
+
+        return replacedMessageList;
     }
 
     /*
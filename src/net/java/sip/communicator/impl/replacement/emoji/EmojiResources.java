@@ -313,10 +313,10 @@ public class EmojiResources
     }
 
     /**
-     * The set of codepoints of supported emojis
+     * The trie of all codepoint sequences for all supported emojis, used for
+     * matching emojis in messages.
      */
-    private static Set<Integer> setOfEmojiCodepointsNotStartingSequence;
-    private static Set<List<Integer>> setOfEmojiCodepointSequences;
+    private static EmojiTrie emojiTrie;
 
     private static final Pattern emojiFilenamePattern =
         Pattern.compile("emoji_u(([0-9a-z]{4,5})(_[0-9a-z]{4,5})?(_[0-9a-z]{4,5})?(_[0-9a-z]{4,5})?).png");
@@ -388,41 +388,24 @@ public class EmojiResources
     }
 
     /**
-     * Returns the set of codepoints of supported emojis as decimal Integers
-     * @return set of codepoints of supported emojis
-     */
-    public static synchronized Set<Integer> getSetOfEmojiCodepointsNotStartingSequence()
-    {
-        if (setOfEmojiCodepointsNotStartingSequence != null)
-        {
-            return setOfEmojiCodepointsNotStartingSequence;
-        }
-
-        parseEmojiFiles();
-        return setOfEmojiCodepointsNotStartingSequence;
-    }
-
-    /**
-     * Returns the set of all codepoint sequences for all supported emojis,
+     * Returns the trie of all codepoint sequences for all supported emojis,
      * including single codepoint ones.
      */
-    public static synchronized Set<List<Integer>> getCodepointSequences()
+    static synchronized EmojiTrie getEmojiTrie()
     {
-        if (setOfEmojiCodepointSequences != null)
+        if (emojiTrie != null)
         {
-            return setOfEmojiCodepointSequences;
+            return emojiTrie;
         }
 
         parseEmojiFiles();
 
-        return setOfEmojiCodepointSequences;
+        return emojiTrie;
     }
 
     private static void parseEmojiFiles()
     {
-        setOfEmojiCodepointsNotStartingSequence = new HashSet<>();
-        setOfEmojiCodepointSequences = new HashSet<>();
-        Set<Integer> setOfMultipleCodepointFirsts = new HashSet<>();
+        Set<List<Integer>> codepointSequences = new HashSet<>();
 
         List<String> emojiUrls = EmojiActivator.getResources().getUrlsFromDirectory(EMOJI_IMAGE_DIR, "*.png");
 
@@ -448,26 +431,10 @@ public class EmojiResources
                 codepointSequence.add(Integer.parseInt(codepoint, 16));
             }
 
-            setOfEmojiCodepointSequences.add(codepointSequence);
-
-            if (codepointSequence.size() == 1)
-            {
-                setOfEmojiCodepointsNotStartingSequence.add(codepointSequence.get(0));
-            }
-            else
-            {
-                setOfMultipleCodepointFirsts.add(codepointSequence.get(0));
-            }
+            codepointSequences.add(codepointSequence);
         }
 
-        // Make sure setOfEmojiCodepointsNotStartingSequence only has codepoints that don't
-        // start longer sequences. Any single codepoint emojis that also start
-        // sequences are in setOfEmojiCodepointSequences - this extra Set is
-        // just for quicker matching.
-        for (Integer codepoint: setOfMultipleCodepointFirsts)
-        {
-            setOfEmojiCodepointsNotStartingSequence.remove(codepoint);
-        }
+        emojiTrie = new EmojiTrie(codepointSequences);
     }
 
     /**
@@ -0,0 +1,188 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.impl.replacement.emoji;
+
+import java.util.*;
+
+/**
+ * A trie of the codepoint sequences of the supported emojis, used to find the
+ * longest emoji starting at each point in a message.
+ * <p>
+ * The trie is stored in primitive arrays, so that matching doesn't box any
+ * codepoints: each node is an int, and the edges from all the nodes are held
+ * in a single open addressing hash table keyed by the parent node and the
+ * codepoint.
+ * <p>
+ * Instances are immutable once built, so are safe to share between threads.
+ */
+class EmojiTrie
+{
+    private static final int ROOT = 0;
+
+    private static final int NO_NODE = -1;
+
+    /**
+     * The key of an unused slot in the edge hash table.
+     */
+    private static final long EMPTY = -1L;
+
+    /**
+     * The keys of the edge hash table, each the parent node in the top 32 bits
+     * and the codepoint in the bottom 32 bits.
+     */
+    private final long[] edgeKeys;
+
+    /**
+     * The child node of each edge in the hash table.
+     */
+    private final int[] edgeChildren;
+
+    private final int edgeMask;
+
+    /**
+     * Whether the sequence ending at each node is an emoji.
+     */
+    private final boolean[] isEmoji;
+
+    /**
+     * Whether each node has any children.
+     */
+    private final boolean[] hasChildren;
+
+    /**
+     * Builds the trie.
+     *
+     * @param sequences the codepoint sequences of the supported emojis
+     */
+    EmojiTrie(Collection<List<Integer>> sequences)
+    {
+        int edgeCount = 0;
+
+        for (List<Integer> sequence : sequences)
+        {
+            edgeCount += sequence.size();
+        }
+
+        // Size the table so that it's at most half full.
+        int tableSize = Integer.highestOneBit(Math.max(edgeCount, 8) * 2) * 2;
+        edgeKeys = new long[tableSize];
+        edgeChildren = new int[tableSize];
+        edgeMask = tableSize - 1;
+        Arrays.fill(edgeKeys, EMPTY);
+
+        boolean[] emoji = new boolean[edgeCount + 1];
+        boolean[] children = new boolean[edgeCount + 1];
+        int nodeCount = 1;
+
+        for (List<Integer> sequence : sequences)
+        {
+            if (sequence.isEmpty())
+                continue;
+
+            int node = ROOT;
+
+            for (int codepoint : sequence)
+            {
+                int child = getChild(node, codepoint);
+
+                if (child == NO_NODE)
+                {
+                    child = nodeCount++;
+                    putChild(node, codepoint, child);
+                    children[node] = true;
+                }
+
+                node = child;
+            }
+
+            emoji[node] = true;
+        }
+
+        isEmoji = Arrays.copyOf(emoji, nodeCount);
+        hasChildren = Arrays.copyOf(children, nodeCount);
+    }
+
+    /**
+     * Finds the longest emoji starting at the given index of an array of
+     * codepoints.
+     *
+     * @param codepoints the codepoints
+     * @param start the index to start at
+     * @param length the number of valid codepoints in the array
+     * @return the number of codepoints in the longest emoji, or 0 if no emoji
+     * starts at the index.
+     */
+    int longestMatch(int[] codepoints, int start, int length)
+    {
+        int node = ROOT;
+        int longest = 0;
+
+        for (int i = start; i < length; i++)
+        {
+            node = getChild(node, codepoints[i]);
+
+            if (node == NO_NODE)
+                break;
+
+            if (isEmoji[node])
+                longest = i - start + 1;
+
+            if (!hasChildren[node])
+                break;
+        }
+
+        return longest;
+    }
+
+    /**
+     * @return true if the given codepoint is an emoji on its own, and doesn't
+     * start any longer emoji.
+     */
+    boolean isSingleCodepointEmojiNotStartingSequence(int codepoint)
+    {
+        int node = getChild(ROOT, codepoint);
+        return node != NO_NODE && isEmoji[node] && !hasChildren[node];
+    }
+
+    private int getChild(int node, int codepoint)
+    {
+        long key = edgeKey(node, codepoint);
+
+        for (int slot = slot(key); ; slot = (slot + 1) & edgeMask)
+        {
+            long slotKey = edgeKeys[slot];
+
+            if (slotKey == key)
+                return edgeChildren[slot];
+
+            if (slotKey == EMPTY)
+                return NO_NODE;
+        }
+    }
+
+    private void putChild(int node, int codepoint, int child)
+    {
+        long key = edgeKey(node, codepoint);
+        int slot = slot(key);
+
+        while (edgeKeys[slot] != EMPTY)
+        {
+            slot = (slot + 1) & edgeMask;
+        }
+
+        edgeKeys[slot] = key;
+        edgeChildren[slot] = child;
+    }
+
+    private static long edgeKey(int node, int codepoint)
+    {
+        return ((long) node << 32) | (codepoint & 0xffffffffL);
+    }
+
+    private int slot(long key)
+    {
+        // Mix the bits so that the edges from the root, whose keys only
+        // differ in their codepoints, are spread over the table.
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & edgeMask;
+    }
+}
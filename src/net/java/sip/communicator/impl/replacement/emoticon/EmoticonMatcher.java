@@ -0,0 +1,177 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.impl.replacement.emoticon;
+
+import java.util.*;
+
+/**
+ * Finds the smiley strings of a set of <tt>Emoticon</tt>s in text.
+ * <p>
+ * The smiley strings are held in a trie of characters, and are only matched at
+ * the start of the text or after a whitespace character (to prevent
+ * interference with HTML markup or unwanted substitution in pasted code,
+ * etc.).  At each such position the longest smiley string is matched, so the
+ * text is scanned once, with no regular expression to build or compile.
+ * Matching is case-sensitive, as the emoticons list every case variant they
+ * accept.
+ * <p>
+ * Instances are immutable once built, so are safe to share between threads.
+ */
+class EmoticonMatcher
+{
+    /**
+     * The HTML no-break space &amp;nbsp;, which counts as whitespace before a
+     * smiley string.
+     */
+    private static final char NO_BREAK_SPACE = '\u00A0';
+
+    private final Node root = new Node();
+
+    /**
+     * Builds a matcher for the smiley strings of the given emoticons.
+     *
+     * @param emoticons the emoticons
+     */
+    EmoticonMatcher(Collection<Emoticon> emoticons)
+    {
+        for (Emoticon emoticon : emoticons)
+        {
+            for (String smileyString : emoticon.getSmileyStrings())
+            {
+                if (smileyString.isEmpty())
+                    continue;
+
+                Node node = root;
+
+                for (int i = 0; i < smileyString.length(); i++)
+                {
+                    node = node.getOrAddChild(smileyString.charAt(i));
+                }
+
+                // As with the regex that this replaces, the first emoticon
+                // listed for a smiley string wins.
+                if (node.emoticon == null)
+                    node.emoticon = emoticon;
+            }
+        }
+    }
+
+    /**
+     * Finds the next smiley string in some text.
+     *
+     * @param text the text to search
+     * @param from the index to start searching from
+     * @return the match, or null if there are no more smiley strings in the
+     * text.
+     */
+    Match find(String text, int from)
+    {
+        for (int start = from; start < text.length(); start++)
+        {
+            if (start > 0 && !isWhitespace(text.charAt(start - 1)))
+                continue;
+
+            Node node = root;
+            Node longest = null;
+            int end = start;
+
+            for (int i = start; i < text.length(); i++)
+            {
+                node = node.getChild(text.charAt(i));
+
+                if (node == null)
+                    break;
+
+                if (node.emoticon != null)
+                {
+                    longest = node;
+                    end = i + 1;
+                }
+            }
+
+            if (longest != null)
+                return new Match(start, end, longest.emoticon);
+        }
+
+        return null;
+    }
+
+    /**
+     * @return true if the character is whitespace as matched by \s in a
+     * regex, or a no-break space.
+     */
+    private static boolean isWhitespace(char c)
+    {
+        return c == ' ' || (c >= '\t' && c <= '\r') || c == NO_BREAK_SPACE;
+    }
+
+    /**
+     * A smiley string found in some text.
+     */
+    static class Match
+    {
+        /**
+         * The index of the first character of the smiley string.
+         */
+        final int start;
+
+        /**
+         * The index after the last character of the smiley string.
+         */
+        final int end;
+
+        /**
+         * The emoticon for the smiley string.
+         */
+        final Emoticon emoticon;
+
+        Match(int start, int end, Emoticon emoticon)
+        {
+            this.start = start;
+            this.end = end;
+            this.emoticon = emoticon;
+        }
+    }
+
+    /**
+     * A node in the trie.  Nodes have few children, so they are held in
+     * arrays and searched linearly.
+     */
+    private static class Node
+    {
+        private char[] keys = new char[0];
+
+        private Node[] children = new Node[0];
+
+        /**
+         * The emoticon whose smiley string ends at this node, or null.
+         */
+        private Emoticon emoticon;
+
+        Node getChild(char c)
+        {
+            for (int i = 0; i < keys.length; i++)
+            {
+                if (keys[i] == c)
+                    return children[i];
+            }
+
+            return null;
+        }
+
+        Node getOrAddChild(char c)
+        {
+            Node child = getChild(c);
+
+            if (child == null)
+            {
+                child = new Node();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                keys[keys.length - 1] = c;
+                children[children.length - 1] = child;
+            }
+
+            return child;
+        }
+    }
+}
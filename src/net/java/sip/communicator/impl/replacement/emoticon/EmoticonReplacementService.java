@@ -7,8 +7,6 @@
 package net.java.sip.communicator.impl.replacement.emoticon;
 
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import net.java.sip.communicator.impl.gui.main.chat.DisplayablePartOfMessage;
 import net.java.sip.communicator.impl.gui.main.chat.PicturePartOfMessage;
@@ -33,37 +31,24 @@ public class EmoticonReplacementService implements ChatPartReplacementService
     private static final Logger logger
         = Logger.getLogger(EmoticonReplacementService.class);
 
-    /**
-     * The <tt>List</tt> of emoticon strings which are matched by
-     * {@link #emoticonRegex}.
-     */
-    private static final List<String> emoticonStrings = new ArrayList<>();
-
     /**
      * Configuration label shown in the config form.
      */
     public static final String EMOTICON_SERVICE = "EMOTICON_REPLACAMENT";
 
     /**
-     * The regex used to match the emoticons in the message.
-     */
-    private static String emoticonRegex;
-
-    /**
-     * Replaces the emoticon strings with their corresponding emoticon image.
+     * Gets the image for an emoticon.
      *
-     * @param sourceString the original emoticon string.
-     * @return the emoticon image replaced for the emoticon string; the original
-     *         emoticon string in case of no match.
+     * @param emoticon the emoticon.
+     * @param sourceString the emoticon string that was matched.
+     * @return the emoticon image for the emoticon string; the original
+     *         emoticon string if the image can't be found.
      */
-    private String getReplacement(final String sourceString)
+    private String getReplacement(Emoticon emoticon, String sourceString)
     {
         try
         {
-            Emoticon emoticon = EmoticonResources.getEmoticon(sourceString.trim());
-
-            if (emoticon != null)
-                return emoticon.getImageURL();
+            return emoticon.getImageURL();
         }
         catch (Exception e)
         {
@@ -74,79 +59,6 @@ public class EmoticonReplacementService implements ChatPartReplacementService
         return sourceString;
     }
 
-    /**
-     * Gets a regex string which matches the emoticon strings of the specified
-     * <tt>Collection</tt> of <tt>Emoticon</tt>s.
-     *
-     * @param emoticons the <tt>Collection</tt> of <tt>Emoticon</tt>s for which to
-     *            get a compiled <tt>Pattern</tt> which matches its emoticon
-     *            strings
-     * @return a regex string which matches the emoticon strings of the specified
-     *         <tt>Collection</tt> of <tt>Emoticon</tt>s
-     */
-    private static String getPatternForEmoticonReplacement(Collection<Emoticon> emoticons)
-    {
-        synchronized (emoticonStrings)
-        {
-            boolean emoticonStringsIsEqual;
-
-            if (emoticonRegex == null)
-                emoticonStringsIsEqual = false;
-            else
-            {
-                emoticonStringsIsEqual = true;
-
-                int emoticonStringIndex = 0;
-                int emoticonStringCount = emoticonStrings.size();
-
-                emoticonLoop: for (Emoticon emoticon : emoticons)
-                    for (String emoticonString : emoticon.getSmileyStrings())
-                        if ((emoticonStringIndex < emoticonStringCount)
-                            && emoticonString.equals(emoticonStrings
-                                .get(emoticonStringIndex)))
-                            emoticonStringIndex++;
-                        else
-                        {
-                            emoticonStringsIsEqual = false;
-                            break emoticonLoop;
-                        }
-                if (emoticonStringsIsEqual
-                    && (emoticonStringIndex != emoticonStringCount))
-                    emoticonStringsIsEqual = false;
-            }
-
-            if (!emoticonStringsIsEqual)
-            {
-                emoticonStrings.clear();
-
-                StringBuffer regex = new StringBuffer();
-
-                // Should not make the replacement unless the emoticon is at the
-                // start of the message or after a whitespace character (to
-                // prevent interference with HTML markup or unwanted
-                // substitution in pasted code, etc.). Note that \u00A0 is the
-                // unicode character corresponding to the HTML no-break space
-                // &nbsp;.
-                regex.append("(?<=(\\u00A0|^|\\s))(");
-                for (Emoticon emoticon : emoticons)
-                    for (String emoticonString : emoticon.getSmileyStrings())
-                    {
-                        emoticonStrings.add(emoticonString);
-
-                        GuiUtils.replaceSpecialRegExpChars(emoticonString);
-                        regex.append(
-                            GuiUtils.replaceSpecialRegExpChars(emoticonString))
-                            .append("|");
-                    }
-                regex = regex.deleteCharAt(regex.length() - 1);
-                regex.append(')');
-
-                emoticonRegex = regex.toString();
-            }
-            return emoticonRegex;
-        }
-    }
-
     /**
      * Returns the source name
      *
@@ -168,32 +80,29 @@ public class EmoticonReplacementService implements ChatPartReplacementService
     {
         String messageString = stringMessagePart.getText();
 
-        // Creating the matcher to search for emoticon strings [e.g. :-) ]
-        Collection<Emoticon> emoticons = EmoticonResources.getDefaultEmoticonPack();
-        String stringForPattern = getPatternForEmoticonReplacement(emoticons);
-        // getDefaultEmoticonPack returns all variants of case-insensitive
-        // emoticons, so matching should be case-sensitive
-        Pattern pattern = Pattern.compile(stringForPattern, Pattern.DOTALL);
-        Matcher m = pattern.matcher(messageString);
+        // The matcher to search for emoticon strings [e.g. :-) ] is only
+        // built when the emoticon pack changes, not for every message
+        EmoticonMatcher matcher = EmoticonResources.getEmoticonMatcher();
 
         ArrayList<DisplayablePartOfMessage> replacedMessageArray = new ArrayList<>(
                 0);
         int startPos = 0;
+        EmoticonMatcher.Match m;
 
-        while (m.find())
+        while ((m = matcher.find(messageString, startPos)) != null)
         {
             // Adds the segment of the string before the current emoji to the
             // message array
-            String stringSegment = messageString.substring(startPos, m.start());
-            startPos = m.end();
+            String stringSegment = messageString.substring(startPos, m.start);
+            startPos = m.end;
             TextPartOfMessage stringSegmentStringMessageObject = new TextPartOfMessage(stringSegment);
             replacedMessageArray.add(stringSegmentStringMessageObject);
 
             // Adds the picture message part corresponding to the current emoji
             // to the message array
-            String emoticonString = m.group();
+            String emoticonString = messageString.substring(m.start, m.end);
 
-            String imageFilePath = getReplacement(emoticonString);
+            String imageFilePath = getReplacement(m.emoticon, emoticonString);
             PicturePartOfMessage pictureMessagePart = new PicturePartOfMessage(imageFilePath, emoticonString);
             replacedMessageArray.add(pictureMessagePart);
 
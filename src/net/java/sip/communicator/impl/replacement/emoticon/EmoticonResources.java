@@ -24,6 +24,12 @@ public class EmoticonResources
      */
     private static Collection<Emoticon> defaultEmoticonPack;
 
+    /**
+     * The matcher for the smiley strings of the default pack, built when
+     * first needed and discarded when the pack is reloaded.
+     */
+    private static EmoticonMatcher emoticonMatcher;
+
     private static final Logger sLog
         = Logger.getLogger(EmoticonResources.class);
 
@@ -113,11 +119,27 @@ public class EmoticonResources
         return null;
     }
 
+    /**
+     * Returns the matcher for the smiley strings of the default emoticon pack.
+     * @return the matcher for the default emoticon pack.
+     */
+    static synchronized EmoticonMatcher getEmoticonMatcher()
+    {
+        if (emoticonMatcher == null)
+        {
+            emoticonMatcher = new EmoticonMatcher(getDefaultEmoticonPack());
+            sLog.debug("Created emoticon matcher");
+        }
+
+        return emoticonMatcher;
+    }
+
     /**
      * Reloads smilies.
      */
-    public static void reloadResources()
+    public static synchronized void reloadResources()
     {
         defaultEmoticonPack = null;
+        emoticonMatcher = null;
     }
 }
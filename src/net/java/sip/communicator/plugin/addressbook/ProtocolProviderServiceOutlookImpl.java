@@ -452,6 +452,16 @@ public class ProtocolProviderServiceOutlookImpl
                          "find the existing Accession ID");
             listener.updateFailed(true);
         }
+
+        // The details of the contact object have changed whether or not
+        // Outlook was updated, so fire a property change event for it, as
+        // Outlook won't tell us about the change.  oldValue and newValue are
+        // not used so just pass the contact
+        outlookDataHandler.fireContactPropertyChangeEvent(
+                            ContactPropertyChangeEvent.PROPERTY_DISPLAY_DETAILS,
+                            contact,
+                            contact,
+                            contact);
     }
 
     /**
@@ -438,4 +438,15 @@ public interface MetaContactListService
      */
     void removeMetaContactGroup(MetaContactGroup groupToRemove)
         throws MetaContactListException;
+
+    /**
+     * Runs a batch of contact presence changes on the calling thread.  While
+     * the batch runs, the contact list defers the notifications it would send
+     * for each change, then sends them once the batch is complete - at most
+     * one per <tt>MetaContact</tt> that changed, and one reorder event per
+     * <tt>MetaContactGroup</tt>.
+     * <p>
+     * @param batch the presence changes to make.
+     */
+    void runPresenceBatch(Runnable batch);
 }
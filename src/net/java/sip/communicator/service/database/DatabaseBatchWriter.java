@@ -0,0 +1,68 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.service.database;
+
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * A write-behind queue of database writes.  Writes are queued by calling
+ * enqueue() and written in a single transaction, using JDBC batches, either
+ * once enough writes are queued or once the oldest queued write has waited
+ * long enough.  This is much cheaper than connecting and writing each record
+ * separately with auto-commit when writing a burst of records, e.g. when
+ * catching up with the message archive.
+ *
+ * Users of a batch writer must make sure their own reads see their pending
+ * writes, e.g. by calling flush() before reading any data that might have
+ * pending writes.
+ */
+public interface DatabaseBatchWriter
+{
+    /**
+     * Listener told about each batch of writes that has been written to the
+     * database, e.g. so that change events can be sent once per batch rather
+     * than once per record.
+     */
+    interface FlushListener
+    {
+        /**
+         * Called after a batch of writes has been committed to the database,
+         * on the thread that flushed them.
+         *
+         * @param writes The writes that have been committed, in the order they
+         * were queued.
+         */
+        void writesFlushed(List<DatabaseWrite> writes);
+    }
+
+    /**
+     * Queue a write, to be written when the queue is next flushed.
+     *
+     * @param write The write to queue.
+     */
+    void enqueue(DatabaseWrite write);
+
+    /**
+     * Write all the queued writes to the database now, on the calling thread.
+     * Returns once they have been committed (or have failed).
+     */
+    void flush();
+
+    /**
+     * @return true if there are writes queued that have not yet been flushed.
+     */
+    boolean hasPendingWrites();
+
+    /**
+     * @param matcher A test to apply to the queued writes.
+     * @return true if any queued write that has not yet been flushed matches
+     * the given test.
+     */
+    boolean hasPendingWrite(Predicate<DatabaseWrite> matcher);
+
+    /**
+     * Flush any queued writes and stop the writer.  Any writes queued after
+     * this are written immediately.
+     */
+    void stop();
+}
@@ -448,6 +448,34 @@ public interface DatabaseConnection
                        int count)
         throws SQLException;
 
+    /**
+     * Return a ResultSet containing the last count records for every thread
+     * (i.e. every distinct value of the thread column) with the given local
+     * JID, in a single query.  If count is -1, return all the rows.
+     *
+     * The rows are ordered by thread, then in ascending date order within
+     * each thread, so callers can stream the results and split them into
+     * threads as the thread column value changes.
+     *
+     * @param tableName The name of the table to query.
+     * @param localJidColName The name of the localJid column.
+     * @param localJid The local JID.
+     * @param threadColName The name of the column identifying the thread
+     * (e.g. the remoteJid or roomJid column).
+     * @param dateColName The name of the column representing the date.
+     * @param idColName The name of the column for the message/file transfer ID
+     * @param count The maximum number of rows to return per thread.
+     * @return The ResultSet. Never null.
+     */
+    ResultSet findLastForEachThread(String tableName,
+                                    String localJidColName,
+                                    String localJid,
+                                    String threadColName,
+                                    String dateColName,
+                                    String idColName,
+                                    int count)
+        throws SQLException;
+
     /**
      * Return a ResultSet containing the first count records for the given local
      * JID and remote JID after the specified date.
@@ -660,6 +688,123 @@ public interface DatabaseConnection
                             String keyword)
         throws SQLException;
 
+    /**
+     * Return a ResultSet containing rows of the given table where every token
+     * of the keyword is a prefix of a token in the search index for that row.
+     * One or more columns may have been indexed for the table.
+     * <p>
+     * Unlike findByKeyword(), this matches the start of words.  If no row
+     * matches that way, or the keyword contains no tokens (e.g. it is empty
+     * or only punctuation), this falls back to findByKeyword() on the given
+     * columns, so a keyword that only appears in the middle of a word is
+     * still found.  Rows where the keyword only appears in the middle of a
+     * word are not included if any row matches the start of a word.
+     *
+     * @param tableName The name of the table to query.
+     * @param rowIdColName The name of the table's row ID column.
+     * @param orderColName The name of the column to order the results by.
+     * @param keyword The keyword to search for.
+     * @param searchColNames The names of the indexed columns, to scan if the
+     * keyword contains no tokens.
+     * @param limit the number of records to return (-1 for all records).
+     * @return The ResultSet.  Never null.
+     */
+    ResultSet findByIndexedKeyword(String tableName,
+                                   String rowIdColName,
+                                   String orderColName,
+                                   String keyword,
+                                   String[] searchColNames,
+                                   int limit)
+        throws SQLException;
+
+    /**
+     * Return a ResultSet containing records for the given local JID and remote
+     * JIDs where every token of the keyword is a prefix of a token in the
+     * search index for that record.
+     * <p>
+     * Unlike findByKeyword(), this matches the start of words.  If no record
+     * matches that way, or the keyword contains no tokens (e.g. it is empty
+     * or only punctuation), this falls back to findByKeyword() on the given
+     * column, so a keyword that only appears in the middle of a word is
+     * still found.  Records where the keyword only appears in the middle of a
+     * word are not included if any record matches the start of a word.
+     *
+     * @param tableName The name of the table to query.
+     * @param rowIdColName The name of the table's row ID column.
+     * @param localJidColName The name of the localJid column
+     * @param localJid The local JID.
+     * @param remoteJidColName The name of the remoteJid column.
+     * @param remoteJids The remote JIDs.
+     * @param dateColName The name of the column representing the date.
+     * @param idColName The name of the column for the message/file transfer ID
+     * @param keywordColName The name of the indexed column, to scan if the
+     * keyword contains no tokens.
+     * @param keyword The keyword to search for.
+     * @return The ResultSet.  Never null.
+     */
+    ResultSet findByIndexedKeyword(String tableName,
+                                   String rowIdColName,
+                                   String localJidColName,
+                                   String localJid,
+                                   String remoteJidColName,
+                                   List<String> remoteJids,
+                                   String dateColName,
+                                   String idColName,
+                                   String keywordColName,
+                                   String keyword)
+        throws SQLException;
+
+    /**
+     * Add the tokens of the given text to the search index, for the row that
+     * was most recently inserted into the given table on this connection.
+     * Must be called straight after the INSERT, on the same connection.
+     *
+     * @param tableName The name of the table the row was inserted into.
+     * @param texts The text of each indexed column of the row.  Null values
+     * are ignored.
+     */
+    void addToSearchIndex(String tableName, String... texts)
+        throws SQLException;
+
+    /**
+     * Remove the search index entries for the rows of the given table where
+     * the value of matchColName is matchValue.  Must be called before the rows
+     * themselves are deleted.
+     *
+     * @param tableName The name of the indexed table.
+     * @param rowIdColName The name of the table's row ID column.
+     * @param matchColName The name of the column to match.
+     * @param matchValue The value to match.
+     */
+    void removeFromSearchIndex(String tableName,
+                               String rowIdColName,
+                               String matchColName,
+                               String matchValue)
+        throws SQLException;
+
+    /**
+     * Run the given writes, in order.  Consecutive writes with the same
+     * statements are run together, with one JDBC batch per statement.
+     * Callers will normally want to do this in a transaction.
+     *
+     * @param writes The writes to run.
+     */
+    void executeBatch(List<DatabaseWrite> writes)
+        throws SQLException;
+
+    /**
+     * Discard and rebuild the search index entries for every row of the given
+     * table.  Used when the database is upgraded.
+     *
+     * @param tableName The name of the table to index.
+     * @param rowIdColName The name of the table's row ID column.
+     * @param textColNames The names of the columns to index.
+     */
+    void rebuildSearchIndex(String tableName,
+                            String rowIdColName,
+                            String... textColNames)
+        throws SQLException;
+
     /**
      * Return a ResultSet containing a list of unique values for the specified
      * column, and matching the given local JID string value.
@@ -17,6 +17,23 @@ public interface DatabaseService
     DatabaseConnection connect()
         throws SQLException;
 
+    /**
+     * Create a write-behind batch writer, which writes queued writes in a
+     * single transaction once maxBatchSize writes are queued, or once the
+     * oldest queued write has waited for maxDelayMillis.
+     *
+     * @param name The name of the writer, used in logs and for its thread.
+     * @param maxBatchSize The number of queued writes that triggers a flush.
+     * @param maxDelayMillis The longest time a write may be queued for.
+     * @param listener Told about each batch of writes once committed.  May be
+     * null.
+     * @return The batch writer.
+     */
+    DatabaseBatchWriter createBatchWriter(String name,
+                                          int maxBatchSize,
+                                          long maxDelayMillis,
+                                          DatabaseBatchWriter.FlushListener listener);
+
     /**
      * Shutdown the database.
      */
@@ -0,0 +1,58 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.service.database;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Represents a single write (e.g. inserting or deleting a history record)
+ * queued on a DatabaseBatchWriter.
+ *
+ * A write consists of one or more SQL statements, which are run in order.
+ * Consecutive queued writes with the same list of statements are batched
+ * together, running each statement for all of the writes with one JDBC
+ * executeBatch() call.
+ */
+public interface DatabaseWrite
+{
+    /**
+     * @return The SQL for each of the statements that make up this write, in
+     * the order that they must run.  Writes that return equal lists may be
+     * batched together, so the SQL must not contain any literal values.
+     */
+    List<String> getStatements();
+
+    /**
+     * Set the parameters for one of the statements of this write and add
+     * them to the statement's batch.  This may call addBatch() any number of
+     * times, including none if there is nothing to do for this write.
+     *
+     * @param statementIndex The index into getStatements() of the statement.
+     * @param preparedStatement The statement to add the parameters to.
+     * @throws SQLException on any SQL error.
+     */
+    void addToBatch(int statementIndex, PreparedStatement preparedStatement)
+        throws SQLException;
+
+    /**
+     * @return The index into getStatements() of the statement that inserts
+     * the row written by this write, if later statements need the ID
+     * generated for that row (see setGeneratedKey()), or -1 if none do.
+     * That statement must add exactly one set of parameters to its batch.
+     */
+    default int getGeneratedKeyStatementIndex()
+    {
+        return -1;
+    }
+
+    /**
+     * Called with the ID generated for the row inserted by the statement
+     * returned by getGeneratedKeyStatementIndex(), before any later
+     * statements are added to their batches.
+     *
+     * @param key The generated ID.
+     */
+    default void setGeneratedKey(long key)
+    {
+    }
+}
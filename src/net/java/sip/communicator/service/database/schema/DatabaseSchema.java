@@ -29,6 +29,8 @@ public final class DatabaseSchema
     * 2 Add CallHistoryTable.COL_CALL_ADDED_TO_DB column to CallHistory table.
     * 3 CallHistory table gains the column: colCallRecordAttention
     * 4 FileHistoryTable gains the column: colAttention
+    * 5 Add SearchIndexTable, the keyword search index for message and call
+    *   history.
     */
-    public static final int VERSION = 4;
+    public static final int VERSION = 5;
 }
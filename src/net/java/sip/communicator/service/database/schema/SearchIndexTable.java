@@ -0,0 +1,52 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.service.database.schema;
+
+import net.java.sip.communicator.service.database.schemautil.*;
+
+/**
+ * The SQL table for the keyword search index (added in version 5).  One row
+ * per token per indexed row of another table, so keyword searches can do an
+ * indexed prefix lookup on the tokens rather than scanning every row of the
+ * indexed table with LIKE '%keyword%'.
+ *
+ * Rows are maintained by DatabaseConnection.addToSearchIndex() and
+ * removeFromSearchIndex() as rows are written to and deleted from the indexed
+ * tables.
+ */
+public interface SearchIndexTable
+{
+    String NAME = "SearchIndexTable";
+
+    // Column names.  There is no ID column - the index is looked up by token
+    // and by indexed row, never by its own row.
+    // COL_TABLE_NAME is the name of the indexed table (e.g.
+    // MessageHistoryTable.NAME) and COL_ROW_ID is the colID of the indexed row
+    // in that table.
+    String COL_TABLE_NAME = "colTableName";
+    String COL_TOKEN = "colToken";
+    String COL_ROW_ID = "colRowID";
+
+    /**
+     * The maximum length of a token.  Longer tokens are truncated, which is
+     * fine as we only ever do prefix matching.
+     */
+    int MAX_TOKEN_LENGTH = 64;
+
+    DBTable TABLE = new DBTable(NAME, DBTable.STORAGE.CACHED)
+        .addColumn(new TextDBColumn(COL_TABLE_NAME, 64).notNull())
+        .addColumn(new TextDBColumn(COL_TOKEN, MAX_TOKEN_LENGTH).notNull())
+        .addColumn(new IntDBColumn(COL_ROW_ID).notNull())
+        ;
+
+    // Searches are by table and token prefix, returning the row IDs.
+    DBIndex INDEX_TABLE_AND_TOKEN =
+        new DBIndex("SearchIndexIndexTableAndToken", NAME)
+            .addColumn(new IndexColumn(COL_TABLE_NAME))
+            .addColumn(new IndexColumn(COL_TOKEN))
+            .addColumn(new IndexColumn(COL_ROW_ID));
+    // Deleting the tokens for a row is by table and row ID.
+    DBIndex INDEX_TABLE_AND_ROW_ID =
+        new DBIndex("SearchIndexIndexTableAndRowID", NAME)
+            .addColumn(new IndexColumn(COL_TABLE_NAME))
+            .addColumn(new IndexColumn(COL_ROW_ID));
+}
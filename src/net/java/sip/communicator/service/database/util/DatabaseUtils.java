@@ -4,6 +4,7 @@ package net.java.sip.communicator.service.database.util;
 import static net.java.sip.communicator.util.PrivacyUtils.*;
 
 import java.sql.*;
+import java.util.*;
 
 import net.java.sip.communicator.service.database.*;
 import net.java.sip.communicator.service.database.schema.*;
@@ -16,6 +17,12 @@ public class DatabaseUtils
 {
     private static final Logger sLog = Logger.getLogger(DatabaseUtils.class);
 
+    /**
+     * The minimum length of the suffixes of all-digit tokens that we add to
+     * the search index, so that searching for part of a number still finds it.
+     */
+    private static final int MIN_NUMBER_SUFFIX_LENGTH = 3;
+
     /** Strings to use to replace message text in logs. */
     private static final String DUMMY_MESSAGE_TEXT = "XXX";
     private static final String DUMMY_SUBJECT = "YYY";
@@ -214,4 +221,131 @@ public class DatabaseUtils
                                  sanitisePeerId(accountJid) + "," + sanitisePeerId(remoteJid) + "," + ftUid + "," +
                                  DUMMY_MESSAGE_TEXT + "," + dir + "," + timestamp + "," + status + "," + attention + ")]";
     }
+
+    /**
+     * Split some text into the tokens to store in the search index for it.
+     * Tokens are lower case runs of letters and digits.  For tokens made up
+     * only of digits (i.e. phone numbers and the like), all suffixes of at
+     * least MIN_NUMBER_SUFFIX_LENGTH digits are also included, so that a
+     * prefix search on the index also finds numbers by their trailing digits.
+     *
+     * @param text The text to tokenize.  Safe to call if null.
+     * @return The set of tokens.  Never null.
+     */
+    public static Set<String> getSearchIndexTokens(String text)
+    {
+        Set<String> tokens = new HashSet<>();
+
+        for (String token : getSearchKeywordTokens(text))
+        {
+            tokens.add(token);
+
+            if (isAllDigits(token))
+            {
+                for (int start = 1;
+                     token.length() - start >= MIN_NUMBER_SUFFIX_LENGTH;
+                     start++)
+                {
+                    tokens.add(token.substring(start));
+                }
+            }
+        }
+
+        return tokens;
+    }
+
+    /**
+     * Get the SQL to add one token to the search index for a row.  Unlike
+     * DatabaseConnection.addToSearchIndex() this doesn't depend on the row
+     * being the last one inserted on the connection, so it can be used in a
+     * JDBC batch, with the row ID from DatabaseWrite.setGeneratedKey().  The
+     * parameters are: 1 - the table name, 2 - the token, 3 - the row ID.
+     *
+     * @return The SQL.
+     */
+    public static String getAddToSearchIndexSql()
+    {
+        return "INSERT INTO " + SearchIndexTable.NAME + "(" +
+               SearchIndexTable.COL_TABLE_NAME + "," +
+               SearchIndexTable.COL_TOKEN + "," +
+               SearchIndexTable.COL_ROW_ID + ") VALUES (?,?,?)";
+    }
+
+    /**
+     * Get the SQL to remove the search index entries for the rows of the given
+     * table where the value of matchColName matches.  The parameters are:
+     * 1 - the table name, 2 - the value to match.
+     *
+     * @param tableName The name of the indexed table.
+     * @param rowIdColName The name of the table's row ID column.
+     * @param matchColName The name of the column to match the rows on.
+     * @return The SQL.
+     */
+    public static String getRemoveFromSearchIndexSql(String tableName,
+                                                     String rowIdColName,
+                                                     String matchColName)
+    {
+        return "DELETE FROM " + SearchIndexTable.NAME +
+               " WHERE " + SearchIndexTable.COL_TABLE_NAME + " =?" +
+               " AND " + SearchIndexTable.COL_ROW_ID + " IN (" +
+                   "SELECT " + rowIdColName + " FROM " + tableName +
+                   " WHERE " + matchColName + " =?)";
+    }
+
+    /**
+     * Split a keyword typed by the user into the tokens to look up in the
+     * search index.  Each token is matched as a prefix of an indexed token.
+     *
+     * @param keyword The keyword to tokenize.  Safe to call if null.
+     * @return The set of tokens, in the order they appear.  Never null.
+     */
+    public static Set<String> getSearchKeywordTokens(String keyword)
+    {
+        Set<String> tokens = new LinkedHashSet<>();
+
+        if (keyword == null)
+        {
+            return tokens;
+        }
+
+        String lowerCase = keyword.toLowerCase(Locale.ROOT);
+        int length = lowerCase.length();
+        int start = -1;
+
+        for (int ii = 0; ii <= length; ii++)
+        {
+            boolean isTokenChar =
+                (ii < length) && Character.isLetterOrDigit(lowerCase.charAt(ii));
+
+            if (isTokenChar && start < 0)
+            {
+                start = ii;
+            }
+            else if (!isTokenChar && start >= 0)
+            {
+                int end = Math.min(ii, start + SearchIndexTable.MAX_TOKEN_LENGTH);
+                tokens.add(lowerCase.substring(start, end));
+                start = -1;
+            }
+        }
+
+        return tokens;
+    }
+
+    /**
+     * @param token A non-empty string.
+     * @return true if the string contains only digits.
+     */
+    private static boolean isAllDigits(String token)
+    {
+        for (int ii = 0; ii < token.length(); ii++)
+        {
+            if (!Character.isDigit(token.charAt(ii)))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
 }
@@ -28,4 +28,12 @@ public interface ContactListSearchFilter
      * @return the MetaContact search pattern
      */
     Pattern getMetaContactPattern();
+
+    /**
+     * Gets the string used by this filter, with accents and apostrophes
+     * removed.
+     *
+     * @return the filter string
+     */
+    String getFilterString();
 }
@@ -74,7 +74,9 @@ public abstract class AbstractBufferedImageFuture implements BufferedImageFuture
             @Override
             public ImageIcon alterImage(BufferedImage image)
             {
-                return ImageUtils.getScaledEllipticalIcon(image, width, height);
+                return ImageCache.getInstance().getDerivedIcon(
+                    image, "elliptical", width, height,
+                    () -> ImageUtils.getScaledEllipticalIcon(image, width, height));
             }
         };
 
@@ -91,7 +93,9 @@ public abstract class AbstractBufferedImageFuture implements BufferedImageFuture
             @Override
             public ImageIcon alterImage(BufferedImage image)
             {
-                return ImageUtils.getScaledRoundedIcon(image, width, height);
+                return ImageCache.getInstance().getDerivedIcon(
+                    image, "rounded", width, height,
+                    () -> ImageUtils.getScaledRoundedIcon(image, width, height));
             }
         };
 
@@ -108,7 +112,9 @@ public abstract class AbstractBufferedImageFuture implements BufferedImageFuture
             @Override
             public ImageIcon alterImage(BufferedImage image)
             {
-                return ImageUtils.getScaledCircularIcon(image, width, height);
+                return ImageCache.getInstance().getDerivedIcon(
+                    image, "circular", width, height,
+                    () -> ImageUtils.getScaledCircularIcon(image, width, height));
             }
         };
 
@@ -125,7 +131,12 @@ public abstract class AbstractBufferedImageFuture implements BufferedImageFuture
             @Override
             public BufferedImage alterImage(BufferedImage image)
             {
-                return ImageUtils.getBufferedImage(ImageUtils.scaleImageWithinBounds(image, width, height));
+                if (image == null)
+                    return null;
+
+                return ImageCache.getInstance().getDerivedImage(
+                    image, "withinBounds", width, height,
+                    () -> ImageUtils.getBufferedImage(ImageUtils.scaleImageWithinBounds(image, width, height)));
             }
         };
 
@@ -142,7 +153,9 @@ public abstract class AbstractBufferedImageFuture implements BufferedImageFuture
             @Override
             public ImageIcon alterImage(BufferedImage image)
             {
-                return ImageUtils.scaleIconWithinBounds(image, width, height);
+                return ImageCache.getInstance().getDerivedIcon(
+                    image, "iconWithinBounds", width, height,
+                    () -> ImageUtils.scaleIconWithinBounds(image, width, height));
             }
         };
 
@@ -0,0 +1,343 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.service.imageloader;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.lang.ref.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+import javax.swing.*;
+
+import net.java.sip.communicator.service.diagnostics.*;
+
+/**
+ * The process-wide cache of decoded images, and of the images and icons
+ * derived from them (e.g. avatars scaled and cropped to a circle).
+ * <p>
+ * The cache is bounded by the number of bytes of decoded pixels it holds,
+ * evicting the least recently used entries once that is exceeded.  Evicted
+ * entries are kept through soft references, so they can still be found until
+ * the garbage collector needs the memory.
+ * <p>
+ * Derived images are keyed by the identity of the image they were derived
+ * from, the transform and the size, so every caller asking for the same
+ * variant of the same image shares one copy rather than redoing the scaling.
+ * The source image is only weakly referenced by the key.
+ */
+public final class ImageCache
+    implements StateDumper
+{
+    /**
+     * The maximum number of bytes of decoded pixels to hold strongly.
+     */
+    private static final long MAX_BYTES = 64L * 1024 * 1024;
+
+    private static final ImageCache sInstance = new ImageCache(MAX_BYTES);
+
+    private final long mMaxBytes;
+
+    /**
+     * The strongly held entries, in order of least to most recently used.
+     */
+    private final LinkedHashMap<Object, Entry> mEntries =
+        new LinkedHashMap<>(64, 0.75f, true);
+
+    /**
+     * The entries that have been evicted, until the garbage collector clears
+     * them.
+     */
+    private final Map<Object, SoftEntry> mSoftEntries = new HashMap<>();
+
+    private final ReferenceQueue<Object> mClearedEntries =
+        new ReferenceQueue<>();
+
+    /**
+     * The number of bytes of decoded pixels in mEntries.
+     */
+    private long mBytes = 0;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mSoftHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+
+    private ImageCache(long maxBytes)
+    {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return the process-wide image cache.
+     */
+    public static ImageCache getInstance()
+    {
+        return sInstance;
+    }
+
+    /**
+     * Gets an image from the cache.
+     *
+     * @param key the key of the image, e.g. its URL.
+     * @return the image, or null if it isn't cached.
+     */
+    public BufferedImage getImage(Object key)
+    {
+        Object value = get(key);
+        return value instanceof BufferedImage ? (BufferedImage) value : null;
+    }
+
+    /**
+     * Adds an image to the cache.
+     *
+     * @param key the key of the image, e.g. its URL.
+     * @param image the image.  Does nothing if this is null.
+     */
+    public void putImage(Object key, BufferedImage image)
+    {
+        if (image != null)
+            put(key, image, weigh(image.getWidth(), image.getHeight()));
+    }
+
+    /**
+     * Gets an image derived from another image, creating it if it isn't
+     * already cached.
+     *
+     * @param source the image the derived image is created from.
+     * @param transform identifies how the derived image is created.
+     * @param width the width passed to the transform.
+     * @param height the height passed to the transform.
+     * @param create creates the derived image if it isn't cached.
+     * @return the derived image.
+     */
+    public BufferedImage getDerivedImage(BufferedImage source,
+                                         String transform,
+                                         int width,
+                                         int height,
+                                         Supplier<BufferedImage> create)
+    {
+        Object key = new VariantKey(source, transform, width, height);
+        BufferedImage image = getImage(key);
+
+        if (image == null)
+        {
+            image = create.get();
+            putImage(key, image);
+        }
+
+        return image;
+    }
+
+    /**
+     * Gets an icon derived from an image, creating it if it isn't already
+     * cached.
+     *
+     * @param source the image the icon is created from.
+     * @param transform identifies how the icon is created.
+     * @param width the width passed to the transform.
+     * @param height the height passed to the transform.
+     * @param create creates the icon if it isn't cached.
+     * @return the icon.
+     */
+    public ImageIcon getDerivedIcon(BufferedImage source,
+                                    String transform,
+                                    int width,
+                                    int height,
+                                    Supplier<ImageIcon> create)
+    {
+        Object key = new VariantKey(source, transform, width, height);
+        Object value = get(key);
+
+        if (value instanceof ImageIcon)
+            return (ImageIcon) value;
+
+        ImageIcon icon = create.get();
+
+        if (icon != null)
+            put(key, icon, weigh(icon.getIconWidth(), icon.getIconHeight()));
+
+        return icon;
+    }
+
+    /**
+     * Removes everything from the cache.
+     */
+    public synchronized void clear()
+    {
+        mEntries.clear();
+        mSoftEntries.clear();
+        mBytes = 0;
+    }
+
+    @Override
+    public String getStateDumpName()
+    {
+        return "ImageCache";
+    }
+
+    @Override
+    public synchronized String getState()
+    {
+        return "Entries: " + mEntries.size() + "\n" +
+               "Bytes: " + mBytes + " / " + mMaxBytes + "\n" +
+               "Soft entries: " + mSoftEntries.size() + "\n" +
+               "Hits: " + mHits.get() + "\n" +
+               "Soft hits: " + mSoftHits.get() + "\n" +
+               "Misses: " + mMisses.get() + "\n" +
+               "Evictions: " + mEvictions.get() + "\n";
+    }
+
+    private synchronized Object get(Object key)
+    {
+        Entry entry = mEntries.get(key);
+
+        if (entry != null)
+        {
+            mHits.incrementAndGet();
+            return entry.mValue;
+        }
+
+        SoftEntry softEntry = mSoftEntries.remove(key);
+        Object value = softEntry == null ? null : softEntry.get();
+
+        if (value != null)
+        {
+            // Still in memory - make it strongly held again.
+            mSoftHits.incrementAndGet();
+            put(key, value, softEntry.mBytes);
+            return value;
+        }
+
+        mMisses.incrementAndGet();
+        return null;
+    }
+
+    private synchronized void put(Object key, Object value, long bytes)
+    {
+        expungeClearedEntries();
+
+        Entry oldEntry = mEntries.put(key, new Entry(value, bytes));
+
+        if (oldEntry != null)
+            mBytes -= oldEntry.mBytes;
+
+        mSoftEntries.remove(key);
+        mBytes += bytes;
+
+        Iterator<Map.Entry<Object, Entry>> iter =
+            mEntries.entrySet().iterator();
+
+        while (mBytes > mMaxBytes && iter.hasNext())
+        {
+            Map.Entry<Object, Entry> eldest = iter.next();
+            Entry entry = eldest.getValue();
+            iter.remove();
+            mBytes -= entry.mBytes;
+            mEvictions.incrementAndGet();
+
+            mSoftEntries.put(eldest.getKey(),
+                             new SoftEntry(eldest.getKey(),
+                                           entry,
+                                           mClearedEntries));
+        }
+    }
+
+    /**
+     * Removes the soft entries whose values have been garbage collected.
+     * Must be called while synchronized on this.
+     */
+    private void expungeClearedEntries()
+    {
+        Reference<?> cleared;
+
+        while ((cleared = mClearedEntries.poll()) != null)
+        {
+            SoftEntry softEntry = (SoftEntry) cleared;
+            mSoftEntries.remove(softEntry.mKey, softEntry);
+        }
+    }
+
+    /**
+     * @return the number of bytes of decoded pixels in an image of the given
+     * size, assuming 4 bytes per pixel.
+     */
+    private static long weigh(int width, int height)
+    {
+        return 4L * Math.max(width, 0) * Math.max(height, 0);
+    }
+
+    private static final class Entry
+    {
+        final Object mValue;
+        final long mBytes;
+
+        Entry(Object value, long bytes)
+        {
+            mValue = value;
+            mBytes = bytes;
+        }
+    }
+
+    private static final class SoftEntry
+        extends SoftReference<Object>
+    {
+        final Object mKey;
+        final long mBytes;
+
+        SoftEntry(Object key, Entry entry, ReferenceQueue<Object> queue)
+        {
+            super(entry.mValue, queue);
+            mKey = key;
+            mBytes = entry.mBytes;
+        }
+    }
+
+    /**
+     * The key of an image or icon derived from another image.  This only
+     * weakly references the source image, and is never equal to another key
+     * once the source has been garbage collected.
+     */
+    private static final class VariantKey
+    {
+        private final WeakReference<Image> mSource;
+        private final int mSourceHash;
+        private final String mTransform;
+        private final int mWidth;
+        private final int mHeight;
+
+        VariantKey(Image source, String transform, int width, int height)
+        {
+            mSource = new WeakReference<>(source);
+            mSourceHash = System.identityHashCode(source);
+            mTransform = transform;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj)
+                return true;
+
+            if (!(obj instanceof VariantKey))
+                return false;
+
+            VariantKey other = (VariantKey) obj;
+            Image source = mSource.get();
+
+            return source != null &&
+                   source == other.mSource.get() &&
+                   mWidth == other.mWidth &&
+                   mHeight == other.mHeight &&
+                   mTransform.equals(other.mTransform);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(mSourceHash, mTransform, mWidth, mHeight);
+        }
+    }
+}
@@ -67,4 +67,10 @@ public interface LdapDirectory extends LdapConstants
      */
     void searchNumber(final LdapQuery query, final LdapListener caller,
                       LdapSearchSettings searchSettings);
+
+    /**
+     * Closes any connections held open to the directory.  Searches can still
+     * be made afterwards, but won't reuse connections.
+     */
+    void close();
 }
@@ -0,0 +1,489 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.logging.*;
+
+import net.java.sip.communicator.service.diagnostics.*;
+
+/**
+ * Writes log records to their <tt>DefaultFileHandler</tt>s on a single
+ * background thread.
+ * <p>
+ * Without this, every log record is formatted and written to disk (and the
+ * log file rotated if necessary) on the thread that logged it - which
+ * includes the SIP stack and Smack reader threads.  When asynchronous
+ * logging is enabled, those threads just add the record to a bounded ring
+ * buffer, and the writer thread formats and writes the records in batches,
+ * flushing each file once per batch rather than once per record.
+ * <p>
+ * When the buffer is full (or nearly so), what happens depends on the
+ * overflow policy - see <tt>OverflowPolicy</tt>.
+ * <p>
+ * This is configured by the following properties in logging.properties:
+ * <ul>
+ * <li><tt>net.java.sip.communicator.util.AsyncLogWriter.enabled</tt> -
+ * whether to log asynchronously (default false)</li>
+ * <li><tt>net.java.sip.communicator.util.AsyncLogWriter.capacity</tt> - the
+ * number of records the buffer holds (default 8192)</li>
+ * <li><tt>net.java.sip.communicator.util.AsyncLogWriter.overflowPolicy</tt>
+ * - one of BLOCK, DROP_DEBUG_FIRST or SAMPLE (default DROP_DEBUG_FIRST)</li>
+ * <li><tt>net.java.sip.communicator.util.AsyncLogWriter.sampleRate</tt> -
+ * for the SAMPLE policy, keep one in this many debug records (default 10)</li>
+ * </ul>
+ */
+public class AsyncLogWriter
+    implements StateDumper
+{
+    /**
+     * The value returned by <tt>getCapturedLineNumber()</tt> if the caller of
+     * a record wasn't captured when it was published.
+     */
+    static final int NOT_CAPTURED = Integer.MIN_VALUE;
+
+    /**
+     * What to do when a record is published but the buffer is full (or nearly
+     * full).  Records below INFO level are treated as debug records.
+     */
+    public enum OverflowPolicy
+    {
+        /**
+         * Block the publishing thread until there is space in the buffer.
+         */
+        BLOCK,
+
+        /**
+         * Drop debug records once the buffer is three quarters full, so there
+         * is still space for more important records.  Other records block
+         * until there is space.
+         */
+        DROP_DEBUG_FIRST,
+
+        /**
+         * Once the buffer is three quarters full, keep only one in every
+         * <tt>sampleRate</tt> debug records (dropping all of them if the buffer
+         * is completely full).  Other records block until there is space.
+         */
+        SAMPLE
+    }
+
+    private static final String PROPERTY_PREFIX = AsyncLogWriter.class.getName();
+
+    private static final int DEFAULT_CAPACITY = 8192;
+
+    private static final int DEFAULT_SAMPLE_RATE = 10;
+
+    /**
+     * The most records the writer takes from the buffer at once.
+     */
+    private static final int MAX_BATCH_SIZE = 512;
+
+    /**
+     * How long close() waits for the records already published to a handler
+     * to be written.
+     */
+    private static final long DRAIN_TIMEOUT_MS = 5000;
+
+    /**
+     * The single instance, or null if asynchronous logging is disabled.
+     */
+    private static final AsyncLogWriter sInstance = createInstance();
+
+    private final OverflowPolicy mPolicy;
+
+    private final int mSampleRate;
+
+    /**
+     * The number of records in the buffer above which debug records are
+     * dropped or sampled.
+     */
+    private final int mHighWaterMark;
+
+    /**
+     * The ring buffer of records waiting to be written.
+     */
+    private final Entry[] mRing;
+
+    /**
+     * The index in the ring of the oldest record, and the number of records
+     * in the ring.  Both guarded by mLock.
+     */
+    private int mHead = 0;
+    private int mCount = 0;
+
+    /**
+     * The total number of records that have been added to the buffer, and
+     * that the writer has finished with.  Both guarded by mLock.
+     */
+    private long mEnqueued = 0;
+    private long mWritten = 0;
+
+    private final Lock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final Condition mNotFull = mLock.newCondition();
+    private final Condition mBatchWritten = mLock.newCondition();
+
+    private final Thread mWriterThread;
+
+    /**
+     * The record that the writer thread is currently writing, so that the
+     * formatter can use the caller captured when it was published.
+     */
+    private volatile Entry mCurrentEntry;
+
+    // Statistics for the state dump.  mDebugSeen and mMaxDepth are guarded by
+    // mLock.
+    private long mDebugSeen = 0;
+    private int mMaxDepth = 0;
+    private final LongAdder mDropped = new LongAdder();
+    private final LongAdder mSampledOut = new LongAdder();
+    private final LongAdder mBlocked = new LongAdder();
+    private final LongAdder mBatches = new LongAdder();
+
+    private AsyncLogWriter(int capacity, OverflowPolicy policy, int sampleRate)
+    {
+        mRing = new Entry[capacity];
+        mPolicy = policy;
+        mSampleRate = sampleRate;
+        mHighWaterMark = Math.max(1, capacity * 3 / 4);
+
+        mWriterThread = new Thread(this::run, "AsyncLogWriter");
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    /**
+     * @return the asynchronous log writer, or null if asynchronous logging is
+     * disabled.
+     */
+    public static AsyncLogWriter getInstance()
+    {
+        return sInstance;
+    }
+
+    private static AsyncLogWriter createInstance()
+    {
+        LogManager logManager = LogManager.getLogManager();
+
+        if (!Boolean.parseBoolean(
+                logManager.getProperty(PROPERTY_PREFIX + ".enabled")))
+        {
+            return null;
+        }
+
+        int capacity = getIntProperty(logManager, ".capacity", DEFAULT_CAPACITY);
+        int sampleRate =
+            getIntProperty(logManager, ".sampleRate", DEFAULT_SAMPLE_RATE);
+
+        OverflowPolicy policy = OverflowPolicy.DROP_DEBUG_FIRST;
+        String policyStr = logManager.getProperty(PROPERTY_PREFIX + ".overflowPolicy");
+
+        if (policyStr != null)
+        {
+            try
+            {
+                policy = OverflowPolicy.valueOf(policyStr.trim());
+            }
+            catch (IllegalArgumentException e)
+            {
+                // Invalid value - use the default policy.
+            }
+        }
+
+        return new AsyncLogWriter(capacity, policy, Math.max(1, sampleRate));
+    }
+
+    private static int getIntProperty(LogManager logManager,
+                                      String suffix,
+                                      int defaultValue)
+    {
+        try
+        {
+            int value = Integer.parseInt(
+                logManager.getProperty(PROPERTY_PREFIX + suffix).trim());
+
+            return (value > 0) ? value : defaultValue;
+        }
+        catch (Exception ex)
+        {
+            // The property is missing or invalid - use the default value.
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Adds a record to the buffer, to be written to the given handler by the
+     * writer thread.  If the buffer is full, this applies the overflow policy.
+     *
+     * @param handler the handler to write the record to.
+     * @param record the record.
+     * @param lineNumber the line number of the caller captured on the
+     * publishing thread, or <tt>NOT_CAPTURED</tt>.
+     */
+    void publish(DefaultFileHandler handler, LogRecord record, int lineNumber)
+    {
+        if (Thread.currentThread() == mWriterThread)
+        {
+            // Something logged while we were writing a record.  Write this
+            // straight away, as waiting for space in the buffer would hang.
+            handler.publishNow(record);
+            return;
+        }
+
+        boolean isDebug = record.getLevel().intValue() < Level.INFO.intValue();
+
+        mLock.lock();
+        try
+        {
+            if (isDebug && mCount >= mHighWaterMark &&
+                mPolicy != OverflowPolicy.BLOCK)
+            {
+                if (mPolicy == OverflowPolicy.SAMPLE &&
+                    mCount < mRing.length &&
+                    mDebugSeen++ % mSampleRate == 0)
+                {
+                    // This is one of the sampled records, so keep it.
+                }
+                else
+                {
+                    if (mPolicy == OverflowPolicy.SAMPLE)
+                        mSampledOut.increment();
+                    else
+                        mDropped.increment();
+
+                    return;
+                }
+            }
+
+            if (mCount == mRing.length)
+            {
+                mBlocked.increment();
+
+                while (mCount == mRing.length)
+                {
+                    mNotFull.await();
+                }
+            }
+
+            mRing[(mHead + mCount) % mRing.length] =
+                new Entry(handler, record, lineNumber);
+            mCount++;
+            mEnqueued++;
+            mMaxDepth = Math.max(mMaxDepth, mCount);
+            mNotEmpty.signal();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            mDropped.increment();
+        }
+        finally
+        {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Waits (for a limited time) until all the records already published
+     * have been written, e.g. before closing a handler.
+     */
+    void drain()
+    {
+        if (Thread.currentThread() == mWriterThread)
+            return;
+
+        long deadline = System.nanoTime() +
+                        TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MS);
+
+        mLock.lock();
+        try
+        {
+            long target = mEnqueued;
+
+            while (mWritten < target)
+            {
+                long remaining = deadline - System.nanoTime();
+
+                if (remaining <= 0 || !mWriterThread.isAlive())
+                    break;
+
+                mBatchWritten.awaitNanos(remaining);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the current thread is the writer thread, which flushes
+     * the handlers at the end of each batch.
+     */
+    boolean isWriterThread()
+    {
+        return Thread.currentThread() == mWriterThread;
+    }
+
+    /**
+     * Gets the line number of the caller of a record that is being written by
+     * the writer thread, as captured when it was published.
+     *
+     * @param record the record being formatted.
+     * @return the line number, or <tt>NOT_CAPTURED</tt> if the record isn't
+     * being written by the writer thread.
+     */
+    static int getCapturedLineNumber(LogRecord record)
+    {
+        if (sInstance == null)
+            return NOT_CAPTURED;
+
+        Entry entry = sInstance.mCurrentEntry;
+
+        return (entry != null && entry.record == record) ?
+            entry.lineNumber : NOT_CAPTURED;
+    }
+
+    /**
+     * The writer thread - takes batches of records from the buffer and writes
+     * them, flushing each handler written to once per batch.
+     */
+    private void run()
+    {
+        Entry[] batch = new Entry[Math.min(MAX_BATCH_SIZE, mRing.length)];
+        Set<DefaultFileHandler> handlers = new HashSet<>();
+
+        while (true)
+        {
+            int batchSize = 0;
+
+            mLock.lock();
+            try
+            {
+                while (mCount == 0)
+                {
+                    mNotEmpty.awaitUninterruptibly();
+                }
+
+                while (batchSize < batch.length && mCount > 0)
+                {
+                    batch[batchSize++] = mRing[mHead];
+                    mRing[mHead] = null;
+                    mHead = (mHead + 1) % mRing.length;
+                    mCount--;
+                }
+
+                mNotFull.signalAll();
+            }
+            finally
+            {
+                mLock.unlock();
+            }
+
+            for (int i = 0; i < batchSize; i++)
+            {
+                Entry entry = batch[i];
+                batch[i] = null;
+
+                try
+                {
+                    mCurrentEntry = entry;
+                    entry.handler.publishNow(entry.record);
+                    handlers.add(entry.handler);
+                }
+                catch (RuntimeException e)
+                {
+                    // The handler reports its own errors to its ErrorManager,
+                    // so this is unexpected - but mustn't stop the writer.
+                    mDropped.increment();
+                }
+                finally
+                {
+                    mCurrentEntry = null;
+                }
+            }
+
+            for (DefaultFileHandler handler : handlers)
+            {
+                handler.flushNow();
+            }
+
+            handlers.clear();
+            mBatches.increment();
+
+            mLock.lock();
+            try
+            {
+                mWritten += batchSize;
+                mBatchWritten.signalAll();
+            }
+            finally
+            {
+                mLock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public String getStateDumpName()
+    {
+        return "AsyncLogWriter";
+    }
+
+    @Override
+    public String getState()
+    {
+        int depth;
+        int maxDepth;
+        long enqueued;
+        long written;
+
+        mLock.lock();
+        try
+        {
+            depth = mCount;
+            maxDepth = mMaxDepth;
+            enqueued = mEnqueued;
+            written = mWritten;
+        }
+        finally
+        {
+            mLock.unlock();
+        }
+
+        return "Overflow policy: " + mPolicy + "\n" +
+               "Capacity: " + mRing.length + "\n" +
+               "Queue depth: " + depth + "\n" +
+               "Max queue depth: " + maxDepth + "\n" +
+               "Records queued: " + enqueued + "\n" +
+               "Records written: " + written + "\n" +
+               "Batches written: " + mBatches.sum() + "\n" +
+               "Records dropped: " + mDropped.sum() + "\n" +
+               "Records sampled out: " + mSampledOut.sum() + "\n" +
+               "Times blocked on full queue: " + mBlocked.sum() + "\n";
+    }
+
+    /**
+     * A record in the buffer, with the handler to write it to.
+     */
+    private static class Entry
+    {
+        final DefaultFileHandler handler;
+        final LogRecord record;
+        final int lineNumber;
+
+        Entry(DefaultFileHandler handler, LogRecord record, int lineNumber)
+        {
+            this.handler = handler;
+            this.record = record;
+            this.lineNumber = lineNumber;
+        }
+    }
+}
@@ -10,12 +10,10 @@ package net.java.sip.communicator.util;
 import static net.java.sip.communicator.util.PrivacyUtils.*;
 
 import java.awt.image.*;
+import java.beans.*;
 import java.io.*;
-import java.nio.file.*;
-import java.nio.file.attribute.*;
 
 import org.jitsi.service.fileaccess.*;
-import org.jitsi.service.resources.*;
 
 import net.java.sip.communicator.plugin.desktoputil.*;
 import net.java.sip.communicator.service.contactlist.MetaContact;
@@ -27,6 +25,10 @@ import net.java.sip.communicator.service.wispaservice.WISPANamespace;
 /**
  * The <tt>AvatarCacheUtils</tt> allows to cache an avatar or to obtain the
  * image of a cached avatar by specifying a contact or an account address.
+ * <p>
+ * The avatars are held in a single packed <tt>AvatarStore</tt>, which
+ * replaced the directory per account of avatar files used by earlier
+ * versions of the cache.
  *
  * @author Yana Stamcheva
  */
@@ -49,7 +51,31 @@ public class AvatarCacheUtils
      * The version of the avatar cache, which would must be incremented if changes
      * are made to the avatar storage.
      */
-    private static final int CACHE_VERSION = 2;
+    private static final int CACHE_VERSION = 3;
+
+    /**
+     * The version of the avatar cache that held each avatar in its own file,
+     * which is migrated into the store.
+     */
+    private static final int LEGACY_CACHE_VERSION = 2;
+
+    /**
+     * The property holding the active user, whose directory holds the store.
+     */
+    private static final String PROPERTY_ACTIVE_USER =
+        "net.java.sip.communicator.plugin.provisioning.auth.ACTIVE_USER";
+
+    /**
+     * The store for the active user, or null if it hasn't been opened yet or
+     * the active user has changed since it was opened.
+     */
+    private static AvatarStore sStore;
+
+    /**
+     * Whether we are listening for changes to the active user, to close the
+     * store when it changes.
+     */
+    private static boolean sListeningForActiveUser;
 
     /**
      * The desired dimension of the cached avatars for contacts.
@@ -114,82 +140,109 @@ public class AvatarCacheUtils
     }
 
     /**
-     * Utility method - returns the unique account ID of the given protocol
-     * provider, with special characters escaped.
+     * Gets the avatar store of the active user, opening it if necessary.
+     * Finding the active user's directory touches the file system, so that
+     * is only done when opening the store, which is closed when the active
+     * user changes.
      *
-     * @param protocolProvider The protocol provider
-     * @return the escaped unique account ID of the given protocol provider
+     * @return the store
+     * @throws IOException if the store can't be opened.
      */
-    private static String escapeAccountUniqueID(ProtocolProviderService protocolProvider)
+    private static synchronized AvatarStore getStore() throws IOException
     {
-        return escapeSpecialCharacters(protocolProvider.getAccountID().
-                                                        getAccountUniqueID());
+        if (sStore == null)
+        {
+            if (!sListeningForActiveUser)
+            {
+                UtilActivator.getConfigurationService().global()
+                    .addPropertyChangeListener(PROPERTY_ACTIVE_USER,
+                                               new ActiveUserListener());
+                sListeningForActiveUser = true;
+            }
+
+            FileAccessService fileAccessService =
+                UtilActivator.getFileAccessService();
+            File storeDir = fileAccessService
+                .getPrivatePersistentActiveUserDirectory(getAvatarDir());
+            File legacyDir = fileAccessService
+                .getPrivatePersistentActiveUserFile(
+                    AVATAR_DIR + File.separator + LEGACY_CACHE_VERSION);
+            sStore = new AvatarStore(storeDir, legacyDir);
+        }
+
+        return sStore;
     }
 
     /**
-     * Utility method
-     * @param contact
-     * @return Filename of the cached avatar for this <tt>contact</tt>
+     * Closes the avatar store, writing out its index.  It is reopened the
+     * next time an avatar is used.
      */
-    private static String getAvatarFilename(Contact contact)
+    static synchronized void closeStore()
     {
-        return escapeSpecialCharacters(contact.getAddress());
+        if (sStore != null)
+        {
+            sStore.close();
+            sStore = null;
+        }
     }
 
     /**
-     * Utility method
-     * @param protocolProvider
-     * @return Filename of the cached avatar for this <tt>protocolProvider</tt>
+     * Utility method - returns the unique account ID of the given protocol
+     * provider, with special characters escaped.
+     *
+     * @param protocolProvider The protocol provider
+     * @return the escaped unique account ID of the given protocol provider
      */
-    private static String getAvatarFilename(ProtocolProviderService protocolProvider)
+    private static String escapeAccountUniqueID(ProtocolProviderService protocolProvider)
     {
-        return escapeAccountUniqueID(protocolProvider);
+        return escapeSpecialCharacters(protocolProvider.getAccountID().
+                                                        getAccountUniqueID());
     }
 
     /**
-     * Utility method for getting the directory path of the cached avatars
-     * from the given <tt>protocolProvider</tt>.
+     * Utility method
      * @param protocolProvider
-     * @return The directory path
+     * @param avatarName the escaped name of the avatar
+     * @return The key in the store of the avatar with the given name, cached
+     * for the given <tt>protocolProvider</tt>
      */
-    private static String getAvatarDirPath(ProtocolProviderService protocolProvider)
+    private static String getAvatarKey(ProtocolProviderService protocolProvider,
+                                       String avatarName)
     {
-        return getAvatarDir() +
-               File.separator +
-               escapeAccountUniqueID(protocolProvider);
+        return escapeAccountUniqueID(protocolProvider) +
+               AvatarStore.KEY_SEPARATOR +
+               avatarName;
     }
 
     /**
-     * Returns the path of the avatar image stored for the account
+     * Returns the key of the avatar image stored for the account
      * corresponding to the given <tt>protocolContact</tt>.
      *
      * @param protocolContact the <tt>Contact</tt>, which
      * account avatar image we're looking for
-     * @return the path of the avatar image stored for the account
+     * @return the key of the avatar image stored for the account
      * corresponding to the given contact
      */
-    private static String getAvatarPath(Contact protocolContact)
+    private static String getAvatarKey(Contact protocolContact)
     {
-        return getAvatarDirPath(protocolContact.getProtocolProvider()) +
-               File.separator +
-               getAvatarFilename(protocolContact);
+        return getAvatarKey(protocolContact.getProtocolProvider(),
+                            escapeSpecialCharacters(protocolContact.getAddress()));
     }
 
     /**
-     * Returns the path of the avatar image stored for the account
+     * Returns the key of the avatar image stored for the account
      * corresponding to the given <tt>protocolProvider</tt>.
      *
      * @param protocolProvider the <tt>ProtocolProviderService</tt>, the
      * account avatar image of which we're looking for
-     * @return the path of the avatar image stored for the account
+     * @return the key of the avatar image stored for the account
      * corresponding to the given protocol provider
      */
-    private static String getAvatarPath(
+    private static String getAvatarKey(
                                     ProtocolProviderService protocolProvider)
     {
-        return getAvatarDirPath(protocolProvider) +
-               File.separator +
-               getAvatarFilename(protocolProvider);
+        return getAvatarKey(protocolProvider,
+                            escapeAccountUniqueID(protocolProvider));
     }
 
     /**
@@ -206,13 +259,13 @@ public class AvatarCacheUtils
     public static BufferedImageFuture getCachedAvatar(
                                     ProtocolProviderService protocolProvider)
     {
-        String avatarPath = getAvatarPath(protocolProvider);
+        String avatarKey = getAvatarKey(protocolProvider);
 
         /*
          * Caching a zero-length avatar happens but such an avatar isn't
          * very useful.
          */
-        return getLocallyStoredAvatar(avatarPath);
+        return getLocallyStoredAvatar(avatarKey);
     }
 
     /**
@@ -228,9 +281,9 @@ public class AvatarCacheUtils
      */
     public static BufferedImageFuture getCachedAvatar(Contact protocolContact)
     {
-        String avatarPath = getAvatarPath(protocolContact);
+        String avatarKey = getAvatarKey(protocolContact);
 
-        BufferedImageFuture cachedAvatar = getLocallyStoredAvatar(avatarPath);
+        BufferedImageFuture cachedAvatar = getLocallyStoredAvatar(avatarKey);
 
         /*
          * Caching a zero-length avatar happens but such an avatar isn't
@@ -243,6 +296,9 @@ public class AvatarCacheUtils
      * Returns the file for the avatar stored for the contact
      * corresponding to the given protocol provider.
      *
+     * The avatar is written out of the store to its own file, for callers
+     * that can only refer to the image by path.
+     *
      * @param protocolProvider the <tt>ProtocolProviderService</tt>, which
      * is responsible for the contact address for the avatar image we're looking for
      * @param contactAddress the contact
@@ -254,65 +310,44 @@ public class AvatarCacheUtils
         ProtocolProviderService protocolProvider,
         String contactAddress)
     {
-        String path = getAvatarDirPath(protocolProvider) +
-                      File.separator +
-                      escapeSpecialCharacters(contactAddress);
-
         File avatarFile = null;
 
         try
         {
-            avatarFile = UtilActivator.getFileAccessService()
-                .getPrivatePersistentActiveUserFile(path);
+            avatarFile = getStore().getFile(getAvatarKey(
+                protocolProvider, escapeSpecialCharacters(contactAddress)));
         }
         catch (IOException | SecurityException e)
         {
-            logger.error("Failed to get file for path: " + path, e);
+            logger.error("Failed to get avatar file for " +
+                         sanitiseChatAddress(contactAddress), e);
         }
 
         return avatarFile;
     }
 
     /**
-     * Returns the avatar image corresponding to the given avatar path.
+     * Returns the avatar image corresponding to the given avatar key.
      *
      * Returns <tt>null</tt> if no such avatar is cached.
      *
-     * @param avatarPath The path to the locally stored avatar.
-     * @return the avatar image corresponding to the given avatar path.
+     * @param avatarKey The key of the locally stored avatar.
+     * @return the avatar image corresponding to the given avatar key.
      */
-    private static BufferedImageFuture getLocallyStoredAvatar(String avatarPath)
+    private static BufferedImageFuture getLocallyStoredAvatar(String avatarKey)
     {
         try
         {
-            File avatarFile
-                = UtilActivator
-                    .getFileAccessService()
-                        .getPrivatePersistentActiveUserFile(avatarPath);
+            byte[] bs = getStore().get(avatarKey);
 
-            if(avatarFile.exists()) // CodeQL [SM00697] Not Exploitable. The file/path is not user provided.
-            {
-                byte[] bs = null;
-
-                try (FileInputStream avatarInputStream = new FileInputStream(
-                        avatarFile)) // CodeQL [SM00697] Not Exploitable. The file/path is not user provided.
-                {
-                    int available = avatarInputStream.available();
-
-                    if (available > 0)
-                    {
-                        bs = new byte[available];
-                        avatarInputStream.read(bs);
-                    }
-                }
-                if (bs != null)
-                    return BufferedImageAvailableFromBytes.fromBytes(bs);
-            }
+            if (bs != null)
+                return BufferedImageAvailableFromBytes.fromBytes(bs);
         }
         catch (IOException | SecurityException ex)
         {
             logger.error(
-                    "Could not read avatar image from file " + avatarPath,
+                    "Could not read avatar image " +
+                        sanitiseChatAddress(avatarKey),
                     ex);
         }
         return null;
@@ -327,12 +362,7 @@ public class AvatarCacheUtils
     public static void cacheAvatar(Contact protocolContact,
         BufferedImageFuture avatarBytes)
     {
-        String avatarDirPath = getAvatarDirPath(
-                                    protocolContact.getProtocolProvider());
-        String avatarFileName = getAvatarFilename(protocolContact);
-
-        cacheAvatar(avatarDirPath,
-                    avatarFileName,
+        cacheAvatar(getAvatarKey(protocolContact),
                     avatarBytes,
                     CONTACT_AVATAR_SIZE);
     }
@@ -347,27 +377,20 @@ public class AvatarCacheUtils
     public static void cacheAvatar(ProtocolProviderService protocolProvider,
                                    BufferedImageFuture avatarBytes)
     {
-        String avatarDirPath = getAvatarDirPath(protocolProvider);
-
-        String avatarFileName = getAvatarFilename(protocolProvider);
-
-        cacheAvatar(avatarDirPath,
-                    avatarFileName,
+        cacheAvatar(getAvatarKey(protocolProvider),
                     avatarBytes,
                     PROTOCOL_PROVIDER_AVATAR_SIZE);
     }
 
     /**
-     * Stores avatar bytes for the account corresponding to the given
-     * <tt>protocolProvider</tt>.
+     * Stores avatar bytes under the given key.  If the same avatar is already
+     * stored, it isn't rewritten, but counts as freshly cached.
      *
-     * @param avatarDirPath the directory in which the file will be stored
-     * @param avatarFileName the name of the avatar file
+     * @param avatarKey the key of the avatar in the store
      * @param avatarBytes the avatar image bytes
      * @param desiredSize the number of pixels per side in the cached avatar
      */
-    protected static void cacheAvatar(String avatarDirPath,
-                                      String avatarFileName,
+    protected static void cacheAvatar(String avatarKey,
                                       BufferedImageFuture avatarBytes,
                                       int desiredSize)
     {
@@ -388,39 +411,14 @@ public class AvatarCacheUtils
 
         byte[] byteArray = ImageUtils.toByteArray(image);
 
-        File avatarDir = null;
-        File avatarFile = null;
         try
         {
-            FileAccessService fileAccessService
-                = UtilActivator.getFileAccessService();
-
-            avatarFile
-                = fileAccessService.getPrivatePersistentActiveUserFile(
-                        avatarDirPath + File.separator + avatarFileName);
-
-            // If no exception was thrown in the above, then the parent
-            // directory exists, whereas the file returned may not exist.
-            //
-            // Hence if the file does not exist, create it.
-            if(!avatarFile.exists() && !avatarFile.createNewFile()) // CodeQL [SM00697] Not Exploitable. The file/path is not user provided.
-            {
-                throw new IOException("Failed to create file"
-                    + sanitiseFilePath(avatarFile.getAbsolutePath()));
-            }
-
-            try (FileOutputStream fileOutStream = new FileOutputStream(
-                    avatarFile)) // CodeQL [SM00697] Not Exploitable. The file/path is not user provided.
-            {
-                fileOutStream.write(byteArray);
-                fileOutStream.flush();
-            }
+            getStore().put(avatarKey, byteArray, System.currentTimeMillis());
         }
         catch (IOException | SecurityException ex)
         {
             logger.error(
-                    "Failed to store avatar. dir =" + avatarDir
-                        + " file=" + avatarFile,
+                    "Failed to store avatar " + sanitiseChatAddress(avatarKey),
                     ex);
         }
     }
@@ -431,7 +429,7 @@ public class AvatarCacheUtils
      */
     public static void deleteCachedAvatar(ProtocolProviderService protocolProvider)
     {
-        deleteCachedAvatar(getAvatarPath(protocolProvider), protocolProvider);
+        deleteCachedAvatar(getAvatarKey(protocolProvider), protocolProvider);
     }
 
     /**
@@ -440,7 +438,7 @@ public class AvatarCacheUtils
      */
     public static void deleteCachedAvatar(Contact protocolContact)
     {
-        deleteCachedAvatar(getAvatarPath(protocolContact), protocolContact.getProtocolProvider());
+        deleteCachedAvatar(getAvatarKey(protocolContact), protocolContact.getProtocolProvider());
         MetaContact metaContact = UtilActivator.getContactListService().findMetaContactByContact(protocolContact);
         if (metaContact != null)
         {
@@ -450,34 +448,22 @@ public class AvatarCacheUtils
     }
 
     /**
-     * Deletes the cached avatar on the given path.
-     * @param avatarPath
+     * Deletes the cached avatar with the given key.
+     * @param avatarKey
      */
-    private static void deleteCachedAvatar(String avatarPath, ProtocolProviderService protocolProviderService)
+    private static void deleteCachedAvatar(String avatarKey, ProtocolProviderService protocolProviderService)
     {
-        String sanitisedPath = sanitiseAvatarPath(avatarPath, protocolProviderService);
+        String sanitisedKey = sanitiseAvatarKey(avatarKey, protocolProviderService);
 
-        logger.info("Delete avatar " + sanitisedPath + " from the cache");
+        logger.info("Delete avatar " + sanitisedKey + " from the cache");
 
         try
         {
-            File avatarFile =
-                    UtilActivator.getFileAccessService().
-                        getPrivatePersistentActiveUserFile(avatarPath);
-
-            if (avatarFile.exists()) // CodeQL [SM00697] Not Exploitable. The file/path is not user provided.
-            {
-                boolean success = avatarFile.delete();
-
-                if (!success)
-                {
-                    throw new IOException("Failed to delete file: " + sanitisedPath);
-                }
-            }
+            getStore().remove(avatarKey);
         }
         catch (IOException | SecurityException e)
         {
-            logger.error("Failed to delete avatar. File=" + sanitisedPath, e);
+            logger.error("Failed to delete avatar " + sanitisedKey, e);
         }
     }
 
@@ -493,56 +479,71 @@ public class AvatarCacheUtils
     public static boolean shouldInvalidateCache(
                                 ProtocolProviderService protocolProvider)
     {
-        return shouldInvalidateCache(getAvatarPath(protocolProvider));
+        return shouldInvalidateCache(getAvatarKey(protocolProvider));
     }
 
     /**
-     * Returns whether should invalidate the avatar on the given path.
+     * Returns whether should invalidate the avatar with the given key.
      *
      * For example, the avatar could be out of date.
      *
-     * @param avatarPath
+     * @param avatarKey
      * @return Whether should invalidate
      */
-    private static boolean shouldInvalidateCache(String avatarPath)
+    private static boolean shouldInvalidateCache(String avatarKey)
     {
         try
         {
-            // If the file is older than 1 day, we should expire it so that
-            // we pick up any server-side changes.
-            File avatarFile =
-                UtilActivator.getFileAccessService().getPrivatePersistentActiveUserFile(
-                                                                    avatarPath);
-
-            BasicFileAttributes attr = Files.readAttributes(
-                                avatarFile.toPath(), BasicFileAttributes.class);
-            long modifiedDate = attr.lastModifiedTime().toMillis();
-            logger.debug("Avatar '" + sanitiseChatAddress(avatarPath) + "' last modified " +
-                         (System.currentTimeMillis() - modifiedDate) +
+            // If the avatar was cached more than 1 day ago, we should expire
+            // it so that we pick up any server-side changes.
+            long cachedDate = getStore().getTimestamp(avatarKey);
+
+            if (cachedDate < 0)
+            {
+                logger.debug("Avatar '" + sanitiseChatAddress(avatarKey) +
+                             "' is not cached");
+                return false;
+            }
+
+            logger.debug("Avatar '" + sanitiseChatAddress(avatarKey) + "' cached " +
+                         (System.currentTimeMillis() - cachedDate) +
                          " ms ago");
 
-            return modifiedDate + ONE_DAY_MILLIS < System.currentTimeMillis();
+            return cachedDate + ONE_DAY_MILLIS < System.currentTimeMillis();
         }
         catch (IOException | SecurityException e)
         {
             logger.error("Error performing expiry check for cached avatar " +
-                         sanitiseChatAddress(avatarPath), e);
+                         sanitiseChatAddress(avatarKey), e);
             return false;
         }
     }
 
     /**
-     * We need to hash the two PIIs after "avatarcache/2/".
+     * We need to hash the two PIIs in the key.
      */
-    private static String sanitiseAvatarPath(String avatarPath, ProtocolProviderService protocolProviderService)
+    private static String sanitiseAvatarKey(String avatarKey, ProtocolProviderService protocolProviderService)
     {
-        int lastSeparatorIndex = avatarPath.lastIndexOf(File.separator);
+        int lastSeparatorIndex = avatarKey.lastIndexOf(AvatarStore.KEY_SEPARATOR);
         String protocolUniqueId = escapeSpecialCharacters(
                 protocolProviderService.getAccountID().getLoggableAccountID());
-        String accountUniqueId = avatarPath.substring(lastSeparatorIndex + 1);
+        String accountUniqueId = avatarKey.substring(lastSeparatorIndex + 1);
 
-        return getAvatarDir() + File.separator +
-               protocolUniqueId + File.separator +
+        return protocolUniqueId + AvatarStore.KEY_SEPARATOR +
                sanitisePeerId(accountUniqueId);
     }
+
+    /**
+     * Closes the store when the active user changes, so that the store of
+     * the new active user is opened the next time an avatar is used.
+     */
+    private static class ActiveUserListener implements PropertyChangeListener
+    {
+        @Override
+        public void propertyChange(PropertyChangeEvent evt)
+        {
+            logger.info("Active user changed, close avatar store");
+            closeStore();
+        }
+    }
 }
@@ -0,0 +1,926 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A store of cached avatar images, held in a single packed data file rather
+ * than in one file per contact.
+ * <p>
+ * The data file is append-only: each avatar written, and each avatar deleted,
+ * is a record appended to the end of it.  The position of the latest record
+ * for each avatar is held in memory, and checkpointed to an index file shortly
+ * after it changes.  Lookups read the avatar straight out of a read-only
+ * memory mapping of the data file.  On opening the store, the index is read
+ * and any records appended after the last checkpoint are found by scanning
+ * the end of the data file, so nothing is lost if we exit before the index is
+ * written.
+ * <p>
+ * Each record holds a hash of the avatar, so writing an avatar that hasn't
+ * changed only updates its timestamp in the index.  Once the records that
+ * have been superseded take up more space than the live ones, the live
+ * records are copied into a new data file in the background.  Each data file
+ * has a new generation number in its name, so the old one is never
+ * overwritten while it may still be mapped.
+ * <p>
+ * When the store is first created, the avatars in the old one-file-per-avatar
+ * layout can be moved into it.
+ * <p>
+ * Keys are an account and the name of an avatar within it, separated by
+ * <tt>KEY_SEPARATOR</tt>.  As well as the avatar cache, the store holds other
+ * per-contact data that is fetched along with avatars, such as vCards.
+ */
+public final class AvatarStore
+{
+    private static final Logger logger = Logger.getLogger(AvatarStore.class);
+
+    /**
+     * Separates the account from the avatar name in a key.
+     */
+    public static final String KEY_SEPARATOR = "/";
+
+    private static final String INDEX_FILE_NAME = "avatars.idx";
+
+    private static final String DATA_FILE_PREFIX = "avatars-";
+
+    private static final String DATA_FILE_SUFFIX = ".dat";
+
+    /**
+     * The directory, within the store directory, of the avatars written out
+     * to individual files by <tt>getFile()</tt>.
+     */
+    private static final String FILES_DIR_NAME = "files";
+
+    private static final int RECORD_MAGIC = 0x41565231; // "AVR1"
+
+    private static final int INDEX_MAGIC = 0x41564931; // "AVI1"
+
+    private static final int HASH_LENGTH = 32;
+
+    /**
+     * The length of the data of a record that deletes an avatar.
+     */
+    private static final int DELETED = -1;
+
+    /**
+     * How long to wait after the store changes before checkpointing the
+     * index.
+     */
+    private static final long CHECKPOINT_DELAY_MS = 5000;
+
+    /**
+     * The number of bytes of superseded records below which we don't bother
+     * compacting the data file.
+     */
+    private static final long MIN_COMPACTION_BYTES = 1024 * 1024;
+
+    private static final ScheduledExecutorService sExecutor =
+        Executors.newSingleThreadScheduledExecutor(runnable ->
+        {
+            Thread thread = new Thread(runnable, "avatar-store");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    private final File mDir;
+
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    private long mGeneration;
+
+    private FileChannel mDataChannel;
+
+    /**
+     * A read-only mapping of the data file, or null if it needs remapping.
+     */
+    private MappedByteBuffer mMappedData;
+
+    /**
+     * The length of the data file, i.e. the offset at which the next record
+     * is written.
+     */
+    private long mDataLength;
+
+    /**
+     * The number of bytes of the data file taken by the latest record for
+     * each avatar.
+     */
+    private long mLiveLength;
+
+    private ScheduledFuture<?> mCheckpointTask;
+
+    private boolean mCompactionScheduled;
+
+    private boolean mClosed;
+
+    /**
+     * Opens the store in the given directory, creating it if it doesn't
+     * exist.
+     *
+     * @param dir the directory holding the store
+     * @param legacyDir the directory holding avatars in the old layout, to
+     * be moved into the store if it is being created.  May be null.
+     * @throws IOException if the store can't be opened.
+     */
+    public AvatarStore(File dir, File legacyDir) throws IOException
+    {
+        mDir = dir;
+
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Failed to create avatar store directory");
+
+        boolean isNew = !readIndex() && !findLatestDataFile();
+        openDataFile();
+        deleteOldDataFiles();
+
+        if (isNew && legacyDir != null && legacyDir.isDirectory())
+        {
+            migrate(legacyDir);
+        }
+
+        logger.info("Opened avatar store generation " + mGeneration +
+                    " with " + mEntries.size() + " avatars");
+    }
+
+    /**
+     * @return the directory holding the store.
+     */
+    public File getDirectory()
+    {
+        return mDir;
+    }
+
+    /**
+     * Gets an avatar.
+     *
+     * @param key the key of the avatar
+     * @return the bytes of the avatar, or null if it isn't stored or is empty.
+     */
+    public synchronized byte[] get(String key)
+    {
+        Entry entry = mEntries.get(key);
+
+        if (entry == null || entry.mLength == 0 || mClosed)
+            return null;
+
+        try
+        {
+            return read(entry);
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to read avatar from store", e);
+            return null;
+        }
+    }
+
+    /**
+     * Gets the time at which an avatar was last written.
+     *
+     * @param key the key of the avatar
+     * @return the time in ms since the epoch, or -1 if it isn't stored.
+     */
+    public synchronized long getTimestamp(String key)
+    {
+        Entry entry = mEntries.get(key);
+        return entry == null ? -1 : entry.mTimestamp;
+    }
+
+    /**
+     * Writes an avatar.  If the same avatar is already stored, only its
+     * timestamp is updated.
+     *
+     * @param key the key of the avatar
+     * @param bytes the bytes of the avatar
+     * @param timestamp the time at which the avatar was written
+     * @throws IOException if the avatar couldn't be written.
+     */
+    public synchronized void put(String key, byte[] bytes, long timestamp)
+        throws IOException
+    {
+        checkOpen();
+
+        byte[] hash = hash(bytes);
+        Entry entry = mEntries.get(key);
+
+        if (entry != null && Arrays.equals(entry.mHash, hash))
+        {
+            entry.mTimestamp = timestamp;
+            scheduleCheckpoint();
+            return;
+        }
+
+        append(key, bytes, hash, timestamp);
+        deleteExportedFile(key);
+    }
+
+    /**
+     * Deletes an avatar.
+     *
+     * @param key the key of the avatar
+     * @throws IOException if the deletion couldn't be written.
+     */
+    public synchronized void remove(String key) throws IOException
+    {
+        checkOpen();
+
+        if (mEntries.containsKey(key))
+        {
+            append(key, null, new byte[HASH_LENGTH], System.currentTimeMillis());
+        }
+
+        deleteExportedFile(key);
+    }
+
+    /**
+     * Gets a file holding an avatar, for code that can only refer to images
+     * by path.  The file is written the first time it is asked for after the
+     * avatar changes.
+     *
+     * @param key the key of the avatar
+     * @return the file, which doesn't exist if the avatar isn't stored.
+     * @throws IOException if the file couldn't be written.
+     */
+    public synchronized File getFile(String key) throws IOException
+    {
+        File file = getExportedFile(key);
+        Entry entry = mEntries.get(key);
+
+        if (entry != null && entry.mLength > 0 && !file.exists() && !mClosed) // CodeQL [SM00697] Not Exploitable. The file/path is not user provided.
+        {
+            File parent = file.getParentFile();
+
+            if (!parent.isDirectory() && !parent.mkdirs())
+            {
+                throw new IOException("Failed to create avatar directory");
+            }
+
+            try (FileOutputStream out = new FileOutputStream(file)) // CodeQL [SM00697] Not Exploitable. The file/path is not user provided.
+            {
+                out.write(read(entry));
+            }
+        }
+
+        return file;
+    }
+
+    /**
+     * Writes the index and closes the data file.  The store can't be used
+     * after this.
+     */
+    public synchronized void close()
+    {
+        if (mClosed)
+            return;
+
+        if (mCheckpointTask != null)
+        {
+            mCheckpointTask.cancel(false);
+            mCheckpointTask = null;
+        }
+
+        try
+        {
+            writeIndex();
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to write avatar index", e);
+        }
+
+        closeDataFile();
+        mClosed = true;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "AvatarStore generation " + mGeneration +
+               ": " + mEntries.size() + " avatars, " +
+               mLiveLength + " of " + mDataLength + " bytes live";
+    }
+
+    private void checkOpen() throws IOException
+    {
+        if (mClosed)
+            throw new IOException("Avatar store is closed");
+    }
+
+    /**
+     * Appends a record to the data file.  Must be called while synchronized
+     * on this.
+     *
+     * @param bytes the avatar, or null to delete it
+     */
+    private void append(String key, byte[] bytes, byte[] hash, long timestamp)
+        throws IOException
+    {
+        ByteBuffer record = encodeRecord(key, bytes, hash, timestamp);
+        int recordLength = record.remaining();
+        long offset = mDataLength;
+
+        while (record.hasRemaining())
+        {
+            mDataChannel.write(record, offset + record.position());
+        }
+
+        mDataLength += recordLength;
+
+        Entry oldEntry = bytes == null ?
+            mEntries.remove(key) :
+            mEntries.put(key, new Entry(offset + recordLength - bytes.length,
+                                        bytes.length,
+                                        recordLength,
+                                        hash,
+                                        timestamp));
+
+        if (oldEntry != null)
+            mLiveLength -= oldEntry.mRecordLength;
+
+        if (bytes != null)
+            mLiveLength += recordLength;
+
+        scheduleCheckpoint();
+        maybeScheduleCompaction();
+    }
+
+    private static ByteBuffer encodeRecord(String key,
+                                           byte[] bytes,
+                                           byte[] hash,
+                                           long timestamp)
+    {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int dataLength = bytes == null ? 0 : bytes.length;
+
+        ByteBuffer record = ByteBuffer.allocate(
+            4 + 4 + keyBytes.length + 8 + HASH_LENGTH + 4 + dataLength);
+        record.putInt(RECORD_MAGIC);
+        record.putInt(keyBytes.length);
+        record.put(keyBytes);
+        record.putLong(timestamp);
+        record.put(hash);
+        record.putInt(bytes == null ? DELETED : bytes.length);
+
+        if (bytes != null)
+            record.put(bytes);
+
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Reads an avatar from the mapping of the data file, remapping it if it
+     * doesn't yet cover the avatar.  Must be called while synchronized on
+     * this.
+     */
+    private byte[] read(Entry entry) throws IOException
+    {
+        if (mMappedData == null ||
+            mMappedData.capacity() < entry.mOffset + entry.mLength)
+        {
+            mMappedData = mDataChannel.map(FileChannel.MapMode.READ_ONLY,
+                                           0,
+                                           mDataLength);
+        }
+
+        byte[] bytes = new byte[entry.mLength];
+        mMappedData.get((int) entry.mOffset, bytes);
+        return bytes;
+    }
+
+    /**
+     * Reads the index, if there is a valid one.
+     *
+     * @return true if the index was read.
+     */
+    private boolean readIndex()
+    {
+        File indexFile = new File(mDir, INDEX_FILE_NAME);
+
+        if (!indexFile.exists()) // CodeQL [SM00697] Not Exploitable. The file/path is not user provided.
+            return false;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(indexFile)))) // CodeQL [SM00697] Not Exploitable. The file/path is not user provided.
+        {
+            if (in.readInt() != INDEX_MAGIC)
+                throw new IOException("Not an avatar index");
+
+            long generation = in.readLong();
+            long dataLength = in.readLong();
+            int count = in.readInt();
+            Map<String, Entry> entries = new HashMap<>();
+            long liveLength = 0;
+
+            for (int i = 0; i < count; i++)
+            {
+                String key = in.readUTF();
+                long offset = in.readLong();
+                int length = in.readInt();
+                int recordLength = in.readInt();
+                long timestamp = in.readLong();
+                byte[] hash = new byte[HASH_LENGTH];
+                in.readFully(hash);
+
+                entries.put(key, new Entry(
+                    offset, length, recordLength, hash, timestamp));
+                liveLength += recordLength;
+            }
+
+            mGeneration = generation;
+            mDataLength = dataLength;
+            mLiveLength = liveLength;
+            mEntries.putAll(entries);
+            return true;
+        }
+        catch (IOException e)
+        {
+            logger.warn("Ignoring invalid avatar index", e);
+            return false;
+        }
+    }
+
+    /**
+     * Writes the index atomically, so a reader either sees the old one or the
+     * new one.  Must be called while synchronized on this.
+     */
+    private void writeIndex() throws IOException
+    {
+        File indexFile = new File(mDir, INDEX_FILE_NAME);
+        File tempFile = new File(mDir, INDEX_FILE_NAME + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)))) // CodeQL [SM00697] Not Exploitable. The file/path is not user provided.
+        {
+            out.writeInt(INDEX_MAGIC);
+            out.writeLong(mGeneration);
+            out.writeLong(mDataLength);
+            out.writeInt(mEntries.size());
+
+            for (Map.Entry<String, Entry> mapEntry : mEntries.entrySet())
+            {
+                Entry entry = mapEntry.getValue();
+                out.writeUTF(mapEntry.getKey());
+                out.writeLong(entry.mOffset);
+                out.writeInt(entry.mLength);
+                out.writeInt(entry.mRecordLength);
+                out.writeLong(entry.mTimestamp);
+                out.write(entry.mHash);
+            }
+        }
+
+        Files.move(tempFile.toPath(),
+                   indexFile.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Finds the data file with the highest generation, for when there is no
+     * index.
+     *
+     * @return true if there is a data file.
+     */
+    private boolean findLatestDataFile()
+    {
+        long latest = -1;
+
+        for (long generation : listDataFileGenerations())
+        {
+            latest = Math.max(latest, generation);
+        }
+
+        mGeneration = Math.max(latest, 0);
+        return latest >= 0;
+    }
+
+    private List<Long> listDataFileGenerations()
+    {
+        List<Long> generations = new ArrayList<>();
+        String[] names = mDir.list();
+
+        if (names != null)
+        {
+            for (String name : names)
+            {
+                if (name.startsWith(DATA_FILE_PREFIX) &&
+                    name.endsWith(DATA_FILE_SUFFIX))
+                {
+                    try
+                    {
+                        generations.add(Long.parseLong(name.substring(
+                            DATA_FILE_PREFIX.length(),
+                            name.length() - DATA_FILE_SUFFIX.length())));
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        // Not one of ours.
+                    }
+                }
+            }
+        }
+
+        return generations;
+    }
+
+    private File getDataFile(long generation)
+    {
+        return new File(mDir, DATA_FILE_PREFIX + generation + DATA_FILE_SUFFIX);
+    }
+
+    /**
+     * Opens the data file of the current generation, and reads any records
+     * that were appended to it after the index was written.
+     */
+    private void openDataFile() throws IOException
+    {
+        mDataChannel = FileChannel.open(getDataFile(mGeneration).toPath(),
+                                        StandardOpenOption.CREATE,
+                                        StandardOpenOption.READ,
+                                        StandardOpenOption.WRITE);
+        long fileLength = mDataChannel.size();
+
+        if (fileLength < mDataLength)
+        {
+            // The data file doesn't match the index, so don't trust either.
+            logger.warn("Avatar data file is shorter than the index expects");
+            mEntries.clear();
+            mLiveLength = 0;
+            mDataLength = 0;
+        }
+
+        long scanned = scan(mDataLength, fileLength);
+
+        if (scanned < fileLength)
+        {
+            // The last record was only partly written, e.g. because we
+            // crashed, so drop it.
+            logger.warn("Truncating avatar data file from " + fileLength +
+                        " to " + scanned + " bytes");
+            mDataChannel.truncate(scanned);
+        }
+
+        mDataLength = scanned;
+    }
+
+    /**
+     * Reads the records in part of the data file into the index.
+     *
+     * @param from the offset of the first record
+     * @param to the length of the data file
+     * @return the offset after the last complete record.
+     */
+    private long scan(long from, long to) throws IOException
+    {
+        long offset = from;
+        ByteBuffer header = ByteBuffer.allocate(8);
+
+        while (offset + header.capacity() <= to)
+        {
+            header.clear();
+            readFully(header, offset);
+            header.flip();
+
+            int keyLength = header.getInt(4);
+
+            if (header.getInt(0) != RECORD_MAGIC ||
+                keyLength < 0 ||
+                offset + 8 + keyLength + 8 + HASH_LENGTH + 4 > to)
+            {
+                break;
+            }
+
+            ByteBuffer body = ByteBuffer.allocate(keyLength + 8 + HASH_LENGTH + 4);
+            readFully(body, offset + 8);
+            body.flip();
+
+            byte[] keyBytes = new byte[keyLength];
+            body.get(keyBytes);
+            long timestamp = body.getLong();
+            byte[] hash = new byte[HASH_LENGTH];
+            body.get(hash);
+            int dataLength = body.getInt();
+
+            long dataOffset = offset + 8 + body.capacity();
+            int recordLength = (int) (dataOffset - offset) + Math.max(dataLength, 0);
+
+            if (dataLength < DELETED || dataOffset + Math.max(dataLength, 0) > to)
+                break;
+
+            String key = new String(keyBytes, StandardCharsets.UTF_8);
+            Entry oldEntry;
+
+            if (dataLength == DELETED)
+            {
+                oldEntry = mEntries.remove(key);
+            }
+            else
+            {
+                ByteBuffer data = ByteBuffer.allocate(dataLength);
+                readFully(data, dataOffset);
+
+                if (!Arrays.equals(hash(data.array()), hash))
+                    break;
+
+                oldEntry = mEntries.put(key, new Entry(
+                    dataOffset, dataLength, recordLength, hash, timestamp));
+                mLiveLength += recordLength;
+            }
+
+            if (oldEntry != null)
+                mLiveLength -= oldEntry.mRecordLength;
+
+            offset += recordLength;
+        }
+
+        return offset;
+    }
+
+    private void readFully(ByteBuffer buffer, long offset) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (mDataChannel.read(buffer, offset + buffer.position()) < 0)
+                throw new EOFException();
+        }
+    }
+
+    private void closeDataFile()
+    {
+        // There is no way to unmap the data file, so just drop our reference
+        // to the mapping and let the garbage collector do it.
+        mMappedData = null;
+
+        try
+        {
+            mDataChannel.close();
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to close avatar data file", e);
+        }
+    }
+
+    /**
+     * Deletes the data files of earlier generations, which were left behind
+     * if they were still mapped when they were compacted.
+     */
+    private void deleteOldDataFiles()
+    {
+        for (long generation : listDataFileGenerations())
+        {
+            if (generation != mGeneration && !getDataFile(generation).delete())
+            {
+                logger.debug("Could not delete avatar data file " + generation);
+            }
+        }
+    }
+
+    private void scheduleCheckpoint()
+    {
+        if (mCheckpointTask == null)
+        {
+            mCheckpointTask = sExecutor.schedule(this::checkpoint,
+                                                 CHECKPOINT_DELAY_MS,
+                                                 TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void checkpoint()
+    {
+        mCheckpointTask = null;
+
+        if (mClosed)
+            return;
+
+        try
+        {
+            writeIndex();
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to write avatar index", e);
+        }
+    }
+
+    private void maybeScheduleCompaction()
+    {
+        long supersededLength = mDataLength - mLiveLength;
+
+        if (!mCompactionScheduled &&
+            supersededLength > mLiveLength &&
+            supersededLength > MIN_COMPACTION_BYTES)
+        {
+            mCompactionScheduled = true;
+            sExecutor.execute(this::compact);
+        }
+    }
+
+    /**
+     * Copies the live records into the data file of the next generation, and
+     * switches to it.
+     */
+    private synchronized void compact()
+    {
+        mCompactionScheduled = false;
+
+        if (mClosed)
+            return;
+
+        long oldLength = mDataLength;
+        long generation = mGeneration + 1;
+        File newFile = getDataFile(generation);
+        Map<String, Entry> newEntries = new HashMap<>();
+        long newLength = 0;
+
+        try (FileChannel newChannel = FileChannel.open(
+                newFile.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE))
+        {
+            for (Map.Entry<String, Entry> mapEntry : mEntries.entrySet())
+            {
+                Entry entry = mapEntry.getValue();
+                ByteBuffer record = encodeRecord(mapEntry.getKey(),
+                                                 read(entry),
+                                                 entry.mHash,
+                                                 entry.mTimestamp);
+                int recordLength = record.remaining();
+
+                while (record.hasRemaining())
+                {
+                    newChannel.write(record);
+                }
+
+                newLength += recordLength;
+                newEntries.put(mapEntry.getKey(),
+                               new Entry(newLength - entry.mLength,
+                                         entry.mLength,
+                                         recordLength,
+                                         entry.mHash,
+                                         entry.mTimestamp));
+            }
+
+            newChannel.force(true);
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to compact avatar store", e);
+
+            if (!newFile.delete())
+                logger.debug("Could not delete partial avatar data file");
+
+            return;
+        }
+
+        long oldGeneration = mGeneration;
+        closeDataFile();
+        mGeneration = generation;
+        mEntries.clear();
+        mEntries.putAll(newEntries);
+        mDataLength = newLength;
+        mLiveLength = newLength;
+
+        try
+        {
+            writeIndex();
+            mDataChannel = FileChannel.open(newFile.toPath(),
+                                            StandardOpenOption.READ,
+                                            StandardOpenOption.WRITE);
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to switch to compacted avatar store", e);
+            mEntries.clear();
+            mClosed = true;
+            return;
+        }
+
+        // This fails on Windows while the old mapping is still around, in
+        // which case the file is deleted the next time the store is opened.
+        if (!getDataFile(oldGeneration).delete())
+            logger.debug("Could not delete avatar data file " + oldGeneration);
+
+        logger.info("Compacted avatar store from " + oldLength + " to " +
+                    newLength + " bytes");
+    }
+
+    /**
+     * Moves the avatars in the old one-file-per-avatar layout into the store,
+     * then deletes them.
+     *
+     * @param legacyDir the root directory of the old layout, which holds a
+     * directory per account.
+     */
+    private void migrate(File legacyDir)
+    {
+        int migrated = 0;
+        File[] accountDirs = legacyDir.listFiles(File::isDirectory);
+
+        for (File accountDir : accountDirs == null ? new File[0] : accountDirs)
+        {
+            File[] avatarFiles = accountDir.listFiles(File::isFile);
+
+            for (File avatarFile : avatarFiles == null ? new File[0] : avatarFiles)
+            {
+                try
+                {
+                    byte[] bytes = Files.readAllBytes(avatarFile.toPath());
+
+                    if (bytes.length > 0)
+                    {
+                        put(accountDir.getName() + KEY_SEPARATOR + avatarFile.getName(),
+                            bytes,
+                            avatarFile.lastModified());
+                        migrated++;
+                    }
+                }
+                catch (IOException e)
+                {
+                    logger.warn("Failed to migrate cached avatar", e);
+                }
+
+                if (!avatarFile.delete())
+                    logger.debug("Could not delete migrated avatar file");
+            }
+
+            if (!accountDir.delete())
+                logger.debug("Could not delete migrated avatar directory");
+        }
+
+        if (!legacyDir.delete())
+            logger.debug("Could not delete migrated avatar cache");
+
+        logger.info("Migrated " + migrated + " cached avatars into the store");
+    }
+
+    private File getExportedFile(String key)
+    {
+        return new File(new File(mDir, FILES_DIR_NAME),
+                        key.replace(KEY_SEPARATOR, File.separator));
+    }
+
+    private void deleteExportedFile(String key)
+    {
+        File file = getExportedFile(key);
+
+        if (file.exists() && !file.delete()) // CodeQL [SM00697] Not Exploitable. The file/path is not user provided.
+            logger.warn("Failed to delete exported avatar file");
+    }
+
+    private static byte[] hash(byte[] bytes)
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The position and details of the latest record for an avatar.
+     */
+    private static final class Entry
+    {
+        /**
+         * The offset of the avatar's bytes in the data file.
+         */
+        final long mOffset;
+
+        final int mLength;
+
+        /**
+         * The length of the whole record, including its header.
+         */
+        final int mRecordLength;
+
+        final byte[] mHash;
+
+        long mTimestamp;
+
+        Entry(long offset,
+              int length,
+              int recordLength,
+              byte[] hash,
+              long timestamp)
+        {
+            mOffset = offset;
+            mLength = length;
+            mRecordLength = recordLength;
+            mHash = hash;
+            mTimestamp = timestamp;
+        }
+    }
+}
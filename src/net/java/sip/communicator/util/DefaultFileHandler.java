@@ -29,6 +29,12 @@ public class DefaultFileHandler
      */
     private static final String DEFAULT_PATTERN = "/log/accession%u.log";
 
+    /**
+     * The writer that writes records on a background thread, or null if
+     * records are written on the thread that logs them.
+     */
+    private final AsyncLogWriter asyncWriter = AsyncLogWriter.getInstance();
+
     /**
      * Initialize a <tt>FileHandler</tt> to write to a set of files.  When
      * (approximately) the given limit has been written to one file,
@@ -105,6 +111,87 @@ public class DefaultFileHandler
         setFilter();
     }
 
+    /**
+     * Publishes a log record.  If asynchronous logging is enabled this just
+     * queues the record to be written by the <tt>AsyncLogWriter</tt>,
+     * having first captured its caller, as that can only be found from this
+     * thread's stack.
+     *
+     * @param record the log record to publish.
+     */
+    @Override
+    public void publish(LogRecord record)
+    {
+        if (asyncWriter == null)
+        {
+            super.publish(record);
+        }
+        else if (isLoggable(record))
+        {
+            int lineNumber = AsyncLogWriter.NOT_CAPTURED;
+            Formatter formatter = getFormatter();
+
+            if (formatter instanceof ScLogFormatter)
+            {
+                lineNumber = ScLogFormatter.captureCaller(record);
+            }
+            else if (!(formatter instanceof CsvSipLogFormatter))
+            {
+                // Make the record infer its source now, while we're still on
+                // the logging thread.
+                record.getSourceClassName();
+            }
+
+            asyncWriter.publish(this, record, lineNumber);
+        }
+    }
+
+    /**
+     * Writes a log record to the file straight away.
+     *
+     * @param record the log record to write.
+     */
+    void publishNow(LogRecord record)
+    {
+        super.publish(record);
+    }
+
+    /**
+     * Flushes the file, unless this is the <tt>AsyncLogWriter</tt> writing a
+     * batch of records, in which case it flushes once at the end of the batch
+     * instead of after every record.
+     */
+    @Override
+    public void flush()
+    {
+        if (asyncWriter == null || !asyncWriter.isWriterThread())
+        {
+            super.flush();
+        }
+    }
+
+    /**
+     * Flushes the file straight away.
+     */
+    void flushNow()
+    {
+        super.flush();
+    }
+
+    /**
+     * Closes the file, once any records queued for it have been written.
+     */
+    @Override
+    public void close() throws SecurityException
+    {
+        if (asyncWriter != null)
+        {
+            asyncWriter.drain();
+        }
+
+        super.close();
+    }
+
     /**
      * Does this log record represent a HTTP header log, which should only
      * be logged to -httpheaders?
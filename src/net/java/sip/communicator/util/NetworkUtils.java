@@ -17,11 +17,15 @@ import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.text.ParseException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 import org.xbill.DNS.AAAARecord;
@@ -106,6 +110,19 @@ public class NetworkUtils
      */
     private static final Random random = new Random();
 
+    /**
+     * The threads that run DNS lookups we want to do at the same time as
+     * another, e.g. the AAAA lookup while we do the A lookup.  Tasks on these
+     * threads never wait for each other, so a few threads are enough.
+     */
+    private static final ExecutorService dnsLookupExecutor =
+        Executors.newFixedThreadPool(4, runnable ->
+        {
+            Thread thread = new Thread(runnable, "dns-lookup");
+            thread.setDaemon(true);
+            return thread;
+        });
+
     /**
      * Returns a random local port number that user applications could bind to.
      * (i.e. above 1024).
@@ -857,67 +874,103 @@ public class NetworkUtils
             }
         }
 
+        boolean preferIPv6 = Boolean.getBoolean("java.net.preferIPv6Addresses");
+
+        // Look up the less preferred type of address on another thread while
+        // we look up the preferred type, so that we only wait for the slower
+        // of the two lookups rather than for both of them in turn.
+        CompletableFuture<List<InetSocketAddress>> otherAddresses =
+            CompletableFuture.supplyAsync(() ->
+            {
+                try
+                {
+                    return lookupAddresses(domain, port, !preferIPv6);
+                }
+                catch (ParseException e)
+                {
+                    // The lookup of the preferred type will report this.
+                    return Collections.emptyList();
+                }
+            }, dnsLookupExecutor);
+
+        List<InetSocketAddress> addresses =
+            new LinkedList<>(lookupAddresses(domain, port, preferIPv6));
+        addresses.addAll(otherAddresses.join());
+
+        logger.debug("A or AAAA addresses: " + addresses);
+        return addresses.toArray(new InetSocketAddress[0]);
+    }
+
+    /**
+     * Returns the A or AAAA records of the specified domain.
+     *
+     * @param domain the name of the domain we'd like to resolve.
+     * @param port the port number of the returned <tt>InetSocketAddress</tt>
+     * @param v6lookup true to look up AAAA records, false for A records.
+     * @return the addresses returned by the DNS server, in the order it
+     *         returned them.
+     * @throws ParseException if <tt>domain</tt> is not a valid domain name.
+     */
+    private static List<InetSocketAddress> lookupAddresses(String domain,
+                                                           int port,
+                                                           boolean v6lookup)
+        throws ParseException
+    {
         List<InetSocketAddress> addresses = new LinkedList<>();
-        boolean v6lookup = Boolean.getBoolean("java.net.preferIPv6Addresses");
+        Lookup lookup;
 
-        for (int i = 0; i < 2; i++)
+        try
         {
-            Lookup lookup;
-            try
-            {
-                lookup = createLookup(domain, v6lookup ? Type.AAAA : Type.A);
-
-                // If dnsjava takes the result from its cache, and there are multiple IP addresses
-                // for this domain, we don't want it to cycle through the results - we want them in
-                // the same order each time, because some customers put multiple SBC IP addresses
-                // in their A record results for load-balancing (as we don't support SRV for SIP)
-                // and cycling through them can result in the client sending SIP to a different
-                // SBC to where it registered.
-                lookup.setCycleResults(false);
-            }
-            catch (TextParseException tpe)
-            {
-                logger.error("Failed to parse domain <" + domain + ">", tpe);
-                throw new ParseException(tpe.getMessage(), 0);
-            }
+            lookup = createLookup(domain, v6lookup ? Type.AAAA : Type.A);
+
+            // If dnsjava takes the result from its cache, and there are multiple IP addresses
+            // for this domain, we don't want it to cycle through the results - we want them in
+            // the same order each time, because some customers put multiple SBC IP addresses
+            // in their A record results for load-balancing (as we don't support SRV for SIP)
+            // and cycling through them can result in the client sending SIP to a different
+            // SBC to where it registered.
+            lookup.setCycleResults(false);
+        }
+        catch (TextParseException tpe)
+        {
+            logger.error("Failed to parse domain <" + domain + ">", tpe);
+            throw new ParseException(tpe.getMessage(), 0);
+        }
 
-            Record[] records = lookup.run();
+        Record[] records = lookup.run();
 
-            if (records != null)
+        if (records != null)
+        {
+            for(Record r : records)
             {
-                for(Record r : records)
+                try
                 {
-                    try
-                    {
-                        addresses.add(
-                            new InetSocketAddress(
-                                // create a new InetAddress filled with the
-                                // domain name to avoid PTR queries
-                                InetAddress.getByAddress(
-                                    domain,
-                                    v6lookup
-                                      ? ((AAAARecord)r).getAddress().getAddress()
-                                      : ((ARecord)r).getAddress().getAddress()
-                                ),
-                                port
-                            )
-                        );
-                    }
-                    catch (UnknownHostException e)
-                    {
-                        logger.error("Invalid record returned from DNS", e);
-                    }
+                    addresses.add(
+                        new InetSocketAddress(
+                            // create a new InetAddress filled with the
+                            // domain name to avoid PTR queries
+                            InetAddress.getByAddress(
+                                domain,
+                                v6lookup
+                                  ? ((AAAARecord)r).getAddress().getAddress()
+                                  : ((ARecord)r).getAddress().getAddress()
+                            ),
+                            port
+                        )
+                    );
+                }
+                catch (UnknownHostException e)
+                {
+                    logger.error("Invalid record returned from DNS", e);
                 }
             }
-            else
-            {
-                logger.info("Lookup returned no results, rc = " + lookup.getResult() + " error = " + lookup.getErrorString());
-            }
-
-            v6lookup = !v6lookup;
         }
-        logger.debug("A or AAAA addresses: " + addresses);
-        return addresses.toArray(new InetSocketAddress[0]);
+        else
+        {
+            logger.info("Lookup returned no results, rc = " + lookup.getResult() + " error = " + lookup.getErrorString());
+        }
+
+        return addresses;
     }
 
     /**
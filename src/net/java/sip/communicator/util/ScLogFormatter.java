@@ -11,6 +11,7 @@ import static net.java.sip.communicator.util.PrivacyUtils.REDACTED;
 import static org.jitsi.util.SanitiseUtils.sanitise;
 
 import java.io.*;
+import java.lang.StackWalker.*;
 import java.text.*;
 import java.util.*;
 import java.util.logging.*;
@@ -20,6 +21,12 @@ import java.util.regex.*;
  * Print a brief summary of the LogRecord in a human readable. The summary will
  * typically be on a single line (unless it's too long :) ... what I meant to
  * say is that we don't add any line breaks).
+ * <p>
+ * This is called for every log record from every thread, so it is not
+ * synchronized and avoids work where it can: the date and time up to the
+ * second is only formatted once a second, the caller is found by walking
+ * only as far up the stack as needed, each thread reuses its own buffer and
+ * the redaction regex only runs on messages that might need it.
  *
  * @author Emil Ivov
  */
@@ -73,42 +80,116 @@ public class ScLogFormatter
     private static final Pattern PEER_ID_PATTERN =
             Pattern.compile("[A-Za-z0-9!#$%&'*+-/=?^_`{|}~.]+@[A-Za-z0-9-.]+[A-Za-z0-9-._~!$&'()*+,;=/]*");
 
+    /**
+     * The strings that the redaction regex (STRIP_SENSITIVE_DETAILS) can
+     * match, followed by '=', and the one that it can match starting with '/'.
+     * Messages that contain none of these (ignoring case) can't need
+     * redacting.
+     */
+    private static final String[] SENSITIVE_KEYS =
+        {"encrypted", "passkey", "password"};
+    private static final String SENSITIVE_PATH = "/session";
+
+    /**
+     * Walks the stack to find the caller of the logger.  Reflection frames
+     * are included as they are in a Throwable's stack trace.
+     */
+    private static final StackWalker STACK_WALKER =
+        StackWalker.getInstance(Option.SHOW_REFLECT_FRAMES);
+
+    /**
+     * The largest buffer that we keep for reuse by a thread.  Bigger buffers
+     * (for very long messages) are dropped after use.
+     */
+    private static final int MAX_REUSED_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Each thread's buffer for formatting records.
+     */
+    private static final ThreadLocal<StringBuilder> buffers =
+        ThreadLocal.withInitial(() -> new StringBuilder(256));
+
     private static String lineSeparator = System.getProperty("line.separator");
     private static DecimalFormat twoDigFmt = new DecimalFormat("00");
     private static DecimalFormat threeDigFmt = new DecimalFormat("000");
     private static DecimalFormat fourDigFmt = new DecimalFormat("0000");
 
+    /**
+     * The formatted milliseconds, for each value from 0 to 999.
+     */
+    private static final String[] millisStrings = new String[1000];
+    static
+    {
+        for (int i = 0; i < millisStrings.length; i++)
+        {
+            millisStrings[i] = threeDigFmt.format(i);
+        }
+    }
+
+    /**
+     * The formatted date and time (up to the seconds) of the most recently
+     * formatted second.  Replaced, never modified, so it can be read without
+     * locking.
+     */
+    private static volatile TimestampPrefix lastTimestampPrefix =
+        new TimestampPrefix(Long.MIN_VALUE, null);
+
     /**
      * Format the given LogRecord.
      * @param record the log record to be formatted.
      * @return a formatted log record
      */
-    public synchronized String format(LogRecord record)
+    public String format(LogRecord record)
     {
-        StringBuffer sb = new StringBuffer();
+        StringBuilder sb = buffers.get();
 
-        //current time
-        Calendar cal = Calendar.getInstance();
-        cal.setTimeInMillis(record.getMillis());
-        int year = cal.get(Calendar.YEAR);
-        int month = cal.get(Calendar.MONTH) + 1;
-        int day = cal.get(Calendar.DAY_OF_MONTH);
-        int hour = cal.get(Calendar.HOUR_OF_DAY);
-        int minutes = cal.get(Calendar.MINUTE);
-        int seconds = cal.get(Calendar.SECOND);
-        int millis = cal.get(Calendar.MILLISECOND);
+        if (sb.length() != 0)
+        {
+            // This thread is already formatting a record (something called
+            // while formatting has logged), so don't overwrite its buffer.
+            sb = new StringBuilder();
+            formatRecord(record, sb);
+            return sb.toString();
+        }
 
-        sb.append(fourDigFmt.format(year)).append('-');
-        sb.append(twoDigFmt.format(month)).append('-');
-        sb.append(twoDigFmt.format(day)).append(' ');
-        sb.append(twoDigFmt.format(hour)).append(':');
-        sb.append(twoDigFmt.format(minutes)).append(':');
-        sb.append(twoDigFmt.format(seconds)).append('.');
-        sb.append(threeDigFmt.format(millis)).append(' ');
+        try
+        {
+            formatRecord(record, sb);
+            return sb.toString();
+        }
+        finally
+        {
+            if (sb.capacity() > MAX_REUSED_BUFFER_SIZE)
+            {
+                buffers.remove();
+            }
+            else
+            {
+                sb.setLength(0);
+            }
+        }
+    }
+
+    /**
+     * Format the given LogRecord into the given buffer.
+     *
+     * @param record the log record to be formatted.
+     * @param sb the buffer to format it into.
+     */
+    private void formatRecord(LogRecord record, StringBuilder sb)
+    {
+        //current time
+        long millis = record.getMillis();
+        sb.append(getTimestampPrefix(Math.floorDiv(millis, 1000)));
+        sb.append(millisStrings[(int) Math.floorMod(millis, 1000)]).append(' ');
 
         // Inferring the call returns the line number and sets the correct
         // source class
-        int lineNumber = inferCaller(record);
+        int lineNumber = AsyncLogWriter.getCapturedLineNumber(record);
+        if (lineNumber == AsyncLogWriter.NOT_CAPTURED)
+        {
+            lineNumber = inferCaller(record);
+        }
         String logClass;
         if ((record.getSourceClassName() != null) &&
             (record.getSourceClassName().trim().length() != 0))
@@ -130,7 +211,7 @@ public class ScLogFormatter
             sb.append(": ");
 
             // Thread ID
-            sb.append("[" + record.getThreadID() + "] ");
+            sb.append('[').append(record.getThreadID()).append("] ");
 
             // Caller class and method (or logger if we don't have a class).  We
             // strip any leading net.java.sip.communicator to reduce the length of
@@ -170,7 +251,7 @@ public class ScLogFormatter
                              .append(message, 0, MAX_MESSAGE_LENGTH).toString();
         }
 
-        if (message != null)
+        if (message != null && mightContainSensitiveDetails(message))
         {
             // Don't log sensitive details:
             message = STRIP_SENSITIVE_DETAILS.matcher(message).replaceAll("$1" + REDACTED);
@@ -202,9 +283,95 @@ public class ScLogFormatter
             {
             }
         }
+    }
+
+    /**
+     * Returns the formatted date and time, up to and including the seconds
+     * and the following '.', of the given second.
+     *
+     * @param second the time in seconds since the epoch.
+     * @return the formatted date and time.
+     */
+    private static String getTimestampPrefix(long second)
+    {
+        TimestampPrefix prefix = lastTimestampPrefix;
+
+        if (prefix.second != second)
+        {
+            prefix = new TimestampPrefix(second, formatTimestampPrefix(second));
+            lastTimestampPrefix = prefix;
+        }
+
+        return prefix.formatted;
+    }
+
+    /**
+     * Formats the date and time of the given second.
+     *
+     * @param second the time in seconds since the epoch.
+     * @return the formatted date and time.
+     */
+    private static String formatTimestampPrefix(long second)
+    {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(second * 1000);
+        int year = cal.get(Calendar.YEAR);
+        int month = cal.get(Calendar.MONTH) + 1;
+        int day = cal.get(Calendar.DAY_OF_MONTH);
+        int hour = cal.get(Calendar.HOUR_OF_DAY);
+        int minutes = cal.get(Calendar.MINUTE);
+        int seconds = cal.get(Calendar.SECOND);
+
+        StringBuilder sb = new StringBuilder(20);
+
+        // DecimalFormat isn't thread safe.
+        synchronized (twoDigFmt)
+        {
+            sb.append(fourDigFmt.format(year)).append('-');
+            sb.append(twoDigFmt.format(month)).append('-');
+            sb.append(twoDigFmt.format(day)).append(' ');
+            sb.append(twoDigFmt.format(hour)).append(':');
+            sb.append(twoDigFmt.format(minutes)).append(':');
+            sb.append(twoDigFmt.format(seconds)).append('.');
+        }
+
         return sb.toString();
     }
 
+    /**
+     * Cheaply checks whether the given message might contain details that
+     * STRIP_SENSITIVE_DETAILS would redact.  This may return true when there
+     * is nothing to redact, but never returns false when there is.
+     *
+     * @param message the message.
+     * @return true if the message needs to be checked with the regex.
+     */
+    private static boolean mightContainSensitiveDetails(String message)
+    {
+        for (int ix = message.indexOf('='); ix >= 0; ix = message.indexOf('=', ix + 1))
+        {
+            for (String key : SENSITIVE_KEYS)
+            {
+                int start = ix - key.length();
+
+                if (start >= 0 && message.regionMatches(true, start, key, 0, key.length()))
+                {
+                    return true;
+                }
+            }
+        }
+
+        for (int ix = message.indexOf('/'); ix >= 0; ix = message.indexOf('/', ix + 1))
+        {
+            if (message.regionMatches(true, ix, SENSITIVE_PATH, 0, SENSITIVE_PATH.length()))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     /**
      * Get the name of this logger
      *
@@ -220,6 +387,27 @@ public class ScLogFormatter
         return loggerName;
     }
 
+    /**
+     * Finds the caller of a record that is about to be formatted on another
+     * thread, setting its source class and method.
+     *
+     * @param record the record being published by the current thread.
+     * @return the line number that the call was made from in the caller.
+     */
+    static int captureCaller(LogRecord record)
+    {
+        int lineNumber = inferCaller(record);
+
+        if (lineNumber == -1)
+        {
+            // Not logged through one of our logger classes, so make the
+            // record infer its own source while we're on the right thread.
+            record.getSourceClassName();
+        }
+
+        return lineNumber;
+    }
+
     /**
      * Try to extract the name of the class and method that called the current
      * log statement.
@@ -228,50 +416,67 @@ public class ScLogFormatter
      *
      * @return the line number that the call was made from in the caller.
      */
-    private int inferCaller(LogRecord record)
+    private static int inferCaller(LogRecord record)
     {
-        // Get the stack trace.
-        StackTraceElement[] stack = (new Throwable()).getStackTrace();
+        // Walk the stack only as far as the caller, rather than creating the
+        // whole stack trace.
+        return STACK_WALKER.walk(stack ->
+        {
+            Iterator<StackFrame> frames = stack.iterator();
 
-        //the line number that the caller made the call from
-        int lineNumber = -1;
+            //the line number that the caller made the call from
+            int lineNumber = -1;
 
-        // First, search back to a method in the SIP Communicator, libjitsi,
-        // FMJ or JSIP logger classes.
-        int ix = 0;
-        while (ix < stack.length)
-        {
-            StackTraceElement frame = stack[ix];
-            String cname = frame.getClassName();
-            if (LOGGER_CLASSES.contains(cname))
+            // First, search back to a method in the SIP Communicator, libjitsi,
+            // FMJ or JSIP logger classes.
+            StackFrame frame = null;
+            while (frames.hasNext())
             {
-                break;
+                StackFrame candidate = frames.next();
+                if (LOGGER_CLASSES.contains(candidate.getClassName()))
+                {
+                    frame = candidate;
+                    break;
+                }
             }
-            ix++;
-        }
 
-        // Now search for the first frame before the SIP Communicator,
-        // libjitsi, FMJ or JSIP logger classes.
-        while (ix < stack.length)
-        {
-            StackTraceElement frame = stack[ix];
-            lineNumber = stack[ix].getLineNumber();
-            String cname = frame.getClassName();
-            if (!LOGGER_CLASSES.contains(cname))
+            // Now search for the first frame before the SIP Communicator,
+            // libjitsi, FMJ or JSIP logger classes.
+            while (frame != null)
             {
-                // We've found the relevant frame.
-                record.setSourceClassName(cname);
-                record.setSourceMethodName(frame.getMethodName());
-                break;
+                lineNumber = frame.getLineNumber();
+                String cname = frame.getClassName();
+                if (!LOGGER_CLASSES.contains(cname))
+                {
+                    // We've found the relevant frame.
+                    record.setSourceClassName(cname);
+                    record.setSourceMethodName(frame.getMethodName());
+                    break;
+                }
+                frame = frames.hasNext() ? frames.next() : null;
             }
-            ix++;
-        }
 
-        return lineNumber;
+            return lineNumber;
+        });
     }
 
     private static String findAndSanitisePeerId(String value)
     {
         return sanitise(value, PEER_ID_PATTERN, PrivacyUtils::sanitisePeerId);
     }
+
+    /**
+     * The formatted date and time of a second.
+     */
+    private static class TimestampPrefix
+    {
+        final long second;
+        final String formatted;
+
+        TimestampPrefix(long second, String formatted)
+        {
+            this.second = second;
+            this.formatted = formatted;
+        }
+    }
 }
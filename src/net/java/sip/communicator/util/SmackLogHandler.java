@@ -40,7 +40,7 @@ public class SmackLogHandler extends DefaultFileHandler
     }
 
     @Override
-    public synchronized void publish(LogRecord record)
+    public void publish(LogRecord record)
     {
         String log = sanitise(record.getMessage(), STANZA_DATA_PATTERN, SmackLogHandler::sanitiseString);
         log = sanitise(log, FILTER_DATA_PATTERN, PrivacyUtils::sanitisePeerId);
@@ -24,6 +24,7 @@ import net.java.sip.communicator.service.contactlist.MetaContactListService;
 import net.java.sip.communicator.service.credentialsstorage.CredentialsStorageService;
 import net.java.sip.communicator.service.conference.ConferenceService;
 import net.java.sip.communicator.service.diagnostics.DiagnosticsService;
+import net.java.sip.communicator.service.diagnostics.DiagnosticsServiceRegistrar;
 import net.java.sip.communicator.service.gui.AlertUIService;
 import net.java.sip.communicator.service.gui.UIService;
 import net.java.sip.communicator.service.insights.InsightsService;
@@ -100,6 +101,13 @@ public class UtilActivator
 
         Thread.setDefaultUncaughtExceptionHandler(this);
 
+        AsyncLogWriter asyncLogWriter = AsyncLogWriter.getInstance();
+        if (asyncLogWriter != null)
+        {
+            DiagnosticsServiceRegistrar.registerStateDumper(asyncLogWriter,
+                                                            context);
+        }
+
         // The mac application doesn't pick up the locale properly from the
         // environment so we need a workaround.
         if (OSUtils.IS_MAC)
@@ -166,12 +174,20 @@ public class UtilActivator
     }
 
     /**
-     * Doesn't do anything.
+     * Unregisters the asynchronous log writer's state dumper, and closes the
+     * avatar store.
      *
      * @param context The execution context of the bundle being stopped.
      */
     public void stop(BundleContext context)
     {
+        AvatarCacheUtils.closeStore();
+
+        AsyncLogWriter asyncLogWriter = AsyncLogWriter.getInstance();
+        if (asyncLogWriter != null)
+        {
+            DiagnosticsServiceRegistrar.unregisterStateDumper(asyncLogWriter);
+        }
     }
 
     /**
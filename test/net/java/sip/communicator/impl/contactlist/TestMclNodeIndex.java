@@ -0,0 +1,186 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.impl.contactlist;
+
+import static net.java.sip.communicator.impl.contactlist.MclStorageManager.*;
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import javax.xml.parsers.*;
+
+import org.junit.*;
+import org.w3c.dom.*;
+
+/**
+ * Tests replaying <tt>MclJournal</tt> entries over the contact list document
+ * with <tt>MclNodeIndex</tt>.
+ */
+public class TestMclNodeIndex
+{
+    private Document document;
+
+    private MclNodeIndex index;
+
+    /**
+     * Creates a document with a root group containing a meta contact "c1",
+     * as it was last written to the contact list file.
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+        document = DocumentBuilderFactory.newInstance()
+                                         .newDocumentBuilder()
+                                         .newDocument();
+        Element documentRoot = document.createElement("sip-communicator");
+        document.appendChild(documentRoot);
+
+        Element rootGroup = group("root");
+        documentRoot.appendChild(rootGroup);
+        childContacts(rootGroup).appendChild(metaContact("c1"));
+
+        index = new MclNodeIndex();
+        index.rebuild(document);
+    }
+
+    @Test
+    public void testReplayMoveIntoNewGroup() throws Exception
+    {
+        // Create group "g1" and move "c1" into it.  The group is journalled
+        // first, including "c1", and then "c1" itself.
+        Element newGroup = group("g1");
+        childContacts(newGroup).appendChild(metaContact("c1"));
+
+        List<MclJournal.Entry> entries = Arrays.asList(
+            updatedGroup("g1", "root", newGroup),
+            updatedMetaContact("c1", "g1", metaContact("c1")));
+
+        replay(entries);
+        assertMovedIntoNewGroup();
+
+        // As if we stopped after rewriting the file, but before clearing the
+        // journal.
+        replay(entries);
+        assertMovedIntoNewGroup();
+    }
+
+    @Test
+    public void testReplayGroupReplacesDescendantsElsewhere() throws Exception
+    {
+        // Only the group is journalled, e.g. because we stopped before
+        // journalling "c1".
+        Element newGroup = group("g1");
+        childContacts(newGroup).appendChild(metaContact("c1"));
+
+        replay(Collections.singletonList(updatedGroup("g1", "root", newGroup)));
+
+        assertMovedIntoNewGroup();
+    }
+
+    @Test
+    public void testReplayRemoval() throws Exception
+    {
+        Element newGroup = group("g1");
+        childContacts(newGroup).appendChild(metaContact("c1"));
+
+        replay(Arrays.asList(
+            updatedGroup("g1", "root", newGroup),
+            MclJournal.Entry.removed(MclJournal.ElementType.META_CONTACT, "c1"),
+            MclJournal.Entry.removed(MclJournal.ElementType.GROUP, "g1")));
+
+        assertEquals(0, count(META_CONTACT_NODE_NAME, "c1"));
+        assertEquals(0, count(GROUP_NODE_NAME, "g1"));
+        assertNull(index.getMetaContactNode("c1"));
+        assertNull(index.getGroupNode("g1"));
+    }
+
+    private void assertMovedIntoNewGroup()
+    {
+        assertEquals(1, count(META_CONTACT_NODE_NAME, "c1"));
+        assertEquals(1, count(GROUP_NODE_NAME, "g1"));
+
+        Element contactNode = index.getMetaContactNode("c1");
+        Element groupNode = index.getGroupNode("g1");
+
+        // The indexed nodes are the ones in the document.
+        assertSame(groupNode, contactNode.getParentNode().getParentNode());
+        assertSame(index.getGroupNode("root"),
+                   groupNode.getParentNode().getParentNode());
+        assertFalse(childContacts(index.getGroupNode("root")).hasChildNodes());
+    }
+
+    private void replay(List<MclJournal.Entry> entries) throws Exception
+    {
+        for (MclJournal.Entry entry : entries)
+        {
+            index.replayJournalEntry(entry, document);
+        }
+    }
+
+    /**
+     * @return the number of nodes in the document with the given name and UID.
+     */
+    private int count(String nodeName, String uid)
+    {
+        NodeList nodes = document.getElementsByTagName(nodeName);
+        int count = 0;
+
+        for (int i = 0; i < nodes.getLength(); i++)
+        {
+            if (uid.equals(((Element) nodes.item(i)).getAttribute(UID_ATTR_NAME)))
+                count++;
+        }
+
+        return count;
+    }
+
+    private Element group(String uid)
+    {
+        Element group = document.createElement(GROUP_NODE_NAME);
+        group.setAttribute(UID_ATTR_NAME, uid);
+        group.appendChild(document.createElement(SUBGROUPS_NODE_NAME));
+        group.appendChild(document.createElement(CHILD_CONTACTS_NODE_NAME));
+        return group;
+    }
+
+    private Element metaContact(String uid)
+    {
+        Element metaContact = document.createElement(META_CONTACT_NODE_NAME);
+        metaContact.setAttribute(UID_ATTR_NAME, uid);
+        return metaContact;
+    }
+
+    private static Element childContacts(Element group)
+    {
+        for (Node child = group.getFirstChild();
+             child != null;
+             child = child.getNextSibling())
+        {
+            if (CHILD_CONTACTS_NODE_NAME.equals(child.getNodeName()))
+                return (Element) child;
+        }
+
+        return null;
+    }
+
+    private static MclJournal.Entry updatedGroup(String uid,
+                                                 String parentUid,
+                                                 Element node)
+        throws Exception
+    {
+        return MclJournal.Entry.updated(MclJournal.ElementType.GROUP,
+                                        uid,
+                                        parentUid,
+                                        MclJournal.toXml(node));
+    }
+
+    private static MclJournal.Entry updatedMetaContact(String uid,
+                                                       String parentUid,
+                                                       Element node)
+        throws Exception
+    {
+        return MclJournal.Entry.updated(MclJournal.ElementType.META_CONTACT,
+                                        uid,
+                                        parentUid,
+                                        MclJournal.toXml(node));
+    }
+}
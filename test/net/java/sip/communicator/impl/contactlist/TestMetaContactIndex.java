@@ -0,0 +1,162 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.impl.contactlist;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.phonenumberutils.*;
+import net.java.sip.communicator.service.protocol.*;
+
+import org.junit.*;
+
+/**
+ * Tests that <tt>MetaContactIndex</tt> finds MetaContacts by their current
+ * phone numbers and email addresses after their details change.
+ */
+public class TestMetaContactIndex
+{
+    private MetaContactGroupImpl rootGroup;
+
+    private MetaContactIndex index;
+
+    @Before
+    public void setUp()
+    {
+        // Numbers are formatted to E164 as UK numbers by dropping everything
+        // but the digits and replacing the trunk prefix with the country
+        // code, which is enough to tell different formats of a number are
+        // the same.
+        ContactlistActivator.setPhoneNumberUtils(
+            fake(PhoneNumberUtilsService.class, (method, args) ->
+            {
+                switch (method.getName())
+                {
+                case "formatNumberToE164":
+                    String digits = ((String) args[0]).replaceAll("[^0-9]", "");
+                    return "+" + digits.replaceFirst("^0", "44");
+                case "getEASRegion":
+                    return "GB";
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            }));
+
+        rootGroup = new MetaContactGroupImpl(null, "root");
+        index = new MetaContactIndex(rootGroup);
+    }
+
+    @After
+    public void tearDown()
+    {
+        ContactlistActivator.setPhoneNumberUtils(null);
+    }
+
+    @Test
+    public void testFindByNumberAfterNumberChanged()
+    {
+        DetailsMetaContact metaContact = new DetailsMetaContact();
+        metaContact.numbers.add("+441632960001");
+        addToRootGroup(metaContact);
+
+        assertEquals(Collections.singletonList(metaContact),
+                     index.findMetaContactByNumber("01632 960001"));
+
+        // As when a provider fires an event for the changed contact.
+        metaContact.numbers.clear();
+        metaContact.numbers.add("+441632960002");
+        index.updateDetails(metaContact);
+
+        assertEquals(Collections.singletonList(metaContact),
+                     index.findMetaContactByNumber("01632 960002"));
+        assertTrue(index.findMetaContactByNumber("01632 960001").isEmpty());
+    }
+
+    @Test
+    public void testFindByEmailAfterEmailChanged()
+    {
+        DetailsMetaContact metaContact = new DetailsMetaContact();
+        metaContact.emails.add("alice@example.com");
+        addToRootGroup(metaContact);
+
+        metaContact.emails.clear();
+        metaContact.emails.add("alice.smith@example.com");
+        index.updateDetails(metaContact);
+
+        assertEquals(Collections.singletonList(metaContact),
+                     index.findMetaContactByEmail("Alice.Smith@example.com"));
+        assertTrue(index.findMetaContactByEmail("alice@example.com").isEmpty());
+    }
+
+    private void addToRootGroup(MetaContactImpl metaContact)
+    {
+        metaContact.setParentGroup(rootGroup);
+        index.addMetaContact(metaContact);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T fake(Class<T> type, FakeMethod fakeMethod)
+    {
+        return (T) Proxy.newProxyInstance(
+            type.getClassLoader(),
+            new Class<?>[] {type},
+            (proxy, method, args) -> fakeMethod.invoke(method, args));
+    }
+
+    private interface FakeMethod
+    {
+        Object invoke(Method method, Object[] args);
+    }
+
+    /**
+     * A MetaContact whose proto contacts' phone numbers and email addresses
+     * are given by the test, rather than by the protocol providers.
+     */
+    private static class DetailsMetaContact extends MetaContactImpl
+    {
+        /**
+         * The E164 formatted phone numbers.
+         */
+        private final Set<String> numbers = new HashSet<>();
+
+        private final Set<String> emails = new HashSet<>();
+
+        private final Contact contact = fake(Contact.class, (method, args) ->
+        {
+            throw new UnsupportedOperationException(method.getName());
+        });
+
+        @Override
+        public Iterator<Contact> getContacts()
+        {
+            return Collections.emptyIterator();
+        }
+
+        @Override
+        Set<String> getSearchableDetailValues(boolean phoneNumbers)
+        {
+            return new HashSet<>(phoneNumbers ? numbers : emails);
+        }
+
+        @Override
+        public List<Contact> getContactByPhoneNumber(String phoneNumber)
+        {
+            for (String value : getPhoneNumberSearchValues(phoneNumber))
+            {
+                if (numbers.contains(value))
+                    return Collections.singletonList(contact);
+            }
+
+            return Collections.emptyList();
+        }
+
+        @Override
+        public List<Contact> getContactByEmail(String emailAddress)
+        {
+            return emails.contains(emailAddress.toLowerCase()) ?
+                Collections.singletonList(contact) :
+                Collections.<Contact>emptyList();
+        }
+    }
+}
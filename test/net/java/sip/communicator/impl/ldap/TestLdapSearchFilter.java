@@ -0,0 +1,157 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.impl.ldap;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+/**
+ * Tests the local evaluation of <tt>LdapSearchFilter</tt>s, which is used to
+ * answer a search from the cached results of a broader one.
+ */
+public class TestLdapSearchFilter
+{
+    @Test
+    public void testToString()
+    {
+        LdapSearchFilter filter = filter("cn", "*john* *d*", "mail", "john*");
+
+        assertEquals("(|(cn=*john* *d*)(mail=john*))", filter.toString());
+    }
+
+    @Test
+    public void testMatchesSubstrings()
+    {
+        LdapSearchFilter filter = filter("cn", "jo*n*th");
+
+        assertTrue(filter.matches(entry("cn", "Jonathan Smith")));
+        assertTrue(filter.matches(entry("cn", "john th")));
+        assertFalse(filter.matches(entry("cn", "Jonathan Smit")));
+        assertFalse(filter.matches(entry("cn", "Bob Johnson")));
+    }
+
+    @Test
+    public void testMatchesDoesNotOverlapInitialAndFinal()
+    {
+        // "abc" starts with "ab" and ends with "bc", but they overlap.
+        assertFalse(filter("cn", "ab*bc").matches(entry("cn", "abc")));
+        assertTrue(filter("cn", "ab*bc").matches(entry("cn", "abbc")));
+        assertFalse(filter("cn", "a*b*c").matches(entry("cn", "ac")));
+    }
+
+    @Test
+    public void testMatchesEquality()
+    {
+        LdapSearchFilter filter = filter("mail", "John@Example.com");
+
+        assertTrue(filter.matches(entry("mail", "john@example.com")));
+        assertFalse(filter.matches(entry("mail", "john@example.com.au")));
+    }
+
+    @Test
+    public void testMatchesAnyTermAndValue()
+    {
+        LdapSearchFilter filter = filter("cn", "*smith*", "mail", "john*");
+
+        assertTrue(filter.matches(entry("MAIL", "John.Doe@example.com")));
+        assertTrue(filter.matches(entry("cn", "Bob", "Jane Smith")));
+        assertFalse(filter.matches(entry("sn", "Smith")));
+        assertFalse(filter.matches(new HashMap<>()));
+    }
+
+    @Test
+    public void testLongerPrefixIsNarrower()
+    {
+        assertTrue(filter("cn", "john*").isNarrowerThan(filter("cn", "jo*")));
+        assertFalse(filter("cn", "jo*").isNarrowerThan(filter("cn", "john*")));
+    }
+
+    @Test
+    public void testLongerSubstringIsNarrower()
+    {
+        assertTrue(filter("cn", "*john*").isNarrowerThan(filter("cn", "*oh*")));
+        assertTrue(filter("cn", "john*").isNarrowerThan(filter("cn", "*oh*")));
+        assertFalse(filter("cn", "*oh*").isNarrowerThan(filter("cn", "john*")));
+    }
+
+    @Test
+    public void testSubstringsMustBeImpliedInOrder()
+    {
+        LdapSearchFilter broader = filter("cn", "*jo* *sm*");
+
+        assertTrue(filter("cn", "*john* *smith*").isNarrowerThan(broader));
+        assertTrue(filter("cn", "*john smith*").isNarrowerThan(broader));
+        assertFalse(filter("cn", "*smith* *john*").isNarrowerThan(broader));
+    }
+
+    @Test
+    public void testSubstringsAcrossWildcardAreNotImplied()
+    {
+        // "jo*hn" matches "joan hn", which doesn't contain "ohn".
+        assertFalse(filter("cn", "jo*hn").isNarrowerThan(filter("cn", "*ohn*")));
+    }
+
+    @Test
+    public void testEqualityIsNarrowerIfItMatches()
+    {
+        assertTrue(filter("cn", "john").isNarrowerThan(filter("cn", "jo*")));
+        assertFalse(filter("cn", "bob").isNarrowerThan(filter("cn", "jo*")));
+        assertFalse(filter("cn", "jo*").isNarrowerThan(filter("cn", "john")));
+    }
+
+    @Test
+    public void testEveryTermMustBeImplied()
+    {
+        LdapSearchFilter broader = filter("cn", "jo*", "mail", "jo*");
+
+        assertTrue(filter("cn", "john*", "mail", "john*")
+                       .isNarrowerThan(broader));
+        assertTrue(filter("CN", "john*").isNarrowerThan(broader));
+        assertFalse(filter("cn", "john*", "sn", "john*")
+                       .isNarrowerThan(broader));
+        assertFalse(filter("mail", "john*")
+                       .isNarrowerThan(filter("cn", "jo*")));
+    }
+
+    @Test
+    public void testIsRefinable()
+    {
+        assertTrue(filter("cn", "john*").isRefinable());
+        assertFalse(filter("cn", "john\\2a*").isRefinable());
+
+        LdapSearchFilter phoneFilter = new LdapSearchFilter(false);
+        phoneFilter.addTerm("telephoneNumber", "*123*");
+        assertFalse(phoneFilter.isRefinable());
+    }
+
+    /**
+     * Creates a refinable filter.
+     *
+     * @param attributesAndPatterns pairs of attribute and pattern
+     */
+    private static LdapSearchFilter filter(String... attributesAndPatterns)
+    {
+        LdapSearchFilter filter = new LdapSearchFilter(true);
+
+        for (int i = 0; i < attributesAndPatterns.length; i += 2)
+        {
+            filter.addTerm(attributesAndPatterns[i],
+                           attributesAndPatterns[i + 1]);
+        }
+
+        return filter;
+    }
+
+    /**
+     * Creates the attributes of an entry with a single attribute.
+     */
+    private static Map<String, Set<String>> entry(String attribute,
+                                                  String... values)
+    {
+        Map<String, Set<String>> attributes = new HashMap<>();
+        attributes.put(attribute, new HashSet<>(Arrays.asList(values)));
+        return attributes;
+    }
+}
@@ -0,0 +1,65 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the removal of personal data from SIP messages before they are
+ * logged, for a typical INVITE with SDP and for a short response with no
+ * personal data.  Run with <tt>ant benchmark -Dbenchmark=SipLoggerBenchmark</tt>.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SipLoggerBenchmark
+{
+    private static final String CRLF = "\r\n";
+
+    private final String invite =
+        "INVITE sip:2025550123@voip.example.com SIP/2.0" + CRLF +
+        "Via: SIP/2.0/TLS 192.0.2.10:5061;branch=z9hG4bK-776asdhds" + CRLF +
+        "Max-Forwards: 70" + CRLF +
+        "From: \"Alice Smith\" <sip:alice@voip.example.com>;tag=1928301774" + CRLF +
+        "To: <sip:2025550123@voip.example.com>" + CRLF +
+        "Contact: <sip:alice@192.0.2.10:5061;transport=tls>" + CRLF +
+        "Call-ID: a84b4c76e66710@192.0.2.10" + CRLF +
+        "CSeq: 314159 INVITE" + CRLF +
+        "Authorization: Digest username=\"2025550199\", " +
+            "realm=\"voip.example.com\", uri=\"sip:voip.example.com\"" + CRLF +
+        "Allow: INVITE, ACK, CANCEL, OPTIONS, BYE, REFER, NOTIFY" + CRLF +
+        "Supported: replaces, timer" + CRLF +
+        "Content-Type: application/sdp" + CRLF +
+        "Content-Length: 244" + CRLF +
+        CRLF +
+        "v=0" + CRLF +
+        "o=2025550199 2890844526 2890844526 IN IP4 192.0.2.10" + CRLF +
+        "s=-" + CRLF +
+        "c=IN IP4 192.0.2.10" + CRLF +
+        "t=0 0" + CRLF +
+        "m=audio 49170 RTP/AVP 0 8 97" + CRLF +
+        "a=rtpmap:0 PCMU/8000" + CRLF +
+        "a=rtpmap:8 PCMA/8000" + CRLF +
+        "a=rtpmap:97 iLBC/8000" + CRLF;
+
+    private final String trying =
+        "SIP/2.0 100 Trying" + CRLF +
+        "CSeq: 314159 INVITE" + CRLF +
+        "Content-Length: 0" + CRLF + CRLF;
+
+    @Benchmark
+    public String sanitiseInvite()
+    {
+        return SipLogger.sanitiseSipMessage(invite);
+    }
+
+    @Benchmark
+    public String sanitiseResponseWithoutPersonalData()
+    {
+        return SipLogger.sanitiseSipMessage(trying);
+    }
+}
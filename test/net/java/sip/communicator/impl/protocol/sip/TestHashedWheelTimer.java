@@ -0,0 +1,179 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.impl.protocol.sip;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.*;
+
+/**
+ * Tests the cancellation of tasks scheduled on the shared
+ * <tt>HashedWheelTimer</tt>, through <tt>TimerScheduler</tt>.
+ */
+public class TestHashedWheelTimer
+{
+    /**
+     * How long to wait for a task that should run.
+     */
+    private static final long TIMEOUT_MS = 5000;
+
+    /**
+     * How long to wait to be sure that a task which shouldn't run hasn't.
+     * The timer has a resolution of 100ms.
+     */
+    private static final long NOT_RUN_WAIT_MS = 500;
+
+    private TimerScheduler scheduler;
+
+    @Before
+    public void setUp()
+    {
+        scheduler = new TimerScheduler("TestHashedWheelTimer");
+    }
+
+    @After
+    public void tearDown()
+    {
+        scheduler.cancel();
+    }
+
+    @Test
+    public void testCancelledTaskDoesNotRun() throws Exception
+    {
+        CountingTask task = new CountingTask();
+        scheduler.schedule(task, 200);
+
+        assertTrue(TimerScheduler.cancel(task));
+
+        Thread.sleep(NOT_RUN_WAIT_MS);
+        assertEquals(0, task.runs.get());
+    }
+
+    @Test
+    public void testCancelAfterRunReturnsFalse() throws Exception
+    {
+        CountingTask task = new CountingTask();
+        scheduler.schedule(task, 0);
+
+        assertTrue(task.ran.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertFalse(TimerScheduler.cancel(task));
+    }
+
+    /**
+     * A task that cancels another task due in the same tick must stop it
+     * running, as <tt>java.util.Timer</tt> would.
+     */
+    @Test
+    public void testTaskCancelledByEarlierTaskInSameTickDoesNotRun()
+        throws Exception
+    {
+        // Hold up the timer thread, so that the two tasks below both fall
+        // due while it is busy and are collected in the same tick.
+        CountDownLatch blockerStarted = new CountDownLatch(1);
+        CountDownLatch releaseBlocker = new CountDownLatch(1);
+        scheduler.schedule(new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                blockerStarted.countDown();
+
+                try
+                {
+                    releaseBlocker.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, 0);
+
+        assertTrue(blockerStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // Whichever of these runs first cancels the other.
+        CancellingTask first = new CancellingTask();
+        CancellingTask second = new CancellingTask();
+        first.other = second;
+        second.other = first;
+        scheduler.schedule(first, 0);
+        scheduler.schedule(second, 0);
+
+        // Let both fall due before releasing the timer thread.
+        Thread.sleep(300);
+        releaseBlocker.countDown();
+
+        Thread.sleep(NOT_RUN_WAIT_MS);
+        assertEquals(1, first.runs.get() + second.runs.get());
+        assertTrue(first.cancelled.get() || second.cancelled.get());
+    }
+
+    @Test
+    public void testPeriodicTaskCancelledByItselfStops() throws Exception
+    {
+        CountDownLatch ranTwice = new CountDownLatch(2);
+        AtomicInteger runs = new AtomicInteger();
+        TimerTask task = new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                ranTwice.countDown();
+
+                if (runs.incrementAndGet() == 2)
+                    TimerScheduler.cancel(this);
+            }
+        };
+        scheduler.schedule(task, 0, 100);
+
+        assertTrue(ranTwice.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        Thread.sleep(NOT_RUN_WAIT_MS);
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void testCancelSchedulerOnlyCancelsItsOwnTasks() throws Exception
+    {
+        TimerScheduler otherScheduler =
+            new TimerScheduler("TestHashedWheelTimer-other");
+        CountingTask task = new CountingTask();
+        CountingTask otherTask = new CountingTask();
+        scheduler.schedule(task, 200);
+        otherScheduler.schedule(otherTask, 200);
+
+        scheduler.cancel();
+
+        assertTrue(otherTask.ran.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        Thread.sleep(NOT_RUN_WAIT_MS);
+        assertEquals(0, task.runs.get());
+    }
+
+    private static class CountingTask extends TimerTask
+    {
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch ran = new CountDownLatch(1);
+
+        @Override
+        public void run()
+        {
+            runs.incrementAndGet();
+            ran.countDown();
+        }
+    }
+
+    private static class CancellingTask extends CountingTask
+    {
+        volatile TimerTask other;
+        final AtomicBoolean cancelled = new AtomicBoolean();
+
+        @Override
+        public void run()
+        {
+            super.run();
+            cancelled.set(TimerScheduler.cancel(other));
+        }
+    }
+}
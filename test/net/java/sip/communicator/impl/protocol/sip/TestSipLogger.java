@@ -0,0 +1,143 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.impl.protocol.sip;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+/**
+ * Tests the removal of personal data from SIP messages before they are
+ * logged to the CSV log.  These check what is removed and what is left
+ * alone, rather than the exact form of the hashes that replace the data.
+ */
+public class TestSipLogger
+{
+    private static final String CRLF = "\r\n";
+
+    private static final String INVITE =
+        "INVITE sip:2025550123@voip.example.com SIP/2.0" + CRLF +
+        "Via: SIP/2.0/TLS 192.0.2.10:5061;branch=z9hG4bK-secret-branch" + CRLF +
+        "Max-Forwards: 70" + CRLF +
+        "From: \"Alice Smith\" <sip:alice@voip.example.com>;tag=1234" + CRLF +
+        "To: <sip:2025550123@voip.example.com>" + CRLF +
+        "Contact: <sip:alice@192.0.2.10:5061;transport=tls>" + CRLF +
+        "Call-ID: abcdef@192.0.2.10" + CRLF +
+        "CSeq: 1 INVITE" + CRLF +
+        "Authorization: Digest username=\"2025550199\", " +
+            "realm=\"voip.example.com\", uri=\"sip:voip.example.com\"" + CRLF +
+        "Content-Type: application/sdp" + CRLF +
+        "Content-Length: 120" + CRLF +
+        CRLF +
+        "v=0" + CRLF +
+        "o=2025550199 1 1 IN IP4 192.0.2.10" + CRLF +
+        "c=IN IP4 192.0.2.10" + CRLF +
+        "m=audio 5004 RTP/AVP 0" + CRLF;
+
+    @Test
+    public void testRemovesPersonalData()
+    {
+        String sanitised = SipLogger.sanitiseSipMessage(INVITE);
+
+        for (String personalData : new String[] {"2025550123",
+                                                 "2025550199",
+                                                 "alice",
+                                                 "Alice Smith",
+                                                 "voip.example.com",
+                                                 "192.0.2.10",
+                                                 "secret-branch"})
+        {
+            assertFalse("Logged " + personalData + ":\n" + sanitised,
+                        sanitised.contains(personalData));
+        }
+    }
+
+    @Test
+    public void testKeepsOtherLines()
+    {
+        String[] lines = INVITE.split(CRLF, -1);
+        String[] sanitisedLines =
+            SipLogger.sanitiseSipMessage(INVITE).split(CRLF, -1);
+
+        assertEquals(lines.length, sanitisedLines.length);
+
+        for (String line : new String[] {"Max-Forwards: 70",
+                                         "CSeq: 1 INVITE",
+                                         "Content-Type: application/sdp",
+                                         "Content-Length: 120",
+                                         "",
+                                         "v=0",
+                                         "m=audio 5004 RTP/AVP 0"})
+        {
+            int index = Arrays.asList(lines).indexOf(line);
+            assertEquals(line, sanitisedLines[index]);
+        }
+
+        for (int i = 0; i < lines.length; i++)
+        {
+            // Each sanitised line keeps its header name.
+            int colon = lines[i].indexOf(':');
+
+            if (colon > 0 && !lines[i].startsWith("INVITE"))
+            {
+                assertTrue(sanitisedLines[i],
+                           sanitisedLines[i].startsWith(
+                               lines[i].substring(0, colon + 1)));
+            }
+        }
+    }
+
+    @Test
+    public void testMessagesWithoutPersonalDataAreUnchanged()
+    {
+        assertEquals("", SipLogger.sanitiseSipMessage(""));
+        assertEquals(CRLF, SipLogger.sanitiseSipMessage(CRLF));
+
+        String message = "SIP/2.0 100 Trying" + CRLF +
+                         "CSeq: 1 INVITE" + CRLF +
+                         "\u00e9t\u00e9: non-ASCII header" + CRLF +
+                         "Content-Length: 0" + CRLF + CRLF;
+        assertEquals(message, SipLogger.sanitiseSipMessage(message));
+    }
+
+    @Test
+    public void testSanitisesLineWithoutTrailingSeparator()
+    {
+        String sanitised = SipLogger.sanitiseSipMessage(
+            "CSeq: 1 INVITE" + CRLF + "c=IN IP4 192.0.2.10");
+
+        assertTrue(sanitised,
+                   sanitised.startsWith("CSeq: 1 INVITE" + CRLF + "c=IN IP4 "));
+        assertFalse(sanitised, sanitised.contains("192.0.2.10"));
+    }
+
+    @Test
+    public void testSanitisesGeolocation()
+    {
+        String message =
+            "Geolocation: <cid:alice@voip.example.com>" + CRLF +
+            "Content-ID: <alice@voip.example.com>" + CRLF +
+            CRLF +
+            "<?xml version=\"1.0\"?>" +
+            "<presence entity=\"pres:alice@voip.example.com\">" +
+            "<ca:civicAddress><ca:A1>Washington</ca:A1>" +
+            "<ca:RD>Main Street</ca:RD></ca:civicAddress></presence>" + CRLF;
+
+        String sanitised = SipLogger.sanitiseSipMessage(message);
+
+        for (String personalData : new String[] {"alice",
+                                                 "voip.example.com",
+                                                 "Washington",
+                                                 "Main Street"})
+        {
+            assertFalse("Logged " + personalData + ":\n" + sanitised,
+                        sanitised.contains(personalData));
+        }
+
+        assertTrue(sanitised, sanitised.startsWith("Geolocation: <cid:"));
+        assertTrue(sanitised, sanitised.contains(CRLF + "Content-ID: <"));
+        assertTrue(sanitised, sanitised.contains("<ca:civicAddress><ca:A1>"));
+        assertTrue(sanitised, sanitised.contains("</ca:RD></ca:civicAddress>"));
+    }
+}
@@ -0,0 +1,133 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.impl.replacement.emoji;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures finding the emojis in a message with <tt>EmojiTrie</tt>, against
+ * looking up each candidate sequence in a set of boxed codepoint lists as
+ * we used to.  Run with
+ * <tt>ant benchmark -Dbenchmark=EmojiTrieBenchmark</tt>.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EmojiTrieBenchmark
+{
+    /**
+     * The longest codepoint sequence of any emoji we support.
+     */
+    private static final int MAX_SEQUENCE_LENGTH = 5;
+
+    private Set<List<Integer>> sequences;
+
+    private EmojiTrie trie;
+
+    private int[] message;
+
+    @Setup
+    public void setUp()
+    {
+        // Roughly the number and shape of the emojis we ship.
+        Random random = new Random(1);
+        sequences = new HashSet<>();
+
+        while (sequences.size() < 3500)
+        {
+            List<Integer> sequence = new ArrayList<>();
+            int length = random.nextInt(4) == 0 ?
+                             2 + random.nextInt(MAX_SEQUENCE_LENGTH - 1) : 1;
+
+            for (int i = 0; i < length; i++)
+            {
+                sequence.add(i % 2 == 1 ? 0x200D : 0x1F300 + random.nextInt(1024));
+            }
+
+            sequences.add(sequence);
+        }
+
+        trie = new EmojiTrie(sequences);
+
+        // A chat message that is mostly text with a few emojis in it.
+        String text = "Running a few minutes late, see you at the station ";
+        List<List<Integer>> emojis = new ArrayList<>(sequences);
+        StringBuilder builder = new StringBuilder();
+
+        for (int i = 0; i < 10; i++)
+        {
+            builder.append(text);
+
+            for (int codepoint : emojis.get(random.nextInt(emojis.size())))
+            {
+                builder.appendCodePoint(codepoint);
+            }
+        }
+
+        message = builder.codePoints().toArray();
+    }
+
+    @Benchmark
+    public int trie()
+    {
+        int emojiCount = 0;
+        int index = 0;
+
+        while (index < message.length)
+        {
+            int matchLength = trie.longestMatch(message, index, message.length);
+
+            if (matchLength > 0)
+            {
+                emojiCount++;
+                index += matchLength;
+            }
+            else
+            {
+                index++;
+            }
+        }
+
+        return emojiCount;
+    }
+
+    @Benchmark
+    public int setOfSequences()
+    {
+        int emojiCount = 0;
+        int index = 0;
+
+        while (index < message.length)
+        {
+            int matchLength = 0;
+            List<Integer> candidate = new ArrayList<>();
+
+            for (int i = index;
+                 i < message.length && i < index + MAX_SEQUENCE_LENGTH;
+                 i++)
+            {
+                candidate.add(message[i]);
+
+                if (sequences.contains(candidate))
+                    matchLength = candidate.size();
+            }
+
+            if (matchLength > 0)
+            {
+                emojiCount++;
+                index += matchLength;
+            }
+            else
+            {
+                index++;
+            }
+        }
+
+        return emojiCount;
+    }
+}
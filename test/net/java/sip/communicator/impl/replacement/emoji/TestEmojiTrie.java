@@ -0,0 +1,152 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.impl.replacement.emoji;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+/**
+ * Tests the matching of emoji codepoint sequences by <tt>EmojiTrie</tt>.
+ */
+public class TestEmojiTrie
+{
+    private static final int MAN = 0x1F468;
+
+    private static final int WOMAN = 0x1F469;
+
+    private static final int GIRL = 0x1F467;
+
+    private static final int ZWJ = 0x200D;
+
+    private static final int SMILE = 0x1F600;
+
+    private static final int FLAG_G = 0x1F1EC;
+
+    private static final int FLAG_B = 0x1F1E7;
+
+    private EmojiTrie trie;
+
+    @Before
+    public void setUp()
+    {
+        trie = new EmojiTrie(Arrays.asList(
+            Arrays.asList(MAN),
+            Arrays.asList(WOMAN),
+            Arrays.asList(SMILE),
+            Arrays.asList(MAN, ZWJ, WOMAN),
+            Arrays.asList(MAN, ZWJ, WOMAN, ZWJ, GIRL),
+            Arrays.asList(FLAG_G, FLAG_B),
+            Collections.emptyList()));
+    }
+
+    @Test
+    public void testSingleCodepoint()
+    {
+        assertEquals(1, trie.longestMatch(new int[] {SMILE}, 0, 1));
+        assertEquals(0, trie.longestMatch(new int[] {'a'}, 0, 1));
+    }
+
+    @Test
+    public void testLongestSequenceWins()
+    {
+        int[] family = {MAN, ZWJ, WOMAN, ZWJ, GIRL};
+        assertEquals(5, trie.longestMatch(family, 0, family.length));
+
+        int[] couple = {MAN, ZWJ, WOMAN, 'a'};
+        assertEquals(3, trie.longestMatch(couple, 0, couple.length));
+    }
+
+    @Test
+    public void testFallsBackToShorterMatch()
+    {
+        // "MAN ZWJ" isn't an emoji, and neither is "MAN ZWJ WOMAN ZWJ", so
+        // the longest match is the last complete emoji on the path.
+        int[] manZwj = {MAN, ZWJ, SMILE};
+        assertEquals(1, trie.longestMatch(manZwj, 0, manZwj.length));
+
+        int[] coupleZwj = {MAN, ZWJ, WOMAN, ZWJ, SMILE};
+        assertEquals(3, trie.longestMatch(coupleZwj, 0, coupleZwj.length));
+    }
+
+    @Test
+    public void testSequenceWithoutPrefixEmoji()
+    {
+        // Neither regional indicator is an emoji on its own.
+        int[] flag = {FLAG_G, FLAG_B};
+        assertEquals(2, trie.longestMatch(flag, 0, flag.length));
+        assertEquals(0, trie.longestMatch(flag, 0, 1));
+        assertEquals(0, trie.longestMatch(flag, 1, flag.length));
+    }
+
+    @Test
+    public void testStartAndLength()
+    {
+        int[] codepoints = {'a', MAN, ZWJ, WOMAN, ZWJ, GIRL, 0, 0};
+
+        assertEquals(0, trie.longestMatch(codepoints, 0, 6));
+        assertEquals(5, trie.longestMatch(codepoints, 1, 6));
+        assertEquals(3, trie.longestMatch(codepoints, 1, 5));
+        assertEquals(1, trie.longestMatch(codepoints, 3, 6));
+        assertEquals(0, trie.longestMatch(codepoints, 6, 6));
+    }
+
+    @Test
+    public void testSingleCodepointEmojiNotStartingSequence()
+    {
+        assertTrue(trie.isSingleCodepointEmojiNotStartingSequence(SMILE));
+        assertTrue(trie.isSingleCodepointEmojiNotStartingSequence(WOMAN));
+        assertFalse(trie.isSingleCodepointEmojiNotStartingSequence(MAN));
+        assertFalse(trie.isSingleCodepointEmojiNotStartingSequence(FLAG_G));
+        assertFalse(trie.isSingleCodepointEmojiNotStartingSequence('a'));
+    }
+
+    @Test
+    public void testManySequences()
+    {
+        Random random = new Random(1);
+        Set<List<Integer>> sequences = new HashSet<>();
+
+        while (sequences.size() < 2000)
+        {
+            List<Integer> sequence = new ArrayList<>();
+            int length = 1 + random.nextInt(4);
+
+            for (int i = 0; i < length; i++)
+            {
+                sequence.add(0x1F300 + random.nextInt(64));
+            }
+
+            sequences.add(sequence);
+        }
+
+        EmojiTrie largeTrie = new EmojiTrie(sequences);
+
+        for (int run = 0; run < 2000; run++)
+        {
+            int[] codepoints = new int[6];
+
+            for (int i = 0; i < codepoints.length; i++)
+            {
+                codepoints[i] = 0x1F300 + random.nextInt(64);
+            }
+
+            int expected = 0;
+            List<Integer> prefix = new ArrayList<>();
+
+            for (int codepoint : codepoints)
+            {
+                prefix.add(codepoint);
+
+                if (sequences.contains(prefix))
+                    expected = prefix.size();
+            }
+
+            assertEquals(expected,
+                         largeTrie.longestMatch(codepoints,
+                                                0,
+                                                codepoints.length));
+        }
+    }
+}
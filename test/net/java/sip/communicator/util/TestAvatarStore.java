@@ -0,0 +1,218 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+package net.java.sip.communicator.util;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+import org.junit.*;
+
+/**
+ * Tests that an <tt>AvatarStore</tt> recovers its contents when it is
+ * reopened, including after records were written without checkpointing the
+ * index and after a record was only partly written.
+ */
+public class TestAvatarStore
+{
+    private static final String KEY_A = "account" + AvatarStore.KEY_SEPARATOR + "a";
+
+    private static final String KEY_B = "account" + AvatarStore.KEY_SEPARATOR + "b";
+
+    private static final String KEY_C = "account" + AvatarStore.KEY_SEPARATOR + "c";
+
+    private File dir;
+
+    private final List<AvatarStore> stores = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException
+    {
+        dir = Files.createTempDirectory("TestAvatarStore").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        for (AvatarStore store : stores)
+        {
+            store.close();
+        }
+
+        try (Stream<Path> paths = Files.walk(dir.toPath()))
+        {
+            paths.sorted(Comparator.reverseOrder())
+                 .map(Path::toFile)
+                 .forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void testReopen() throws IOException
+    {
+        AvatarStore store = open();
+        store.put(KEY_A, bytes("avatar a"), 1000);
+        store.put(KEY_B, bytes("avatar b"), 2000);
+        store.remove(KEY_B);
+        store.close();
+
+        store = open();
+        assertArrayEquals(bytes("avatar a"), store.get(KEY_A));
+        assertEquals(1000, store.getTimestamp(KEY_A));
+        assertNull(store.get(KEY_B));
+        assertEquals(-1, store.getTimestamp(KEY_B));
+    }
+
+    @Test
+    public void testUnchangedAvatarOnlyUpdatesTimestamp() throws IOException
+    {
+        AvatarStore store = open();
+        store.put(KEY_A, bytes("avatar a"), 1000);
+        long dataLength = getDataFile().length();
+
+        store.put(KEY_A, bytes("avatar a"), 2000);
+        assertEquals(dataLength, getDataFile().length());
+        assertEquals(2000, store.getTimestamp(KEY_A));
+        store.close();
+
+        store = open();
+        assertEquals(2000, store.getTimestamp(KEY_A));
+    }
+
+    @Test
+    public void testRecoversRecordsWrittenAfterCheckpoint() throws IOException
+    {
+        AvatarStore store = open();
+        store.put(KEY_A, bytes("avatar a"), 1000);
+        store.close();
+        byte[] index = readIndex();
+
+        store = open();
+        store.put(KEY_B, bytes("avatar b"), 2000);
+        store.put(KEY_A, bytes("new avatar a"), 3000);
+        store.close();
+
+        // As if we had exited before the index was checkpointed.
+        writeIndex(index);
+
+        store = open();
+        assertArrayEquals(bytes("new avatar a"), store.get(KEY_A));
+        assertEquals(3000, store.getTimestamp(KEY_A));
+        assertArrayEquals(bytes("avatar b"), store.get(KEY_B));
+    }
+
+    @Test
+    public void testReopenAfterPartialWrite() throws IOException
+    {
+        AvatarStore store = open();
+        store.put(KEY_A, bytes("avatar a"), 1000);
+        store.close();
+        byte[] index = readIndex();
+        long lengthWithA = getDataFile().length();
+
+        store = open();
+        store.put(KEY_B, bytes("avatar b"), 2000);
+        store.close();
+
+        // As if we had crashed part way through writing B, before the index
+        // was checkpointed.
+        writeIndex(index);
+        truncateDataFile(getDataFile().length() - 3);
+
+        store = open();
+        assertArrayEquals(bytes("avatar a"), store.get(KEY_A));
+        assertNull(store.get(KEY_B));
+        assertEquals(lengthWithA, getDataFile().length());
+
+        // The partial record has gone, so new records follow on from A.
+        store.put(KEY_C, bytes("avatar c"), 3000);
+        store.close();
+
+        store = open();
+        assertArrayEquals(bytes("avatar a"), store.get(KEY_A));
+        assertNull(store.get(KEY_B));
+        assertArrayEquals(bytes("avatar c"), store.get(KEY_C));
+    }
+
+    @Test
+    public void testReopenWithDataFileShorterThanIndex() throws IOException
+    {
+        AvatarStore store = open();
+        store.put(KEY_A, bytes("avatar a"), 1000);
+        store.put(KEY_B, bytes("avatar b"), 2000);
+        store.close();
+
+        // The index covers B, but B was lost from the data file.
+        truncateDataFile(getDataFile().length() - 3);
+
+        store = open();
+        assertArrayEquals(bytes("avatar a"), store.get(KEY_A));
+        assertNull(store.get(KEY_B));
+        assertEquals(-1, store.getTimestamp(KEY_B));
+    }
+
+    @Test
+    public void testClosedStoreRejectsWrites() throws IOException
+    {
+        AvatarStore store = open();
+        store.put(KEY_A, bytes("avatar a"), 1000);
+        store.close();
+
+        assertNull(store.get(KEY_A));
+
+        try
+        {
+            store.put(KEY_B, bytes("avatar b"), 2000);
+            fail("Wrote to a closed store");
+        }
+        catch (IOException e)
+        {
+            // Expected.
+        }
+    }
+
+    private AvatarStore open() throws IOException
+    {
+        AvatarStore store = new AvatarStore(dir, null);
+        stores.add(store);
+        return store;
+    }
+
+    private File getDataFile()
+    {
+        File[] dataFiles = dir.listFiles(
+            (parent, name) -> name.startsWith("avatars-") &&
+                              name.endsWith(".dat"));
+        assertNotNull(dataFiles);
+        assertEquals(1, dataFiles.length);
+        return dataFiles[0];
+    }
+
+    private byte[] readIndex() throws IOException
+    {
+        return Files.readAllBytes(new File(dir, "avatars.idx").toPath());
+    }
+
+    private void writeIndex(byte[] index) throws IOException
+    {
+        Files.write(new File(dir, "avatars.idx").toPath(), index);
+    }
+
+    private void truncateDataFile(long length) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(getDataFile().toPath(),
+                                                    StandardOpenOption.WRITE))
+        {
+            channel.truncate(length);
+        }
+    }
+
+    private static byte[] bytes(String text)
+    {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}